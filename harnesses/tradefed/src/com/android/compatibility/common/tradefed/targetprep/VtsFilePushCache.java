@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.common.tradefed.targetprep;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the files which are already on a device, so that they are not pushed again. The content is
+ * identified by MD5 checksum, which is computed on the device in batched shell commands. The
+ * checksums of the pushed files are recorded as hints to detect the files which are deleted or
+ * overwritten on the device, and are discarded when the device reboots.
+ */
+public class VtsFilePushCache {
+    static final String BOOT_ID_PATH = "/proc/sys/kernel/random/boot_id";
+    static final String MD5SUM_COMMAND = "md5sum";
+    // Keeps each shell command within the length that adb accepts.
+    static final int MAX_SHELL_COMMAND_LENGTH = 3000;
+    private static final Pattern MD5SUM_OUTPUT_PATTERN =
+            Pattern.compile("^([0-9a-fA-F]{32})\\s+(.+)$");
+
+    // The caches keyed by device serial.
+    private static final Map<String, VtsFilePushCache> sDeviceCaches = new HashMap<>();
+    // The checksums of the local files keyed by path. Recomputed if the file is modified.
+    private static final Map<String, LocalChecksum> sLocalChecksums = new HashMap<>();
+
+    private static class LocalChecksum {
+        final long mLength;
+        final long mLastModified;
+        final String mMd5;
+
+        LocalChecksum(long length, long lastModified, String md5) {
+            mLength = length;
+            mLastModified = lastModified;
+            mMd5 = md5;
+        }
+    }
+
+    // The boot id of the device when the records are created.
+    private String mBootId = null;
+    // The checksums of the files on the device keyed by remote path.
+    private final Map<String, String> mRemoteChecksums = new HashMap<>();
+
+    /**
+     * Returns the cache of a device.
+     *
+     * @param device the device.
+     * @return the cache shared by the preparers using the device.
+     */
+    public static VtsFilePushCache getInstance(ITestDevice device) {
+        synchronized (sDeviceCaches) {
+            return sDeviceCaches.computeIfAbsent(
+                    device.getSerialNumber(), serial -> new VtsFilePushCache());
+        }
+    }
+
+    /**
+     * Returns the MD5 checksum of a local file.
+     *
+     * @param file the local file.
+     * @return the checksum in lower case hex; null if the file cannot be read.
+     */
+    static String getLocalChecksum(File file) {
+        String path = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        synchronized (sLocalChecksums) {
+            LocalChecksum checksum = sLocalChecksums.get(path);
+            if (checksum != null && checksum.mLength == length
+                    && checksum.mLastModified == lastModified) {
+                return checksum.mMd5;
+            }
+        }
+        String md5 = FileUtil.calculateMd5(file);
+        if (md5 == null) {
+            return null;
+        }
+        md5 = md5.toLowerCase();
+        synchronized (sLocalChecksums) {
+            sLocalChecksums.put(path, new LocalChecksum(length, lastModified, md5));
+        }
+        return md5;
+    }
+
+    /**
+     * Finds the files which need to be pushed. All files are checked in batched md5sum commands
+     * on the device, as the files may be deleted or overwritten after they are pushed.
+     *
+     * @param device the device.
+     * @param files the local files keyed by remote path.
+     * @return the remote paths whose content on the device differs from the local files.
+     * @throws DeviceNotAvailableException if the device is not available.
+     */
+    public synchronized Set<String> findChangedFiles(ITestDevice device, Map<String, File> files)
+            throws DeviceNotAvailableException {
+        String bootId = device.executeShellCommand("cat " + BOOT_ID_PATH);
+        bootId = (bootId == null ? "" : bootId.trim());
+        if (bootId.isEmpty() || !bootId.equals(mBootId)) {
+            mRemoteChecksums.clear();
+            mBootId = bootId;
+        }
+
+        Set<String> changed = new HashSet<>();
+        List<String> candidates = new ArrayList<>();
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            if (getLocalChecksum(entry.getValue()) == null) {
+                changed.add(entry.getKey());
+            } else {
+                candidates.add(entry.getKey());
+            }
+        }
+
+        Map<String, String> remoteChecksums = getRemoteChecksums(device, candidates);
+        int staleRecordCount = 0;
+        for (String remotePath : candidates) {
+            String localChecksum = getLocalChecksum(files.get(remotePath));
+            String remoteChecksum = remoteChecksums.get(remotePath);
+            if (localChecksum.equals(remoteChecksum)) {
+                mRemoteChecksums.put(remotePath, remoteChecksum);
+                continue;
+            }
+            if (localChecksum.equals(mRemoteChecksums.remove(remotePath))) {
+                // The file was pushed, but has been deleted or overwritten on the device.
+                staleRecordCount++;
+            }
+            changed.add(remotePath);
+        }
+        if (staleRecordCount > 0) {
+            CLog.w("%d pushed files have been deleted or modified on %s.", staleRecordCount,
+                    device.getSerialNumber());
+        }
+        CLog.d("%d of %d files need to be pushed to %s.", changed.size(), files.size(),
+                device.getSerialNumber());
+        return changed;
+    }
+
+    /**
+     * Records the files which have been pushed to the device.
+     *
+     * @param files the local files keyed by remote path.
+     */
+    public synchronized void recordPushedFiles(Map<String, File> files) {
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            String localChecksum = getLocalChecksum(entry.getValue());
+            if (localChecksum != null) {
+                mRemoteChecksums.put(entry.getKey(), localChecksum);
+            }
+        }
+    }
+
+    /**
+     * Discards the records of a remote file or directory after it is deleted.
+     *
+     * @param remotePath the remote path.
+     */
+    public synchronized void invalidate(String remotePath) {
+        String dirPrefix = remotePath.endsWith("/") ? remotePath : remotePath + "/";
+        Iterator<String> it = mRemoteChecksums.keySet().iterator();
+        while (it.hasNext()) {
+            String path = it.next();
+            if (path.equals(remotePath) || path.startsWith(dirPrefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Runs md5sum on the device.
+     *
+     * @param device the device.
+     * @param remotePaths the files to compute checksums for.
+     * @return the checksums in lower case hex keyed by remote path. The files which do not exist
+     * are not included.
+     * @throws DeviceNotAvailableException if the device is not available.
+     */
+    private static Map<String, String> getRemoteChecksums(
+            ITestDevice device, List<String> remotePaths) throws DeviceNotAvailableException {
+        Map<String, String> result = new HashMap<>();
+        StringBuilder command = new StringBuilder();
+        for (int i = 0; i < remotePaths.size(); i++) {
+            String quotedPath = "'" + remotePaths.get(i).replace("'", "'\\''") + "'";
+            if (command.length() == 0) {
+                command.append(MD5SUM_COMMAND);
+            }
+            command.append(" ").append(quotedPath);
+            if (i + 1 == remotePaths.size()
+                    || command.length() + remotePaths.get(i + 1).length() + 3
+                            > MAX_SHELL_COMMAND_LENGTH) {
+                parseMd5sumOutput(device.executeShellCommand(command.toString()), result);
+                command.setLength(0);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Parses the output of md5sum. The error messages of the files which do not exist are
+     * ignored.
+     *
+     * @param output the output of md5sum.
+     * @param result the map to put the checksums in.
+     */
+    static void parseMd5sumOutput(String output, Map<String, String> result) {
+        if (output == null) {
+            return;
+        }
+        for (String line : output.split("\n")) {
+            Matcher matcher = MD5SUM_OUTPUT_PATTERN.matcher(line.trim());
+            if (matcher.matches()) {
+                result.put(matcher.group(2), matcher.group(1).toLowerCase());
+            }
+        }
+    }
+}
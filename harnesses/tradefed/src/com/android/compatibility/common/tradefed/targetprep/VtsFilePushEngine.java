@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.common.tradefed.targetprep;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.targetprep.TargetSetupError;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Pushes files to a device with concurrent adb sync connections. Optionally, the small files are
+ * packed into one tar file which is extracted on the device, so that they do not pay for one adb
+ * round trip each. The tar file is built while the large files are being pushed. The extracted
+ * files keep the modes of the local files and are relabeled with restorecon, as adb push does.
+ */
+public class VtsFilePushEngine {
+    static final String REMOTE_TMP_DIR = "/data/local/tmp";
+    static final String TAR_EXTRACT_SUCCESS = "VTS_TAR_EXTRACTED";
+    private static final int TAR_BLOCK_SIZE = 512;
+    private static final int TAR_NAME_LENGTH = 100;
+    private static final int TAR_PREFIX_LENGTH = 155;
+
+    private final ITestDevice mDevice;
+    private final int mParallelism;
+    private final long mSmallFileMaxSize;
+
+    /**
+     * The amount of data pushed by {@link #push(Map)}.
+     */
+    public static class PushStats {
+        private long mFileCount = 0;
+        private long mByteCount = 0;
+        private long mElapsedMsecs = 0;
+
+        public long getFileCount() {
+            return mFileCount;
+        }
+
+        public long getByteCount() {
+            return mByteCount;
+        }
+
+        public long getElapsedMsecs() {
+            return mElapsedMsecs;
+        }
+
+        /**
+         * @return a summary with the number of files and bytes per second.
+         */
+        @Override
+        public String toString() {
+            double seconds = Math.max(mElapsedMsecs, 1) / 1000.0;
+            return String.format("%d files, %d bytes in %d ms (%.1f files/s, %.1f bytes/s)",
+                    mFileCount, mByteCount, mElapsedMsecs, mFileCount / seconds,
+                    mByteCount / seconds);
+        }
+    }
+
+    /**
+     * @param device the device to push files to.
+     * @param parallelism the max number of concurrent adb sync connections.
+     * @param smallFileMaxSize the files not larger than this size in bytes are pushed in a tar
+     *                         file; 0 for pushing every file individually.
+     */
+    public VtsFilePushEngine(ITestDevice device, int parallelism, long smallFileMaxSize) {
+        mDevice = device;
+        mParallelism = Math.max(parallelism, 1);
+        mSmallFileMaxSize = smallFileMaxSize;
+    }
+
+    /**
+     * Pushes files and directories to the device.
+     *
+     * @param pushSpecs the local files or directories keyed by remote path.
+     * @return the amount of data pushed.
+     * @throws TargetSetupError if any push fails.
+     * @throws DeviceNotAvailableException if the device is not available.
+     */
+    public PushStats push(Map<String, File> pushSpecs)
+            throws TargetSetupError, DeviceNotAvailableException {
+        long startTime = System.currentTimeMillis();
+        PushStats stats = new PushStats();
+        // The individually pushed files and directories, keyed by remote path.
+        Map<String, File> largeSpecs = new LinkedHashMap<>();
+        // The files to pack into the tar file, keyed by remote path.
+        Map<String, File> smallFiles = new LinkedHashMap<>();
+        for (Map.Entry<String, File> pushSpec : pushSpecs.entrySet()) {
+            if (mSmallFileMaxSize > 0) {
+                splitBySize(pushSpec.getValue(), pushSpec.getKey(), largeSpecs, smallFiles);
+            } else {
+                largeSpecs.put(pushSpec.getKey(), pushSpec.getValue());
+            }
+        }
+        for (Map.Entry<String, File> spec : largeSpecs.entrySet()) {
+            addStats(stats, spec.getValue());
+        }
+        for (Map.Entry<String, File> spec : smallFiles.entrySet()) {
+            addStats(stats, spec.getValue());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(mParallelism);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            if (!smallFiles.isEmpty()) {
+                futures.add(executor.submit(() -> {
+                    pushSmallFiles(smallFiles);
+                    return null;
+                }));
+            }
+            for (Map.Entry<String, File> spec : largeSpecs.entrySet()) {
+                futures.add(executor.submit(() -> {
+                    pushSpec(spec.getValue(), spec.getKey());
+                    return null;
+                }));
+            }
+            waitForAll(futures);
+        } finally {
+            executor.shutdownNow();
+        }
+        stats.mElapsedMsecs = System.currentTimeMillis() - startTime;
+        return stats;
+    }
+
+    /**
+     * Waits for the push tasks and rethrows the first failure.
+     */
+    private static void waitForAll(List<Future<Void>> futures)
+            throws TargetSetupError, DeviceNotAvailableException {
+        Throwable failure = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            } catch (InterruptedException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure == null) {
+            return;
+        }
+        if (failure instanceof TargetSetupError) {
+            throw (TargetSetupError) failure;
+        }
+        if (failure instanceof DeviceNotAvailableException) {
+            throw (DeviceNotAvailableException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        throw new TargetSetupError("Failed to push files: " + failure.getMessage());
+    }
+
+    /**
+     * Separates the files not larger than mSmallFileMaxSize from a push spec.
+     *
+     * @param src the local file or directory.
+     * @param remotePath the remote path of src.
+     * @param largeSpecs the map to put the large files in.
+     * @param smallFiles the map to put the small files in.
+     */
+    private void splitBySize(File src, String remotePath, Map<String, File> largeSpecs,
+            Map<String, File> smallFiles) {
+        if (!src.isDirectory()) {
+            if (src.length() <= mSmallFileMaxSize && getTarEntryName(remotePath) != null) {
+                smallFiles.put(remotePath, src);
+            } else {
+                largeSpecs.put(remotePath, src);
+            }
+            return;
+        }
+        // Directories are entries in the tar file so that empty ones are created.
+        smallFiles.put(remotePath, src);
+        File[] children = src.listFiles();
+        if (children != null) {
+            Arrays.sort(children);
+            for (File child : children) {
+                splitBySize(child, remotePath + "/" + child.getName(), largeSpecs, smallFiles);
+            }
+        }
+    }
+
+    private static void addStats(PushStats stats, File file) {
+        if (file.isFile()) {
+            stats.mFileCount++;
+            stats.mByteCount += file.length();
+        }
+    }
+
+    /**
+     * Pushes a file or a directory with adb sync.
+     *
+     * @throws TargetSetupError if the push fails.
+     */
+    private void pushSpec(File src, String remotePath)
+            throws TargetSetupError, DeviceNotAvailableException {
+        boolean success = src.isDirectory() ? mDevice.pushDir(src, remotePath)
+                                            : mDevice.pushFile(src, remotePath);
+        if (!success) {
+            throw new TargetSetupError(String.format(
+                    "Failed to push local '%s' to remote '%s'", src, remotePath));
+        }
+    }
+
+    /**
+     * Packs files into a tar file, pushes it and extracts it on the device. Falls back to pushing
+     * the files individually if the device cannot extract or relabel the files.
+     *
+     * @param smallFiles the local files and directories keyed by remote path.
+     * @throws TargetSetupError if the push fails.
+     */
+    private void pushSmallFiles(Map<String, File> smallFiles)
+            throws TargetSetupError, DeviceNotAvailableException {
+        File tarFile = null;
+        String remoteTarPath = String.format("%s/vts-push-%d-%d.tar", REMOTE_TMP_DIR,
+                System.nanoTime(), Thread.currentThread().getId());
+        try {
+            tarFile = FileUtil.createTempFile("vts-push", ".tar");
+            writeTarFile(smallFiles, tarFile);
+            if (mDevice.pushFile(tarFile, remoteTarPath)) {
+                String output = mDevice.executeShellCommand(String.format(
+                        "tar -xf %s -C / && restorecon -R %s && echo %s", remoteTarPath,
+                        String.join(" ", getRootPaths(smallFiles.keySet())),
+                        TAR_EXTRACT_SUCCESS));
+                if (output != null && output.contains(TAR_EXTRACT_SUCCESS)) {
+                    return;
+                }
+                CLog.w("Failed to extract tar file on device: %s", output);
+            }
+        } catch (IOException e) {
+            CLog.e(e);
+        } finally {
+            FileUtil.deleteFile(tarFile);
+            mDevice.executeShellCommand("rm -f " + remoteTarPath);
+        }
+
+        CLog.w("Push %d files individually.", smallFiles.size());
+        for (Map.Entry<String, File> file : smallFiles.entrySet()) {
+            if (!file.getValue().isDirectory()) {
+                pushSpec(file.getValue(), file.getKey());
+            }
+        }
+    }
+
+    /**
+     * Returns the paths which are not under other paths in the collection.
+     *
+     * @param remotePaths the absolute remote paths.
+     * @return the sorted root paths.
+     */
+    static List<String> getRootPaths(Collection<String> remotePaths) {
+        List<String> sortedPaths = new ArrayList<>(remotePaths);
+        Collections.sort(sortedPaths);
+        List<String> rootPaths = new ArrayList<>();
+        for (String path : sortedPaths) {
+            if (rootPaths.isEmpty()
+                    || !path.startsWith(rootPaths.get(rootPaths.size() - 1) + "/")) {
+                rootPaths.add(path);
+            }
+        }
+        return rootPaths;
+    }
+
+    /**
+     * Returns the permission bits of a local file. Falls back to 0755 for directories and
+     * executables and 0644 for the other files if the file system is not POSIX.
+     */
+    static int getMode(File file) {
+        try {
+            int mode = 0;
+            for (PosixFilePermission permission : Files.getPosixFilePermissions(file.toPath())) {
+                // The enum constants are declared from OWNER_READ to OTHERS_EXECUTE.
+                mode |= 0400 >> permission.ordinal();
+            }
+            return mode;
+        } catch (IOException | UnsupportedOperationException e) {
+            return (file.isDirectory() || file.canExecute()) ? 0755 : 0644;
+        }
+    }
+
+    /**
+     * Writes files to a tar file in ustar format.
+     *
+     * @param files the local files and directories keyed by the absolute path in the archive.
+     * @param tarFile the output file.
+     * @throws IOException if fails to read or write the files.
+     */
+    static void writeTarFile(Map<String, File> files, File tarFile) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tarFile))) {
+            byte[] buffer = new byte[64 * 1024];
+            for (Map.Entry<String, File> entry : files.entrySet()) {
+                File file = entry.getValue();
+                boolean isDirectory = file.isDirectory();
+                long size = isDirectory ? 0 : file.length();
+                out.write(createTarHeader(entry.getKey(), isDirectory, getMode(file), size,
+                        file.lastModified() / 1000));
+                if (isDirectory) {
+                    continue;
+                }
+                long written = 0;
+                try (InputStream in = new FileInputStream(file)) {
+                    int length;
+                    while (written < size && (length = in.read(buffer)) >= 0) {
+                        length = (int) Math.min(length, size - written);
+                        out.write(buffer, 0, length);
+                        written += length;
+                    }
+                }
+                if (written != size) {
+                    throw new IOException("File size changed while packing " + file);
+                }
+                int padding = (int) ((TAR_BLOCK_SIZE - size % TAR_BLOCK_SIZE) % TAR_BLOCK_SIZE);
+                out.write(new byte[padding]);
+            }
+            out.write(new byte[TAR_BLOCK_SIZE * 2]);
+        }
+    }
+
+    /**
+     * Converts a remote path to the name and prefix fields of a ustar header.
+     *
+     * @param remotePath the absolute remote path.
+     * @return the prefix and the name; null if the path is too long for ustar.
+     */
+    static String[] getTarEntryName(String remotePath) {
+        String path = remotePath.replaceAll("^/+", "");
+        if (path.getBytes(StandardCharsets.UTF_8).length <= TAR_NAME_LENGTH) {
+            return new String[] {"", path};
+        }
+        for (int index = path.indexOf('/'); index >= 0; index = path.indexOf('/', index + 1)) {
+            String prefix = path.substring(0, index);
+            String name = path.substring(index + 1);
+            if (prefix.getBytes(StandardCharsets.UTF_8).length <= TAR_PREFIX_LENGTH
+                    && name.getBytes(StandardCharsets.UTF_8).length <= TAR_NAME_LENGTH) {
+                return new String[] {prefix, name};
+            }
+        }
+        return null;
+    }
+
+    private static byte[] createTarHeader(String remotePath, boolean isDirectory, int mode,
+            long size, long mtimeSecs) throws IOException {
+        String[] prefixAndName = getTarEntryName(remotePath + (isDirectory ? "/" : ""));
+        if (prefixAndName == null) {
+            throw new IOException("Path is too long for tar: " + remotePath);
+        }
+        byte[] header = new byte[TAR_BLOCK_SIZE];
+        putString(header, 0, TAR_NAME_LENGTH, prefixAndName[1]);
+        putString(header, 100, 8, String.format("%07o", mode));
+        putString(header, 108, 8, String.format("%07o", 0));
+        putString(header, 116, 8, String.format("%07o", 0));
+        putString(header, 124, 12, String.format("%011o", size));
+        putString(header, 136, 12, String.format("%011o", mtimeSecs));
+        header[156] = (byte) (isDirectory ? '5' : '0');
+        putString(header, 257, 6, "ustar");
+        putString(header, 263, 2, "00");
+        putString(header, 345, TAR_PREFIX_LENGTH, prefixAndName[0]);
+        // The checksum is computed with the checksum field filled with spaces.
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += (b & 0xff);
+        }
+        putString(header, 148, 6, String.format("%06o", checksum));
+        header[154] = 0;
+        header[155] = ' ';
+        return header;
+    }
+
+    private static void putString(byte[] header, int offset, int length, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, header, offset, Math.min(bytes.length, length));
+    }
+}
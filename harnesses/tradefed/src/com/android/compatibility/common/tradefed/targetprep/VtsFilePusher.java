@@ -29,13 +29,19 @@ import com.android.tradefed.targetprep.PushFilePreparer;
 import com.android.tradefed.targetprep.TargetSetupError;
 import com.android.tradefed.testtype.IAbi;
 import com.android.tradefed.testtype.IAbiReceiver;
+import com.android.tradefed.util.VtsHostPrepScheduler;
 
 import java.io.File;
 import java.util.TreeSet;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import java.lang.Class;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.FileNotFoundException;
 
 /**
@@ -51,7 +57,8 @@ public class VtsFilePusher extends PushFilePreparer implements IAbiReceiver {
 
     @Option(name="push-group-cleanup", description = "Whether files in push group "
             + "should be cleaned up from device after test. Note that preparer does not verify "
-            + "that files/directories have been deleted. Default value: true.")
+            + "that files/directories have been deleted. The files are kept on device if "
+            + "push-group-incremental is true. Default value: true.")
     private boolean mPushGroupCleanup = true;
 
     @Option(name="push-group-remount-system", description="Whether to remounts system "
@@ -62,21 +69,41 @@ public class VtsFilePusher extends PushFilePreparer implements IAbiReceiver {
     @Option(name = "append-bitness", description = "Append the ABI's bitness to the filename.")
     private boolean mAppendBitness = false;
 
+    @Option(name = "push-group-incremental", description = "Whether to skip the files in push "
+            + "group which are already on device. The files are compared by MD5 checksums. "
+            + "The pushed files are not cleaned up so that the next modules can skip them. "
+            + "Default value: false.")
+    private boolean mPushGroupIncremental = false;
+
+    @Option(name = "push-group-parallelism", description = "The max number of files and "
+            + "directories in push group to push concurrently. Default value: 1.")
+    private int mPushGroupParallelism = 1;
+
+    @Option(name = "push-group-tar-max-file-size", description = "The files in push group not "
+            + "larger than this size in bytes are packed into a tar file which is extracted on "
+            + "device. 0 means every file is pushed individually. Default value: 0.")
+    private long mPushGroupTarMaxFileSize = 0;
+
     private static final String DIR_PUSH_GROUPS = "vts/tools/vts-tradefed/res/push_groups";
     static final String PUSH_GROUP_FILE_EXTENSION = ".push";
+    // Name of the step in VtsHostPrepScheduler.
+    static final String PUSH_STEP_NAME = "file-push-%s";
 
     private Collection<String> mFilesPushed = new TreeSet<>();
     private IAbi mAbi;
     private VtsCompatibilityInvocationHelper mInvocationHelper;
 
     /**
-     * Load file push specs from .push files as a collection of Strings
+     * Load file push specs from .push files as collections of Strings
      * @param buildInfo
-     * @return a collection of push spec strings
+     * @return the push spec strings keyed by push group. A spec in more than one group is only
+     *         in the first group.
      * @throws TargetSetupError if load fails
      */
-    private Collection<String> loadFilePushGroups(IBuildInfo buildInfo) throws TargetSetupError {
-        Collection<String> result = new TreeSet<>();
+    private Map<String, Collection<String>> loadFilePushGroups(IBuildInfo buildInfo)
+            throws TargetSetupError {
+        Map<String, Collection<String>> result = new LinkedHashMap<>();
+        Set<String> loadedSpecs = new HashSet<>();
         File testDir;
         try {
             testDir = mInvocationHelper.getTestsDir();
@@ -84,53 +111,17 @@ public class VtsFilePusher extends PushFilePreparer implements IAbiReceiver {
             throw new TargetSetupError(e.getMessage());
         }
 
+        File pushGroupDir = new File(testDir, DIR_PUSH_GROUPS);
         for (String group: mPushSpecGroups) {
-            TreeSet<String> stack = new TreeSet<>();
-            result.addAll(loadFilePushGroup(group, testDir.getAbsolutePath(), stack));
-        }
-        return result;
-    }
-
-    /**
-     * Recursively load file push specs from a push group file into a collection of strings.
-     *
-     * @param specFile, push group file name with .push extension. Can contain relative directory.
-     * @param testsDir, the directory where test data files are stored.
-     */
-    private Collection<String> loadFilePushGroup(String specFileName, String testsDir,
-            Collection<String> stack) throws TargetSetupError {
-        Collection<String> result = new TreeSet<>();
-
-        String relativePath = new File(
-                DIR_PUSH_GROUPS, specFileName).getPath();
-        File specFile = null;
-
-        try {
-            specFile = new File(testsDir, relativePath);
-        } catch(Exception e) {
-            throw new TargetSetupError(e.getMessage());
-        }
-
-        try (BufferedReader br = new BufferedReader(new FileReader(specFile))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String spec = line.trim();
-                if (spec.contains("->")) {
-                    result.add(spec);
-                } else if (spec.contains(PUSH_GROUP_FILE_EXTENSION)) {
-                    if (!stack.contains(spec)) {
-                        stack.add(spec);
-                        result.addAll(loadFilePushGroup(spec, testsDir, stack));
-                        stack.remove(spec);
-                    }
-                } else if (spec.length() > 0) {
-                    throw new TargetSetupError("Unknown file push spec: " + spec);
+            Collection<String> specs = new ArrayList<>();
+            for (String spec : VtsPushGroupCache.getPushSpecs(pushGroupDir, group)) {
+                if (!loadedSpecs.contains(spec)) {
+                    specs.add(spec);
                 }
             }
-        } catch(Exception e) {
-            throw new TargetSetupError(e.getMessage());
+            loadedSpecs.addAll(specs);
+            result.put(group, specs);
         }
-
         return result;
     }
 
@@ -146,41 +137,120 @@ public class VtsFilePusher extends PushFilePreparer implements IAbiReceiver {
             device.remountSystemWritable();
         }
 
-        for (String pushspec : loadFilePushGroups(buildInfo)) {
-            String[] pair = pushspec.split("->");
+        Map<String, Map<String, File>> groupPushSpecs = new LinkedHashMap<>();
+        Set<String> remotePaths = new HashSet<>();
+        for (Map.Entry<String, Collection<String>> group :
+                loadFilePushGroups(buildInfo).entrySet()) {
+            Map<String, File> pushSpecs = new LinkedHashMap<>();
+            for (String pushspec : group.getValue()) {
+                String[] pair = pushspec.split("->");
+
+                if (pair.length != 2) {
+                    throw new TargetSetupError(
+                            String.format("Failed to parse push spec '%s'", pushspec));
+                }
 
-            if (pair.length != 2) {
-                throw new TargetSetupError(
-                        String.format("Failed to parse push spec '%s'", pushspec));
-            }
+                File src = new File(pair[0]);
 
-            File src = new File(pair[0]);
+                if (!src.isAbsolute()) {
+                    src = resolveRelativeFilePath(buildInfo, pair[0]);
+                }
 
-            if (!src.isAbsolute()) {
-                src = resolveRelativeFilePath(buildInfo, pair[0]);
-            }
+                Class cls = this.getClass();
 
-            Class cls = this.getClass();
+                if (!src.exists()) {
+                    Log.w(cls.getSimpleName(), String.format(
+                            "Skipping push spec in push group whose source does not exist: %s",
+                            pushspec));
+                    continue;
+                }
+                if (remotePaths.add(pair[1])) {
+                    pushSpecs.put(pair[1], src);
+                }
+            }
+            groupPushSpecs.put(group.getKey(), pushSpecs);
+        }
 
-            if (!src.exists()) {
-                Log.w(cls.getSimpleName(), String.format(
-                        "Skipping push spec in push group whose source does not exist: %s",
-                        pushspec));
-                continue;
+        VtsFilePushCache cache = null;
+        Map<String, Map<String, File>> specFiles = new HashMap<>();
+        Set<String> changedFiles = null;
+        if (mPushGroupIncremental) {
+            cache = VtsFilePushCache.getInstance(device);
+            Map<String, File> allFiles = new HashMap<>();
+            for (Map<String, File> pushSpecs : groupPushSpecs.values()) {
+                for (Map.Entry<String, File> pushSpec : pushSpecs.entrySet()) {
+                    Map<String, File> files = listFiles(pushSpec.getValue(), pushSpec.getKey());
+                    specFiles.put(pushSpec.getKey(), files);
+                    allFiles.putAll(files);
+                }
             }
+            changedFiles = cache.findChangedFiles(device, allFiles);
+        }
 
-            Log.d(cls.getSimpleName(),
-                    String.format("Trying to push file from local to remote: %s", pushspec));
+        VtsFilePushEngine engine =
+                new VtsFilePushEngine(device, mPushGroupParallelism, mPushGroupTarMaxFileSize);
+        for (Map.Entry<String, Map<String, File>> group : groupPushSpecs.entrySet()) {
+            Map<String, File> specsToPush = new LinkedHashMap<>();
+            for (Map.Entry<String, File> pushSpec : group.getValue().entrySet()) {
+                File src = pushSpec.getValue();
+                String remotePath = pushSpec.getKey();
+                Class cls = this.getClass();
+
+                if (cache != null
+                        && Collections.disjoint(specFiles.get(remotePath).keySet(), changedFiles)) {
+                    Log.d(cls.getSimpleName(), String.format(
+                            "Skipping push of '%s' which is already on device.", remotePath));
+                    mFilesPushed.add(remotePath);
+                    continue;
+                }
 
-            if ((src.isDirectory() && !device.pushDir(src, pair[1])) ||
-                    (!device.pushFile(src, pair[1]))) {
+                Log.d(cls.getSimpleName(), String.format(
+                        "Trying to push file from local to remote: %s->%s", src, remotePath));
+                specsToPush.put(remotePath, src);
+            }
+
+            VtsFilePushEngine.PushStats stats;
+            try {
+                stats = engine.push(specsToPush);
+            } catch (TargetSetupError e) {
                 mFilesPushed = null;
-                throw new TargetSetupError(String.format("Failed to push local '%s' to remote '%s'",
-                        pair[0], pair[1]));
-            } else {
-                mFilesPushed.add(pair[1]);
+                if (cache != null) {
+                    for (String remotePath : specsToPush.keySet()) {
+                        cache.invalidate(remotePath);
+                    }
+                }
+                throw e;
+            }
+            CLog.i("Pushed push group %s: %s", group.getKey(), stats);
+            for (String remotePath : specsToPush.keySet()) {
+                mFilesPushed.add(remotePath);
+                if (cache != null) {
+                    cache.recordPushedFiles(specFiles.get(remotePath));
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists the files to push for a push spec.
+     *
+     * @param src the local file or directory.
+     * @param remotePath the remote path of src.
+     * @return the local files keyed by remote path.
+     */
+    private static Map<String, File> listFiles(File src, String remotePath) {
+        Map<String, File> files = new HashMap<>();
+        if (!src.isDirectory()) {
+            files.put(remotePath, src);
+            return files;
+        }
+        File[] children = src.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                files.putAll(listFiles(child, remotePath + "/" + child.getName()));
             }
         }
+        return files;
     }
 
     /**
@@ -189,11 +259,15 @@ public class VtsFilePusher extends PushFilePreparer implements IAbiReceiver {
     @Override
     public void setUp(ITestDevice device, IBuildInfo buildInfo)
             throws TargetSetupError, BuildError, DeviceNotAvailableException {
-        device.enableAdbRoot();
-        mInvocationHelper = new VtsCompatibilityInvocationHelper();
-        pushFileGroups(device, buildInfo);
+        try (VtsHostPrepScheduler.TimedStep step =
+                        VtsHostPrepScheduler.getInstance(buildInfo).startTimedStep(
+                                String.format(PUSH_STEP_NAME, device.getSerialNumber()))) {
+            device.enableAdbRoot();
+            mInvocationHelper = new VtsCompatibilityInvocationHelper();
+            pushFileGroups(device, buildInfo);
 
-        super.setUp(device, buildInfo);
+            super.setUp(device, buildInfo);
+        }
     }
 
     /**
@@ -204,12 +278,18 @@ public class VtsFilePusher extends PushFilePreparer implements IAbiReceiver {
             throws DeviceNotAvailableException {
 
         if (!(e instanceof DeviceNotAvailableException) && mPushGroupCleanup && mFilesPushed != null) {
-            device.enableAdbRoot();
-            if (mPushGroupRemount) {
-                device.remountSystemWritable();
-            }
-            for (String devicePath : mFilesPushed) {
-                device.executeShellCommand("rm -r " + devicePath);
+            if (mPushGroupIncremental) {
+                // The files recorded in VtsFilePushCache are reused by the next modules.
+                CLog.i("Keeping %d push group paths on %s for incremental push.",
+                        mFilesPushed.size(), device.getSerialNumber());
+            } else {
+                device.enableAdbRoot();
+                if (mPushGroupRemount) {
+                    device.remountSystemWritable();
+                }
+                for (String devicePath : mFilesPushed) {
+                    device.executeShellCommand("rm -r " + devicePath);
+                }
             }
         }
 
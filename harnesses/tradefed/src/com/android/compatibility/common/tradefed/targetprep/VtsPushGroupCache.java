@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.common.tradefed.targetprep;
+
+import com.android.tradefed.targetprep.TargetSetupError;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A process-wide cache of .push files. Each file is parsed once, and the specs of a push group
+ * and its included groups are flattened once and shared by all modules and ABIs. The entries are
+ * reloaded when any of the files is modified.
+ */
+public class VtsPushGroupCache {
+    static final String PUSH_SPEC_SEPARATOR = "->";
+
+    /**
+     * The content of one .push file.
+     */
+    private static class PushGroupFile {
+        final long mLastModified;
+        final long mLength;
+        // The push specs in this file.
+        final List<String> mSpecs = new ArrayList<>();
+        // The included push group names.
+        final List<String> mIncludes = new ArrayList<>();
+
+        PushGroupFile(long lastModified, long length) {
+            mLastModified = lastModified;
+            mLength = length;
+        }
+
+        boolean isUpToDate(File file) {
+            return file.lastModified() == mLastModified && file.length() == mLength;
+        }
+    }
+
+    /**
+     * The specs of a push group and its included groups.
+     */
+    private static class FlattenedPushGroup {
+        final List<String> mSpecs;
+        // The files which the specs are loaded from.
+        final Map<File, PushGroupFile> mFiles;
+
+        FlattenedPushGroup(List<String> specs, Map<File, PushGroupFile> files) {
+            mSpecs = specs;
+            mFiles = files;
+        }
+
+        boolean isUpToDate() {
+            for (Map.Entry<File, PushGroupFile> entry : mFiles.entrySet()) {
+                if (!entry.getValue().isUpToDate(entry.getKey())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final Map<File, PushGroupFile> sFiles = new HashMap<>();
+    private static final Map<File, FlattenedPushGroup> sFlattenedGroups = new HashMap<>();
+
+    /**
+     * Returns the push specs of a push group including the ones in the included groups.
+     *
+     * @param pushGroupDir the directory containing the .push files.
+     * @param groupName the push group name with .push extension. Can contain relative directory.
+     * @return the sorted, de-duplicated push spec strings.
+     * @throws TargetSetupError if fails to load the files.
+     */
+    public static synchronized List<String> getPushSpecs(File pushGroupDir, String groupName)
+            throws TargetSetupError {
+        File groupFile = new File(pushGroupDir, groupName).getAbsoluteFile();
+        FlattenedPushGroup group = sFlattenedGroups.get(groupFile);
+        if (group != null && group.isUpToDate()) {
+            return group.mSpecs;
+        }
+
+        Set<String> specs = new TreeSet<>();
+        Map<File, PushGroupFile> files = new LinkedHashMap<>();
+        Set<File> visited = new HashSet<>();
+        List<File> pending = new ArrayList<>();
+        pending.add(groupFile);
+        visited.add(groupFile);
+        while (!pending.isEmpty()) {
+            File file = pending.remove(pending.size() - 1);
+            PushGroupFile content = loadFile(file);
+            files.put(file, content);
+            specs.addAll(content.mSpecs);
+            for (String include : content.mIncludes) {
+                File includeFile = new File(pushGroupDir, include).getAbsoluteFile();
+                if (visited.add(includeFile)) {
+                    pending.add(includeFile);
+                }
+            }
+        }
+        group = new FlattenedPushGroup(
+                Collections.unmodifiableList(new ArrayList<>(specs)), files);
+        sFlattenedGroups.put(groupFile, group);
+        return group.mSpecs;
+    }
+
+    /**
+     * Parses a .push file or returns the cached content if the file is not modified.
+     *
+     * @param file the .push file.
+     * @return the content.
+     * @throws TargetSetupError if the file cannot be read or contains unknown lines.
+     */
+    private static PushGroupFile loadFile(File file) throws TargetSetupError {
+        PushGroupFile content = sFiles.get(file);
+        if (content != null && content.isUpToDate(file)) {
+            return content;
+        }
+
+        content = new PushGroupFile(file.lastModified(), file.length());
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String spec = line.trim();
+                if (spec.contains(PUSH_SPEC_SEPARATOR)) {
+                    content.mSpecs.add(spec);
+                } else if (spec.contains(VtsFilePusher.PUSH_GROUP_FILE_EXTENSION)) {
+                    content.mIncludes.add(spec);
+                } else if (spec.length() > 0) {
+                    throw new TargetSetupError("Unknown file push spec: " + spec);
+                }
+            }
+        } catch (IOException e) {
+            throw new TargetSetupError(e.getMessage());
+        }
+        sFiles.put(file, content);
+        return content;
+    }
+}
@@ -19,20 +19,44 @@ package com.android.tradefed.device.metric;
 import com.android.annotations.VisibleForTesting;
 import com.android.compatibility.common.tradefed.build.VtsCompatibilityInvocationHelper;
 import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
 import com.android.tradefed.targetprep.VtsCoveragePreparer;
 import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.GcovCoverageMerger;
+import com.android.tradefed.util.GcovIndex;
 import com.android.tradefed.util.RunInterruptedException;
+import com.android.tradefed.util.VtsCoverageAccumulator;
 import com.android.tradefed.util.VtsPythonRunnerHelper;
+import com.android.vts.proto.VtsReportMessage.CoverageReportMessage;
+import com.android.vts.proto.VtsReportMessage.TestReportMessage;
+import com.google.protobuf.TextFormat;
+
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 /**
  * A {@link IMetricCollector} that enables vts coverage measurement during a
  * test and generates the coverage report after the test run.
@@ -41,7 +65,48 @@ import java.util.Map;
 public class VtsCoverageCollector extends BaseDeviceMetricCollector {
     static final long BASE_TIMEOUT = 1000 * 60 * 20; // timeout for fetching artifacts
 
+    // Path where the coverage data are flushed on the target.
+    static final String TARGET_COVERAGE_PATH = "/data/misc/trace/";
+    // Command to flush the coverage data of the running processes.
+    static final String FLUSH_COMMAND = "GCOV_PREFIX_OVERRIDE=true "
+            + "GCOV_PREFIX=/data/local/tmp/flusher /data/local/tmp/vts_coverage_configure flush";
+    static final String CLEAN_TRACE_COMMAND = "rm -rf /data/misc/trace/*";
+
+    static final String BUILD_INFO_FILE_NAME = "BUILD_INFO";
+    static final String GCOV_FILE_NAME = "gcov.zip";
+    // Key of the map from project names to revisions in BUILD_INFO.
+    static final String REPO_DICT_KEY = "repo-dict";
+
+    // Default max number of devices processed concurrently.
+    static final int DEFAULT_PARALLELISM = 4;
+    // Name of the per-device metric of coverage processing time.
+    static final String COVERAGE_TIME_METRIC = "vts_coverage_processing_time_ms";
+
+    // Default path to store the gcno index files.
+    static final String DEFAULT_COVERAGE_INDEX_PATH = "/tmp/vts-coverage-index/";
+    // Name of the directory under coverage_report_path to store the plan-level coverage.
+    static final String PLAN_COVERAGE_DIR_NAME = "plan_coverage";
+
     private VtsPythonRunnerHelper mPythonRunnerHelper = null;
+
+    @Option(name = "use-python-coverage-utils",
+            description = "Whether to process the coverage data with the python coverage_utils. "
+                    + "Set to false to use the in-process gcov engine.")
+    private boolean mUsePythonCoverageUtils = true;
+
+    @Option(name = "coverage-collection-parallelism",
+            description = "Max number of devices whose coverage data are processed concurrently.")
+    private int mParallelism = DEFAULT_PARALLELISM;
+
+    @Option(name = "coverage-index-dir",
+            description = "Local directory to store the gcno index of each device build.")
+    private String mCoverageIndexDir = DEFAULT_COVERAGE_INDEX_PATH;
+
+    @Option(name = "accumulate-plan-coverage",
+            description = "Whether to merge the coverage of each module into the plan-level "
+                    + "coverage of the device build.")
+    private boolean mAccumulatePlanCoverage = true;
+
     @Override
     public void onTestRunStart(DeviceMetricData testData) {
         for (ITestDevice device : getDevices()) {
@@ -63,7 +128,7 @@ public class VtsCoverageCollector extends BaseDeviceMetricCollector {
             CLog.e("Could not get build Info.");
             return;
         }
-        if (mPythonRunnerHelper == null) {
+        if (mUsePythonCoverageUtils && mPythonRunnerHelper == null) {
             File workingDir = null;
             VtsCompatibilityInvocationHelper invocationHelper = createInvocationHelper();
             try {
@@ -74,36 +139,228 @@ public class VtsCoverageCollector extends BaseDeviceMetricCollector {
             }
             mPythonRunnerHelper = new VtsPythonRunnerHelper(buildInfo, workingDir);
         }
-        for (ITestDevice device : getDevices()) {
-            String serial = device.getSerialNumber();
+        // Validates the devices in order. The devices before the first invalid one are still
+        // processed.
+        List<ITestDevice> devices = getDevices();
+        Map<ITestDevice, String> gcovDirPaths = new LinkedHashMap<>();
+        File local_coverage_report_dir = null;
+        for (ITestDevice device : devices) {
             String gcovDirPath = getGcoveResrouceDir(buildInfo, device);
             if (gcovDirPath == null) {
                 CLog.e("Could not get gcov resource dir path.");
-                return;
+                break;
             }
             String coverage_report_dir = buildInfo.getBuildAttributes().get("coverage_report_path");
             if (coverage_report_dir == null) {
                 CLog.e("Must specify the directory to store the coverage report.");
-                return;
+                break;
+            }
+            local_coverage_report_dir = new File(coverage_report_dir, moduleName);
+            gcovDirPaths.put(device, gcovDirPath);
+        }
+        if (gcovDirPaths.isEmpty()) {
+            return;
+        }
+
+        // Processes the devices concurrently. The reports of multiple devices are distinguished by
+        // serial numbers so that they do not overwrite each other.
+        final File reportDir = local_coverage_report_dir;
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(mParallelism, gcovDirPaths.size())));
+        Map<ITestDevice, Future<String>> futures = new LinkedHashMap<>();
+        for (Map.Entry<ITestDevice, String> entry : gcovDirPaths.entrySet()) {
+            ITestDevice device = entry.getKey();
+            String reportPrefix = (devices.size() > 1)
+                    ? moduleName + "_" + device.getSerialNumber()
+                    : moduleName;
+            futures.put(device, executor.submit(() -> {
+                long startTime = System.currentTimeMillis();
+                String interruptMessage =
+                        collectCoverage(device, entry.getValue(), reportDir, reportPrefix);
+                long elapsedTime = System.currentTimeMillis() - startTime;
+                CLog.i("Processed coverage of %s in %d ms.", device.getSerialNumber(),
+                        elapsedTime);
+                if (testData != null) {
+                    testData.addMetricForDevice(device, COVERAGE_TIME_METRIC,
+                            Metric.newBuilder().setMeasurements(
+                                    Measurements.newBuilder().setSingleInt(elapsedTime)));
+                }
+                return interruptMessage;
+            }));
+        }
+        executor.shutdown();
+
+        // Aggregates the results in the order of the devices.
+        String interruptMessage = null;
+        try {
+            for (Map.Entry<ITestDevice, Future<String>> future : futures.entrySet()) {
+                try {
+                    String message = future.getValue().get();
+                    if (interruptMessage == null) {
+                        interruptMessage = message;
+                    }
+                } catch (ExecutionException e) {
+                    CLog.e("Could not get coverage data of %s: %s",
+                            future.getKey().getSerialNumber(), e.getCause().toString());
+                }
             }
-            File local_coverage_report_dir = new File(coverage_report_dir, moduleName);
-
-            String cmdString = "python"
-                    + " -m vts.utils.python.coverage.coverage_utils get_coverage --serial " + serial
-                    + " --gcov_rescource_path " + gcovDirPath + " --report_path "
-                    + local_coverage_report_dir.getAbsolutePath() + " --report_prefix "
-                    + moduleName;
-            String[] cmd = cmdString.split("\\s+");
-            CommandResult commandResult = new CommandResult();
-            String interruptMessage =
-                    mPythonRunnerHelper.runPythonRunner(cmd, commandResult, BASE_TIMEOUT);
-            if (commandResult == null || commandResult.getStatus() != CommandStatus.SUCCESS) {
-                CLog.e("Could not get coverage data.");
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new RunInterruptedException(e.toString());
+        }
+        if (interruptMessage != null) {
+            throw new RunInterruptedException(interruptMessage);
+        }
+    }
+
+    /**
+     * Processes the coverage data of a device and writes the report.
+     *
+     * @param device the device under test.
+     * @param gcovDirPath the directory containing the gcov artifacts of the device build.
+     * @param reportDir the directory to store the report.
+     * @param reportPrefix the prefix of the report file name.
+     * @return the interrupt message of the python runner, or null if not interrupted.
+     */
+    private String collectCoverage(
+            ITestDevice device, String gcovDirPath, File reportDir, String reportPrefix) {
+        if (!mUsePythonCoverageUtils) {
+            try {
+                processCoverage(device, new File(gcovDirPath), reportDir, reportPrefix);
+            } catch (IOException | JSONException e) {
+                CLog.e("Could not get coverage data: %s", e.toString());
+            } catch (DeviceNotAvailableException e) {
+                CLog.e("Could not pull coverage data: %s", e.toString());
             }
-            if (interruptMessage != null) {
-                throw new RunInterruptedException(interruptMessage);
+            return null;
+        }
+
+        String cmdString = "python"
+                + " -m vts.utils.python.coverage.coverage_utils get_coverage --serial "
+                + device.getSerialNumber() + " --gcov_rescource_path " + gcovDirPath
+                + " --report_path " + reportDir.getAbsolutePath() + " --report_prefix "
+                + reportPrefix;
+        String[] cmd = cmdString.split("\\s+");
+        CommandResult commandResult = new CommandResult();
+        String interruptMessage =
+                mPythonRunnerHelper.runPythonRunner(cmd, commandResult, BASE_TIMEOUT);
+        if (commandResult == null || commandResult.getStatus() != CommandStatus.SUCCESS) {
+            CLog.e("Could not get coverage data.");
+        }
+        return interruptMessage;
+    }
+
+    /**
+     * Pulls the gcda files from a device and writes the coverage report of the module. The
+     * report is the same as the one generated by the python coverage_utils.
+     *
+     * @param device the device to pull the gcda files from.
+     * @param gcovDir the directory containing gcov.zip and BUILD_INFO of the device build.
+     * @param reportDir the directory to store the report.
+     * @param moduleName the module name as the report file name prefix.
+     * @throws IOException if fails to read the artifacts or write the report.
+     * @throws JSONException if BUILD_INFO is malformed.
+     * @throws DeviceNotAvailableException if the device is lost.
+     */
+    @VisibleForTesting
+    void processCoverage(ITestDevice device, File gcovDir, File reportDir, String moduleName)
+            throws IOException, JSONException, DeviceNotAvailableException {
+        GcovIndex index =
+                GcovIndex.load(new File(gcovDir, GCOV_FILE_NAME), new File(mCoverageIndexDir));
+        JSONObject repoDict =
+                new JSONObject(FileUtil.readStringFromFile(new File(gcovDir, BUILD_INFO_FILE_NAME)))
+                        .getJSONObject(REPO_DICT_KEY);
+        Map<String, String> revisions = new HashMap<>();
+        Iterator<String> projectNames = repoDict.keys();
+        while (projectNames.hasNext()) {
+            String projectName = projectNames.next();
+            revisions.put(projectName, repoDict.getString(projectName));
+        }
+
+        GcovCoverageMerger merger =
+                new GcovCoverageMerger(index, GcovCoverageMerger.DEFAULT_EXCLUDE_PATHS);
+        File gcdaDir = FileUtil.createTempDir("vts-gcda-" + device.getSerialNumber());
+        try {
+            device.executeShellCommand(FLUSH_COMMAND);
+            if (!device.pullDir(TARGET_COVERAGE_PATH, gcdaDir)) {
+                throw new IOException("Failed to pull " + TARGET_COVERAGE_PATH);
+            }
+            device.executeShellCommand(CLEAN_TRACE_COMMAND);
+            int fileCount = 0;
+            for (File gcdaFile : listGcdaFiles(gcdaDir)) {
+                String remotePath = TARGET_COVERAGE_PATH
+                        + gcdaDir.toPath().relativize(gcdaFile.toPath()).toString();
+                if (merger.addGcdaFile(remotePath, Files.readAllBytes(gcdaFile.toPath()))) {
+                    fileCount++;
+                }
+            }
+            CLog.i("Merged %d gcda files from %s.", fileCount, device.getSerialNumber());
+        } finally {
+            FileUtil.recursiveDelete(gcdaDir);
+        }
+
+        List<CoverageReportMessage> coverages = merger.getCoverageReports(revisions);
+        TestReportMessage.Builder report = TestReportMessage.newBuilder();
+        report.addAllCoverage(coverages);
+        FileUtil.mkdirsRWX(reportDir);
+        File reportFile = new File(reportDir, "coverage_report_" + moduleName + ".txt");
+        CLog.i("Storing coverage report to: %s", reportFile);
+        FileUtil.writeToFile(TextFormat.printToString(report.build()), reportFile);
+
+        if (mAccumulatePlanCoverage) {
+            accumulateCoverage(device, new File(reportDir.getParentFile(), PLAN_COVERAGE_DIR_NAME),
+                    coverages);
+        }
+    }
+
+    /**
+     * Merges the coverage of a module into the plan-level coverage of the device build.
+     *
+     * @param device the device under test.
+     * @param accumulatorDir the directory to store the plan-level coverage.
+     * @param coverages the coverage reports of the module.
+     * @throws IOException if fails to update the plan-level coverage.
+     * @throws DeviceNotAvailableException if the device is lost.
+     */
+    private void accumulateCoverage(ITestDevice device, File accumulatorDir,
+            List<CoverageReportMessage> coverages)
+            throws IOException, DeviceNotAvailableException {
+        String buildKey = device.getBuildFlavor() + "_" + device.getBuildId();
+        VtsCoverageAccumulator accumulator =
+                VtsCoverageAccumulator.getInstance(accumulatorDir, buildKey);
+        for (CoverageReportMessage coverage : coverages) {
+            long[] vector = new long[coverage.getLineCoverageVectorCount()];
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] = coverage.getLineCoverageVector(i);
+            }
+            accumulator.merge(coverage.getProjectName().toStringUtf8() + ":"
+                            + coverage.getFilePath().toStringUtf8(),
+                    vector);
+        }
+        long totalLineCount = accumulator.getTotalLineCount();
+        long coveredLineCount = accumulator.getCoveredLineCount();
+        CLog.i("Plan coverage of %s: %d/%d lines (%.2f%%) in %d files.", buildKey,
+                coveredLineCount, totalLineCount,
+                totalLineCount == 0 ? 0.0 : coveredLineCount * 100.0 / totalLineCount,
+                accumulator.getFileCount());
+    }
+
+    private static List<File> listGcdaFiles(File dir) {
+        List<File> gcdaFiles = new ArrayList<>();
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return gcdaFiles;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            if (child.isDirectory()) {
+                gcdaFiles.addAll(listGcdaFiles(child));
+            } else if (child.getName().endsWith(GcovCoverageMerger.GCDA_SUFFIX)) {
+                gcdaFiles.add(child);
             }
         }
+        return gcdaFiles;
     }
 
     @VisibleForTesting
@@ -16,17 +16,40 @@
 
 package com.android.tradefed.device.metric;
 
+import com.android.annotations.VisibleForTesting;
 import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Measurements;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
 import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.VtsLatencyBaselineStore;
+import com.android.tradefed.util.VtsLatencyRegressionDetector;
+import com.android.tradefed.util.VtsLatencyRegressionDetector.Regression;
+import com.android.tradefed.util.VtsProfilingAnalyzer;
+import com.android.tradefed.util.VtsTraceStore;
+import com.android.vts.proto.VtsReportMessage.TestReportMessage;
+import com.google.protobuf.TextFormat;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
 
 /**
  * A {@link IMetricCollector} that enables vts hal profiling during a test and
@@ -45,6 +68,71 @@ public class VtsHalTraceCollector extends BaseDeviceMetricCollector {
     // Prefix of temp directory that stores the trace files.
     static final String TRACE_DIR_PREFIX = System.getProperty("java.io.tmpdir") + "/vts-profiling/";
     static final String TRACE_PATH = "trace_path";
+    // Path of the trace archive on target device.
+    static final String TRACE_ARCHIVE_PATH = VTS_TMP_DIR + "vts_hal_trace.tar.gz";
+    // Output of the archive command if it succeeds.
+    static final String TAR_CREATE_SUCCESS = "VTS_TAR_CREATED";
+    // Default max number of devices whose trace files are pulled concurrently.
+    static final int DEFAULT_PARALLELISM = 4;
+    // Names of the per-device metrics of the pulled trace files.
+    static final String TRACE_FILE_COUNT_METRIC = "vts_hal_trace_file_count";
+    static final String TRACE_BYTES_METRIC = "vts_hal_trace_bytes";
+    static final String TRACE_PULL_TIME_METRIC = "vts_hal_trace_pull_time_ms";
+    // Prefix of the latency report file name in the trace directory.
+    static final String LATENCY_REPORT_PREFIX = "latency_report_";
+    // Names of the per-device metrics of the latency regressions.
+    static final String LATENCY_REGRESSION_COUNT_METRIC = "vts_hal_latency_regression_count";
+    static final String LATENCY_REGRESSION_METRIC_PREFIX = "vts_hal_latency_regression:";
+    private static final int TAR_BLOCK_SIZE = 512;
+
+    @Option(name = "batch-trace-pull",
+            description = "Whether to compress the trace files into one archive on the device and "
+                    + "pull the archive instead of pulling the trace files one by one.")
+    private boolean mBatchTracePull = false;
+
+    @Option(name = "trace-pull-parallelism",
+            description = "Max number of devices whose trace files are pulled concurrently.")
+    private int mParallelism = DEFAULT_PARALLELISM;
+
+    @Option(name = "analyze-trace-latency",
+            description = "Whether to compute the latency of the HAL APIs from the trace files "
+                    + "and store the profiling reports in the trace directory.")
+    private boolean mAnalyzeTraceLatency = false;
+
+    @Option(name = "write-columnar-trace",
+            description = "Whether to convert each trace file to a columnar trace store which "
+                    + "can be range-scanned by time and API.")
+    private boolean mWriteColumnarTrace = false;
+
+    @Option(name = "latency-baseline-dir",
+            description = "The directory of the API latency baseline database. If set, the "
+                    + "latency of the run is compared with the baseline of the previous builds.")
+    private File mLatencyBaselineDir = null;
+
+    @Option(name = "latency-baseline-builds",
+            description = "Max number of the most recent builds in the latency baseline.")
+    private int mLatencyBaselineBuilds = 5;
+
+    @Option(name = "latency-regression-threshold",
+            description = "Min relative increase of the p50 or p99 latency to be a regression.")
+    private double mLatencyRegressionThreshold = 0.05;
+
+    @Option(name = "latency-regression-z-score",
+            description = "Min z-score of the latency increase to be significant.")
+    private double mLatencyRegressionZScore = 2.326;
+
+    @Option(name = "update-latency-baseline",
+            description = "Whether to add the latency of the run to the baseline database.")
+    private boolean mUpdateLatencyBaseline = true;
+
+    /**
+     * The amount of trace data pulled from a device.
+     */
+    static class PullStats {
+        long mFileCount = 0;
+        long mByteCount = 0;
+        List<File> mFiles = new ArrayList<>();
+    }
 
     @Override
     public void onTestRunStart(DeviceMetricData testData) {
@@ -73,47 +161,319 @@ public class VtsHalTraceCollector extends BaseDeviceMetricCollector {
             DeviceMetricData testData, final Map<String, Metric> currentTestCaseMetrics) {
         String moduleName = getRunName().replace(' ', '_');
         CLog.i("Test module name: " + moduleName);
-        for (ITestDevice device : getDevices()) {
+        List<ITestDevice> devices = getDevices();
+        ExecutorService executor =
+                Executors.newFixedThreadPool(Math.max(1, Math.min(mParallelism, devices.size())));
+        List<Future<?>> futures = new ArrayList<>();
+        for (ITestDevice device : devices) {
+            // The devices are pulled in parallel, so each of them gets its own directory.
+            String traceDirName = (devices.size() > 1)
+                    ? moduleName + "_" + device.getSerialNumber()
+                    : moduleName;
+            futures.add(executor.submit(
+                    () -> collectTraceFiles(testData, device, moduleName, traceDirName)));
+        }
+        executor.shutdown();
+        try {
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    CLog.e("Failed to get vts hal profiling trace: " + e.getCause().toString());
+                }
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            CLog.e("Interrupted while getting vts hal profiling trace.");
+        }
+    }
+
+    /**
+     * Pulls the trace files from a device, disables profiling, reports the metrics and
+     * optionally analyzes the trace files.
+     *
+     * @param testData the metric data of the test run; may be null.
+     * @param device the device under test.
+     * @param moduleName the module name.
+     * @param traceDirName the name of the local trace directory.
+     */
+    private void collectTraceFiles(DeviceMetricData testData, ITestDevice device,
+            String moduleName, String traceDirName) {
+        PullStats stats = null;
+        try {
+            // Pull trace files.
+            long startTime = System.currentTimeMillis();
+            stats = pullTraceFiles(device, traceDirName);
+            long elapsedTime = System.currentTimeMillis() - startTime;
+            if (stats != null) {
+                CLog.i("Pulled %d trace files, %d bytes from %s in %d ms.", stats.mFileCount,
+                        stats.mByteCount, device.getSerialNumber(), elapsedTime);
+                if (testData != null) {
+                    addMetric(testData, device, TRACE_FILE_COUNT_METRIC, stats.mFileCount);
+                    addMetric(testData, device, TRACE_BYTES_METRIC, stats.mByteCount);
+                    addMetric(testData, device, TRACE_PULL_TIME_METRIC, elapsedTime);
+                }
+            }
+            // Disable profiling.
+            device.executeShellCommand(
+                    String.format("%s disable", VTS_TMP_DIR + PROFILING_CONFIGURE_BINARY));
+            // Cleanup the trace files.
+            device.executeShellCommand(String.format("rm -rf %s/*.vts.trace", VTS_TMP_DIR));
+        } catch (DeviceNotAvailableException | IOException e) {
+            CLog.e("Failed to get vts hal profiling trace: " + e.toString());
+        }
+        if ((mAnalyzeTraceLatency || mLatencyBaselineDir != null) && stats != null
+                && !stats.mFiles.isEmpty()) {
             try {
-                // Pull trace files.
-                pullTraceFiles(device, moduleName);
-                // Disable profiling.
-                device.executeShellCommand(
-                        String.format("%s disable", VTS_TMP_DIR + PROFILING_CONFIGURE_BINARY));
-                // Cleanup the trace files.
-                device.executeShellCommand(String.format("rm -rf %s/*.vts.trace", VTS_TMP_DIR));
+                VtsProfilingAnalyzer analyzer = analyzeTraceFiles(device, stats.mFiles);
+                if (mLatencyBaselineDir != null) {
+                    compareLatencyBaseline(testData, device, moduleName, analyzer);
+                }
             } catch (DeviceNotAvailableException | IOException e) {
-                CLog.e("Failed to get vts hal profiling trace: " + e.toString());
+                CLog.e("Failed to analyze vts hal profiling trace: " + e.toString());
+            }
+        }
+        if (mWriteColumnarTrace && stats != null) {
+            for (File traceFile : stats.mFiles) {
+                String name = traceFile.getName().replaceAll("\\.vts\\.trace$", "");
+                File storeFile =
+                        new File(traceFile.getParentFile(), name + VtsTraceStore.FILE_SUFFIX);
+                try {
+                    VtsTraceStore.convert(traceFile, storeFile);
+                } catch (IOException e) {
+                    CLog.e("Failed to convert trace file %s: %s", traceFile, e.toString());
+                }
             }
         }
     }
 
-    private void pullTraceFiles(ITestDevice device, String moduleName)
+    /**
+     * Computes the API latency from the trace files of a device and optionally writes the
+     * profiling reports next to the trace files.
+     */
+    private VtsProfilingAnalyzer analyzeTraceFiles(ITestDevice device, List<File> traceFiles)
+            throws IOException {
+        VtsProfilingAnalyzer analyzer = new VtsProfilingAnalyzer();
+        for (File traceFile : traceFiles) {
+            try {
+                analyzer.addTraceFile(traceFile);
+            } catch (IOException e) {
+                CLog.e("Failed to parse trace file %s: %s", traceFile, e.toString());
+            }
+        }
+        if (!mAnalyzeTraceLatency) {
+            return analyzer;
+        }
+        TestReportMessage.Builder report = TestReportMessage.newBuilder();
+        report.addAllProfiling(analyzer.getProfilingReports());
+        File reportFile = new File(traceFiles.get(0).getParentFile(),
+                LATENCY_REPORT_PREFIX + device.getSerialNumber() + ".txt");
+        CLog.i("Storing latency of %d APIs to: %s (%d unpaired events)",
+                analyzer.getHistograms().size(), reportFile, analyzer.getUnpairedCount());
+        FileUtil.writeToFile(TextFormat.printToString(report.build()), reportFile);
+        return analyzer;
+    }
+
+    /**
+     * Compares the API latency of a device with the baseline of the previous builds, reports the
+     * regressions as metrics and adds the latency to the baseline.
+     *
+     * @param testData the metric data of the test run; may be null.
+     * @param device the device under test.
+     * @param moduleName the module name as a part of the baseline key.
+     * @param analyzer the analyzer containing the latency of the run.
+     */
+    private void compareLatencyBaseline(DeviceMetricData testData, ITestDevice device,
+            String moduleName, VtsProfilingAnalyzer analyzer)
+            throws DeviceNotAvailableException, IOException {
+        String key = moduleName + "_" + device.getBuildFlavor();
+        String buildId = device.getBuildId();
+        VtsLatencyBaselineStore store = new VtsLatencyBaselineStore(mLatencyBaselineDir);
+        List<Regression> regressions =
+                new VtsLatencyRegressionDetector(
+                        mLatencyRegressionThreshold, mLatencyRegressionZScore)
+                        .detect(store.getBaseline(key, buildId, mLatencyBaselineBuilds),
+                                analyzer.getHistograms());
+        for (Regression regression : regressions) {
+            CLog.w("Latency regression on %s: %s", device.getSerialNumber(), regression);
+        }
+        if (testData != null) {
+            addMetric(testData, device, LATENCY_REGRESSION_COUNT_METRIC, regressions.size());
+            for (Regression regression : regressions) {
+                testData.addMetricForDevice(device,
+                        LATENCY_REGRESSION_METRIC_PREFIX + regression.getApi() + ":"
+                                + regression.getPercentile(),
+                        Metric.newBuilder().setMeasurements(
+                                Measurements.newBuilder().setSingleDouble(
+                                        (double) regression.getCurrentValue()
+                                        / Math.max(1, regression.getBaselineValue()))));
+            }
+        }
+        if (mUpdateLatencyBaseline) {
+            store.add(key, buildId, analyzer.getHistograms());
+        }
+    }
+
+    private static void addMetric(
+            DeviceMetricData testData, ITestDevice device, String name, long value) {
+        testData.addMetricForDevice(device, name,
+                Metric.newBuilder().setMeasurements(
+                        Measurements.newBuilder().setSingleInt(value)));
+    }
+
+    /**
+     * Pulls the trace files from a device.
+     *
+     * @return the amount of pulled data, or null if fails to create the local directory.
+     */
+    private PullStats pullTraceFiles(ITestDevice device, String traceDirName)
             throws DeviceNotAvailableException, IOException {
         File localTracedDir = null;
         IBuildInfo buildInfo = getBuildInfos().get(0);
         String tracePath = buildInfo.getBuildAttributes().get(TRACE_PATH);
         // Create the local directory to store the trace files.
-        if (tracePath != null) {
-            localTracedDir = new File(String.format("%s/%s", tracePath, moduleName));
-        } else {
-            localTracedDir = new File(
-                    String.format("%s/%s", FileUtil.createTempDir(TRACE_DIR_PREFIX), moduleName));
-        }
-        if (!localTracedDir.exists()) {
-            if (!localTracedDir.mkdirs()) {
-                CLog.e("Failed to create trace dir: " + localTracedDir.getAbsolutePath());
-                return;
+        if (tracePath == null) {
+            tracePath = FileUtil.createTempDir(TRACE_DIR_PREFIX).getAbsolutePath();
+        }
+        localTracedDir = new File(String.format("%s/%s", tracePath, traceDirName));
+        synchronized (this) {
+            if (!localTracedDir.exists()) {
+                if (!localTracedDir.mkdirs()) {
+                    CLog.e("Failed to create trace dir: " + localTracedDir.getAbsolutePath());
+                    return null;
+                }
             }
         }
         // Pull the trace files.
         CLog.i("Storing trace files to: " + localTracedDir.getAbsolutePath());
+        if (mBatchTracePull) {
+            PullStats stats = pullTraceArchive(device, localTracedDir);
+            if (stats != null) {
+                return stats;
+            }
+            CLog.w("Failed to pull trace archive from %s. Pull trace files one by one.",
+                    device.getSerialNumber());
+        }
+        PullStats stats = new PullStats();
         String out = device.executeShellCommand(String.format("ls %s/*.vts.trace", VTS_TMP_DIR));
         for (String line : out.split("\n")) {
             line = line.trim();
             File trace_file = new File(
                     localTracedDir.getAbsolutePath(), line.substring(VTS_TMP_DIR.length()));
-            device.pullFile(line, trace_file);
+            if (device.pullFile(line, trace_file)) {
+                stats.mFileCount++;
+                stats.mByteCount += trace_file.length();
+                stats.mFiles.add(trace_file);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Compresses the trace files into one archive on the device, pulls it and extracts it.
+     *
+     * @return the amount of extracted data, or null if the device fails to create the archive.
+     */
+    private PullStats pullTraceArchive(ITestDevice device, File localTracedDir)
+            throws DeviceNotAvailableException {
+        String output = device.executeShellCommand(
+                String.format("cd %s && tar -czf %s *.vts.trace && echo %s", VTS_TMP_DIR,
+                        TRACE_ARCHIVE_PATH, TAR_CREATE_SUCCESS));
+        File archive = null;
+        try {
+            if (output == null || !output.contains(TAR_CREATE_SUCCESS)) {
+                CLog.w("Failed to create trace archive on device: %s", output);
+                return null;
+            }
+            archive = device.pullFile(TRACE_ARCHIVE_PATH);
+            if (archive == null) {
+                return null;
+            }
+            try (InputStream in = new FileInputStream(archive)) {
+                return extractTraceArchive(in, localTracedDir);
+            }
+        } catch (IOException e) {
+            CLog.e("Failed to extract trace archive: " + e.toString());
+            return null;
+        } finally {
+            FileUtil.deleteFile(archive);
+            device.executeShellCommand("rm -f " + TRACE_ARCHIVE_PATH);
+        }
+    }
+
+    /**
+     * Extracts the regular files in a gzip-compressed tar stream to a directory.
+     *
+     * @param archive the compressed tar stream.
+     * @param dir the directory to store the files.
+     * @return the amount of extracted data.
+     * @throws IOException if the archive is malformed or fails to write the files.
+     */
+    @VisibleForTesting
+    static PullStats extractTraceArchive(InputStream archive, File dir) throws IOException {
+        PullStats stats = new PullStats();
+        byte[] header = new byte[TAR_BLOCK_SIZE];
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new GZIPInputStream(new BufferedInputStream(archive))) {
+            while (readBlock(in, header) && header[0] != 0) {
+                String name = getString(header, 0, 100);
+                String prefix = getString(header, 345, 155);
+                long size = Long.parseLong(getString(header, 124, 12).trim(), 8);
+                byte type = header[156];
+                long remaining = size + (TAR_BLOCK_SIZE - size % TAR_BLOCK_SIZE) % TAR_BLOCK_SIZE;
+                OutputStream out = null;
+                if (type == '0' || type == 0) {
+                    // Only the file name is kept so that entries cannot escape the directory.
+                    File file = new File(dir, new File(prefix + "/" + name).getName());
+                    out = new FileOutputStream(file);
+                    stats.mFileCount++;
+                    stats.mByteCount += size;
+                    stats.mFiles.add(file);
+                }
+                try {
+                    long written = 0;
+                    while (remaining > 0) {
+                        int length = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (length < 0) {
+                            throw new IOException("Unexpected end of trace archive.");
+                        }
+                        if (out != null && written < size) {
+                            out.write(buffer, 0, (int) Math.min(length, size - written));
+                        }
+                        written += length;
+                        remaining -= length;
+                    }
+                } finally {
+                    if (out != null) {
+                        out.close();
+                    }
+                }
+            }
+        }
+        return stats;
+    }
+
+    private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+        int offset = 0;
+        while (offset < block.length) {
+            int length = in.read(block, offset, block.length - offset);
+            if (length < 0) {
+                if (offset == 0) {
+                    return false;
+                }
+                throw new IOException("Unexpected end of trace archive.");
+            }
+            offset += length;
+        }
+        return true;
+    }
+
+    private static String getString(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
         }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
     }
 }
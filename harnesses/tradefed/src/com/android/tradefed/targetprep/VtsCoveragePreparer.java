@@ -30,11 +30,23 @@ import com.android.tradefed.util.CommandStatus;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
+import com.android.tradefed.util.VtsArtifactCache;
+import com.android.tradefed.util.VtsCoverageAccumulator;
+import com.android.tradefed.util.VtsHostPrepScheduler;
 import com.android.tradefed.util.VtsVendorConfigFileUtil;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 /**
  * Preparer class for sanitizer and gcov coverage.
  *
@@ -82,6 +94,16 @@ public class VtsCoveragePreparer implements ITargetPreparer, ITargetCleaner {
     // Default path to store coverage resource files locally.
     static final String DEFAULT_LOCAL_COVERAGE_RESOURCE_PATH = "/tmp/coverage/";
 
+    // Default path to cache the fetched artifacts.
+    static final String DEFAULT_ARTIFACT_CACHE_PATH = "/tmp/vts-coverage-artifact-cache/";
+
+    // Default max size of the artifact cache.
+    static final long DEFAULT_ARTIFACT_CACHE_MAX_SIZE_MB = 20 * 1024;
+
+    // Names of the steps in VtsHostPrepScheduler.
+    static final String FETCH_STEP_NAME = "coverage-fetch-%s";
+    static final String DEVICE_STEP_NAME = "coverage-device-%s";
+
     private File mDeviceInfoPath = null; // host path where coverage device artifacts are stored
     private String mEnforcingState = null; // start state for selinux enforcement
     private IRunUtil mRunUtil = null;
@@ -96,6 +118,20 @@ public class VtsCoveragePreparer implements ITargetPreparer, ITargetCleaner {
     @Option(name = "coverage-report-dir", description = "Local directory to store coverage report.")
     private String mCoverageReportDir = null;
 
+    @Option(name = "use-artifact-cache",
+            description = "Whether to store the fetched artifacts in a host-side cache which is "
+                    + "shared by modules, devices and invocations.")
+    private boolean mUseArtifactCache = false;
+
+    @Option(name = "artifact-cache-dir",
+            description = "Local directory to cache the fetched artifacts.")
+    private String mArtifactCacheDir = DEFAULT_ARTIFACT_CACHE_PATH;
+
+    @Option(name = "artifact-cache-max-size-mb",
+            description = "Max total size of the cached artifacts. The least recently used "
+                    + "artifacts are deleted when the size is exceeded.")
+    private long mArtifactCacheMaxSizeMb = DEFAULT_ARTIFACT_CACHE_MAX_SIZE_MB;
+
     /** {@inheritDoc} */
     @Override
     public void setUp(ITestDevice device, IBuildInfo buildInfo)
@@ -129,6 +165,8 @@ public class VtsCoveragePreparer implements ITargetPreparer, ITargetCleaner {
         }
 
         CompatibilityBuildHelper buildHelper = createBuildHelper(buildInfo);
+        VtsHostPrepScheduler scheduler = VtsHostPrepScheduler.getInstance(buildInfo);
+        String fetchStep = null;
         if (!mUseLocalArtifects) {
             // Load the vendor configuration
             String artifactFetcher = getArtifactFetcher(buildInfo);
@@ -146,51 +184,41 @@ public class VtsCoveragePreparer implements ITargetPreparer, ITargetCleaner {
                         "Failed to create temp dir to store coverage resource files.");
             }
 
+            // Fetch the artifacts concurrently. The error messages are in the order of priority.
+            VtsArtifactCache artifactCache = createArtifactCache();
+            Map<String, Callable<Boolean>> fetches = new LinkedHashMap<>();
             if (sancovEnabled) {
                 // Fetch the symbolized binaries
                 String artifactName = String.format(
                         SYMBOLS_ARTIFACT, flavor.substring(0, flavor.lastIndexOf("-")), buildId);
                 File artifactFile = new File(mDeviceInfoPath, SYMBOLS_FILE_NAME);
-
-                String cmdString = String.format(artifactFetcher, buildId, flavor, artifactName,
-                        artifactFile.getAbsolutePath().toString());
-                String[] cmd = cmdString.split("\\s+");
-                CommandResult commandResult = mRunUtil.runTimedCmd(BASE_TIMEOUT, cmd);
-                if (commandResult == null || commandResult.getStatus() != CommandStatus.SUCCESS
-                        || !artifactFile.exists()) {
-                    cleanupCoverageData(device);
-                    throw new TargetSetupError("Could not fetch unstripped binaries.");
-                }
+                fetches.put("Could not fetch unstripped binaries.",
+                        () -> fetchArtifact(artifactCache, artifactFetcher, buildId, flavor,
+                                artifactName, artifactFile, false));
             }
-
             if (gcovEnabled) {
-                // Fetch the symbolized binaries
+                // Fetch the gcov build artifacts
                 String artifactName = String.format(
                         GCOV_ARTIFACT, flavor.substring(0, flavor.lastIndexOf("-")), buildId);
                 File artifactFile = new File(mDeviceInfoPath, GCOV_FILE_NAME);
-
-                String cmdString = String.format(artifactFetcher, buildId, flavor, artifactName,
-                        artifactFile.getAbsolutePath().toString());
-                String[] cmd = cmdString.split("\\s+");
-                CommandResult commandResult = mRunUtil.runTimedCmd(BASE_TIMEOUT, cmd);
-                if (commandResult == null || commandResult.getStatus() != CommandStatus.SUCCESS
-                        || !artifactFile.exists()) {
-                    cleanupCoverageData(device);
-                    throw new TargetSetupError("Could not fetch gcov build artifacts.");
-                }
+                fetches.put("Could not fetch gcov build artifacts.",
+                        () -> fetchArtifact(artifactCache, artifactFetcher, buildId, flavor,
+                                artifactName, artifactFile, false));
             }
-
             // Fetch the device build information file
-            String cmdString = String.format(artifactFetcher, buildId, flavor, BUILD_INFO_ARTIFACT,
-                    mDeviceInfoPath.getAbsolutePath().toString());
-            String[] cmd = cmdString.split("\\s+");
-            CommandResult commandResult = mRunUtil.runTimedCmd(BASE_TIMEOUT, cmd);
-            File artifactFile = new File(mDeviceInfoPath, BUILD_INFO_ARTIFACT);
-            if (commandResult == null || commandResult.getStatus() != CommandStatus.SUCCESS
-                    || !artifactFile.exists()) {
-                cleanupCoverageData(device);
-                throw new TargetSetupError("Could not fetch build info.");
-            }
+            File buildInfoFile = new File(mDeviceInfoPath, BUILD_INFO_ARTIFACT);
+            fetches.put("Could not fetch build info.",
+                    () -> fetchArtifact(artifactCache, artifactFetcher, buildId, flavor,
+                            BUILD_INFO_ARTIFACT, buildInfoFile, true));
+
+            // The device is prepared while the artifacts are being fetched.
+            fetchStep = String.format(FETCH_STEP_NAME, device.getSerialNumber());
+            scheduler.submit(fetchStep, Collections.emptyList(), () -> {
+                String errorMessage = runFetches(fetches);
+                if (errorMessage != null) {
+                    throw new TargetSetupError(errorMessage);
+                }
+            });
         } else {
             mDeviceInfoPath = new File(mLocalCoverageResourcePath);
             String fileName = sancovEnabled ? SYMBOLS_FILE_NAME : GCOV_FILE_NAME;
@@ -208,12 +236,64 @@ public class VtsCoveragePreparer implements ITargetPreparer, ITargetCleaner {
             }
         }
 
+        TargetSetupError error = null;
+        try (VtsHostPrepScheduler.TimedStep step = scheduler.startTimedStep(
+                     String.format(DEVICE_STEP_NAME, device.getSerialNumber()))) {
+            setUpDevice(device, buildInfo, buildHelper);
+        } catch (TargetSetupError e) {
+            error = e;
+        } finally {
+            if (fetchStep != null) {
+                String errorMessage = awaitFetches(scheduler, fetchStep);
+                if (errorMessage != null) {
+                    error = new TargetSetupError(errorMessage);
+                }
+            }
+        }
+        if (error != null) {
+            cleanupCoverageData(device);
+            throw error;
+        }
+
+        if (sancovEnabled) {
+            buildInfo.setFile(
+                    getSancovResourceDirKey(device), mDeviceInfoPath, buildInfo.getBuildId());
+        }
+
+        if (gcovEnabled) {
+            buildInfo.setFile(
+                    getGcovResourceDirKey(device), mDeviceInfoPath, buildInfo.getBuildId());
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void tearDown(ITestDevice device, IBuildInfo buildInfo, Throwable e)
+            throws DeviceNotAvailableException {
+        if (mEnforcingState != null && !mEnforcingState.equals(SELINUX_DISABLED)) {
+            device.executeShellCommand("setenforce " + mEnforcingState);
+        }
+        cleanupCoverageData(device);
+        // Closes the plan-level coverage files of this invocation.
+        String coverageReportPath = buildInfo.getBuildAttributes().get(COVERAGE_REPORT_PATH);
+        if (coverageReportPath != null) {
+            VtsCoverageAccumulator.closeInstances(new File(coverageReportPath));
+        }
+    }
+
+    /**
+     * Pushes the coverage configure tool and clears the coverage data on the device.
+     *
+     * @throws TargetSetupError if the tool or the report directory is not found.
+     */
+    private void setUpDevice(ITestDevice device, IBuildInfo buildInfo,
+            CompatibilityBuildHelper buildHelper)
+            throws DeviceNotAvailableException, TargetSetupError {
         try {
             // Push the coverage configure tool
             File configureSrc = new File(buildHelper.getTestsDir(), COVERAGE_CONFIGURE_SRC);
             device.pushFile(configureSrc, COVERAGE_CONFIGURE_DST);
         } catch (FileNotFoundException e) {
-            cleanupCoverageData(device);
             throw new TargetSetupError("Failed to push the vts coverage configure tool.");
         }
 
@@ -223,7 +303,6 @@ public class VtsCoveragePreparer implements ITargetPreparer, ITargetCleaner {
                 File coverageDir = new File(resultDir, mCoverageReportDir);
                 buildInfo.addBuildAttribute(COVERAGE_REPORT_PATH, coverageDir.getAbsolutePath());
             } catch (FileNotFoundException e) {
-                cleanupCoverageData(device);
                 throw new TargetSetupError("Failed to get coverageDir.");
             }
         }
@@ -234,26 +313,110 @@ public class VtsCoveragePreparer implements ITargetPreparer, ITargetCleaner {
                 && !mEnforcingState.equals(SELINUX_PERMISSIVE)) {
             device.executeShellCommand("setenforce " + SELINUX_PERMISSIVE);
         }
+    }
 
-        if (sancovEnabled) {
-            buildInfo.setFile(
-                    getSancovResourceDirKey(device), mDeviceInfoPath, buildInfo.getBuildId());
+    /**
+     * Waits for the artifact fetches.
+     *
+     * @return the error message of the first failed fetch, or null if all succeed.
+     */
+    private String awaitFetches(VtsHostPrepScheduler scheduler, String fetchStep) {
+        try {
+            scheduler.await(fetchStep);
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause().getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "Interrupted while fetching the coverage artifacts.";
         }
+    }
 
-        if (gcovEnabled) {
-            buildInfo.setFile(
-                    getGcovResourceDirKey(device), mDeviceInfoPath, buildInfo.getBuildId());
+    /**
+     * Runs the artifact fetches in parallel.
+     *
+     * @param fetches the map from error messages to the fetches.
+     * @return the error message of the first failed fetch, or null if all succeed.
+     */
+    private String runFetches(Map<String, Callable<Boolean>> fetches) {
+        ExecutorService executor = Executors.newFixedThreadPool(fetches.size());
+        try {
+            Map<String, Future<Boolean>> futures = new LinkedHashMap<>();
+            for (Map.Entry<String, Callable<Boolean>> fetch : fetches.entrySet()) {
+                futures.put(fetch.getKey(), executor.submit(fetch.getValue()));
+            }
+            String errorMessage = null;
+            for (Map.Entry<String, Future<Boolean>> future : futures.entrySet()) {
+                boolean success;
+                try {
+                    success = future.getValue().get();
+                } catch (ExecutionException e) {
+                    CLog.e(e.getCause());
+                    success = false;
+                } catch (InterruptedException e) {
+                    CLog.e(e);
+                    Thread.currentThread().interrupt();
+                    success = false;
+                }
+                if (!success && errorMessage == null) {
+                    errorMessage = future.getKey();
+                }
+            }
+            return errorMessage;
+        } finally {
+            executor.shutdownNow();
         }
     }
 
-    /** {@inheritDoc} */
-    @Override
-    public void tearDown(ITestDevice device, IBuildInfo buildInfo, Throwable e)
-            throws DeviceNotAvailableException {
-        if (mEnforcingState != null && !mEnforcingState.equals(SELINUX_DISABLED)) {
-            device.executeShellCommand("setenforce " + mEnforcingState);
+    /**
+     * Fetches an artifact from the artifact cache or by the fetcher command.
+     *
+     * @param artifactCache the host-side cache. null if the cache is disabled.
+     * @param artifactFetcher the fetcher command format.
+     * @param buildId the device build id.
+     * @param flavor the device build flavor.
+     * @param artifactName the name of the artifact in the build.
+     * @param artifactFile the local file to store the artifact.
+     * @param fetchToDir whether the fetcher command takes the parent directory of artifactFile
+     *                   as the destination.
+     * @return whether the artifact is fetched successfully.
+     */
+    private boolean fetchArtifact(VtsArtifactCache artifactCache, String artifactFetcher,
+            String buildId, String flavor, String artifactName, File artifactFile,
+            boolean fetchToDir) {
+        if (artifactCache == null) {
+            File destination = fetchToDir ? artifactFile.getParentFile() : artifactFile;
+            return runFetcher(artifactFetcher, buildId, flavor, artifactName, destination)
+                    && artifactFile.exists();
+        }
+        try {
+            artifactCache.get(flavor, buildId, artifactName, artifactFile, downloadDir -> {
+                File downloaded = new File(downloadDir, artifactFile.getName());
+                File destination = fetchToDir ? downloadDir : downloaded;
+                if (!runFetcher(artifactFetcher, buildId, flavor, artifactName, destination)) {
+                    throw new IOException("Failed to fetch " + artifactName);
+                }
+                return downloaded;
+            });
+            return true;
+        } catch (IOException e) {
+            CLog.e(e);
+            return false;
         }
-        cleanupCoverageData(device);
+    }
+
+    /**
+     * Runs the fetcher command.
+     *
+     * @return whether the command succeeds.
+     */
+    private boolean runFetcher(String artifactFetcher, String buildId, String flavor,
+            String artifactName, File destination) {
+        String cmdString = String.format(
+                artifactFetcher, buildId, flavor, artifactName, destination.getAbsolutePath());
+        String[] cmd = cmdString.split("\\s+");
+        CommandResult commandResult = mRunUtil.runTimedCmd(BASE_TIMEOUT, cmd);
+        return commandResult != null && commandResult.getStatus() == CommandStatus.SUCCESS;
     }
 
     /**
@@ -294,6 +457,18 @@ public class VtsCoveragePreparer implements ITargetPreparer, ITargetCleaner {
         return FileUtil.createTempDir(device.getSerialNumber());
     }
 
+    /**
+     * Create the host-side artifact cache, or return null if the cache is disabled.
+     */
+    @VisibleForTesting
+    VtsArtifactCache createArtifactCache() {
+        if (!mUseArtifactCache) {
+            return null;
+        }
+        return new VtsArtifactCache(
+                new File(mArtifactCacheDir), mArtifactCacheMaxSizeMb * 1024 * 1024);
+    }
+
     @VisibleForTesting
     String getArtifactFetcher(IBuildInfo buildInfo) {
         VtsVendorConfigFileUtil configFileUtil = new VtsVendorConfigFileUtil();
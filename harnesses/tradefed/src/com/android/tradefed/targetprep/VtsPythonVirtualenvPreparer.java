@@ -32,23 +32,27 @@ import com.android.tradefed.util.EnvUtil;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
+import com.android.tradefed.util.VtsDirectoryLock;
 import com.android.tradefed.util.VtsFileUtil;
+import com.android.tradefed.util.VtsHostPrepScheduler;
+import com.android.tradefed.util.VtsPythonPackageIndex;
+import com.android.tradefed.util.VtsPythonRunnerDaemon;
 import com.android.tradefed.util.VtsPythonRunnerHelper;
 import com.android.tradefed.util.VtsVendorConfigFileUtil;
+import com.android.tradefed.util.VtsVirtualenvSnapshotCache;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Sets up a Python virtualenv on the host and installs packages. To activate it, the working
@@ -69,6 +73,8 @@ public class VtsPythonVirtualenvPreparer implements IMultiTargetPreparer {
     protected static final int PIP_INSTALL_DELAY = SECOND_IN_MSECS;
     public static final String VIRTUAL_ENV_V3 = "VIRTUAL_ENV_V3";
     public static final String VIRTUAL_ENV = "VIRTUAL_ENV";
+    // The name of the step in VtsHostPrepScheduler.
+    public static final String PREP_STEP_NAME = "python-virtualenv";
 
     @Option(name = "venv-dir", description = "path of an existing virtualenv to use")
     protected File mVenvDir = null;
@@ -85,6 +91,12 @@ public class VtsPythonVirtualenvPreparer implements IMultiTargetPreparer {
     @Option(name = "no-dep-module", description = "modules which should not be installed by pip")
     private Collection<String> mNoDepModules = new TreeSet<>();
 
+    @Option(name = "batch-pip-install",
+            description = "Install all missing dep modules with one pip command, from the local "
+                    + "PyPI directory first and then from the index. If the command fails, only "
+                    + "the missing modules are retried one by one.")
+    private boolean mBatchPipInstall = false;
+
     @Option(name = "reuse",
             description = "Reuse an exising virtualenv path if exists in "
                     + "temp directory. When this option is enabled, virtualenv directory used or "
@@ -97,6 +109,23 @@ public class VtsPythonVirtualenvPreparer implements IMultiTargetPreparer {
                     + "Example: \"2\", or \"3\".")
     private String mPythonVersion = "2";
 
+    @Option(name = "async-setup",
+            description = "Create the virtualenv and install the dependencies in the background. "
+                    + "The tests wait for it before they start. Declare this preparer as a "
+                    + "multi_pre_target_preparer to overlap it with the device preparers.")
+    private boolean mAsyncSetUp = false;
+
+    @Option(name = "venv-snapshot-dir",
+            description = "Directory of the prebuilt virtualenv snapshots. When this option is "
+                    + "set, a new virtualenv is restored from the snapshot of the same python "
+                    + "version and dependencies if exists; otherwise, a snapshot is stored after "
+                    + "the dependencies are installed.")
+    private File mSnapshotDir = null;
+
+    @Option(name = "venv-snapshot-count",
+            description = "Max number of the virtualenv snapshots kept in venv-snapshot-dir.")
+    private int mSnapshotCount = 4;
+
     private IBuildInfo mBuildInfo = null;
     private DeviceDescriptor mDescriptor = null;
     private IRunUtil mRunUtil = new RunUtil();
@@ -108,13 +137,18 @@ public class VtsPythonVirtualenvPreparer implements IMultiTargetPreparer {
     // which created the directory should be the one to delete it.
     private boolean mIsDirCreator = false;
 
+    // Whether the virtualenv is restored from a snapshot with all dependencies installed.
+    private boolean mIsSnapshotRestored = false;
+
     // If the same object is used in multiple threads (in sharding mode), the class
     // needs to know when it is safe to call the teardown method.
     private int mNumOfInstances = 0;
 
-    // A map of initially installed pip modules and versions. Newly installed modules are not
-    // currently added automatically.
-    private Map<String, String> mPipInstallList = null;
+    // The index of the installed pip modules, which is reloaded when the modules change.
+    private VtsPythonPackageIndex mPackageIndex = null;
+
+    // The lock which coordinates the processes sharing the host-wise virtualenv.
+    private VtsDirectoryLock mVenvLock = null;
 
     /**
      * {@inheritDoc}
@@ -124,17 +158,66 @@ public class VtsPythonVirtualenvPreparer implements IMultiTargetPreparer {
             throws TargetSetupError, BuildError, DeviceNotAvailableException {
         ++mNumOfInstances;
         mBuildInfo = context.getBuildInfos().get(0);
+        VtsHostPrepScheduler scheduler = VtsHostPrepScheduler.getInstance(mBuildInfo);
         if (mNumOfInstances == 1) {
             CLog.i("Preparing python dependencies...");
             ITestDevice device = context.getDevices().get(0);
             mDescriptor = device.getDeviceDescriptor();
+            if (mAsyncSetUp) {
+                // The build info is not thread safe, so the path is added by the thread waiting
+                // for the virtualenv.
+                IBuildInfo buildInfo = mBuildInfo;
+                scheduler.submit(PREP_STEP_NAME, Collections.emptyList(), () -> {
+                    prepareVirtualenv();
+                    return mVenvDir.getAbsolutePath();
+                }, venvPath -> addPathToBuild(buildInfo, venvPath));
+                return;
+            }
+            try (VtsHostPrepScheduler.TimedStep step =
+                            scheduler.startTimedStep(PREP_STEP_NAME)) {
+                prepareVirtualenv();
+            }
+        } else if (mAsyncSetUp) {
+            awaitVirtualenv(scheduler);
+        }
+        addPathToBuild(mBuildInfo);
+    }
+
+    /**
+     * Creates the virtualenv and installs the dependencies.
+     * @throws TargetSetupError if failed
+     */
+    private void prepareVirtualenv() throws TargetSetupError {
+        try {
             initVirtualenv(mBuildInfo);
+            addVirtualenvUser();
             CLog.d("Python virtualenv path is: " + mVenvDir);
             VtsPythonRunnerHelper.activateVirtualenv(getRunUtil(), mVenvDir.getAbsolutePath());
             setLocalPypiPath();
             installDeps();
+            storeVirtualenvSnapshot();
+        } finally {
+            // Wakes up the next process waiting for the host-wise virtualenv.
+            if (mVenvLock != null) {
+                mVenvLock.unlockPreparation();
+            }
+        }
+    }
+
+    /**
+     * Waits for the virtualenv which is prepared in the background.
+     * @throws TargetSetupError if the preparation failed or is interrupted.
+     */
+    private void awaitVirtualenv(VtsHostPrepScheduler scheduler) throws TargetSetupError {
+        try {
+            scheduler.await(PREP_STEP_NAME);
+        } catch (ExecutionException e) {
+            CLog.e(e.getCause());
+            throw new TargetSetupError("Failed to prepare virtualenv", mDescriptor);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TargetSetupError("Interrupted while preparing virtualenv", mDescriptor);
         }
-        addPathToBuild(mBuildInfo);
     }
 
     /**
@@ -148,14 +231,29 @@ public class VtsPythonVirtualenvPreparer implements IMultiTargetPreparer {
             // Since this is a host side preparer, no need to repeat
             return;
         }
+        if (mAsyncSetUp && mBuildInfo != null) {
+            try {
+                awaitVirtualenv(VtsHostPrepScheduler.getInstance(mBuildInfo));
+            } catch (TargetSetupError exception) {
+                CLog.e("Virtualenv preparation failed: %s", exception.getMessage());
+            }
+        }
+        // The runners use the system python if the virtualenv is not created.
+        VtsPythonRunnerDaemon.shutDown(mVenvDir == null ? null : mVenvDir.getAbsolutePath());
+        if (mVenvLock != null) {
+            mVenvLock.unlockPreparation();
+            mVenvLock.removeUser();
+            mVenvLock = null;
+        }
         if (!mReuse && mVenvDir != null && mIsDirCreator) {
             try {
-                recursiveDelete(mVenvDir.toPath());
+                VtsFileUtil.recursiveDeleteNoFollowLinks(mVenvDir.toPath());
                 CLog.d("Deleted the virtual env's temp working dir, %s.", mVenvDir);
             } catch (IOException exception) {
                 CLog.e("Failed to delete %s: %s", mVenvDir, exception);
             }
             mVenvDir = null;
+            mPackageIndex = null;
         }
     }
 
@@ -249,6 +347,11 @@ public class VtsPythonVirtualenvPreparer implements IMultiTargetPreparer {
             }
         }
 
+        if (mIsSnapshotRestored) {
+            CLog.d("Dependencies are installed in the virtualenv snapshot");
+            return;
+        }
+
         if (mRequirementsFile != null) {
             hasDependencies = true;
             boolean success = false;
@@ -272,7 +375,10 @@ public class VtsPythonVirtualenvPreparer implements IMultiTargetPreparer {
             }
         }
 
-        if (!mDepModules.isEmpty()) {
+        if (!mDepModules.isEmpty() && mBatchPipInstall) {
+            hasDependencies = true;
+            installDepModulesInBatch();
+        } else if (!mDepModules.isEmpty()) {
             for (String dep : mDepModules) {
                 hasDependencies = true;
 
@@ -306,6 +412,103 @@ public class VtsPythonVirtualenvPreparer implements IMultiTargetPreparer {
         }
     }
 
+    /**
+     * Installs the missing dep modules with one pip command. If the command fails, installs the
+     * modules which are still missing one by one with retries. Logs the time spent on each module
+     * so that the slow ones can be added to the local PyPI directory.
+     * @throws TargetSetupError if any module fails to be installed.
+     */
+    private void installDepModulesInBatch() throws TargetSetupError {
+        List<String> missingDeps = new ArrayList<>();
+        for (String dep : mDepModules) {
+            if (!mNoDepModules.contains(dep) && !isPipModuleInstalled(dep)) {
+                missingDeps.add(dep);
+            }
+        }
+        if (missingDeps.isEmpty()) {
+            CLog.d("All dep modules are installed");
+            return;
+        }
+
+        Map<String, String> report = new LinkedHashMap<>();
+        long startTime = System.currentTimeMillis();
+        String source = null;
+        if (installPipModules(missingDeps, true)) {
+            source = "local";
+        } else if (installPipModules(missingDeps, false)) {
+            source = "index";
+        }
+        if (source != null) {
+            String result = String.format("%s, batch of %d, %d ms", source, missingDeps.size(),
+                    System.currentTimeMillis() - startTime);
+            for (String dep : missingDeps) {
+                report.put(dep, result);
+            }
+        } else {
+            // The failed batch commands may have installed some of the modules.
+            mPackageIndex = null;
+            for (String dep : missingDeps) {
+                if (isPipModuleInstalled(dep)) {
+                    report.put(dep, "installed by failed batch");
+                    continue;
+                }
+                startTime = System.currentTimeMillis();
+                String depSource = null;
+                long retry_interval = PIP_RETRY_WAIT;
+                for (int try_count = 0; try_count < PIP_RETRY + 1 && depSource == null;
+                        try_count++) {
+                    if (try_count > 0) {
+                        getRunUtil().sleep(retry_interval);
+                        retry_interval *= 3;
+                    }
+                    if (installPipModuleLocally(dep)) {
+                        depSource = "local";
+                    } else if (installPipModule(dep)) {
+                        depSource = "index";
+                    }
+                }
+                if (depSource == null) {
+                    throw new TargetSetupError("Failed to install pip module " + dep, mDescriptor);
+                }
+                report.put(dep, String.format(
+                        "%s, %d ms", depSource, System.currentTimeMillis() - startTime));
+            }
+        }
+
+        StringBuilder message = new StringBuilder("Installed pip modules:");
+        for (Map.Entry<String, String> entry : report.entrySet()) {
+            message.append(String.format("\n  %s: %s", entry.getKey(), entry.getValue()));
+        }
+        CLog.i(message.toString());
+    }
+
+    /**
+     * Installs pip modules with one command.
+     * @param names of the modules
+     * @param local whether to install from the local directory only
+     * @return true if all modules are successfully installed; false otherwise.
+     */
+    private boolean installPipModules(List<String> names, boolean local) {
+        if (local && mLocalPypiPath == null) {
+            return false;
+        }
+        CLog.d("Attempting installation of %s from %s", names, local ? "local directory" : "PyPI");
+        List<String> cmd = new ArrayList<>();
+        cmd.add(getPipPath());
+        cmd.add("install");
+        if (local) {
+            cmd.add("--no-index");
+            cmd.add("--find-links=" + mLocalPypiPath);
+        }
+        cmd.addAll(names);
+        CommandResult result = getRunUtil().runTimedCmd(
+                10 * MINUTE_IN_MSECS, cmd.toArray(new String[cmd.size()]));
+        CLog.d("Result %s. stdout: %s, stderr: %s", result.getStatus(), result.getStdout(),
+                result.getStderr());
+
+        return result.getStatus() == CommandStatus.SUCCESS;
+    }
+
     /**
      * Installs a pip requirement file from Internet.
      * @param req pip module requirement file object
@@ -408,6 +611,14 @@ public class VtsPythonVirtualenvPreparer implements IMultiTargetPreparer {
      * @throws TargetSetupError
      */
     protected void addPathToBuild(IBuildInfo buildInfo) throws TargetSetupError {
+        addPathToBuild(buildInfo, mVenvDir.getAbsolutePath());
+    }
+
+    /**
+     * Adds a virtualenv path to the build info if the path of the configured python version is
+     * not set.
+     */
+    private void addPathToBuild(IBuildInfo buildInfo, String venvPath) throws TargetSetupError {
         String target = null;
         switch (getConfiguredPythonVersionMajor()) {
             case 2:
@@ -419,7 +630,7 @@ public class VtsPythonVirtualenvPreparer implements IMultiTargetPreparer {
         }
 
         if (!buildInfo.getBuildAttributes().containsKey(target)) {
-            buildInfo.addBuildAttribute(target, mVenvDir.getAbsolutePath());
+            buildInfo.addBuildAttribute(target, venvPath);
         }
     }
 
@@ -438,6 +649,10 @@ public class VtsPythonVirtualenvPreparer implements IMultiTargetPreparer {
                 return;
             }
 
+            if (restoreVirtualenvSnapshot()) {
+                return;
+            }
+
             if (createVirtualenv()) {
                 return;
             }
@@ -450,6 +665,60 @@ public class VtsPythonVirtualenvPreparer implements IMultiTargetPreparer {
         throw new TargetSetupError("Error creating virtualenv", mDescriptor);
     }
 
+    /**
+     * Gets the snapshot cache if venv-snapshot-dir is set.
+     * @return the cache; null if snapshot is disabled or the key cannot be computed.
+     */
+    private VtsVirtualenvSnapshotCache getSnapshotCache() {
+        if (mSnapshotDir == null || EnvUtil.isOnWindows()) {
+            return null;
+        }
+        return new VtsVirtualenvSnapshotCache(mSnapshotDir, mSnapshotCount, getRunUtil());
+    }
+
+    /**
+     * Gets the key of the virtualenv snapshot which has the configured dependencies.
+     * @return the key; null if the requirements file cannot be read.
+     */
+    private String getSnapshotKey() {
+        try {
+            return VtsVirtualenvSnapshotCache.computeKey(
+                    mPythonVersion, mRequirementsFile, mDepModules, mNoDepModules);
+        } catch (IOException e) {
+            CLog.e("Failed to compute virtualenv snapshot key: %s", e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Restores the virtualenv from a snapshot. The snapshot includes the creation mark file.
+     * @return true if the virtualenv is restored; false otherwise.
+     */
+    protected boolean restoreVirtualenvSnapshot() {
+        VtsVirtualenvSnapshotCache cache = getSnapshotCache();
+        String key = getSnapshotKey();
+        if (cache == null || key == null || !cache.restore(key, mVenvDir)) {
+            return false;
+        }
+        mIsDirCreator = true;
+        mIsSnapshotRestored = true;
+        return true;
+    }
+
+    /**
+     * Stores the virtualenv created by this preparer as a snapshot.
+     */
+    protected void storeVirtualenvSnapshot() {
+        if (!mIsDirCreator || mIsSnapshotRestored) {
+            return;
+        }
+        VtsVirtualenvSnapshotCache cache = getSnapshotCache();
+        String key = getSnapshotKey();
+        if (cache != null && key != null) {
+            cache.store(key, mVenvDir);
+        }
+    }
+
     protected File getVirtualenvCreationMarkFile() {
         return new File(mVenvDir, "complete");
     }
@@ -512,7 +781,17 @@ public class VtsPythonVirtualenvPreparer implements IMultiTargetPreparer {
         if (mReuse) {
             String tempDir = System.getProperty("java.io.tmpdir");
             mVenvDir = new File(tempDir, "vts-virtualenv-" + mPythonVersion);
-            if (mVenvDir.exists()) {
+            if (lockHostReuseVirtualenv()) {
+                if (getVirtualenvCreationMarkFile().exists()) {
+                    CLog.d("Using existing virtualenv for version " + mPythonVersion);
+                    return true;
+                }
+                if (mVenvDir.exists() && mVenvLock.isUnused()) {
+                    // The process which created the directory failed before completing it.
+                    CLog.d("Deleting incomplete virtualenv at " + mVenvDir);
+                    VtsFileUtil.recursiveDeleteNoFollowLinks(mVenvDir.toPath());
+                }
+            } else if (mVenvDir.exists()) {
                 if (createVirtualenv_waitForOtherProcessToCreateVirtualEnv()) {
                     CLog.d("Using existing virtualenv for version " + mPythonVersion);
                     return true;
@@ -526,6 +805,44 @@ public class VtsPythonVirtualenvPreparer implements IMultiTargetPreparer {
         return false;
     }
 
+    /**
+     * Waits for the other processes and threads preparing the host-wise virtualenv. The lock is
+     * held until the dependencies are installed, so that only one of them creates the virtualenv
+     * or runs pip at a time.
+     * @return true if the lock is acquired; false if the locking is not available, in which case
+     *         the caller polls for the creation mark file.
+     */
+    private boolean lockHostReuseVirtualenv() {
+        VtsDirectoryLock lock = new VtsDirectoryLock(mVenvDir);
+        try {
+            lock.lockPreparation();
+        } catch (IOException e) {
+            CLog.e("Failed to lock virtualenv %s: %s", mVenvDir, e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CLog.e("Interrupted while locking virtualenv %s.", mVenvDir);
+            return false;
+        }
+        mVenvLock = lock;
+        return true;
+    }
+
+    /**
+     * Registers this preparer as a user of the host-wise virtualenv until tear down, so that an
+     * incomplete virtualenv is deleted only when no process uses it.
+     */
+    private void addVirtualenvUser() {
+        if (mVenvLock == null) {
+            return;
+        }
+        try {
+            mVenvLock.addUser();
+        } catch (IOException e) {
+            CLog.e("Failed to register as a user of virtualenv %s: %s", mVenvDir, e);
+        }
+    }
+
     /**
      * Checks whether a test plan-wise common virtualenv directory can be used.
      * @param buildInfo
@@ -590,6 +907,10 @@ public class VtsPythonVirtualenvPreparer implements IMultiTargetPreparer {
         mRequirementsFile = f;
     }
 
+    protected void setBatchPipInstall(boolean batchPipInstall) {
+        mBatchPipInstall = batchPipInstall;
+    }
+
     /**
      * Get an instance of {@link IRunUtil}.
      */
@@ -601,146 +922,23 @@ public class VtsPythonVirtualenvPreparer implements IMultiTargetPreparer {
         return mRunUtil;
     }
 
-    /**
-     * This method recursively deletes a file tree without following symbolic links.
-     *
-     * @param rootPath the path to delete.
-     * @throws IOException if fails to traverse or delete the files.
-     */
-    private static void recursiveDelete(Path rootPath) throws IOException {
-        Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-                    throws IOException {
-                Files.delete(file);
-                return FileVisitResult.CONTINUE;
-            }
-            @Override
-            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
-                if (e != null) {
-                    throw e;
-                }
-                Files.delete(dir);
-                return FileVisitResult.CONTINUE;
-            }
-        });
-    }
-
     /**
      * Locally checks whether a pip module is installed.
      *
-     * This read the installed module list from command "pip list" and check whether the
-     * module in requirement string is installed and its version satisfied.
+     * This reads the package metadata in the virtualenv's site-packages directories and checks
+     * whether the module in requirement string is installed and its version satisfied.
      *
      * Note: This method is only a help method for speed optimization purpose.
      *       It does not check dependencies of the module.
-     *       It replace dots "." in module name with dash "-".
-     *       If the "pip list" command failed, it will return false and will not throw exception
-     *       It can also only accept one ">=" version requirement string.
      *       If this method returns false, the requirement should still be checked using pip itself.
      *
-     * @param requirement such as "numpy", "pip>=9"
+     * @param requirement such as "numpy", "pip>=9", "protobuf~=3.0,!=3.2.*"
      * @return True if module is installed locally with correct version. False otherwise
      */
     private boolean isPipModuleInstalled(String requirement) {
-        if (mPipInstallList == null) {
-            mPipInstallList = getInstalledPipModules();
-            if (mPipInstallList == null) {
-                CLog.e("Failed to read local pip install list.");
-                return false;
-            }
-        }
-
-        String name;
-        String version = null;
-        if (requirement.contains(">=")) {
-            String[] tokens = requirement.split(">=");
-            if (tokens.length != 2) {
-                return false;
-            }
-            name = tokens[0];
-            version = tokens[1];
-        } else if (requirement.contains("=") || requirement.contains("<")
-                || requirement.contains(">")) {
-            return false;
-        } else {
-            name = requirement;
-        }
-
-        name = name.replaceAll("\\.", "-");
-
-        if (!mPipInstallList.containsKey(name)) {
-            return false;
-        }
-
-        // TODO: support other comparison and multiple condition if there's a use case.
-        if (version != null && !isVersionGreaterEqual(mPipInstallList.get(name), version)) {
-            return false;
-        }
-
-        return true;
-    }
-
-    /**
-     * Compares whether version string 1 is greater or equal to version string 2
-     * @param version1
-     * @param version2
-     * @return True if the value of version1 >= version2
-     */
-    private static boolean isVersionGreaterEqual(String version1, String version2) {
-        version1 = version1.replaceAll("[^0-9.]+", "");
-        version2 = version2.replaceAll("[^0-9.]+", "");
-
-        String[] tokens1 = version1.split("\\.");
-        String[] tokens2 = version2.split("\\.");
-
-        int length = Math.max(tokens1.length, tokens2.length);
-        for (int i = 0; i < length; i++) {
-            try {
-                int token1 = i < tokens1.length ? Integer.parseInt(tokens1[i]) : 0;
-                int token2 = i < tokens2.length ? Integer.parseInt(tokens2[i]) : 0;
-                if (token1 < token2) {
-                    return false;
-                }
-            } catch (NumberFormatException e) {
-                CLog.e("failed to compare pip module version: %s and %s", version1, version2);
-                return false;
-            }
-        }
-
-        return true;
-    }
-
-    /**
-     * Gets map of installed pip packages and their versions.
-     * @return installed pip packages
-     */
-    private Map<String, String> getInstalledPipModules() {
-        CommandResult res = getRunUtil().runTimedCmd(30 * SECOND_IN_MSECS, getPipPath(), "list");
-        if (res.getStatus() != CommandStatus.SUCCESS) {
-            CLog.e(String.format("Failed to read pip installed list: "
-                            + "Result %s. stdout: %s, stderr: %s",
-                    res.getStatus(), res.getStdout(), res.getStderr()));
-            return null;
+        if (mPackageIndex == null) {
+            mPackageIndex = new VtsPythonPackageIndex(mVenvDir);
         }
-        String raw = res.getStdout();
-        String[] lines = raw.split("\\r?\\n");
-
-        TreeMap<String, String> pipInstallList = new TreeMap<>();
-
-        for (String line : lines) {
-            line = line.trim();
-            if (line.length() == 0 || line.startsWith("Package ") || line.startsWith("-")) {
-                continue;
-            }
-            String[] tokens = line.split("\\s+");
-            if (tokens.length != 2) {
-                CLog.e("Error parsing pip installed package list. Line text: " + line);
-                continue;
-            }
-            pipInstallList.put(tokens[0], tokens[1]);
-        }
-
-        return pipInstallList;
+        return mPackageIndex.isInstalled(requirement);
     }
 }
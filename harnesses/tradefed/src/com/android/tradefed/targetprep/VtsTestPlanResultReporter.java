@@ -85,6 +85,13 @@ public class VtsTestPlanResultReporter
             description = "The default config file type, e.g., `prod` or `staging`.")
     private String mDefaultType = VtsVendorConfigFileUtil.VENDOR_TEST_CONFIG_DEFAULT_TYPE;
 
+    @Option(name = "dashboard-upload-flush-timeout",
+            description = "The max time (in milliseconds) to wait for the module result "
+                    + "messages queued by this process at the end of the invocation. The "
+                    + "messages which are not uploaded are kept for the next invocation.",
+            isTimeVal = true)
+    private long mUploadFlushTimeout = BASE_TIMEOUT_MSECS;
+
     private File mStatusDir;
 
     /**
@@ -129,6 +136,22 @@ public class VtsTestPlanResultReporter
      */
     @Override
     public void tearDown(ITestDevice device, IBuildInfo buildInfo, Throwable e) {
+        // The module results are flushed before the plan report is uploaded synchronously.
+        if (!VtsDashboardUtil.FlushUploads(mUploadFlushTimeout)) {
+            CLog.e("Some module results of plan %s are not uploaded to the dashboard in %d ms. "
+                            + "They will be uploaded by a later invocation.",
+                    mPlanName, mUploadFlushTimeout);
+        }
+        postTestPlanReport(device, buildInfo);
+    }
+
+    /**
+     * Uploads the test plan report message.
+     *
+     * @param device the target device.
+     * @param buildInfo the build info of the target device.
+     */
+    private void postTestPlanReport(ITestDevice device, IBuildInfo buildInfo) {
         File reportFile = buildInfo.getFile(TEST_PLAN_REPORT_FILE);
         if (reportFile == null) {
             CLog.e("Couldn't find %s to post results. Skipping tearDown.",
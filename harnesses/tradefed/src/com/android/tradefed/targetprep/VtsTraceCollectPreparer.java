@@ -25,6 +25,7 @@ import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.targetprep.TargetSetupError;
+import com.android.tradefed.util.VtsHostPrepScheduler;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -64,6 +65,8 @@ public class VtsTraceCollectPreparer implements ITargetPreparer, ITargetCleaner
     static final String VTS_LIB_PREFIX = "libvts";
     static final String PROFILING_CONFIGURE_BINARY = "vts_profiling_configure";
     static final String TRACE_PATH = "trace_path";
+    // Name of the step in VtsHostPrepScheduler.
+    static final String PUSH_STEP_NAME = "trace-collect-push-%s";
 
     private String mEnforcingState = null; // start state for selinux enforcement
 
@@ -75,7 +78,9 @@ public class VtsTraceCollectPreparer implements ITargetPreparer, ITargetCleaner
     public void setUp(ITestDevice device, IBuildInfo buildInfo)
             throws DeviceNotAvailableException, TargetSetupError {
         CompatibilityBuildHelper buildHelper = createBuildHelper(buildInfo);
-        try {
+        try (VtsHostPrepScheduler.TimedStep step =
+                        VtsHostPrepScheduler.getInstance(buildInfo).startTimedStep(
+                                String.format(PUSH_STEP_NAME, device.getSerialNumber()))) {
             // adb root.
             device.enableAdbRoot();
             // Push 32 bit profiler libs.
@@ -21,9 +21,11 @@ import com.android.compatibility.common.tradefed.build.CompatibilityBuildHelper;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.config.OptionCopier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.log.ITestLogger;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
 import com.android.tradefed.result.ITestInvocationListener;
@@ -37,28 +39,35 @@ import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.JsonUtil;
 import com.android.tradefed.util.OutputUtil;
 import com.android.tradefed.util.VtsDashboardUtil;
+import com.android.tradefed.util.VtsHostPrepScheduler;
 import com.android.tradefed.util.VtsPythonRunnerHelper;
+import com.android.tradefed.util.VtsTraceStore;
 import com.android.tradefed.util.VtsVendorConfigFileUtil;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
 
 /**
  * A Test that runs a vts multi device test package (part of Vendor Test Suite, VTS) on given
@@ -146,6 +155,9 @@ public class VtsMultiDeviceTest
     static final String ENABLE_SYSTRACE = "enable_systrace";
     static final String HAL_HIDL_REPLAY_TEST_TRACE_PATHS = "hal_hidl_replay_test_trace_paths";
     static final String HAL_HIDL_PACKAGE_NAME = "hal_hidl_package_name";
+    // The directory under the testcases directory containing the replay trace files.
+    static final String HAL_HIDL_TRACE_DIR = "hal-hidl-trace";
+    static final String TRACE_FILE_SUFFIX = ".vts.trace";
     static final String REPORT_MESSAGE_FILE_NAME = "report_proto.msg";
     static final String RUN_AS_VTS_SELF_TEST = "run_as_vts_self_test";
     static final String RUN_AS_COMPLIANCE_TEST = "run_as_compliance_test";
@@ -158,6 +170,8 @@ public class VtsMultiDeviceTest
     static final String TEMPLATE_HAL_HIDL_REPLAY_TEST_PATH = "vts/testcases/template/hal_hidl_replay_test/hal_hidl_replay_test";
     static final String TEMPLATE_HOST_BINARY_TEST_PATH = "vts/testcases/template/host_binary_test/host_binary_test";
     static final String TEST_RUN_SUMMARY_FILE_NAME = "test_run_summary.json";
+    static final String TEST_EVENT_STREAM_PORT = "test_event_stream_port";
+    static final long TEST_EVENT_RECEIVER_CLOSE_TIMEOUT_MSECS = 1000 * 10;
     static final float DEFAULT_TARGET_VERSION = -1;
     static final String DEFAULT_TESTCASE_CONFIG_PATH =
             "vts/tools/vts-tradefed/res/default/DefaultTestCase.runner_conf";
@@ -236,10 +250,47 @@ public class VtsMultiDeviceTest
             description = "Flag that determines whether to use std:out to parse output.")
     private boolean mUseStdoutLogs = false;
 
+    @Option(name = "stream-test-run-summary",
+            description = "Parse test_run_summary.json with a streaming parser which reports "
+                    + "each test result as soon as it is read instead of loading the whole "
+                    + "file into memory. Recommended for modules with a large number of tests.")
+    private boolean mStreamTestRunSummary = false;
+
+    @Option(name = "stream-test-events",
+            description = "Report each test result to the listeners as soon as the Python runner "
+                    + "finishes the test case, instead of after the runner exits. "
+                    + "test_run_summary.json is used to reconcile the results at the end.")
+    private boolean mStreamTestEvents = false;
+
+    @Option(name = "runner-output-max-chars",
+            description = "The max number of the last characters of the Python runner's stdout "
+                    + "and stderr to keep in memory. 0 means unlimited. If set, the full output "
+                    + "is written to files in the runner log directory. Ignored if "
+                    + "use-stdout-logs is set.")
+    private int mRunnerOutputMaxChars = 0;
+
+    @Option(name = "use-runner-daemon",
+            description = "Run the module in a long-lived Python runner daemon which is shared "
+                    + "by the modules in the invocation, instead of starting a new interpreter. "
+                    + "Falls back to a new process if the daemon is not available.")
+    private boolean mUseRunnerDaemon = false;
+
+    @Option(name = "device-sharding",
+            description = "If more than one device is allocated, split the test cases of the "
+                    + "module among the devices and run the shards in parallel. Only for the "
+                    + "modules which require one device per test run.")
+    private boolean mDeviceSharding = false;
+
     @Option(name = "enable-dashboard-uploading",
             description = "Enables the runner's dashboard result uploading feature.")
     private boolean mEnableDashboardUploading = true;
 
+    @Option(name = "async-dashboard-uploading",
+            description = "Whether to queue the result message and upload it in background "
+                    + "instead of blocking the module. The queue is flushed by "
+                    + "VtsTestPlanResultReporter at the end of the invocation.")
+    private boolean mAsyncDashboardUploading = false;
+
     @Option(name = "enable-log-uploading",
             description = "Enables the runner's log uploading feature.")
     private boolean mEnableLogUploading = false;
@@ -520,10 +571,17 @@ public class VtsMultiDeviceTest
     private String mRunName = null;
     // the path to android-vts/testcases
     private String mTestCaseDir = "./";
+    // the directory of the replay trace files exported from columnar trace stores
+    private File mReplayTraceDir = null;
 
     private VtsVendorConfigFileUtil configReader = null;
     private IInvocationContext mInvocationContext = null;
     private OutputUtil mOutputUtil = null;
+    private VtsMultiDeviceTestEventReceiver mTestEventReceiver = null;
+    // The devices which this instance runs on; null means all devices in the invocation context.
+    private List<ITestDevice> mShardDevices = null;
+    // Whether this instance only collects the test cases to be sharded.
+    private boolean mShardCollectionRun = false;
     protected CompatibilityBuildHelper mBuildHelper = null;
 
     /**
@@ -725,7 +783,188 @@ public class VtsMultiDeviceTest
             }
         }
 
-        doRunTest(listener);
+        awaitHostPreparation();
+
+        if (mDeviceSharding && mShardDevices == null
+                && mInvocationContext.getDevices().size() > 1) {
+            runSharded(listener);
+        } else {
+            doRunTest(listener);
+        }
+    }
+
+    /**
+     * Waits for the host preparation steps running in the background, e.g., the virtualenv, and
+     * logs the time of the steps.
+     */
+    private void awaitHostPreparation() {
+        if (mBuildInfo == null) {
+            return;
+        }
+        try {
+            VtsHostPrepScheduler.getInstance(mBuildInfo).awaitAll();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Host preparation failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for host preparation", e);
+        }
+    }
+
+    /**
+     * Collects the test cases on the first device, splits them among all devices in the
+     * invocation context, and runs the shards in parallel. The results of the shards are reported
+     * to the listener as one test run.
+     *
+     * @param listener the listener to report the results to.
+     * @throws DeviceNotAvailableException if any device becomes unavailable.
+     */
+    private void runSharded(ITestInvocationListener listener) throws DeviceNotAvailableException {
+        List<ITestDevice> devices = mInvocationContext.getDevices();
+        List<String> testNames = collectTestNames(devices.get(0), listener);
+        if (testNames.isEmpty()) {
+            CLog.w("No test case is collected for sharding. Run on %s only.",
+                    mDevice.getSerialNumber());
+            doRunTest(listener);
+            return;
+        }
+
+        int shardCount = Math.min(devices.size(), testNames.size());
+        CLog.i("Split %d test cases of %s into %d shards.", testNames.size(), deriveRunName(),
+                shardCount);
+        List<List<String>> shardTestNames = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            shardTestNames.add(new ArrayList<>());
+        }
+        for (int i = 0; i < testNames.size(); i++) {
+            shardTestNames.get(i % shardCount).add(testNames.get(i));
+        }
+
+        VtsMultiDeviceTestShardAggregator aggregator =
+                new VtsMultiDeviceTestShardAggregator(listener, deriveRunName(), testNames.size());
+        List<Thread> threads = new ArrayList<>();
+        List<Exception> exceptions = new ArrayList<>();
+        aggregator.start();
+        for (int i = 0; i < shardCount; i++) {
+            String shardName = String.format("%s_shard%d", deriveRunName(), i);
+            VtsMultiDeviceTest shard = createShard(devices.get(i), aggregator, shardName);
+            shard.clearIncludeFilters();
+            shard.addAllIncludeFilters(new TreeSet<>(shardTestNames.get(i)));
+            ITestLifeCycleReceiver receiver = aggregator.createShardReceiver(shardName);
+            Thread thread = new Thread(() -> {
+                try {
+                    shard.doRunTest(receiver);
+                } catch (DeviceNotAvailableException | RuntimeException e) {
+                    CLog.e("%s failed on %s.", shardName, shard.getDevice().getSerialNumber());
+                    CLog.e(e);
+                    receiver.testRunFailed(e.getMessage());
+                    synchronized (exceptions) {
+                        exceptions.add(e);
+                    }
+                }
+            }, shardName);
+            thread.start();
+            threads.add(thread);
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            // Stops the shards so that they do not report to the aggregator after it ends.
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            for (Thread thread : threads) {
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException ignored) {
+                        // Keeps waiting for the shard to end.
+                    }
+                }
+            }
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(
+                    "Interrupted while waiting for the shards of " + deriveRunName(), e);
+        } finally {
+            aggregator.end();
+        }
+
+        if (!exceptions.isEmpty()) {
+            Exception e = exceptions.get(0);
+            if (e instanceof DeviceNotAvailableException) {
+                throw (DeviceNotAvailableException) e;
+            }
+            throw (RuntimeException) e;
+        }
+    }
+
+    /**
+     * Runs the module in collect-tests-only mode on a device.
+     *
+     * @param device the device to collect the test cases on.
+     * @param logger the logger to save the runner outputs.
+     * @return the names of the test cases in the order they are reported.
+     * @throws DeviceNotAvailableException if the device becomes unavailable.
+     */
+    private List<String> collectTestNames(ITestDevice device, ITestLogger logger)
+            throws DeviceNotAvailableException {
+        Set<String> testNames = new LinkedHashSet<>();
+        ITestLifeCycleReceiver collector = new ITestLifeCycleReceiver() {
+            @Override
+            public void testStarted(TestDescription test) {
+                testNames.add(test.getTestName());
+            }
+
+            @Override
+            public void testStarted(TestDescription test, long startTime) {
+                testNames.add(test.getTestName());
+            }
+        };
+        VtsMultiDeviceTest collection =
+                createShard(device, logger, deriveRunName() + "_collection");
+        collection.setCollectTestsOnly(true);
+        collection.mShardCollectionRun = true;
+        collection.doRunTest(collector);
+        return new ArrayList<>(testNames);
+    }
+
+    /**
+     * Creates a test instance which runs on one device with the same options as this instance.
+     *
+     * @param device the device to run on.
+     * @param logger the logger to save the runner outputs.
+     * @param shardName the name of the shard which is used in the runner output file names.
+     * @return the new instance.
+     */
+    @VisibleForTesting
+    VtsMultiDeviceTest createShard(ITestDevice device, ITestLogger logger, String shardName) {
+        VtsMultiDeviceTest shard = new VtsMultiDeviceTest();
+        OptionCopier.copyOptionsNoThrow(this, shard);
+        shard.mInvocationContext = mInvocationContext;
+        shard.setBuild(mBuildInfo);
+        shard.setAbi(mAbi);
+        shard.setDevice(device);
+        shard.mShardDevices = Arrays.asList(device);
+        shard.mRunName = deriveRunName();
+        shard.mTestCasePath = mTestCasePath;
+        shard.mOutputUtil = new OutputUtil(logger);
+        shard.mOutputUtil.setTestModuleName(shardName);
+        if (mAbi != null) {
+            shard.mOutputUtil.setAbiName(mAbi.getName());
+        }
+        return shard;
+    }
+
+    /**
+     * @return the devices which this instance runs on.
+     */
+    private List<ITestDevice> getTestDevices() {
+        if (mShardDevices != null) {
+            return mShardDevices;
+        }
+        return mInvocationContext.getDevices();
     }
 
     /**
@@ -828,7 +1067,7 @@ public class VtsMultiDeviceTest
         boolean sancovBuild = false;
 
         boolean first_device = true;
-        for (ITestDevice device : mInvocationContext.getDevices()) {
+        for (ITestDevice device : getTestDevices()) {
             JSONObject deviceJson = generateJsonDeviceItem(device);
             try {
                 String coverageProperty = device.getProperty(COVERAGE_PROPERTY);
@@ -1124,7 +1363,7 @@ public class VtsMultiDeviceTest
 
         if (!mHalHidlReplayTestTracePaths.isEmpty()) {
             jsonObject.put(HAL_HIDL_REPLAY_TEST_TRACE_PATHS,
-                    new JSONArray(mHalHidlReplayTestTracePaths));
+                    new JSONArray(resolveReplayTracePaths()));
             CLog.d("Added %s to the Json object", HAL_HIDL_REPLAY_TEST_TRACE_PATHS);
         }
 
@@ -1243,6 +1482,11 @@ public class VtsMultiDeviceTest
 
             jsonObject.put(LOG_PATH, vtsRunnerLogDir.getAbsolutePath());
             CLog.d("Added %s to the Json object", LOG_PATH);
+
+            if (mTestEventReceiver != null) {
+                jsonObject.put(TEST_EVENT_STREAM_PORT, mTestEventReceiver.getPort());
+                CLog.d("Added %s to the Json object", TEST_EVENT_STREAM_PORT);
+            }
         } catch (IOException e) {
             throw new RuntimeException("Failed to read test config json file");
         } catch (JSONException e) {
@@ -1297,7 +1541,8 @@ public class VtsMultiDeviceTest
      * @throws RuntimeException
      * @throws IllegalArgumentException
      */
-    private void doRunTest(ITestLifeCycleReceiver listener)
+    @VisibleForTesting
+    void doRunTest(ITestLifeCycleReceiver listener)
             throws IllegalArgumentException, DeviceNotAvailableException {
         long methodStartTime = System.currentTimeMillis();
         CLog.d("Device serial number: " + mDevice.getSerialNumber());
@@ -1322,11 +1567,26 @@ public class VtsMultiDeviceTest
             CLog.w("max-test-timeout is less than test-timeout. Set max timeout to %dms.", timeout);
         }
 
+        if (mStreamTestEvents && !mUseStdoutLogs) {
+            try {
+                mTestEventReceiver = new VtsMultiDeviceTestEventReceiver(parser);
+                mTestEventReceiver.start();
+            } catch (IOException e) {
+                CLog.e("Failed to create test event receiver. Results are reported after the "
+                        + "runner exits.");
+                CLog.e(e);
+            }
+        }
+
         try {
             String jsonFilePath = createVtsRunnerTestConfigJsonFile(vtsRunnerLogDir);
 
             VtsPythonRunnerHelper vtsPythonRunnerHelper =
                     createVtsPythonRunnerHelper(new File(mTestCaseDir));
+            if (mRunnerOutputMaxChars > 0 && !mUseStdoutLogs) {
+                vtsPythonRunnerHelper.setOutputRetention(mRunnerOutputMaxChars, vtsRunnerLogDir);
+            }
+            vtsPythonRunnerHelper.setUseDaemon(mUseRunnerDaemon);
 
             List<String> cmd = new ArrayList<>();
             cmd.add("python");
@@ -1347,6 +1607,9 @@ public class VtsMultiDeviceTest
             CommandResult commandResult = new CommandResult();
             String interruptMessage = vtsPythonRunnerHelper.runPythonRunner(
                     cmd.toArray(new String[0]), commandResult, timeout);
+            if (mTestEventReceiver != null) {
+                mTestEventReceiver.close(TEST_EVENT_RECEIVER_CLOSE_TIMEOUT_MSECS);
+            }
 
             List<String> errorMsgs = new ArrayList<>();
             if (commandResult != null) {
@@ -1365,6 +1628,19 @@ public class VtsMultiDeviceTest
                     errorMsgs.add("The stdout is null for CommandResult.");
                 }
                 parser.processNewLines(commandResult.getStdout().split("\n"));
+            } else if (mTestEventReceiver != null && parser.isLiveRunStarted()) {
+                // the results have been reported while the runner was running.
+                // test_run_summary.json only reconciles them.
+                File testRunSummary = getFileTestRunSummary(vtsRunnerLogDir);
+                if (testRunSummary == null) {
+                    errorMsgs.add("Couldn't locate the file : " + TEST_RUN_SUMMARY_FILE_NAME);
+                }
+                try {
+                    recordTestModuleKeys(parser.completeLiveRun(testRunSummary));
+                } catch (IOException | JSONException e) {
+                    errorMsgs.add("Error occurred in parsing Json file " + testRunSummary);
+                    CLog.e(e);
+                }
             } else {
                 // parse from test_run_summary.json instead of stdout
                 File testRunSummary = getFileTestRunSummary(vtsRunnerLogDir);
@@ -1373,24 +1649,22 @@ public class VtsMultiDeviceTest
                 } else {
                     JSONObject object = null;
                     try {
-                        String jsonData = FileUtil.readStringFromFile(testRunSummary);
-                        CLog.d("Test Result Summary: %s", jsonData);
-                        object = new JSONObject(jsonData);
-                        parser.processJsonFile(object);
+                        if (mStreamTestRunSummary) {
+                            CLog.d("Streaming test result summary of size %d",
+                                    testRunSummary.length());
+                            object = parser.processJsonFile(testRunSummary);
+                        } else {
+                            String jsonData = FileUtil.readStringFromFile(testRunSummary);
+                            CLog.d("Test Result Summary: %s", jsonData);
+                            object = new JSONObject(jsonData);
+                            parser.processJsonFile(object);
+                        }
                     } catch (IOException | JSONException e) {
                         errorMsgs.add(
                                 "Error occurred in parsing Json file " + testRunSummary.toPath());
                         CLog.e(e);
                     }
-                    try {
-                        JSONObject planObject = object.getJSONObject(TESTMODULE);
-                        String test_module_name = planObject.getString("Name");
-                        long test_module_timestamp = planObject.getLong("Timestamp");
-                        AddTestModuleKeys(test_module_name, test_module_timestamp);
-                    } catch (JSONException e) {
-                        // Do not report this as part of errorMsgs. These are optional metadata
-                        CLog.e(e);
-                    }
+                    recordTestModuleKeys(object);
                 }
             }
             if (errorMsgs.size() > 0) {
@@ -1405,10 +1679,14 @@ public class VtsMultiDeviceTest
                 throw new RuntimeException(interruptMessage);
             }
         } finally {
+            if (mTestEventReceiver != null) {
+                mTestEventReceiver.close(TEST_EVENT_RECEIVER_CLOSE_TIMEOUT_MSECS);
+                mTestEventReceiver = null;
+            }
             try {
                 mOutputUtil.ZipVtsRunnerOutputDir(vtsRunnerLogDir);
 
-                if (mEnableDashboardUploading) {
+                if (mEnableDashboardUploading && !mShardCollectionRun) {
                     File reportMsg = FileUtil.findFile(vtsRunnerLogDir, REPORT_MESSAGE_FILE_NAME);
                     CLog.d("Report message path: %s", reportMsg);
                     if (reportMsg == null) {
@@ -1416,26 +1694,52 @@ public class VtsMultiDeviceTest
                     } else if (reportMsg.length() > 0) {
                         CLog.i("Uploading report message. File size: %s", reportMsg.length());
                         VtsDashboardUtil dashboardUtil = new VtsDashboardUtil(configReader);
-                        dashboardUtil.Upload(reportMsg.getAbsolutePath());
+                        if (mAsyncDashboardUploading) {
+                            dashboardUtil.UploadAsync(reportMsg.getAbsolutePath());
+                        } else {
+                            dashboardUtil.Upload(reportMsg.getAbsolutePath());
+                        }
                     }
                 }
             } finally {
                 CLog.d("Deleted the runner log dir, %s.", vtsRunnerLogDir);
                 FileUtil.recursiveDelete(vtsRunnerLogDir);
+                FileUtil.recursiveDelete(mReplayTraceDir);
+                mReplayTraceDir = null;
             }
             // If the framework was disabled in python, make sure we re-enable it no matter what.
             // The python side never re-enable the framework.
             if (mBinaryTestDisableFramework || mStopNativeServers) {
-                for (ITestDevice device : mInvocationContext.getDevices()) {
+                for (ITestDevice device : getTestDevices()) {
                     device.executeShellCommand("start");
                 }
             }
         }
-        for (ITestDevice device : mInvocationContext.getDevices()) {
+        for (ITestDevice device : getTestDevices()) {
             device.waitForDeviceAvailable();
         }
     }
 
+    /**
+     * Records the test module name and timestamp in the summary to the test plan report file.
+     *
+     * @param summary the json object of test_run_summary.json; null if it cannot be parsed.
+     */
+    private void recordTestModuleKeys(JSONObject summary) {
+        if (summary == null || mShardCollectionRun) {
+            return;
+        }
+        try {
+            JSONObject planObject = summary.getJSONObject(TESTMODULE);
+            String test_module_name = planObject.getString("Name");
+            long test_module_timestamp = planObject.getLong("Timestamp");
+            AddTestModuleKeys(test_module_name, test_module_timestamp);
+        } catch (JSONException e) {
+            // Do not report this as part of errorMsgs. These are optional metadata
+            CLog.e(e);
+        }
+    }
+
     /**
      * This method return the file test_run_summary.json which is then used to parse logs.
      *
@@ -1466,6 +1770,44 @@ public class VtsMultiDeviceTest
         return null;
     }
 
+    /**
+     * Exports the columnar trace stores in the replay trace paths to the delimited trace files
+     * read by the replayer. The other paths are not changed.
+     *
+     * @return the trace paths for the runner. The exported files are absolute paths.
+     */
+    private List<String> resolveReplayTracePaths() {
+        List<String> tracePaths = new ArrayList<>();
+        for (String tracePath : mHalHidlReplayTestTracePaths) {
+            if (!tracePath.endsWith(VtsTraceStore.FILE_SUFFIX)) {
+                tracePaths.add(tracePath);
+                continue;
+            }
+            File storeFile = new File(new File(mTestCaseDir, HAL_HIDL_TRACE_DIR), tracePath);
+            String name = storeFile.getName();
+            try {
+                if (mReplayTraceDir == null) {
+                    mReplayTraceDir = FileUtil.createTempDir("vts-replay-trace");
+                }
+                File traceFile = new File(mReplayTraceDir,
+                        name.substring(0, name.length() - VtsTraceStore.FILE_SUFFIX.length())
+                                + TRACE_FILE_SUFFIX);
+                VtsTraceStore store = new VtsTraceStore(storeFile);
+                try (OutputStream out =
+                                new BufferedOutputStream(new FileOutputStream(traceFile))) {
+                    store.exportDelimited(Long.MIN_VALUE, Long.MAX_VALUE, null, out);
+                } finally {
+                    store.close();
+                }
+                tracePaths.add(traceFile.getAbsolutePath());
+            } catch (IOException e) {
+                CLog.e("Failed to export trace store %s: %s", storeFile, e.toString());
+                tracePaths.add(tracePath);
+            }
+        }
+        return tracePaths;
+    }
+
     /**
      * Set the path for android-vts/testcases/ which keeps the VTS python code under vts.
      */
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.testtype;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A thread that receives test events from the VTS Python runner through a local socket and
+ * forwards them to a {@link VtsMultiDeviceTestResultParser}. Each event is a json object on its
+ * own line. The thread accepts one connection and terminates when the runner closes it.
+ */
+public class VtsMultiDeviceTestEventReceiver extends Thread {
+    private final ServerSocket mServerSocket;
+    private final VtsMultiDeviceTestResultParser mParser;
+    private Socket mSocket = null;
+    private final Object mLock = new Object();
+
+    /**
+     * Creates a receiver listening on an ephemeral port of the loopback address.
+     *
+     * @param parser the parser to forward the events to.
+     * @throws IOException if fails to create the server socket.
+     */
+    public VtsMultiDeviceTestEventReceiver(VtsMultiDeviceTestResultParser parser)
+            throws IOException {
+        super("vts-test-event-receiver");
+        setDaemon(true);
+        mParser = parser;
+        mServerSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * @return the port which the runner should connect to.
+     */
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Read events from the runner until it closes the connection.
+     */
+    @Override
+    public void run() {
+        try {
+            Socket socket = mServerSocket.accept();
+            synchronized (mLock) {
+                mSocket = socket;
+            }
+            // Only one runner connects to the receiver.
+            mServerSocket.close();
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    mParser.processLiveEvent(new JSONObject(line));
+                } catch (JSONException e) {
+                    CLog.e("Cannot parse test event: %s", line);
+                    CLog.e(e);
+                }
+            }
+        } catch (IOException e) {
+            if (!mServerSocket.isClosed() || mSocket != null) {
+                CLog.e("IOException during receiving test events.");
+                CLog.e(e);
+            }
+        } finally {
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Stops receiving events and waits for the thread to terminate. The events already sent by
+     * the runner are processed before this method returns unless the timeout is reached. If the
+     * timeout is reached, the connection is closed and this method blocks until the thread
+     * terminates, so that the parser is not used by the thread after this method returns. This
+     * method must be called after the runner terminates, and can be called more than once.
+     *
+     * @param timeoutMsecs the time to wait for the pending events in milliseconds.
+     */
+    public void close(long timeoutMsecs) {
+        try {
+            // Unblocks accept() if the runner has not connected.
+            mServerSocket.close();
+        } catch (IOException e) {
+            CLog.e(e);
+        }
+        try {
+            join(timeoutMsecs);
+        } catch (InterruptedException e) {
+            CLog.e(e);
+        }
+        if (isAlive()) {
+            CLog.e("Test event receiver does not terminate. Close the connection.");
+            closeQuietly();
+            // The thread is processing at most one event after the connection is closed.
+            boolean interrupted = false;
+            while (isAlive()) {
+                try {
+                    join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Closes the connection with the runner.
+     */
+    private void closeQuietly() {
+        synchronized (mLock) {
+            if (mSocket != null) {
+                try {
+                    mSocket.close();
+                } catch (IOException e) {
+                    CLog.e(e);
+                }
+            }
+        }
+    }
+}
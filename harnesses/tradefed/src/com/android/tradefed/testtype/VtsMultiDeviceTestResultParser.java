@@ -20,10 +20,22 @@ import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestLifeCycleReceiver;
 import com.android.tradefed.result.TestDescription;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -32,6 +44,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -61,6 +74,12 @@ public class VtsMultiDeviceTestResultParser {
     private String mCurrentTestName = null;
     private int mTotalTestCount = 0;
 
+    // State of the test run reported through live events
+    private boolean mLiveRunStarted = false;
+    private final Map<TestDescription, String> mLiveResults = new LinkedHashMap<>();
+    private long mLiveFirstBeginTime = -1;
+    private long mLiveLastEndTime = -1;
+
     // Variables to keep track of state for unit test
     private int mNumTestsRun = 0;
     private int mNumTestsExpected = 1;
@@ -89,6 +108,17 @@ public class VtsMultiDeviceTestResultParser {
     static final String RESULT = "Result";
     static final String CLASS_ERRORS = "Class Errors";
 
+    // constants for parsing live test events
+    static final String EVENT = "Event";
+    static final String EVENT_TEST_STARTED = "test_started";
+    static final String EVENT_TEST_ENDED = "test_ended";
+    static final String RUNNING = "RUNNING";
+    static final String SILENT = "Test silenced.";
+    static final String UNFINISHED = "Test did not finish before the runner exited.";
+
+    // buffer size for streaming the json file
+    static final int JSON_READ_BUFFER_SIZE = 64 * 1024;
+
     // default message for test failure
     static final String UNKNOWN_ERROR = "Unknown error.";
     static final String UNKNOWN_FAILURE = "Unknown failure.";
@@ -409,66 +439,379 @@ public class VtsMultiDeviceTestResultParser {
                 listener.testRunStarted(mRunName, nNonSkippedTests);
 
                 for (int index = 0; index < results.length(); index++) {
-                    JSONObject resultObject = results.getJSONObject(index);
-                    String result = (String) resultObject.get(RESULT);
-                    String testClass = (String) resultObject.get(TEST_CLASS);
-                    String testName = (String) resultObject.get(TEST_NAME);
-                    long beginTime = (long) results.getJSONObject(index).get(BEGIN_TIME);
-                    long endTime = (long) results.getJSONObject(index).get(END_TIME);
-                    String details =
-                            resultObject.isNull(DETAILS) ? "" : resultObject.getString(DETAILS);
+                    reportJsonResult(listener, results.getJSONObject(index));
+                }
 
-                    // mark test started
-                    TestDescription TestDescription = new TestDescription(testClass, testName);
+                if (!object.isNull(CLASS_ERRORS)) {
+                    listener.testRunFailed(object.getString(CLASS_ERRORS));
+                }
+                listener.testRunEnded(elapsedTime, Collections.<String, String>emptyMap());
+            }
+        } catch (JSONException e) {
+            CLog.e("Exception occurred: %s", e);
+        }
+    }
 
-                    /* SKIP is not recognized in TF. Does not report result instead. */
-                    if (!result.equals(SKIP)) {
-                        listener.testStarted(TestDescription, beginTime);
-
-                        switch (result) {
-                            case PASS:
-                                break;
-                            case ERROR:
-                                /* Error is reported by the VTS runner when an unexpected exception
-                                   happened during test execution. It could be due to: a framework
-                                   bug, an unhandled I/O, a TCP error, or a bug in test module or
-                                   template execution code. Error thus does not necessarily indicate
-                                   a test failure or a bug in device implementation. Since error is
-                                   not yet recognized in TF, it is converted to FAIL. */
-                            case TIMEOUT:
-                                /* Timeout is not recognized in TF. Use FAIL instead. */
-                            case FAIL:
-                                /* Indicates a test failure. */
-                                listener.testFailed(TestDescription,
-                                        details.isEmpty() ? UNKNOWN_FAILURE : details);
-                                break;
-                            default:
-                                listener.testFailed(TestDescription,
-                                        "Internal error: Cannot recognize test result type. Details: "
-                                                + details);
-                                break;
+    /**
+     * This method parses a test_run_summary.json file with a pull parser and reports each entry
+     * of the Results array through listener as soon as it is read. Unlike
+     * {@link #processJsonFile(JSONObject)}, at most one result entry is held in memory at a time.
+     *
+     * The file is read twice: the first pass only counts the non-skipped tests and computes the
+     * elapsed time which are needed by testRunStarted and testRunEnded; the second pass reports
+     * the individual results.
+     *
+     * @param summaryFile the test_run_summary.json file.
+     * @return a JSONObject holding all top-level fields of the summary except Results.
+     * @throws IOException if the file cannot be read.
+     * @throws JSONException if the file is not a valid summary.
+     */
+    public JSONObject processJsonFile(File summaryFile) throws IOException, JSONException {
+        int nNonSkippedTests = 0;
+        long firstBeginTime = -1;
+        long lastEndTime = -1;
+        try (JsonReader reader = createJsonReader(summaryFile)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals(RESULTS) || reader.peek() == JsonToken.NULL) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if (name.equals(RESULT)) {
+                            if (!reader.nextString().equals(SKIP)) {
+                                nNonSkippedTests++;
+                            }
+                        } else if (name.equals(BEGIN_TIME)) {
+                            long beginTime = reader.nextLong();
+                            if (firstBeginTime == -1) {
+                                firstBeginTime = beginTime;
+                            }
+                        } else if (name.equals(END_TIME)) {
+                            lastEndTime = reader.nextLong();
+                        } else {
+                            reader.skipValue();
                         }
-
-                        listener.testEnded(TestDescription, endTime, Collections.emptyMap());
                     }
+                    reader.endObject();
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException | JsonParseException e) {
+            throw new JSONException("Malformed test run summary: " + e.getMessage());
+        }
 
-                    if (!resultObject.isNull(TABLES)) {
-                        JSONObject tables = resultObject.getJSONObject(TABLES);
-                        Iterator<String> iter = tables.keys();
-                        while (iter.hasNext()) {
-                            String key = iter.next();
-                            printJsonTable(key, tables.getJSONArray(key));
-                        }
+        long elapsedTime = 0;
+        if (firstBeginTime != -1 && lastEndTime != -1) {
+            elapsedTime = lastEndTime - firstBeginTime;
+        } else {
+            CLog.e("JSONArray is null.");
+        }
+
+        for (ITestLifeCycleReceiver listener : mListeners) {
+            listener.testRunStarted(mRunName, nNonSkippedTests);
+        }
+
+        JSONObject object = forEachJsonResult(summaryFile, resultObject -> {
+            for (ITestLifeCycleReceiver listener : mListeners) {
+                reportJsonResult(listener, resultObject);
+            }
+        });
+        for (ITestLifeCycleReceiver listener : mListeners) {
+            if (!object.isNull(CLASS_ERRORS)) {
+                listener.testRunFailed(object.getString(CLASS_ERRORS));
+            }
+            listener.testRunEnded(elapsedTime, Collections.<String, String>emptyMap());
+        }
+        return object;
+    }
+
+    /**
+     * Creates a JsonReader over a buffered UTF-8 stream of the given file.
+     *
+     * @param file the file to read.
+     * @return the JsonReader.
+     * @throws IOException if the file cannot be opened.
+     */
+    private static JsonReader createJsonReader(File file) throws IOException {
+        return new JsonReader(new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8),
+                JSON_READ_BUFFER_SIZE));
+    }
+
+    /**
+     * Reads the Results array of a test_run_summary.json file one entry at a time.
+     *
+     * @param summaryFile the test_run_summary.json file.
+     * @param handler the handler to call for each entry of the Results array.
+     * @return a JSONObject holding all top-level fields of the summary except Results.
+     * @throws IOException if the file cannot be read.
+     * @throws JSONException if the file is not a valid summary.
+     */
+    private static JSONObject forEachJsonResult(File summaryFile, JsonResultHandler handler)
+            throws IOException, JSONException {
+        JsonParser jsonParser = new JsonParser();
+        JsonObject header = new JsonObject();
+        try (JsonReader reader = createJsonReader(summaryFile)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (!name.equals(RESULTS) || reader.peek() == JsonToken.NULL) {
+                    header.add(name, jsonParser.parse(reader));
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    handler.handle(new JSONObject(jsonParser.parse(reader).toString()));
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        } catch (IllegalStateException | JsonParseException e) {
+            throw new JSONException("Malformed test run summary: " + e.getMessage());
+        }
+        return new JSONObject(header.toString());
+    }
+
+    /**
+     * Handles one entry of the Results array read by {@link #forEachJsonResult}.
+     */
+    private interface JsonResultHandler {
+        void handle(JSONObject resultObject) throws JSONException;
+    }
+
+    /**
+     * This method processes one event sent by the VTS Python runner while the tests are running.
+     * The first event starts the test run. Test cases which are skipped or silenced before they
+     * start are not reported, which is consistent with {@link #processJsonFile(JSONObject)}.
+     * {@link #completeLiveRun(File)} must be called after the runner terminates.
+     *
+     * @param event the json object of the event.
+     * @throws JSONException if the event misses a mandatory field.
+     */
+    public void processLiveEvent(JSONObject event) throws JSONException {
+        String type = event.getString(EVENT);
+        TestDescription test =
+                new TestDescription(event.getString(TEST_CLASS), event.getString(TEST_NAME));
+        long beginTime = event.getLong(BEGIN_TIME);
+
+        if (!mLiveRunStarted) {
+            // The number of test cases is unknown as the runner generates them on the fly.
+            for (ITestLifeCycleReceiver listener : mListeners) {
+                listener.testRunStarted(mRunName, 0);
+            }
+            mLiveRunStarted = true;
+        }
+        if (mLiveFirstBeginTime == -1) {
+            mLiveFirstBeginTime = beginTime;
+        }
+
+        switch (type) {
+            case EVENT_TEST_STARTED:
+                for (ITestLifeCycleReceiver listener : mListeners) {
+                    listener.testStarted(test, beginTime);
+                }
+                mLiveResults.put(test, RUNNING);
+                break;
+            case EVENT_TEST_ENDED:
+                String result = event.isNull(RESULT) ? null : event.getString(RESULT);
+                boolean started = RUNNING.equals(mLiveResults.get(test));
+                if (!started && (result == null || result.equals(SKIP))) {
+                    break;
+                }
+                long endTime = event.getLong(END_TIME);
+                String details = event.isNull(DETAILS) ? "" : event.getString(DETAILS);
+                for (ITestLifeCycleReceiver listener : mListeners) {
+                    if (!started) {
+                        listener.testStarted(test, beginTime);
+                    }
+                    if (result == null) {
+                        listener.testAssumptionFailure(test, SILENT);
+                        listener.testEnded(test, endTime, Collections.emptyMap());
+                    } else {
+                        reportTestEnded(listener, test, result, details, endTime);
                     }
                 }
+                mLiveResults.put(test, result == null ? SILENT : result);
+                mLiveLastEndTime = endTime;
+                printJsonTables(event);
+                break;
+            default:
+                CLog.w("Unknown test event type %s", type);
+        }
+    }
 
-                if (!object.isNull(CLASS_ERRORS)) {
+    /**
+     * @return whether {@link #processLiveEvent(JSONObject)} has started the test run.
+     */
+    public boolean isLiveRunStarted() {
+        return mLiveRunStarted;
+    }
+
+    /**
+     * This method ends the test run started by {@link #processLiveEvent(JSONObject)}. It reconciles
+     * the results with test_run_summary.json: test cases which are in the summary but have not
+     * been reported by the events are reported; test cases which have started but not ended are
+     * ended with the result in the summary, or failed if the summary does not contain them.
+     *
+     * @param summaryFile the test_run_summary.json file; null if the runner did not write it.
+     * @return a JSONObject holding all top-level fields of the summary except Results; null if
+     *         summaryFile is null.
+     * @throws IOException if the file cannot be read.
+     * @throws JSONException if the file is not a valid summary.
+     */
+    public JSONObject completeLiveRun(File summaryFile) throws IOException, JSONException {
+        JSONObject object = null;
+        try {
+            if (summaryFile != null) {
+                object = forEachJsonResult(summaryFile, this::reconcileJsonResult);
+            }
+        } finally {
+            for (Entry<TestDescription, String> entry : mLiveResults.entrySet()) {
+                if (!RUNNING.equals(entry.getValue())) {
+                    continue;
+                }
+                CLog.e("Test %s did not finish.", entry.getKey());
+                for (ITestLifeCycleReceiver listener : mListeners) {
+                    reportTestEnded(listener, entry.getKey(), ERROR, UNFINISHED,
+                            System.currentTimeMillis());
+                }
+            }
+            long elapsedTime = 0;
+            if (mLiveFirstBeginTime != -1 && mLiveLastEndTime != -1) {
+                elapsedTime = mLiveLastEndTime - mLiveFirstBeginTime;
+            }
+            for (ITestLifeCycleReceiver listener : mListeners) {
+                if (object != null && !object.isNull(CLASS_ERRORS)) {
                     listener.testRunFailed(object.getString(CLASS_ERRORS));
                 }
                 listener.testRunEnded(elapsedTime, Collections.<String, String>emptyMap());
             }
-        } catch (JSONException e) {
-            CLog.e("Exception occurred: %s", e);
+        }
+        return object;
+    }
+
+    /**
+     * Reports an entry of the summary's Results array unless the event of its end has been
+     * processed.
+     *
+     * @param resultObject the result entry.
+     * @throws JSONException if the entry misses a mandatory field.
+     */
+    private void reconcileJsonResult(JSONObject resultObject) throws JSONException {
+        TestDescription test = new TestDescription(
+                resultObject.getString(TEST_CLASS), resultObject.getString(TEST_NAME));
+        String result = resultObject.getString(RESULT);
+        String liveResult = mLiveResults.get(test);
+        if (liveResult == null) {
+            for (ITestLifeCycleReceiver listener : mListeners) {
+                reportJsonResult(listener, resultObject);
+            }
+        } else if (liveResult.equals(RUNNING)) {
+            String details =
+                    resultObject.isNull(DETAILS) ? "" : resultObject.getString(DETAILS);
+            for (ITestLifeCycleReceiver listener : mListeners) {
+                reportTestEnded(
+                        listener, test, result, details, resultObject.getLong(END_TIME));
+            }
+        } else {
+            if (!liveResult.equals(result)) {
+                CLog.w("Result of %s in the summary is %s, but %s has been reported.", test,
+                        result, liveResult);
+            }
+            return;
+        }
+        mLiveResults.put(test, result);
+        mLiveLastEndTime = Math.max(mLiveLastEndTime, resultObject.getLong(END_TIME));
+    }
+
+    /**
+     * Reports a single entry of the Results array through listener.
+     *
+     * @param listener the listener to report to.
+     * @param resultObject the result entry.
+     * @throws JSONException if the entry misses a mandatory field.
+     */
+    private void reportJsonResult(ITestLifeCycleReceiver listener, JSONObject resultObject)
+            throws JSONException {
+        String result = (String) resultObject.get(RESULT);
+        String testClass = (String) resultObject.get(TEST_CLASS);
+        String testName = (String) resultObject.get(TEST_NAME);
+        long beginTime = resultObject.getLong(BEGIN_TIME);
+        long endTime = resultObject.getLong(END_TIME);
+        String details = resultObject.isNull(DETAILS) ? "" : resultObject.getString(DETAILS);
+
+        // mark test started
+        TestDescription TestDescription = new TestDescription(testClass, testName);
+
+        /* SKIP is not recognized in TF. Does not report result instead. */
+        if (!result.equals(SKIP)) {
+            listener.testStarted(TestDescription, beginTime);
+            reportTestEnded(listener, TestDescription, result, details, endTime);
+        }
+
+        printJsonTables(resultObject);
+    }
+
+    /**
+     * Reports the result of a started test case and ends it.
+     *
+     * @param listener the listener to report to.
+     * @param test the test case.
+     * @param result the result string in the summary.
+     * @param details the details of the result.
+     * @param endTime the end time of the test case.
+     */
+    private static void reportTestEnded(ITestLifeCycleReceiver listener, TestDescription test,
+            String result, String details, long endTime) {
+        switch (result) {
+            case PASS:
+                break;
+            case SKIP:
+                /* Only reachable if a test case is skipped after it is reported as started. */
+                listener.testAssumptionFailure(test, details.isEmpty() ? SKIP : details);
+                break;
+            case ERROR:
+                /* Error is reported by the VTS runner when an unexpected exception
+                   happened during test execution. It could be due to: a framework
+                   bug, an unhandled I/O, a TCP error, or a bug in test module or
+                   template execution code. Error thus does not necessarily indicate
+                   a test failure or a bug in device implementation. Since error is
+                   not yet recognized in TF, it is converted to FAIL. */
+            case TIMEOUT:
+                /* Timeout is not recognized in TF. Use FAIL instead. */
+            case FAIL:
+                /* Indicates a test failure. */
+                listener.testFailed(test, details.isEmpty() ? UNKNOWN_FAILURE : details);
+                break;
+            default:
+                listener.testFailed(test,
+                        "Internal error: Cannot recognize test result type. Details: " + details);
+                break;
+        }
+
+        listener.testEnded(test, endTime, Collections.emptyMap());
+    }
+
+    /**
+     * Prints the tables of a result entry.
+     *
+     * @param resultObject the result entry.
+     * @throws JSONException if the tables are malformed.
+     */
+    private static void printJsonTables(JSONObject resultObject) throws JSONException {
+        if (!resultObject.isNull(TABLES)) {
+            JSONObject tables = resultObject.getJSONObject(TABLES);
+            Iterator<String> iter = tables.keys();
+            while (iter.hasNext()) {
+                String key = iter.next();
+                printJsonTable(key, tables.getJSONArray(key));
+            }
         }
     }
 
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.testtype;
+
+import com.android.tradefed.log.ITestLogger;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.ITestLifeCycleReceiver;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.result.TestDescription;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Merges the results of {@link VtsMultiDeviceTest} shards running in parallel into one test run.
+ * The events of a test case are forwarded to the listener after the test case ends, so that the
+ * listener never sees the test cases of different shards interleaved.
+ */
+public class VtsMultiDeviceTestShardAggregator implements ITestLogger {
+    private final ITestInvocationListener mListener;
+    private final String mRunName;
+    private final int mTestCount;
+    private final List<String> mRunFailures = new ArrayList<>();
+    private long mElapsedTime = 0;
+
+    /**
+     * A receiver of the results of one shard.
+     */
+    private class ShardReceiver implements ITestLifeCycleReceiver {
+        private final String mShardName;
+        // The events of the running test case.
+        private List<Consumer<ITestLifeCycleReceiver>> mPendingEvents = null;
+
+        ShardReceiver(String shardName) {
+            mShardName = shardName;
+        }
+
+        private void addEvent(Consumer<ITestLifeCycleReceiver> event) {
+            if (mPendingEvents != null) {
+                mPendingEvents.add(event);
+            } else {
+                forward(Collections.singletonList(event));
+            }
+        }
+
+        private void endTest(Consumer<ITestLifeCycleReceiver> event) {
+            addEvent(event);
+            if (mPendingEvents != null) {
+                forward(mPendingEvents);
+                mPendingEvents = null;
+            }
+        }
+
+        @Override
+        public void testRunStarted(String runName, int testCount) {
+            // The aggregator starts the test run.
+        }
+
+        @Override
+        public void testRunFailed(String errorMessage) {
+            addRunFailure(mShardName + ": " + errorMessage);
+        }
+
+        @Override
+        public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+            updateElapsedTime(elapsedTime);
+        }
+
+        @Override
+        public void testRunEnded(long elapsedTime, HashMap<String, Metric> runMetrics) {
+            updateElapsedTime(elapsedTime);
+        }
+
+        @Override
+        public void testStarted(TestDescription test) {
+            mPendingEvents = new ArrayList<>();
+            addEvent(listener -> listener.testStarted(test));
+        }
+
+        @Override
+        public void testStarted(TestDescription test, long startTime) {
+            mPendingEvents = new ArrayList<>();
+            addEvent(listener -> listener.testStarted(test, startTime));
+        }
+
+        @Override
+        public void testFailed(TestDescription test, String trace) {
+            addEvent(listener -> listener.testFailed(test, trace));
+        }
+
+        @Override
+        public void testAssumptionFailure(TestDescription test, String trace) {
+            addEvent(listener -> listener.testAssumptionFailure(test, trace));
+        }
+
+        @Override
+        public void testEnded(TestDescription test, Map<String, String> testMetrics) {
+            endTest(listener -> listener.testEnded(test, testMetrics));
+        }
+
+        @Override
+        public void testEnded(TestDescription test, long endTime, Map<String, String> testMetrics) {
+            endTest(listener -> listener.testEnded(test, endTime, testMetrics));
+        }
+    }
+
+    /**
+     * @param listener the listener to report the merged test run to.
+     * @param runName the name of the test run.
+     * @param testCount the number of test cases in all shards.
+     */
+    public VtsMultiDeviceTestShardAggregator(
+            ITestInvocationListener listener, String runName, int testCount) {
+        mListener = listener;
+        mRunName = runName;
+        mTestCount = testCount;
+    }
+
+    /**
+     * Starts the merged test run. Must be called before the shards start.
+     */
+    public synchronized void start() {
+        mListener.testRunStarted(mRunName, mTestCount);
+    }
+
+    /**
+     * Creates a receiver for the results of a shard. Each shard must use its own receiver.
+     *
+     * @param shardName the name of the shard which is prepended to run failure messages.
+     * @return the receiver.
+     */
+    public ITestLifeCycleReceiver createShardReceiver(String shardName) {
+        return new ShardReceiver(shardName);
+    }
+
+    /**
+     * Ends the merged test run. Must be called after all shards finish.
+     */
+    public synchronized void end() {
+        if (!mRunFailures.isEmpty()) {
+            mListener.testRunFailed(String.join("\n", mRunFailures));
+        }
+        mListener.testRunEnded(mElapsedTime, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void testLog(
+            String dataName, LogDataType dataType, InputStreamSource dataStream) {
+        mListener.testLog(dataName, dataType, dataStream);
+    }
+
+    private synchronized void forward(List<Consumer<ITestLifeCycleReceiver>> events) {
+        for (Consumer<ITestLifeCycleReceiver> event : events) {
+            event.accept(mListener);
+        }
+    }
+
+    private synchronized void addRunFailure(String errorMessage) {
+        mRunFailures.add(errorMessage);
+    }
+
+    /**
+     * The elapsed time of the merged test run is the longest one of the shards as they run in
+     * parallel.
+     */
+    private synchronized void updateElapsedTime(long elapsedTime) {
+        mElapsedTime = Math.max(mElapsedTime, elapsedTime);
+    }
+}
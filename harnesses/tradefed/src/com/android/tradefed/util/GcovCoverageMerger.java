@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.vts.proto.VtsReportMessage.CoverageReportMessage;
+import com.google.protobuf.ByteString;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Merges the counters in gcda files into per-source-file line coverage vectors.
+ *
+ * <p>This is the in-process equivalent of the auto-process mode of the python coverage_utils.
+ * The gcno graphs are read from a {@link GcovIndex}. The arc counts are resolved with primitive
+ * arrays, and the block counts are added to the lines of the source files.
+ */
+public class GcovCoverageMerger {
+    static final int TAG_FUNCTION = 0x01000000;
+    static final int TAG_COUNTER = 0x01a10000;
+
+    static final int ARC_ON_TREE = 1;
+    static final int ARC_FAKE = 1 << 1;
+    static final int ARC_FALLTHROUGH = 1 << 2;
+
+    static final String GCDA_SUFFIX = ".gcda";
+    // The gcda and source files of generated code are skipped.
+    static final String GEN_TAG = "/gen/";
+    // The gcda file paths of the soong build contain this tag.
+    static final String SOONG_TAG = "soong/.intermediates";
+
+    // The source paths which are excluded by default.
+    static final List<String> DEFAULT_EXCLUDE_PATHS = Collections.unmodifiableList(Arrays.asList(
+            "bionic", "external/libcxx", "system/core", "system/libhidl", "system/libfmq"));
+
+    /**
+     * The execution counts of the lines in a source file. -1 means the line is not executable.
+     */
+    private static class LineVector {
+        long[] mCounts = new long[0];
+        int mLength = 0;
+
+        void add(int line, long count) {
+            if (line > mCounts.length) {
+                int oldLength = mCounts.length;
+                mCounts = Arrays.copyOf(mCounts, Math.max(line, oldLength * 2));
+                Arrays.fill(mCounts, oldLength, mCounts.length, -1);
+            }
+            mLength = Math.max(mLength, line);
+            if (mCounts[line - 1] < 0) {
+                mCounts[line - 1] = 0;
+            }
+            mCounts[line - 1] += count;
+        }
+    }
+
+    private final GcovIndex mIndex;
+    private final List<String> mExcludePaths;
+    private final Map<String, LineVector> mLineVectors = new TreeMap<>();
+
+    /**
+     * @param index the gcno index of the device build.
+     * @param excludePaths the source path prefixes to skip.
+     */
+    public GcovCoverageMerger(GcovIndex index, List<String> excludePaths) {
+        mIndex = index;
+        mExcludePaths = excludePaths;
+    }
+
+    /**
+     * Merges a gcda file.
+     *
+     * @param gcdaPath the path of the gcda file on the device.
+     * @param content the gcda file content.
+     * @return whether the file is merged.
+     */
+    public boolean addGcdaFile(String gcdaPath, byte[] content) {
+        if (gcdaPath.contains(GEN_TAG)) {
+            CLog.d("Skip for gcda file: %s", gcdaPath);
+            return false;
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = GcovIndex.openGcovFile(content, GcovIndex.GCDA_MAGIC);
+        } catch (IOException e) {
+            CLog.e("Error parsing gcda file %s", gcdaPath);
+            return false;
+        }
+        List<GcovIndex.Unit> units = mIndex.getUnits(buffer.getInt(8));
+        if (units.isEmpty()) {
+            CLog.i("No matching gcno file for gcda: %s", gcdaPath);
+            return false;
+        }
+        int extension = gcdaPath.lastIndexOf('.');
+        GcovIndex.Unit unit = findUnit(
+                extension < 0 ? gcdaPath : gcdaPath.substring(0, extension), units);
+
+        Map<Integer, long[]> blockCounts = new HashMap<>();
+        try {
+            Map<Integer, long[]> counters = readCounters(buffer);
+            for (GcovIndex.Function function : unit.getFunctions().values()) {
+                long[] functionCounters = counters.get(function.getIdent());
+                blockCounts.put(function.getIdent(), functionCounters == null
+                                ? new long[function.mBlockLines.length]
+                                : resolveBlockCounts(function, functionCounters));
+            }
+        } catch (IOException e) {
+            CLog.e("Error parsing gcda file %s: %s", gcdaPath, e.getMessage());
+            return false;
+        }
+
+        for (GcovIndex.Function function : unit.getFunctions().values()) {
+            String sourceFile = function.getSourceFile();
+            if (isExcluded(sourceFile)) {
+                continue;
+            }
+            LineVector vector = mLineVectors.get(sourceFile);
+            if (vector == null) {
+                vector = new LineVector();
+                mLineVectors.put(sourceFile, vector);
+            }
+            long[] counts = blockCounts.get(function.getIdent());
+            for (int block = 0; block < function.mBlockLines.length; block++) {
+                for (int line : function.mBlockLines[block]) {
+                    if (line > 0) {
+                        vector.add(line, counts[block]);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the line coverage vectors of the merged source files.
+     *
+     * @return the map from source file paths to the vectors, sorted by path.
+     */
+    public Map<String, long[]> getLineCoverageVectors() {
+        Map<String, long[]> vectors = new TreeMap<>();
+        for (Map.Entry<String, LineVector> entry : mLineVectors.entrySet()) {
+            LineVector vector = entry.getValue();
+            vectors.put(entry.getKey(), Arrays.copyOf(vector.mCounts, vector.mLength));
+        }
+        return vectors;
+    }
+
+    /**
+     * Creates the coverage reports of the source files which belong to the projects in the
+     * device build.
+     *
+     * @param revisions the map from project names to revisions in the BUILD_INFO artifact.
+     * @return the reports sorted by source file path.
+     */
+    public List<CoverageReportMessage> getCoverageReports(Map<String, String> revisions) {
+        List<String> projectNames = new ArrayList<>(revisions.keySet());
+        Collections.sort(projectNames);
+        List<CoverageReportMessage> reports = new ArrayList<>();
+        for (Map.Entry<String, long[]> entry : getLineCoverageVectors().entrySet()) {
+            String sourceFile = entry.getKey();
+            String projectName = null;
+            String projectPath = null;
+            for (String name : projectNames) {
+                // Matches when the source path starts with the project name, or when the
+                // project name has an additional prefix before the project path.
+                String normalizedName = Paths.get(name).normalize().toString();
+                int separator = normalizedName.indexOf('/');
+                if (sourceFile.startsWith(name)) {
+                    projectName = name;
+                    projectPath = name;
+                    break;
+                }
+                if (separator >= 0
+                        && sourceFile.startsWith(normalizedName.substring(separator + 1))) {
+                    projectName = name;
+                    projectPath = normalizedName.substring(separator + 1);
+                    break;
+                }
+            }
+            if (projectName == null) {
+                CLog.i("Could not find git info for %s", sourceFile);
+                continue;
+            }
+
+            long[] vector = entry.getValue();
+            CoverageReportMessage.Builder report = CoverageReportMessage.newBuilder();
+            int totalCount = 0;
+            int coveredCount = 0;
+            for (long count : vector) {
+                report.addLineCoverageVector(count);
+                if (count >= 0) {
+                    totalCount++;
+                    if (count > 0) {
+                        coveredCount++;
+                    }
+                }
+            }
+            String relativePath =
+                    Paths.get(projectPath).relativize(Paths.get(sourceFile)).toString();
+            if (relativePath.isEmpty()) {
+                relativePath = ".";
+            }
+            report.setTotalLineCount(totalCount)
+                    .setCoveredLineCount(coveredCount)
+                    .setFilePath(ByteString.copyFromUtf8(relativePath))
+                    .setRevision(ByteString.copyFromUtf8(revisions.get(projectName)))
+                    .setProjectName(ByteString.copyFromUtf8(projectName));
+            reports.add(report.build());
+        }
+        return reports;
+    }
+
+    private boolean isExcluded(String sourceFile) {
+        if (sourceFile.contains(GEN_TAG)) {
+            return true;
+        }
+        for (String path : mExcludePaths) {
+            if (sourceFile.startsWith(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the gcno file of a gcda file among the gcno files with the same checksum by
+     * matching the source file names. Falls back to the last one if none matches.
+     *
+     * @param gcdaBaseName the gcda file path without extension.
+     * @param units the gcno files with the same checksum.
+     * @return the matched gcno file.
+     */
+    static GcovIndex.Unit findUnit(String gcdaBaseName, List<GcovIndex.Unit> units) {
+        // If built with legacy compile system, compare only the base source file name.
+        boolean legacyBuild = !gcdaBaseName.contains(SOONG_TAG);
+        for (GcovIndex.Unit unit : units) {
+            for (GcovIndex.Function function : unit.getFunctions().values()) {
+                String sourceName = function.getSourceFile();
+                int extension = sourceName.lastIndexOf('.');
+                if (extension >= 0) {
+                    sourceName = sourceName.substring(0, extension);
+                }
+                if (legacyBuild) {
+                    sourceName = sourceName.substring(sourceName.lastIndexOf('/') + 1);
+                }
+                if (gcdaBaseName.endsWith(sourceName)) {
+                    return unit;
+                }
+            }
+        }
+        return units.get(units.size() - 1);
+    }
+
+    /**
+     * Reads the arc counters of the functions in a gcda file.
+     *
+     * @param buffer the gcda file positioned at the beginning.
+     * @return the map from function idents to counters.
+     * @throws IOException if the file is corrupt.
+     */
+    static Map<Integer, long[]> readCounters(ByteBuffer buffer) throws IOException {
+        Map<Integer, long[]> counters = new HashMap<>();
+        buffer.position(12);
+        Integer ident = null;
+        while (buffer.remaining() >= 8) {
+            int tag = buffer.getInt();
+            int length = buffer.getInt();
+            if (length < 0 || (long) length * 4 > buffer.remaining()) {
+                throw new IOException("Corrupt file: record exceeds the end of file.");
+            }
+            int end = buffer.position() + length * 4;
+            if (tag == TAG_FUNCTION && length > 0) {
+                ident = buffer.getInt();
+            } else if (tag == TAG_COUNTER && ident != null) {
+                long[] counts = new long[length / 2];
+                for (int i = 0; i < counts.length; i++) {
+                    long low = buffer.getInt() & 0xffffffffL;
+                    long high = buffer.getInt() & 0xffffffffL;
+                    counts[i] = (high << 32) | low;
+                }
+                counters.put(ident, counts);
+            }
+            buffer.position(end);
+        }
+        return counters;
+    }
+
+    /**
+     * Resolves the execution counts of the blocks in a function.
+     *
+     * <p>The gcda file contains the counts of the arcs which are neither fake nor on the spanning
+     * tree. The other counts are resolved by the property that the sum of counts entering a
+     * block equals the sum of counts leaving it. Fake arcs without fallthrough are removed from
+     * the exits of their source blocks.
+     *
+     * @param function the function graph.
+     * @param counters the arc counters in the gcda file.
+     * @return the count of each block.
+     * @throws IOException if the counts cannot be resolved.
+     */
+    static long[] resolveBlockCounts(GcovIndex.Function function, long[] counters)
+            throws IOException {
+        int blockCount = function.mBlockLines.length;
+        int arcCount = function.mArcFlags.length;
+        int[][] entries = groupArcs(function.mArcDestinations, blockCount);
+        int[][] exits = groupArcs(function.mArcSources, blockCount);
+        long[] counts = new long[arcCount];
+        boolean[] resolved = new boolean[arcCount];
+        boolean[] removed = new boolean[arcCount];
+
+        // The counters are in the order of the blocks and their exit arcs.
+        int counterIndex = 0;
+        int[] unresolved = new int[arcCount];
+        int unresolvedCount = 0;
+        for (int[] blockExits : exits) {
+            for (int arc : blockExits) {
+                int flags = function.mArcFlags[arc];
+                if ((flags & ARC_FAKE) == 0 && (flags & ARC_ON_TREE) == 0) {
+                    if (counterIndex >= counters.length) {
+                        throw new IOException("Corrupt file: too few counters.");
+                    }
+                    counts[arc] = counters[counterIndex++];
+                    resolved[arc] = true;
+                } else {
+                    unresolved[unresolvedCount++] = arc;
+                }
+            }
+        }
+
+        while (unresolvedCount > 0) {
+            int remaining = 0;
+            for (int i = 0; i < unresolvedCount; i++) {
+                int arc = unresolved[i];
+                if (!resolveArc(arc, function, entries, exits, counts, resolved, removed)) {
+                    unresolved[remaining++] = arc;
+                }
+            }
+            if (remaining == unresolvedCount) {
+                throw new IOException("Corrupt file: Counts could not be resolved.");
+            }
+            unresolvedCount = remaining;
+        }
+
+        long[] blockCounts = new long[blockCount];
+        for (int block = 0; block < blockCount; block++) {
+            if (entries[block].length > 0) {
+                blockCounts[block] = sumCounts(entries[block], -1, counts, null);
+            } else {
+                blockCounts[block] = sumCounts(exits[block], -1, counts, removed);
+            }
+        }
+        return blockCounts;
+    }
+
+    private static boolean resolveArc(int arc, GcovIndex.Function function, int[][] entries,
+            int[][] exits, long[] counts, boolean[] resolved, boolean[] removed) {
+        int flags = function.mArcFlags[arc];
+        int source = function.mArcSources[arc];
+        int destination = function.mArcDestinations[arc];
+        if ((flags & ARC_FAKE) != 0 && (flags & ARC_FALLTHROUGH) == 0) {
+            removed[arc] = true;
+            return true;
+        }
+        if (entries[source].length > 0 && allResolved(entries[source], -1, resolved, null)
+                && allResolved(exits[source], arc, resolved, removed)) {
+            counts[arc] = sumCounts(entries[source], -1, counts, null)
+                    - sumCounts(exits[source], arc, counts, removed);
+        } else if (hasArcs(exits[destination], removed)
+                && allResolved(exits[destination], -1, resolved, removed)
+                && allResolved(entries[destination], arc, resolved, null)) {
+            counts[arc] = sumCounts(exits[destination], -1, counts, removed)
+                    - sumCounts(entries[destination], arc, counts, null);
+        } else {
+            return false;
+        }
+        resolved[arc] = true;
+        return true;
+    }
+
+    /**
+     * Groups the arc indexes by block.
+     *
+     * @param arcBlocks the source or destination block of each arc.
+     * @param blockCount the number of blocks.
+     * @return the arc indexes of each block in ascending order.
+     */
+    private static int[][] groupArcs(int[] arcBlocks, int blockCount) {
+        int[] sizes = new int[blockCount];
+        for (int block : arcBlocks) {
+            sizes[block]++;
+        }
+        int[][] groups = new int[blockCount][];
+        for (int block = 0; block < blockCount; block++) {
+            groups[block] = new int[sizes[block]];
+            sizes[block] = 0;
+        }
+        for (int arc = 0; arc < arcBlocks.length; arc++) {
+            int block = arcBlocks[arc];
+            groups[block][sizes[block]++] = arc;
+        }
+        return groups;
+    }
+
+    private static boolean hasArcs(int[] arcs, boolean[] removed) {
+        for (int arc : arcs) {
+            if (!removed[arc]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean allResolved(
+            int[] arcs, int excluded, boolean[] resolved, boolean[] removed) {
+        for (int arc : arcs) {
+            if (arc != excluded && (removed == null || !removed[arc]) && !resolved[arc]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long sumCounts(int[] arcs, int excluded, long[] counts, boolean[] removed) {
+        long sum = 0;
+        for (int arc : arcs) {
+            if (arc != excluded && (removed == null || !removed[arc])) {
+                sum += counts[arc];
+            }
+        }
+        return sum;
+    }
+}
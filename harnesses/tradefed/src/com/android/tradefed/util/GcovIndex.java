@@ -0,0 +1,657 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * An index of the gcno files in a gcov.zip build artifact.
+ *
+ * <p>The gcno graphs in the .gcnodir archives are parsed once per build and written to an index
+ * file, which is memory-mapped by the following modules. The graphs of a gcno file are decoded
+ * from the mapped buffer only when a gcda file with the same checksum is processed.
+ *
+ * <p>Index file layout (big-endian):
+ * <pre>
+ * header:    magic, version, string count, unit count, units offset
+ * strings:   (byte length, UTF-8 bytes) * string count
+ * directory: (checksum, unit offset) * unit count, sorted by checksum
+ * units:     gcno path id, function count, functions
+ * function:  ident, source file id, block count, arc count,
+ *            (source block, destination block, flag) * arc count,
+ *            (line count, lines) * block count
+ * </pre>
+ */
+public class GcovIndex {
+    static final int INDEX_MAGIC = 0x56474349; // "VGCI"
+    static final int INDEX_VERSION = 1;
+    static final String INDEX_FILE_EXTENSION = ".idx";
+    // Max number of indexes kept mapped in memory.
+    static final int MAX_LOADED_INDEXES = 4;
+    // Max number of index files kept in the index directory.
+    static final int MAX_INDEX_FILES = 8;
+    // The temporary files older than this are left by the interrupted builds.
+    static final long TEMP_FILE_MAX_AGE_MSECS = 24 * 60 * 60 * 1000L;
+
+    static final int GCNO_MAGIC = 0x67636e6f;
+    static final int GCDA_MAGIC = 0x67636461;
+    static final int TAG_FUNCTION = 0x01000000;
+    static final int TAG_BLOCKS = 0x01410000;
+    static final int TAG_ARCS = 0x01430000;
+    static final int TAG_LINES = 0x01450000;
+
+    static final String GCNODIR_SUFFIX = ".gcnodir";
+
+    // The unix archive format of .gcnodir files.
+    static final String AR_GLOBAL_SIGNATURE = "!<arch>\n";
+    static final int AR_HEADER_LENGTH = 60;
+    static final int AR_NAME_LENGTH = 16;
+    static final int AR_SIZE_OFFSET = 48;
+    static final int AR_SIZE_LENGTH = 10;
+    static final String AR_STRING_TABLE_ID = "//";
+    static final String AR_SYMBOL_TABLE_ID = "__.SYMDEF";
+
+    // The recently used indexes, keyed by index file path. The mapped buffers of the evicted
+    // indexes are released when the callers no longer reference them.
+    private static final Map<String, GcovIndex> sIndexes =
+            new LinkedHashMap<String, GcovIndex>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, GcovIndex> eldest) {
+                    return size() > MAX_LOADED_INDEXES;
+                }
+            };
+
+    private final ByteBuffer mBuffer;
+    private final String[] mStrings;
+    private final int mUnitCount;
+    private final int mDirectoryOffset;
+    private final int mUnitsOffset;
+
+    /**
+     * The graph of a function in a gcno file.
+     */
+    public static class Function {
+        final int mIdent;
+        final String mSourceFile;
+        // The source block, destination block and flag of each arc.
+        final int[] mArcSources;
+        final int[] mArcDestinations;
+        final int[] mArcFlags;
+        // The line numbers of each block.
+        final int[][] mBlockLines;
+
+        Function(int ident, String sourceFile, int[] arcSources, int[] arcDestinations,
+                int[] arcFlags, int[][] blockLines) {
+            mIdent = ident;
+            mSourceFile = sourceFile;
+            mArcSources = arcSources;
+            mArcDestinations = arcDestinations;
+            mArcFlags = arcFlags;
+            mBlockLines = blockLines;
+        }
+
+        public int getIdent() {
+            return mIdent;
+        }
+
+        public String getSourceFile() {
+            return mSourceFile;
+        }
+    }
+
+    /**
+     * The functions in a gcno file.
+     */
+    public static class Unit {
+        final String mGcnoPath;
+        final Map<Integer, Function> mFunctions;
+
+        Unit(String gcnoPath, Map<Integer, Function> functions) {
+            mGcnoPath = gcnoPath;
+            mFunctions = functions;
+        }
+
+        public String getGcnoPath() {
+            return mGcnoPath;
+        }
+
+        /** @return the functions in the order of the gcno file, keyed by ident. */
+        public Map<Integer, Function> getFunctions() {
+            return mFunctions;
+        }
+    }
+
+    private GcovIndex(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.getInt(0) != INDEX_MAGIC || buffer.getInt(4) != INDEX_VERSION) {
+            throw new IOException("Unknown coverage index format.");
+        }
+        int stringCount = buffer.getInt(8);
+        mUnitCount = buffer.getInt(12);
+        mUnitsOffset = buffer.getInt(16);
+        ByteBuffer strings = buffer.duplicate();
+        strings.position(20);
+        mStrings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            byte[] bytes = new byte[strings.getInt()];
+            strings.get(bytes);
+            mStrings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        mDirectoryOffset = strings.position();
+    }
+
+    /**
+     * Loads the index of a gcov.zip. The index is built and stored in indexDir if it does not
+     * exist. The index file name is derived from the CRC of the .gcnodir entries, so that the
+     * copies of the same artifact share one index. The least recently used index files are
+     * deleted when a new index is built.
+     *
+     * @param gcovZip the gcov.zip artifact.
+     * @param indexDir the directory to store the index files.
+     * @return the loaded index.
+     * @throws IOException if fails to read the artifact or the index.
+     */
+    public static synchronized GcovIndex load(File gcovZip, File indexDir) throws IOException {
+        File indexFile = new File(indexDir, getIndexKey(gcovZip) + INDEX_FILE_EXTENSION);
+        GcovIndex index = sIndexes.get(indexFile.getAbsolutePath());
+        if (index != null) {
+            return index;
+        }
+        if (!indexFile.isFile()) {
+            long startTime = System.currentTimeMillis();
+            FileUtil.mkdirsRWX(indexDir);
+            File tempFile = FileUtil.createTempFile("gcov-index", ".tmp", indexDir);
+            try {
+                build(gcovZip, tempFile);
+                Files.move(tempFile.toPath(), indexFile.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                tempFile.delete();
+            }
+            CLog.i("Indexed %s to %s in %d ms.", gcovZip, indexFile,
+                    System.currentTimeMillis() - startTime);
+            pruneIndexDir(indexDir);
+        } else {
+            // The modification time records the last use of the index.
+            indexFile.setLastModified(System.currentTimeMillis());
+        }
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+                FileChannel channel = file.getChannel()) {
+            index = new GcovIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        sIndexes.put(indexFile.getAbsolutePath(), index);
+        return index;
+    }
+
+    /**
+     * Deletes the least recently used index files exceeding {@link #MAX_INDEX_FILES} and the
+     * temporary files left by the interrupted builds. The indexes mapped by other processes
+     * remain readable after their files are deleted.
+     *
+     * @param indexDir the directory storing the index files.
+     */
+    static void pruneIndexDir(File indexDir) {
+        File[] files = indexDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<File> indexFiles = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().endsWith(INDEX_FILE_EXTENSION)) {
+                indexFiles.add(file);
+            } else if (file.getName().endsWith(".tmp")
+                    && now - file.lastModified() > TEMP_FILE_MAX_AGE_MSECS) {
+                file.delete();
+            }
+        }
+        Collections.sort(indexFiles, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+        for (File file : indexFiles.subList(Math.min(MAX_INDEX_FILES, indexFiles.size()),
+                     indexFiles.size())) {
+            CLog.i("Deleting coverage index %s", file);
+            file.delete();
+        }
+    }
+
+    /**
+     * Returns the gcno files whose checksum is the given value.
+     *
+     * @param checksum the checksum in the gcda file header.
+     * @return the decoded gcno files in the order of the artifact.
+     */
+    public List<Unit> getUnits(int checksum) {
+        int low = 0;
+        int high = mUnitCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mBuffer.getInt(mDirectoryOffset + mid * 8) < checksum) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        List<Unit> units = new ArrayList<>();
+        for (int i = low;
+                i < mUnitCount && mBuffer.getInt(mDirectoryOffset + i * 8) == checksum; i++) {
+            units.add(readUnit(mUnitsOffset + mBuffer.getInt(mDirectoryOffset + i * 8 + 4)));
+        }
+        return units;
+    }
+
+    private Unit readUnit(int offset) {
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(offset);
+        String gcnoPath = mStrings[buffer.getInt()];
+        int functionCount = buffer.getInt();
+        Map<Integer, Function> functions = new LinkedHashMap<>();
+        for (int i = 0; i < functionCount; i++) {
+            int ident = buffer.getInt();
+            String sourceFile = mStrings[buffer.getInt()];
+            int blockCount = buffer.getInt();
+            int arcCount = buffer.getInt();
+            int[] arcSources = new int[arcCount];
+            int[] arcDestinations = new int[arcCount];
+            int[] arcFlags = new int[arcCount];
+            for (int j = 0; j < arcCount; j++) {
+                arcSources[j] = buffer.getInt();
+                arcDestinations[j] = buffer.getInt();
+                arcFlags[j] = buffer.getInt();
+            }
+            int[][] blockLines = new int[blockCount][];
+            for (int j = 0; j < blockCount; j++) {
+                blockLines[j] = new int[buffer.getInt()];
+                for (int k = 0; k < blockLines[j].length; k++) {
+                    blockLines[j][k] = buffer.getInt();
+                }
+            }
+            functions.put(ident, new Function(
+                    ident, sourceFile, arcSources, arcDestinations, arcFlags, blockLines));
+        }
+        return new Unit(gcnoPath, functions);
+    }
+
+    /**
+     * Computes the index key from the names, sizes and CRCs of the .gcnodir entries.
+     */
+    static String getIndexKey(File gcovZip) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (ZipFile zip = new ZipFile(gcovZip)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.getName().endsWith(GCNODIR_SUFFIX)) {
+                    String id = String.format(
+                            "%s:%d:%d\n", entry.getName(), entry.getSize(), entry.getCrc());
+                    digest.update(id.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Parses the gcno files in a gcov.zip and writes the index file.
+     *
+     * @param gcovZip the gcov.zip artifact.
+     * @param indexFile the output file.
+     * @throws IOException if fails to read the artifact or write the index.
+     */
+    static void build(File gcovZip, File indexFile) throws IOException {
+        Map<String, Integer> stringIds = new LinkedHashMap<>();
+        // The checksum and the offset of each unit.
+        List<long[]> directory = new ArrayList<>();
+        File unitsFile = FileUtil.createTempFile("gcov-index-units", ".tmp",
+                indexFile.getParentFile());
+        try {
+            try (ZipFile zip = new ZipFile(gcovZip);
+                    DataOutputStream units = new DataOutputStream(
+                            new BufferedOutputStream(new FileOutputStream(unitsFile)))) {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (!entry.getName().endsWith(GCNODIR_SUFFIX)) {
+                        continue;
+                    }
+                    Map<String, byte[]> gcnoFiles;
+                    try (InputStream input = zip.getInputStream(entry)) {
+                        gcnoFiles = parseArchive(readFully(input));
+                    } catch (IOException e) {
+                        CLog.e("Archive could not be parsed: %s", entry.getName());
+                        continue;
+                    }
+                    for (Map.Entry<String, byte[]> gcnoFile : gcnoFiles.entrySet()) {
+                        int offset = units.size();
+                        try {
+                            int checksum = writeUnit(
+                                    gcnoFile.getKey(), gcnoFile.getValue(), stringIds, units);
+                            directory.add(new long[] {checksum, offset});
+                        } catch (IOException e) {
+                            CLog.e("Error parsing gcno file %s: %s", gcnoFile.getKey(),
+                                    e.getMessage());
+                        }
+                    }
+                }
+            }
+            // The sort is stable so the units with the same checksum keep the artifact order.
+            Collections.sort(directory, (a, b) -> Long.compare(a[0], b[0]));
+
+            try (DataOutputStream output = new DataOutputStream(
+                         new BufferedOutputStream(new FileOutputStream(indexFile)));
+                    InputStream units = new BufferedInputStream(new FileInputStream(unitsFile))) {
+                List<byte[]> strings = new ArrayList<>();
+                int stringsLength = 0;
+                for (String string : stringIds.keySet()) {
+                    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                    strings.add(bytes);
+                    stringsLength += 4 + bytes.length;
+                }
+                output.writeInt(INDEX_MAGIC);
+                output.writeInt(INDEX_VERSION);
+                output.writeInt(strings.size());
+                output.writeInt(directory.size());
+                output.writeInt(20 + stringsLength + directory.size() * 8);
+                for (byte[] bytes : strings) {
+                    output.writeInt(bytes.length);
+                    output.write(bytes);
+                }
+                for (long[] unit : directory) {
+                    output.writeInt((int) unit[0]);
+                    output.writeInt((int) unit[1]);
+                }
+                byte[] buffer = new byte[64 * 1024];
+                int length;
+                while ((length = units.read(buffer)) > 0) {
+                    output.write(buffer, 0, length);
+                }
+            }
+        } finally {
+            unitsFile.delete();
+        }
+    }
+
+    /**
+     * Parses a gcno file and writes it to the units section.
+     *
+     * @return the checksum of the gcno file.
+     * @throws IOException if the gcno file is corrupt.
+     */
+    private static int writeUnit(String gcnoPath, byte[] content, Map<String, Integer> stringIds,
+            DataOutputStream output) throws IOException {
+        ByteBuffer buffer = openGcovFile(content, GCNO_MAGIC);
+        // Same as the python parser, the configuration checksum exists if the second character
+        // of the version is greater than 4.
+        boolean hasCfgChecksum = content[5] > '4';
+        int checksum = buffer.getInt(8);
+        buffer.position(12);
+
+        List<GcnoFunction> functions = new ArrayList<>();
+        GcnoFunction function = null;
+        while (buffer.remaining() >= 8) {
+            int tag = buffer.getInt();
+            int length = buffer.getInt();
+            if (length < 0 || (long) length * 4 > buffer.remaining()) {
+                break;
+            }
+            int end = buffer.position() + length * 4;
+            if (tag == TAG_FUNCTION) {
+                int ident = buffer.getInt();
+                buffer.getInt(); // line number checksum
+                if (hasCfgChecksum) {
+                    buffer.getInt();
+                }
+                readString(buffer); // function name
+                function = new GcnoFunction(ident, readString(buffer));
+                functions.add(function);
+            } else if (function == null) {
+                // skip the records before the first function
+            } else if (tag == TAG_BLOCKS) {
+                function.mBlockLines = new int[length][0];
+            } else if (tag == TAG_ARCS) {
+                int source = buffer.getInt();
+                for (int i = 0; i < (length - 1) / 2; i++) {
+                    function.mArcs.add(new int[] {source, buffer.getInt(), buffer.getInt()});
+                }
+            } else if (tag == TAG_LINES) {
+                int block = buffer.getInt();
+                List<Integer> lines = new ArrayList<>();
+                while (buffer.position() < end) {
+                    int line = buffer.getInt();
+                    if (line != 0) {
+                        lines.add(line);
+                    } else if (readString(buffer).isEmpty()) {
+                        break;
+                    }
+                }
+                if (block >= 0 && block < function.mBlockLines.length) {
+                    int[] blockLines = new int[lines.size()];
+                    for (int i = 0; i < blockLines.length; i++) {
+                        blockLines[i] = lines.get(i);
+                    }
+                    function.mBlockLines[block] = blockLines;
+                }
+            }
+            buffer.position(end);
+        }
+        if (functions.isEmpty()) {
+            throw new IOException("No function in gcno file.");
+        }
+
+        output.writeInt(getStringId(gcnoPath, stringIds));
+        output.writeInt(functions.size());
+        for (GcnoFunction func : functions) {
+            int blockCount = func.mBlockLines.length;
+            for (int[] arc : func.mArcs) {
+                if (arc[0] < 0 || arc[0] >= blockCount || arc[1] < 0 || arc[1] >= blockCount) {
+                    throw new IOException("Arc out of range in function " + func.mIdent);
+                }
+            }
+            output.writeInt(func.mIdent);
+            output.writeInt(getStringId(func.mSourceFile, stringIds));
+            output.writeInt(blockCount);
+            output.writeInt(func.mArcs.size());
+            for (int[] arc : func.mArcs) {
+                output.writeInt(arc[0]);
+                output.writeInt(arc[1]);
+                output.writeInt(arc[2]);
+            }
+            for (int[] lines : func.mBlockLines) {
+                output.writeInt(lines.length);
+                for (int line : lines) {
+                    output.writeInt(line);
+                }
+            }
+        }
+        return checksum;
+    }
+
+    /**
+     * The function being parsed from a gcno file.
+     */
+    private static class GcnoFunction {
+        final int mIdent;
+        final String mSourceFile;
+        final List<int[]> mArcs = new ArrayList<>();
+        int[][] mBlockLines = new int[0][];
+
+        GcnoFunction(int ident, String sourceFile) {
+            mIdent = ident;
+            mSourceFile = sourceFile;
+        }
+    }
+
+    private static int getStringId(String string, Map<String, Integer> stringIds) {
+        Integer id = stringIds.get(string);
+        if (id == null) {
+            id = stringIds.size();
+            stringIds.put(string, id);
+        }
+        return id;
+    }
+
+    /**
+     * Wraps a gcno or gcda file in a buffer with the byte order of the file.
+     *
+     * @param content the file content.
+     * @param magic the expected magic number.
+     * @return the buffer positioned at the beginning.
+     * @throws IOException if the magic number does not match.
+     */
+    static ByteBuffer openGcovFile(byte[] content, int magic) throws IOException {
+        if (content.length < 12) {
+            throw new IOException("Invalid file format.");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != magic) {
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            if (buffer.getInt(0) != magic) {
+                throw new IOException("Invalid file format.");
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Reads a string which is prefixed with the length in words and padded with zeros.
+     */
+    static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt() * 4;
+        if (length <= 0) {
+            return "";
+        }
+        byte[] bytes = new byte[Math.min(length, buffer.remaining())];
+        buffer.get(bytes);
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] == 0) {
+            end--;
+        }
+        return new String(bytes, 0, end, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses a unix archive.
+     *
+     * @param content the archive content.
+     * @return the map from file names to contents.
+     * @throws IOException if the archive is corrupt.
+     */
+    static Map<String, byte[]> parseArchive(byte[] content) throws IOException {
+        byte[] signature = AR_GLOBAL_SIGNATURE.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < signature.length; i++) {
+            if (i >= content.length || content[i] != signature[i]) {
+                throw new IOException("File is not a valid Unix archive.");
+            }
+        }
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        Map<Integer, String> stringTable = new HashMap<>();
+        int cursor = signature.length;
+        while (cursor < content.length) {
+            if (cursor + AR_HEADER_LENGTH > content.length) {
+                throw new IOException("Invalid file. EOF reached unexpectedly.");
+            }
+            String name = new String(content, cursor, AR_NAME_LENGTH, StandardCharsets.UTF_8)
+                                  .trim();
+            int size;
+            try {
+                size = Integer.parseInt(new String(content, cursor + AR_SIZE_OFFSET,
+                        AR_SIZE_LENGTH, StandardCharsets.US_ASCII).trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid file size in Unix archive.");
+            }
+            if (content[cursor + AR_HEADER_LENGTH - 2] != '`'
+                    || content[cursor + AR_HEADER_LENGTH - 1] != '\n') {
+                throw new IOException("File is not a valid Unix archive. Missing end tag.");
+            }
+            cursor += AR_HEADER_LENGTH;
+            if (size < 0 || cursor + size > content.length) {
+                throw new IOException("Invalid file. EOF reached unexpectedly.");
+            }
+            byte[] data = new byte[size];
+            System.arraycopy(content, cursor, data, 0, size);
+            cursor += size;
+
+            if (name.equals(AR_STRING_TABLE_ID)) {
+                int offset = 0;
+                for (String string : new String(data, StandardCharsets.UTF_8).split("/\n", -1)) {
+                    stringTable.put(offset, string);
+                    offset += string.getBytes(StandardCharsets.UTF_8).length + 2;
+                }
+            } else if (!name.equals(AR_SYMBOL_TABLE_ID)) {
+                if (name.endsWith("/")) {
+                    name = name.substring(0, name.length() - 1);
+                } else if (name.startsWith("/")) {
+                    try {
+                        name = stringTable.get(Integer.parseInt(name.substring(1)));
+                    } catch (NumberFormatException e) {
+                        name = null;
+                    }
+                    if (name == null) {
+                        throw new IOException("Offset not in string table.");
+                    }
+                }
+                files.put(name, data);
+            }
+        }
+        return files;
+    }
+
+    static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int length;
+        while ((length = input.read(buffer)) > 0) {
+            output.write(buffer, 0, length);
+        }
+        return output.toByteArray();
+    }
+}
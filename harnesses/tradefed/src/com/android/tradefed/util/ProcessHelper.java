@@ -18,11 +18,18 @@ package com.android.tradefed.util;
 
 import com.android.tradefed.log.LogUtil.CLog;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * A helper for interruptible process execution.
@@ -35,6 +42,7 @@ public class ProcessHelper {
     private static final String INFO = "INFO";
     private static final String WARN = "WARN";
     private static final String ERROR = "ERROR";
+    private static final String[] LOG_LEVELS = {DEBUG, INFO, WARN, ERROR};
 
     // Timeout value of joining the stdout and stderr threads.
     private static final int THREAD_JOIN_TIMEOUT_MSECS = 1000;
@@ -51,19 +59,130 @@ public class ProcessHelper {
     private final ReaderThread mStderrThread;
 
     // The buffers of stdout and stderr.
-    private final StringBuilder mStdout;
-    private final StringBuilder mStderr;
+    private final OutputBuffer mStdout;
+    private final OutputBuffer mStderr;
 
     // The stdin of the process.
     private final Writer mStdinWriter;
 
+    /**
+     * A buffer which keeps the output of a process. It keeps either all of the output or only the
+     * last characters in a ring buffer, and optionally writes all of the output to a file.
+     */
+    static class OutputBuffer {
+        // The whole output if the buffer is unbounded.
+        private final StringBuilder mBuilder;
+        // The ring buffer of the last characters if the buffer is bounded.
+        private final char[] mRing;
+        private int mRingStart = 0;
+        private int mRingSize = 0;
+        // The writer of the file containing all of the output.
+        private Writer mSpillWriter = null;
+
+        /**
+         * @param maxChars the max number of characters to keep in memory; 0 for unbounded.
+         * @param spillFile the file to write all of the output to; null for not writing.
+         */
+        public OutputBuffer(int maxChars, File spillFile) {
+            if (maxChars > 0) {
+                mBuilder = null;
+                mRing = new char[maxChars];
+            } else {
+                mBuilder = new StringBuilder();
+                mRing = null;
+            }
+            if (spillFile != null) {
+                try {
+                    mSpillWriter = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(spillFile), StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    CLog.e("Cannot open %s. Output is not written to file.", spillFile);
+                    CLog.e(e);
+                }
+            }
+        }
+
+        /**
+         * Append characters to the buffer.
+         *
+         * @param buf the characters.
+         * @param offset the offset of the first character to append.
+         * @param length the number of characters to append.
+         */
+        public synchronized void append(char[] buf, int offset, int length) {
+            if (mSpillWriter != null) {
+                try {
+                    mSpillWriter.write(buf, offset, length);
+                } catch (IOException e) {
+                    CLog.e("Cannot write output to file.");
+                    CLog.e(e);
+                    closeSpillWriter();
+                }
+            }
+            if (mRing == null) {
+                mBuilder.append(buf, offset, length);
+                return;
+            }
+            if (length >= mRing.length) {
+                System.arraycopy(buf, offset + length - mRing.length, mRing, 0, mRing.length);
+                mRingStart = 0;
+                mRingSize = mRing.length;
+                return;
+            }
+            int writePos = (mRingStart + mRingSize) % mRing.length;
+            int firstLength = Math.min(length, mRing.length - writePos);
+            System.arraycopy(buf, offset, mRing, writePos, firstLength);
+            System.arraycopy(buf, offset + firstLength, mRing, 0, length - firstLength);
+            int overflow = mRingSize + length - mRing.length;
+            if (overflow > 0) {
+                mRingStart = (mRingStart + overflow) % mRing.length;
+                mRingSize = mRing.length;
+            } else {
+                mRingSize += length;
+            }
+        }
+
+        /**
+         * Flush and close the output file.
+         */
+        public synchronized void close() {
+            closeSpillWriter();
+        }
+
+        private void closeSpillWriter() {
+            if (mSpillWriter != null) {
+                try {
+                    mSpillWriter.close();
+                } catch (IOException e) {
+                    CLog.e(e);
+                }
+                mSpillWriter = null;
+            }
+        }
+
+        /**
+         * @return the output kept in memory.
+         */
+        @Override
+        public synchronized String toString() {
+            if (mRing == null) {
+                return mBuilder.toString();
+            }
+            int firstLength = Math.min(mRingSize, mRing.length - mRingStart);
+            StringBuilder builder = new StringBuilder(mRingSize);
+            builder.append(mRing, mRingStart, firstLength);
+            builder.append(mRing, 0, mRingSize - firstLength);
+            return builder.toString();
+        }
+    }
+
     /**
      * A thread that keeps reading string from an input stream.
      */
     static class ReaderThread extends Thread {
         private static final int BUF_SIZE = 16 * 1024;
         private Reader mReader;
-        private StringBuilder mBuffer;
+        private OutputBuffer mBuffer;
 
         static enum LogType {
             STDOUT,
@@ -78,7 +197,7 @@ public class ProcessHelper {
          * @param name the name of the thread.
          * @param logType enum, type of log output.
          */
-        public ReaderThread(Reader reader, StringBuilder buffer, String name, LogType logType) {
+        public ReaderThread(Reader reader, OutputBuffer buffer, String name, LogType logType) {
             super(name);
             mReader = reader;
             mBuffer = buffer;
@@ -86,81 +205,289 @@ public class ProcessHelper {
         }
 
         /**
-         * Read string from the input stream until EOF.
+         * Read string from the input stream until EOF. Complete lines are logged; an incomplete
+         * line is kept in the buffer until its end is read or the buffer is full.
          */
         @Override
         public void run() {
             char[] charBuffer = new char[BUF_SIZE];
+            int length = 0;
             // reader will be closed in cleanUp()
             try {
                 String currentLogLevel = INFO;
                 while (true) {
-                    int readCount = mReader.read(charBuffer, 0, charBuffer.length);
+                    int readCount = mReader.read(charBuffer, length, charBuffer.length - length);
                     if (readCount < 0) {
                         break;
                     }
-                    String newRead = new String(charBuffer, 0, readCount);
+                    mBuffer.append(charBuffer, length, readCount);
+                    length += readCount;
+
+                    int linesEnd = lastIndexOf(charBuffer, '\n', length) + 1;
+                    if (linesEnd == 0) {
+                        if (length < charBuffer.length) {
+                            continue;
+                        }
+                        // The line is longer than the buffer.
+                        linesEnd = length;
+                    }
+                    currentLogLevel = logLines(charBuffer, linesEnd, currentLogLevel);
+                    System.arraycopy(charBuffer, linesEnd, charBuffer, 0, length - linesEnd);
+                    length -= linesEnd;
+                }
+                if (length > 0) {
+                    logLines(charBuffer, length, currentLogLevel);
+                }
+            } catch (IOException e) {
+                CLog.e("IOException during ProcessHelper#ReaderThread run.");
+                CLog.e(e);
+            } finally {
+                mBuffer.close();
+            }
+        }
+
+        /**
+         * Log lines in a buffer. Consecutive lines of the same log level are logged together.
+         *
+         * @param buf the buffer containing the lines.
+         * @param end the end of the lines in the buffer.
+         * @param logLevel the log level of the previous line.
+         * @return the log level of the last line.
+         */
+        private String logLines(char[] buf, int end, String logLevel) {
+            if (mLogType == LogType.STDERR) {
+                // Logs coming from stderr for the process, which is always ERROR level
+                log(buf, 0, end, ERROR);
+                return logLevel;
+            }
+            // Logs coming from stdout for the process, which may contain
+            // python DEBUG and ERROR logs.
+            int spanStart = 0;
+            int lineStart = 0;
+            while (lineStart < end) {
+                int lineEnd = indexOf(buf, '\n', lineStart, end) + 1;
+                if (lineEnd == 0) {
+                    lineEnd = end;
+                }
+                String level = findLogLevel(buf, lineStart, lineEnd);
+                if (level != null && !level.equals(logLevel)) {
+                    log(buf, spanStart, lineStart, logLevel);
+                    spanStart = lineStart;
+                    logLevel = level;
+                }
+                lineStart = lineEnd;
+            }
+            log(buf, spanStart, end, logLevel);
+            return logLevel;
+        }
 
-                    int newLineLen = 0;
-                    if (newRead.endsWith("\r\n")) {
-                        newLineLen = 2;
-                    } else if (newRead.endsWith("\n")) {
-                        newLineLen = 1;
+        /**
+         * Log characters in a buffer without the trailing new line.
+         *
+         * @param buf the buffer.
+         * @param start the start of the characters.
+         * @param end the end of the characters.
+         * @param logLevel the log level.
+         */
+        private static void log(char[] buf, int start, int end, String logLevel) {
+            if (end > start && buf[end - 1] == '\n') {
+                end--;
+                if (end > start && buf[end - 1] == '\r') {
+                    end--;
+                }
+            }
+            if (end <= start) {
+                return;
+            }
+            String message = new String(buf, start, end - start);
+            switch (logLevel) {
+                case DEBUG:
+                    CLog.d(message);
+                    break;
+                case INFO:
+                    CLog.i(message);
+                    break;
+                case WARN:
+                    CLog.w(message);
+                    break;
+                case ERROR:
+                    CLog.e(message);
+                    break;
+                default:
+                    // This case should never happen
+                    CLog.e("Error in current log level state.");
+                    CLog.i(message);
+            }
+        }
+
+        /**
+         * Find the log level of a python log line, which is the 4th token separated by white
+         * spaces.
+         *
+         * @param buf the buffer containing the line.
+         * @param start the start of the line.
+         * @param end the end of the line.
+         * @return one of the log level constants; null if the line does not contain a level.
+         */
+        static String findLogLevel(char[] buf, int start, int end) {
+            int tokenIndex = 0;
+            int pos = start;
+            if (pos < end && isWhiteSpace(buf[pos])) {
+                // A leading white space forms an empty token.
+                tokenIndex = 1;
+                while (pos < end && isWhiteSpace(buf[pos])) {
+                    pos++;
+                }
+            }
+            while (pos < end) {
+                int tokenStart = pos;
+                while (pos < end && !isWhiteSpace(buf[pos])) {
+                    pos++;
+                }
+                if (tokenIndex == 3) {
+                    for (String level : LOG_LEVELS) {
+                        if (level.length() == pos - tokenStart
+                                && regionMatches(buf, tokenStart, level)) {
+                            return level;
+                        }
                     }
+                    return null;
+                }
+                tokenIndex++;
+                while (pos < end && isWhiteSpace(buf[pos])) {
+                    pos++;
+                }
+            }
+            return null;
+        }
+
+        private static boolean isWhiteSpace(char c) {
+            return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B;
+        }
+
+        private static boolean regionMatches(char[] buf, int start, String str) {
+            for (int index = 0; index < str.length(); index++) {
+                if (buf[start + index] != str.charAt(index)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int indexOf(char[] buf, char c, int start, int end) {
+            for (int index = start; index < end; index++) {
+                if (buf[index] == c) {
+                    return index;
+                }
+            }
+            return -1;
+        }
 
-                    String newReadPrint = newRead.substring(0, newRead.length() - newLineLen);
-                    switch (mLogType) {
-                        case STDOUT:
-                            // Logs coming from stdout for the process, which may contain
-                            // python DEBUG and ERROR logs.
-                            String[] tokens = newReadPrint.split("\\s+");
-                            if (tokens.length >= 4) {
-                                String level = tokens[3];
-                                switch (tokens[3]) {
-                                    case DEBUG:
-                                    case INFO:
-                                    case WARN:
-                                    case ERROR:
-                                        currentLogLevel = level;
-                                        break;
-                                    default:
-                                        // Use the last known log level
-                                }
-                            }
-
-                            switch (currentLogLevel) {
-                                case DEBUG:
-                                    CLog.d(newReadPrint);
-                                    break;
-                                case INFO:
-                                    CLog.i(newReadPrint);
-                                    break;
-                                case WARN:
-                                    CLog.w(newReadPrint);
-                                    break;
-                                case ERROR:
-                                    CLog.e(newReadPrint);
-                                    break;
-                                default:
-                                    // This case should never happen
-                                    CLog.e("Error in current log level state.");
-                                    CLog.i(newReadPrint);
-                            }
-
-                            break;
-                        case STDERR:
-                            // Logs coming from stderr for the process, which is always
-                            // ERROR level
-                            CLog.e(newReadPrint);
-                            break;
+        private static int lastIndexOf(char[] buf, char c, int end) {
+            for (int index = end - 1; index >= 0; index--) {
+                if (buf[index] == c) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Follows a file which is written by another process, e.g., a job of
+     * {@link VtsPythonRunnerDaemon}. The content is logged and kept in the same way as the output
+     * of a process.
+     */
+    static class OutputFileFollower {
+        // The interval of polling the file at its end.
+        private static final long POLL_INTERVAL_MSECS = 100;
+
+        /**
+         * A stream which waits for more data at the end of the file until it is finished.
+         */
+        private static class TailInputStream extends InputStream {
+            private final InputStream mStream;
+            private volatile boolean mFinished = false;
+
+            TailInputStream(File file) throws IOException {
+                mStream = new FileInputStream(file);
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] buf = new byte[1];
+                return read(buf, 0, 1) < 0 ? -1 : (buf[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] buf, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                while (true) {
+                    // Read the flag first so that the data written before finishing is read.
+                    boolean finished = mFinished;
+                    int count = mStream.read(buf, offset, length);
+                    if (count >= 0 || finished) {
+                        return count;
+                    }
+                    try {
+                        Thread.sleep(POLL_INTERVAL_MSECS);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
                     }
-                    mBuffer.append(newRead);
                 }
+            }
+
+            @Override
+            public void close() throws IOException {
+                mStream.close();
+            }
+        }
+
+        private final TailInputStream mStream;
+        private final OutputBuffer mBuffer;
+        private final ReaderThread mThread;
+
+        /**
+         * Starts following a file from its beginning.
+         *
+         * @param file the file to follow.
+         * @param maxOutputChars the max number of the last characters to keep in memory; 0 for
+         *                       unbounded.
+         * @param logType enum, type of log output.
+         * @throws IOException if fails to open the file.
+         */
+        OutputFileFollower(File file, int maxOutputChars, ReaderThread.LogType logType)
+                throws IOException {
+            mStream = new TailInputStream(file);
+            mBuffer = new OutputBuffer(maxOutputChars, null);
+            mThread = new ReaderThread(new InputStreamReader(mStream, StandardCharsets.UTF_8),
+                    mBuffer, "output-file-follower", logType);
+            mThread.start();
+        }
+
+        /**
+         * Reads the rest of the file and stops following it. The writer must have terminated.
+         * This method can be called more than once.
+         */
+        public void finish() {
+            mStream.mFinished = true;
+            joinThread(mThread, THREAD_JOIN_TIMEOUT_MSECS);
+            try {
+                mStream.close();
             } catch (IOException e) {
-                CLog.e("IOException during ProcessHelper#ReaderThread run.");
                 CLog.e(e);
             }
         }
+
+        /**
+         * @return the content kept in memory. The caller must call {@link #finish()} before
+         * calling this method.
+         */
+        public String getOutput() {
+            return mBuffer.toString();
+        }
     }
 
     /**
@@ -229,14 +556,27 @@ public class ProcessHelper {
     }
 
     /**
-     * Create an instance that monitors a running process.
+     * Create an instance that monitors a running process and keeps all of its output in memory.
      *
      * @param process the process to monitor.
      */
     public ProcessHelper(Process process) {
+        this(process, 0, null, null);
+    }
+
+    /**
+     * Create an instance that monitors a running process.
+     *
+     * @param process the process to monitor.
+     * @param maxOutputChars the max number of the last characters of stdout and stderr
+     *                       respectively to keep in memory; 0 for unbounded.
+     * @param stdoutFile the file to write all of stdout to; null for not writing.
+     * @param stderrFile the file to write all of stderr to; null for not writing.
+     */
+    public ProcessHelper(Process process, int maxOutputChars, File stdoutFile, File stderrFile) {
         mProcess = process;
-        mStdout = new StringBuilder();
-        mStderr = new StringBuilder();
+        mStdout = new OutputBuffer(maxOutputChars, stdoutFile);
+        mStderr = new OutputBuffer(maxOutputChars, stderrFile);
         mStdinWriter = new OutputStreamWriter(mProcess.getOutputStream());
         mStdoutReader = new InputStreamReader(mProcess.getInputStream());
         mStderrReader = new InputStreamReader(mProcess.getErrorStream());
@@ -305,20 +645,24 @@ public class ProcessHelper {
     }
 
     /**
-     * @return the stdout of the process. As the buffer is not thread safe, the caller must call
-     * {@link #cleanUp()} or {@link #waitForProcess(long)} to ensure process termination before
-     * calling this method.
+     * @return the stdout of the process. If the process has terminated, this method waits for the
+     * reader thread to consume the remaining output. Otherwise it returns the output read so far.
      */
     public String getStdout() {
+        if (!isRunning()) {
+            joinThread(mStdoutThread, THREAD_JOIN_TIMEOUT_MSECS);
+        }
         return mStdout.toString();
     }
 
     /**
-     * @return the stderr of the process. As the buffer is not thread safe, the caller must call
-     * {@link #cleanUp()} or {@link #waitForProcess(long)} to ensure process termination before
-     * calling this method.
+     * @return the stderr of the process. If the process has terminated, this method waits for the
+     * reader thread to consume the remaining output. Otherwise it returns the output read so far.
      */
     public String getStderr() {
+        if (!isRunning()) {
+            joinThread(mStderrThread, THREAD_JOIN_TIMEOUT_MSECS);
+        }
         return mStderr.toString();
     }
 
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A host-side cache of build artifacts shared by invocations. The artifacts are stored as
+ * &lt;cache dir&gt;/&lt;flavor&gt;/&lt;build id&gt;/&lt;artifact name&gt;. When the total size
+ * exceeds the limit, the least recently used artifacts are deleted. The cached files are read,
+ * written and evicted while holding the lock of &lt;cache dir&gt;/.lock, so the cache can be shared
+ * by the processes on the host.
+ */
+public class VtsArtifactCache {
+    // The prefix of the temporary directories which artifacts are downloaded to.
+    static final String DOWNLOAD_DIR_PREFIX = ".download-";
+    static final String LOCK_FILE_NAME = ".lock";
+
+    /**
+     * Downloads an artifact.
+     */
+    public interface Fetcher {
+        /**
+         * @param downloadDir an empty directory to download the artifact to.
+         * @return the downloaded file under downloadDir.
+         * @throws IOException if fails to download.
+         */
+        File fetch(File downloadDir) throws IOException;
+    }
+
+    /**
+     * An operation on the cached files.
+     */
+    private interface CacheOperation<T> {
+        T run() throws IOException;
+    }
+
+    // The locks of the artifacts being fetched in this process, keyed by path.
+    private static final Map<String, Object> sLocks = new HashMap<>();
+
+    private final File mCacheDir;
+    private final long mMaxSizeBytes;
+
+    /**
+     * @param cacheDir the root directory of the cache.
+     * @param maxSizeBytes the max total size of the cached artifacts.
+     */
+    public VtsArtifactCache(File cacheDir, long maxSizeBytes) {
+        mCacheDir = cacheDir;
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Copies an artifact from the cache, or fetches it into the cache first.
+     *
+     * @param flavor the build flavor.
+     * @param buildId the build id.
+     * @param artifactName the artifact name.
+     * @param destination the file to copy the artifact to. The file is a hard link if possible.
+     * @param fetcher the function which downloads the artifact when it is not in the cache.
+     * @throws IOException if fails to fetch or copy the artifact.
+     */
+    public void get(String flavor, String buildId, String artifactName, File destination,
+            Fetcher fetcher) throws IOException {
+        File entry = new File(new File(new File(mCacheDir, flavor), buildId), artifactName);
+        synchronized (getLock(entry)) {
+            boolean hit = runLocked(() -> {
+                if (!entry.isFile()) {
+                    return false;
+                }
+                CLog.i("Artifact cache hit: %s", entry);
+                // Updates the access time for LRU eviction.
+                entry.setLastModified(System.currentTimeMillis());
+                copy(entry, destination);
+                return true;
+            });
+            if (!hit) {
+                fetch(entry, fetcher, destination);
+            }
+        }
+        evict();
+    }
+
+    private static Object getLock(File entry) {
+        synchronized (sLocks) {
+            return sLocks.computeIfAbsent(entry.getAbsolutePath(), key -> new Object());
+        }
+    }
+
+    /**
+     * Runs an operation while holding the lock of the cache directory.
+     */
+    private <T> T runLocked(CacheOperation<T> operation) throws IOException {
+        // The channel lock is held by the JVM, so the threads are still serialized by the
+        // synchronized block to avoid OverlappingFileLockException.
+        synchronized (VtsArtifactCache.class) {
+            FileUtil.mkdirsRWX(mCacheDir);
+            try (RandomAccessFile lockFile =
+                            new RandomAccessFile(new File(mCacheDir, LOCK_FILE_NAME), "rw");
+                    FileChannel channel = lockFile.getChannel();
+                    FileLock lock = channel.lock()) {
+                return operation.run();
+            }
+        }
+    }
+
+    /**
+     * Fetches an artifact to a temporary directory and moves it to the cache atomically, so that
+     * other processes never see a partial file. The download does not hold the lock of the cache
+     * directory.
+     */
+    private void fetch(File entry, Fetcher fetcher, File destination) throws IOException {
+        File entryDir = entry.getParentFile();
+        FileUtil.mkdirsRWX(entryDir);
+        File downloadDir = FileUtil.createTempDir(DOWNLOAD_DIR_PREFIX, entryDir);
+        try {
+            File downloaded = fetcher.fetch(downloadDir);
+            if (downloaded == null || !downloaded.isFile()) {
+                throw new IOException("Fetcher did not create " + entry.getName());
+            }
+            runLocked(() -> {
+                Files.move(downloaded.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+                CLog.i("Cached artifact %s (%d bytes)", entry, entry.length());
+                copy(entry, destination);
+                return null;
+            });
+        } finally {
+            FileUtil.recursiveDelete(downloadDir);
+        }
+    }
+
+    private static void copy(File entry, File destination) throws IOException {
+        destination.delete();
+        try {
+            Files.createLink(destination.toPath(), entry.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            CLog.d("Cannot link %s. Copy it instead.", entry);
+            Files.copy(entry.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Deletes the least recently used artifacts until the total size is within the limit.
+     */
+    private void evict() {
+        try {
+            runLocked(() -> {
+                List<File> entries = new ArrayList<>();
+                listEntries(mCacheDir, entries);
+                long totalSize = 0;
+                for (File entry : entries) {
+                    totalSize += entry.length();
+                }
+                if (totalSize <= mMaxSizeBytes) {
+                    return null;
+                }
+                entries.sort(Comparator.comparingLong(File::lastModified));
+                for (File entry : entries) {
+                    if (totalSize <= mMaxSizeBytes) {
+                        break;
+                    }
+                    long length = entry.length();
+                    if (entry.delete()) {
+                        CLog.i("Evicted artifact %s (%d bytes)", entry, length);
+                        totalSize -= length;
+                    }
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            CLog.e("Failed to evict artifacts from %s", mCacheDir);
+            CLog.e(e);
+        }
+    }
+
+    private static void listEntries(File dir, List<File> entries) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.getName().startsWith(DOWNLOAD_DIR_PREFIX)
+                    || child.getName().equals(LOCK_FILE_NAME)) {
+                continue;
+            }
+            if (child.isDirectory()) {
+                listEntries(child, entries);
+            } else {
+                entries.add(child);
+            }
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Accumulates the line coverage of the modules in a test plan for one device build.
+ *
+ * <p>Each source file is stored as two bitmaps, the instrumented lines and the covered lines,
+ * in a memory-mapped file. Merging a module ORs only the words containing its lines, so the
+ * plan-level totals are updated without re-reading the reports of the earlier modules. The totals
+ * are kept in the file header and updated under the file lock, so that they include the lines
+ * merged by all processes sharing the file.
+ *
+ * <p>File layout (big-endian): magic, version, total line count, covered line count, then the
+ * records. Each record is (path length, UTF-8 path, word count, instrumented words, covered
+ * words). A record is superseded by a later record of the same path when the bitmaps need to grow.
+ */
+public class VtsCoverageAccumulator {
+    static final int MAGIC = 0x56434143; // "VCAC"
+    static final int VERSION = 2;
+    static final int TOTAL_LINE_COUNT_OFFSET = 8;
+    static final int COVERED_LINE_COUNT_OFFSET = 16;
+    static final int HEADER_LENGTH = 24;
+    static final String FILE_EXTENSION = ".cov";
+
+    // The opened accumulators, keyed by file path. They are closed by closeInstances at the end of
+    // the invocation.
+    private static final Map<String, VtsCoverageAccumulator> sAccumulators = new HashMap<>();
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private MappedByteBuffer mBuffer;
+    // The length of the file which has been scanned.
+    private long mScannedLength = 0;
+    // The offset and the word count of the latest record of each source file.
+    private final Map<String, long[]> mRecords = new HashMap<>();
+
+    VtsCoverageAccumulator(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        try (FileLock lock = mChannel.lock()) {
+            if (mChannel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                header.putInt(MAGIC).putInt(VERSION).putLong(0).putLong(0).flip();
+                mChannel.write(header, 0);
+            }
+            remap();
+            if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION) {
+                throw new IOException("Unknown coverage accumulator format: " + file);
+            }
+            mScannedLength = HEADER_LENGTH;
+            scanRecords();
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the accumulator of a device build. The file is created if it does not exist.
+     *
+     * @param dir the directory containing the accumulator files.
+     * @param buildKey the key of the device build, e.g., flavor and build id.
+     * @return the accumulator shared by the modules in this process.
+     * @throws IOException if fails to open the file.
+     */
+    public static synchronized VtsCoverageAccumulator getInstance(File dir, String buildKey)
+            throws IOException {
+        File file = new File(dir, buildKey.replaceAll("[^\\w.-]", "_") + FILE_EXTENSION);
+        VtsCoverageAccumulator accumulator = sAccumulators.get(file.getAbsolutePath());
+        if (accumulator == null) {
+            FileUtil.mkdirsRWX(dir);
+            accumulator = new VtsCoverageAccumulator(file);
+            sAccumulators.put(file.getAbsolutePath(), accumulator);
+        }
+        return accumulator;
+    }
+
+    /**
+     * Closes the accumulators of the files under a directory. The next {@link #getInstance} call
+     * reopens the file.
+     *
+     * @param dir the directory containing the accumulator files, or its ancestor.
+     */
+    public static synchronized void closeInstances(File dir) {
+        String dirPath = dir.getAbsolutePath() + File.separator;
+        Iterator<Map.Entry<String, VtsCoverageAccumulator>> it =
+                sAccumulators.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, VtsCoverageAccumulator> entry = it.next();
+            if (entry.getKey().startsWith(dirPath)) {
+                entry.getValue().close();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Merges the line coverage vector of a source file.
+     *
+     * @param sourceFile the key of the source file.
+     * @param lineCoverageVector the i-th element is the execution count of the (i+1)-th line,
+     *                           or a negative value if the line is not instrumented.
+     * @throws IOException if fails to update the file.
+     */
+    public synchronized void merge(String sourceFile, long[] lineCoverageVector)
+            throws IOException {
+        int wordCount = (lineCoverageVector.length + 63) / 64;
+        long[] instrumented = new long[wordCount];
+        long[] covered = new long[wordCount];
+        for (int line = 0; line < lineCoverageVector.length; line++) {
+            if (lineCoverageVector[line] >= 0) {
+                instrumented[line / 64] |= 1L << (line % 64);
+            }
+            if (lineCoverageVector[line] > 0) {
+                covered[line / 64] |= 1L << (line % 64);
+            }
+        }
+
+        try (FileLock lock = mChannel.lock()) {
+            // Loads the records appended by other processes.
+            if (mChannel.size() > mScannedLength) {
+                remap();
+                scanRecords();
+            }
+            long[] record = mRecords.get(sourceFile);
+            if (record != null && record[1] >= wordCount) {
+                long offset = record[0];
+                long newLineCount = 0;
+                long newCoveredLineCount = 0;
+                for (int i = 0; i < wordCount; i++) {
+                    newLineCount += orWord(offset + i * 8L, instrumented[i]);
+                    newCoveredLineCount += orWord(offset + (record[1] + i) * 8L, covered[i]);
+                }
+                addToTotals(newLineCount, newCoveredLineCount);
+                return;
+            }
+            // Appends a longer record which replaces the old record in the totals.
+            long[] oldCounts = new long[2];
+            if (record != null) {
+                oldCounts = countRecord(record);
+                for (int i = 0; i < record[1]; i++) {
+                    instrumented[i] |= mBuffer.getLong((int) (record[0] + i * 8L));
+                    covered[i] |= mBuffer.getLong((int) (record[0] + (record[1] + i) * 8L));
+                }
+            }
+            appendRecord(sourceFile, instrumented, covered);
+            long[] newCounts = countRecord(mRecords.get(sourceFile));
+            addToTotals(newCounts[0] - oldCounts[0], newCounts[1] - oldCounts[1]);
+        }
+    }
+
+    /**
+     * @return the number of instrumented lines in all source files.
+     */
+    public synchronized long getTotalLineCount() {
+        return mBuffer.getLong(TOTAL_LINE_COUNT_OFFSET);
+    }
+
+    /**
+     * @return the number of covered lines in all source files.
+     */
+    public synchronized long getCoveredLineCount() {
+        return mBuffer.getLong(COVERED_LINE_COUNT_OFFSET);
+    }
+
+    /**
+     * @return the number of source files.
+     */
+    public synchronized int getFileCount() {
+        return mRecords.size();
+    }
+
+    /**
+     * Returns the coverage of a source file.
+     *
+     * @param sourceFile the key of the source file.
+     * @return the numbers of instrumented and covered lines, or null if the file is not merged.
+     */
+    public synchronized long[] getLineCounts(String sourceFile) {
+        long[] record = mRecords.get(sourceFile);
+        if (record == null) {
+            return null;
+        }
+        return countRecord(record);
+    }
+
+    /**
+     * ORs a word in the mapped file.
+     *
+     * @return the number of bits which are newly set.
+     */
+    private int orWord(long offset, long bits) {
+        if (bits == 0) {
+            return 0;
+        }
+        long oldBits = mBuffer.getLong((int) offset);
+        long newBits = oldBits | bits;
+        if (newBits == oldBits) {
+            return 0;
+        }
+        mBuffer.putLong((int) offset, newBits);
+        return Long.bitCount(newBits) - Long.bitCount(oldBits);
+    }
+
+    /**
+     * Adds to the totals in the file header. The caller must hold the file lock.
+     */
+    private void addToTotals(long lineCount, long coveredLineCount) {
+        mBuffer.putLong(TOTAL_LINE_COUNT_OFFSET,
+                mBuffer.getLong(TOTAL_LINE_COUNT_OFFSET) + lineCount);
+        mBuffer.putLong(COVERED_LINE_COUNT_OFFSET,
+                mBuffer.getLong(COVERED_LINE_COUNT_OFFSET) + coveredLineCount);
+    }
+
+    private void appendRecord(String sourceFile, long[] instrumented, long[] covered)
+            throws IOException {
+        byte[] path = sourceFile.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(8 + path.length + instrumented.length * 16);
+        record.putInt(path.length).put(path).putInt(instrumented.length);
+        for (long word : instrumented) {
+            record.putLong(word);
+        }
+        for (long word : covered) {
+            record.putLong(word);
+        }
+        record.flip();
+        long position = mChannel.size();
+        while (record.hasRemaining()) {
+            position += mChannel.write(record, position);
+        }
+        remap();
+        scanRecords();
+    }
+
+    /**
+     * Reads the records after the scanned length.
+     */
+    private void scanRecords() {
+        long position = mScannedLength;
+        while (position + 8 <= mBuffer.limit()) {
+            int pathLength = mBuffer.getInt((int) position);
+            byte[] path = new byte[pathLength];
+            ByteBuffer buffer = mBuffer.duplicate();
+            buffer.position((int) position + 4);
+            buffer.get(path);
+            int wordCount = buffer.getInt();
+            long[] record = {buffer.position(), wordCount};
+            mRecords.put(new String(path, StandardCharsets.UTF_8), record);
+            position = record[0] + wordCount * 16L;
+        }
+        mScannedLength = position;
+    }
+
+    private long[] countRecord(long[] record) {
+        long[] counts = new long[2];
+        for (int i = 0; i < record[1]; i++) {
+            counts[0] += Long.bitCount(mBuffer.getLong((int) (record[0] + i * 8L)));
+            counts[1] += Long.bitCount(mBuffer.getLong((int) (record[0] + (record[1] + i) * 8L)));
+        }
+        return counts;
+    }
+
+    private void remap() throws IOException {
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, mChannel.size());
+    }
+
+    /**
+     * Closes the file.
+     */
+    synchronized void close() {
+        try {
+            mBuffer.force();
+            mFile.close();
+        } catch (IOException e) {
+            CLog.e(e);
+        }
+    }
+}
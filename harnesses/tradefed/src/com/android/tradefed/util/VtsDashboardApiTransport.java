@@ -16,8 +16,10 @@
 
 package com.android.tradefed.util;
 
+import com.google.api.client.http.AbstractHttpContent;
 import com.google.api.client.http.ByteArrayContent;
 import com.google.api.client.http.FileContent;
+import com.google.api.client.http.GZipEncoding;
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpContent;
 import com.google.api.client.http.HttpHeaders;
@@ -31,11 +33,15 @@ import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.gson.Gson;
+import com.google.protobuf.MessageLite;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Type;
 import java.net.URI;
 import java.time.Duration;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -132,6 +138,30 @@ public class VtsDashboardApiTransport {
         return request.execute().parseAsString();
     }
 
+    /**
+     * Upload a protobuf message through POST method without buffering the request body.
+     *
+     * @param path The url path from API HOST.
+     * @param fileType The content type of the message.
+     * @param message The message to upload. The body is the base64 encoding of the message.
+     * @param gzip Whether to compress the body with gzip content encoding.
+     * @return String Response body will be returned.
+     * @throws IOException when http request is broken.
+     */
+    public String postMessage(String path, String fileType, MessageLite message, boolean gzip)
+            throws IOException {
+        HttpRequestFactory requestFactory = getHttpRequestFactory();
+
+        GenericUrl url = new GenericUrl(URI.create(API_URL + "/" + path));
+        HttpRequest request =
+                requestFactory.buildPostRequest(url, new Base64MessageContent(fileType, message));
+        if (gzip) {
+            request.setEncoding(new GZipEncoding());
+        }
+
+        return request.execute().parseAsString();
+    }
+
     /**
      * Upload multiple files content through POST method.
      *
@@ -159,6 +189,47 @@ public class VtsDashboardApiTransport {
         return request.execute().parseAsString();
     }
 
+    /**
+     * Http content which writes the base64 encoding of a protobuf message to the connection.
+     */
+    static class Base64MessageContent extends AbstractHttpContent {
+        private final MessageLite message;
+
+        Base64MessageContent(String type, MessageLite message) {
+            super(type);
+            this.message = message;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            // Closing the encoder writes the padding but must not close the connection.
+            OutputStream encoder = Base64.getEncoder().wrap(new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.flush();
+                }
+            });
+            message.writeTo(encoder);
+            encoder.close();
+        }
+
+        @Override
+        public long getLength() {
+            // Computed from the size of the message, so the body is not serialized to count it.
+            return 4L * ((message.getSerializedSize() + 2) / 3);
+        }
+
+        @Override
+        public boolean retrySupported() {
+            return true;
+        }
+    }
+
     /**
      * Get HttpRequestFactory instance with default options.
      *
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.vts.proto.VtsReportMessage.DashboardPostMessage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Uploads the dashboard messages in a background thread.
+ *
+ * <p>Each queued message is stored in a spool directory, so that the messages which are not
+ * uploaded before the process exits are uploaded by the next queue of the same directory. A spool
+ * directory must only contain the messages of one dashboard target. The worker merges the queued
+ * messages into one {@link DashboardPostMessage} per request and retries the failed requests with
+ * exponential backoff. The worker claims a spool file by locking it, so that the queues of
+ * multiple processes do not upload the same file.
+ */
+public class VtsDashboardUploadQueue {
+    static final String SPOOL_FILE_SUFFIX = ".msg";
+    static final int MAX_BATCH_SIZE = 16;
+    static final long MAX_BATCH_BYTES = 4 * 1024 * 1024;
+    static final long INITIAL_BACKOFF_MSECS = 1000;
+    static final long MAX_BACKOFF_MSECS = 1000 * 60;
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    // The queues, keyed by spool directory path.
+    private static final Map<String, VtsDashboardUploadQueue> sQueues = new HashMap<>();
+
+    /**
+     * Posts a merged message to the dashboard.
+     */
+    public interface Uploader {
+        /**
+         * @param message the message without access token.
+         * @return whether the message is uploaded.
+         */
+        boolean upload(DashboardPostMessage.Builder message);
+    }
+
+    private final File mSpoolDir;
+    private final Uploader mUploader;
+    private final long mInitialBackoffMsecs;
+    private final Object mLock = new Object();
+    private final Thread mWorker;
+    private long mSequence = 0;
+    // Whether the worker retries without waiting for the backoff.
+    private boolean mRetryNow = false;
+    // Whether the spool directory may contain files to upload.
+    private boolean mHasSpoolFiles = false;
+    // The names of the spool files added by this queue and not uploaded.
+    private final Set<String> mPendingFiles = new HashSet<>();
+
+    VtsDashboardUploadQueue(File spoolDir, Uploader uploader, long initialBackoffMsecs) {
+        mSpoolDir = spoolDir;
+        mUploader = uploader;
+        mInitialBackoffMsecs = initialBackoffMsecs;
+        mHasSpoolFiles = listSpoolFiles().length > 0;
+        mWorker = new Thread(this::runWorker, "VtsDashboardUploadQueue");
+        mWorker.setDaemon(true);
+        mWorker.start();
+    }
+
+    /**
+     * Returns the queue of a spool directory. The directory is created if it does not exist.
+     *
+     * @param spoolDir the directory storing the queued messages.
+     * @param uploader the uploader used if the queue is created.
+     * @return the queue shared in this process.
+     */
+    public static synchronized VtsDashboardUploadQueue getInstance(
+            File spoolDir, Uploader uploader) {
+        VtsDashboardUploadQueue queue = sQueues.get(spoolDir.getAbsolutePath());
+        if (queue == null) {
+            FileUtil.mkdirsRWX(spoolDir);
+            queue = new VtsDashboardUploadQueue(spoolDir, uploader, INITIAL_BACKOFF_MSECS);
+            sQueues.put(spoolDir.getAbsolutePath(), queue);
+        }
+        return queue;
+    }
+
+    /**
+     * Adds a message to the queue.
+     *
+     * @param message the message to upload; the access token is not stored.
+     * @throws IOException if fails to write the spool file.
+     */
+    public void add(DashboardPostMessage message) throws IOException {
+        String name;
+        synchronized (mLock) {
+            name = String.format("%013d-%06d", System.currentTimeMillis(), mSequence++);
+        }
+        File tempFile = new File(mSpoolDir, name + TEMP_FILE_SUFFIX);
+        try (OutputStream out = new FileOutputStream(tempFile)) {
+            message.toBuilder().clearAccessToken().build().writeTo(out);
+        }
+        // The worker ignores the file until it is completely written.
+        String fileName = name + SPOOL_FILE_SUFFIX;
+        synchronized (mLock) {
+            if (!tempFile.renameTo(new File(mSpoolDir, fileName))) {
+                FileUtil.deleteFile(tempFile);
+                throw new IOException("Cannot rename spool file " + tempFile);
+            }
+            mPendingFiles.add(fileName);
+            mHasSpoolFiles = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the messages added to this queue are uploaded. The messages which are not
+     * uploaded before the timeout stay in the spool directory. The messages left over by the
+     * other processes are uploaded in background but not waited for.
+     *
+     * @param timeoutMsecs the max time to wait.
+     * @return whether all messages added to this queue are uploaded.
+     */
+    public boolean flush(long timeoutMsecs) {
+        long deadline = System.currentTimeMillis() + timeoutMsecs;
+        synchronized (mLock) {
+            mRetryNow = true;
+            mLock.notifyAll();
+            try {
+                long remaining;
+                while (!mPendingFiles.isEmpty()
+                        && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    mLock.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!mPendingFiles.isEmpty()) {
+                CLog.w("%d dashboard messages are not uploaded in %d ms. They are kept in %s.",
+                        mPendingFiles.size(), timeoutMsecs, mSpoolDir);
+            }
+            return mPendingFiles.isEmpty();
+        }
+    }
+
+    /**
+     * Stops the worker. Used by tests to release the spool directory.
+     */
+    void close() throws InterruptedException {
+        mWorker.interrupt();
+        mWorker.join();
+    }
+
+    private void runWorker() {
+        long backoffMsecs = mInitialBackoffMsecs;
+        while (true) {
+            try {
+                synchronized (mLock) {
+                    while (!mHasSpoolFiles) {
+                        mLock.wait();
+                    }
+                }
+                boolean uploaded;
+                try {
+                    uploaded = uploadBatch();
+                } catch (RuntimeException e) {
+                    CLog.e(e);
+                    uploaded = false;
+                }
+                if (uploaded) {
+                    backoffMsecs = mInitialBackoffMsecs;
+                    continue;
+                }
+                synchronized (mLock) {
+                    long deadline = System.currentTimeMillis() + backoffMsecs;
+                    long remaining;
+                    while (!mRetryNow && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        mLock.wait(remaining);
+                    }
+                    mRetryNow = false;
+                }
+                backoffMsecs = Math.min(backoffMsecs * 2, MAX_BACKOFF_MSECS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Uploads the oldest unclaimed spool files as one message. A file is claimed by locking it
+     * and is deleted before the lock is released.
+     *
+     * @return whether the upload succeeds or there is nothing to upload.
+     */
+    private boolean uploadBatch() {
+        File[] spoolFiles = listSpoolFiles();
+        Arrays.sort(spoolFiles);
+        DashboardPostMessage.Builder message = DashboardPostMessage.newBuilder();
+        List<File> batch = new ArrayList<>();
+        List<RandomAccessFile> claims = new ArrayList<>();
+        boolean hasUnclaimedFiles = false;
+        try {
+            long batchBytes = 0;
+            for (File spoolFile : spoolFiles) {
+                if (batch.size() >= MAX_BATCH_SIZE) {
+                    break;
+                }
+                RandomAccessFile claim = claim(spoolFile);
+                if (claim == null) {
+                    hasUnclaimedFiles |= spoolFile.exists();
+                    continue;
+                }
+                claims.add(claim);
+                try {
+                    long length = claim.length();
+                    if (!batch.isEmpty() && batchBytes + length > MAX_BATCH_BYTES) {
+                        break;
+                    }
+                    byte[] content = new byte[(int) length];
+                    claim.readFully(content);
+                    message.mergeFrom(DashboardPostMessage.parseFrom(content));
+                    batch.add(spoolFile);
+                    batchBytes += length;
+                } catch (IOException e) {
+                    CLog.e("Deleting corrupt dashboard message %s: %s", spoolFile, e.toString());
+                    FileUtil.deleteFile(spoolFile);
+                }
+            }
+            boolean uploaded = batch.isEmpty() || mUploader.upload(message);
+            if (uploaded) {
+                for (File spoolFile : batch) {
+                    FileUtil.deleteFile(spoolFile);
+                }
+                if (!batch.isEmpty()) {
+                    CLog.d("Uploaded %d dashboard messages, %d bytes.", batch.size(),
+                            batchBytes);
+                }
+            }
+            // The files claimed by the other processes are checked again after the backoff.
+            return uploaded && !(batch.isEmpty() && hasUnclaimedFiles);
+        } finally {
+            for (RandomAccessFile claim : claims) {
+                closeClaim(claim);
+            }
+            updatePendingFiles();
+        }
+    }
+
+    /**
+     * Claims a spool file by locking it.
+     *
+     * @return the opened file which holds the lock; null if the file is claimed by another
+     *         process or is uploaded.
+     */
+    private static RandomAccessFile claim(File spoolFile) {
+        RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(spoolFile, "rw");
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            FileLock lock = file.getChannel().tryLock();
+            // The file is deleted by the process which uploads it before the lock is released.
+            if (lock != null && spoolFile.exists()) {
+                return file;
+            }
+        } catch (OverlappingFileLockException e) {
+            // The file is claimed in this process.
+        } catch (IOException e) {
+            CLog.e("Failed to lock dashboard message %s: %s", spoolFile, e.toString());
+        }
+        closeClaim(file);
+        return null;
+    }
+
+    private static void closeClaim(RandomAccessFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            CLog.e("Failed to close dashboard message: %s", e.toString());
+        }
+    }
+
+    /**
+     * Removes the uploaded files from the pending files and wakes up the flushing threads.
+     */
+    private void updatePendingFiles() {
+        File[] spoolFiles = listSpoolFiles();
+        Set<String> names = new HashSet<>();
+        for (File spoolFile : spoolFiles) {
+            names.add(spoolFile.getName());
+        }
+        synchronized (mLock) {
+            mPendingFiles.retainAll(names);
+            mHasSpoolFiles = spoolFiles.length > 0;
+            mLock.notifyAll();
+        }
+    }
+
+    private File[] listSpoolFiles() {
+        File[] files = mSpoolDir.listFiles((dir, name) -> name.endsWith(SPOOL_FILE_SUFFIX));
+        return files == null ? new File[0] : files;
+    }
+}
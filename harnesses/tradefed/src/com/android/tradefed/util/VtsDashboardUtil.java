@@ -22,12 +22,22 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
@@ -42,6 +52,7 @@ import com.google.api.client.json.JsonFactory;
 import com.android.vts.proto.VtsReportMessage.DashboardPostMessage;
 import com.android.vts.proto.VtsReportMessage.TestPlanReportMessage;
 
+import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
 
 /**
@@ -51,20 +62,82 @@ import com.google.api.client.http.javanet.NetHttpTransport;
 public class VtsDashboardUtil {
     private static final String PLUS_ME = "https://www.googleapis.com/auth/plus.me";
     private static final int BASE_TIMEOUT_MSECS = 1000 * 60;
+    // Refreshes an access token if it expires in this time.
+    static final long TOKEN_REFRESH_MARGIN_SECS = 60 * 5;
+    // The default root directory of the messages queued for uploading. The messages of each
+    // dashboard target are stored in a subdirectory.
+    private static final String DEFAULT_SPOOL_DIR =
+            System.getProperty("java.io.tmpdir") + "/vts-dashboard-spool";
     private static VtsVendorConfigFileUtil mConfigReader;
     private static final IRunUtil mRunUtil = new RunUtil();
     private static VtsDashboardApiTransport vtsDashboardApiTransport;
+    // The queues which are used in this process.
+    private static final Set<VtsDashboardUploadQueue> mUploadQueues = new LinkedHashSet<>();
+    // The transport shared by the uploads, so that the connections are reused.
+    private static final HttpTransport mHttpTransport = new NetHttpTransport();
+    // The credentials keyed by service key file path.
+    private static final Map<String, Credential> mCredentials = new HashMap<>();
 
     public VtsDashboardUtil(VtsVendorConfigFileUtil configReader) {
         mConfigReader = configReader;
         try {
             String apiUrl = mConfigReader.GetVendorConfigVariable("dashboard_api_host_url");
-            vtsDashboardApiTransport = new VtsDashboardApiTransport(new NetHttpTransport(), apiUrl);
+            vtsDashboardApiTransport = new VtsDashboardApiTransport(mHttpTransport, apiUrl);
         } catch (NoSuchElementException e) {
             CLog.w("Configure file not available.");
         }
     }
 
+    /**
+     * The dashboard target of the queued messages. A spool directory is keyed by the target, so
+     * that its messages are uploaded with the target, regardless of the vendor config which is
+     * loaded when they are uploaded.
+     */
+    private static class UploadTarget implements VtsDashboardUploadQueue.Uploader {
+        private final String mConfigType;
+        private final String mApiUrl;
+        private final String mKeyFilePath;
+        private final boolean mGzip;
+        private final VtsDashboardApiTransport mTransport;
+
+        UploadTarget(String configType, String apiUrl, String keyFilePath, boolean gzip) {
+            mConfigType = configType;
+            mApiUrl = apiUrl;
+            mKeyFilePath = keyFilePath;
+            mGzip = gzip;
+            mTransport = new VtsDashboardApiTransport(mHttpTransport, apiUrl);
+        }
+
+        /**
+         * @return the name of the spool directory of this target.
+         */
+        String getSpoolDirName() {
+            String key = String.join("\n", mConfigType, mApiUrl, mKeyFilePath,
+                    String.valueOf(mGzip));
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+                        key.getBytes(StandardCharsets.UTF_8));
+                StringBuilder name = new StringBuilder();
+                for (int i = 0; i < 8; i++) {
+                    name.append(String.format("%02x", digest[i]));
+                }
+                return name.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public boolean upload(DashboardPostMessage.Builder message) {
+            String token = GetToken(mKeyFilePath);
+            if (token == null) {
+                return false;
+            }
+            message.setAccessToken(token);
+            return PostMessage(mTransport, message.build(), mGzip);
+        }
+    }
+
     /**
      * Returns an OAuth2 token string obtained using a service account json keyfile.
      *
@@ -78,16 +151,32 @@ public class VtsDashboardUtil {
         } catch (NoSuchElementException e) {
             return null;
         }
+        return GetToken(keyFilePath);
+    }
 
+    /**
+     * Returns an OAuth2 token string obtained using a service account json keyfile.
+     *
+     * @param keyFilePath, the path to the service account json keyfile.
+     */
+    private static String GetToken(String keyFilePath) {
         JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
-        Credential credential = null;
         try {
-            List<String> listStrings = new LinkedList<>();
-            listStrings.add(PLUS_ME);
-            credential = GoogleCredential.fromStream(new FileInputStream(keyFilePath))
-                                 .createScoped(listStrings);
-            credential.refreshToken();
-            return credential.getAccessToken();
+            // The credential is shared by the uploads, so that one refresh is in progress.
+            synchronized (mCredentials) {
+                Credential credential = mCredentials.get(keyFilePath);
+                if (credential == null) {
+                    List<String> listStrings = new LinkedList<>();
+                    listStrings.add(PLUS_ME);
+                    try (InputStream keyFile = new FileInputStream(keyFilePath)) {
+                        credential =
+                                GoogleCredential.fromStream(keyFile, mHttpTransport, jsonFactory)
+                                        .createScoped(listStrings);
+                    }
+                    mCredentials.put(keyFilePath, credential);
+                }
+                return GetAccessToken(credential);
+            }
         } catch (FileNotFoundException e) {
             CLog.e(String.format("Service key file %s doesn't exist.", keyFilePath));
         } catch (IOException e) {
@@ -96,6 +185,21 @@ public class VtsDashboardUtil {
         return null;
     }
 
+    /**
+     * Returns the access token of a credential. The token is refreshed if it expires soon.
+     *
+     * @param credential, the credential caching the token.
+     * @throws IOException if fails to refresh the token.
+     */
+    static String GetAccessToken(Credential credential) throws IOException {
+        Long expiresInSeconds = credential.getExpiresInSeconds();
+        if (credential.getAccessToken() == null || expiresInSeconds == null
+                || expiresInSeconds <= TOKEN_REFRESH_MARGIN_SECS) {
+            credential.refreshToken();
+        }
+        return credential.getAccessToken();
+    }
+
     /**
      * Uploads the given message to the web DB.
      *
@@ -111,6 +215,10 @@ public class VtsDashboardUtil {
             return;
         }
         message.setAccessToken(token);
+        if (!curlCommandCheck) {
+            UploadMessage(message.build());
+            return;
+        }
         String messageFilePath = "";
         try {
             messageFilePath = WriteToTempFile(
@@ -122,11 +230,39 @@ public class VtsDashboardUtil {
         if (Strings.isNullOrEmpty(messageFilePath)) {
             CLog.e("Couldn't get the MessageFilePath.");
         } else {
-            if (curlCommandCheck) {
-                CurlUpload(messageFilePath);
-            } else {
-                Upload(messageFilePath);
-            }
+            CurlUpload(messageFilePath);
+        }
+    }
+
+    /**
+     * Uploads the given message to the web DB using google http java api library. The message is
+     * encoded while it is written to the connection.
+     *
+     * @param message, DashboardPostMessage with access token.
+     */
+    public Boolean UploadMessage(DashboardPostMessage message) {
+        boolean gzip = Boolean.parseBoolean(GetConfigVariable("dashboard_use_gzip", "false"));
+        return PostMessage(vtsDashboardApiTransport, message, gzip);
+    }
+
+    /**
+     * Posts a message with access token to the web DB.
+     *
+     * @param transport, the transport of the dashboard API.
+     * @param message, DashboardPostMessage with access token.
+     * @param gzip, whether to compress the message.
+     */
+    private static boolean PostMessage(
+            VtsDashboardApiTransport transport, DashboardPostMessage message, boolean gzip) {
+        try {
+            String response = transport.postMessage(
+                    "/api/datastore", "application/octet-stream", message, gzip);
+            CLog.d(String.format("Upload Result : %s", response));
+            return true;
+        } catch (IOException e) {
+            CLog.e("Error occurred on uploading dashboard message!");
+            CLog.e(e.getLocalizedMessage());
+            return false;
         }
     }
 
@@ -148,6 +284,92 @@ public class VtsDashboardUtil {
         }
     }
 
+    /**
+     * Queues the given message for uploading in background. Falls back to {@link
+     * #Upload(DashboardPostMessage.Builder)} if the curl command is configured.
+     *
+     * @param message, DashboardPostMessage that keeps the result to upload.
+     */
+    public void UploadAsync(DashboardPostMessage message) {
+        if (Boolean.parseBoolean(GetConfigVariable("dashboard_use_curl_command", "false"))) {
+            Upload(message.toBuilder());
+            return;
+        }
+        if (vtsDashboardApiTransport == null
+                || GetConfigVariable("service_key_json_path", null) == null) {
+            CLog.w("Dashboard is not configured. Skipping upload.");
+            return;
+        }
+        try {
+            GetUploadQueue().add(message);
+        } catch (IOException e) {
+            CLog.e("Couldn't queue a dashboard message: %s", e.toString());
+        }
+    }
+
+    /**
+     * Queues the given message file for uploading in background.
+     *
+     * @param messageFilePath, base64-encoded DashboardPostMessage file path.
+     */
+    public void UploadAsync(String messageFilePath) {
+        DashboardPostMessage message;
+        try {
+            message = DashboardPostMessage.parseFrom(Base64.getMimeDecoder().decode(
+                    Files.readAllBytes(Paths.get(messageFilePath))));
+        } catch (IOException | IllegalArgumentException e) {
+            CLog.e("Couldn't read the dashboard message file %s: %s", messageFilePath,
+                    e.toString());
+            return;
+        }
+        UploadAsync(message);
+    }
+
+    /**
+     * Waits until the messages queued by this process are uploaded. The messages which are not
+     * uploaded before the timeout are uploaded by the next invocation of the same target.
+     *
+     * @param timeoutMsecs, the max time to wait.
+     * @return whether all queued messages are uploaded.
+     */
+    public static boolean FlushUploads(long timeoutMsecs) {
+        List<VtsDashboardUploadQueue> queues;
+        synchronized (VtsDashboardUtil.class) {
+            queues = new ArrayList<>(mUploadQueues);
+        }
+        long deadline = System.currentTimeMillis() + timeoutMsecs;
+        boolean flushed = true;
+        for (VtsDashboardUploadQueue queue : queues) {
+            flushed &= queue.flush(Math.max(0, deadline - System.currentTimeMillis()));
+        }
+        return flushed;
+    }
+
+    /**
+     * Returns the queue of the dashboard target in the current vendor config.
+     */
+    private VtsDashboardUploadQueue GetUploadQueue() {
+        UploadTarget target = new UploadTarget(mConfigReader.GetVendorConfigFilePath(),
+                mConfigReader.GetVendorConfigVariable("dashboard_api_host_url"),
+                mConfigReader.GetVendorConfigVariable("service_key_json_path"),
+                Boolean.parseBoolean(GetConfigVariable("dashboard_use_gzip", "false")));
+        File spoolDir = new File(GetConfigVariable("dashboard_upload_spool_dir", DEFAULT_SPOOL_DIR),
+                target.getSpoolDirName());
+        synchronized (VtsDashboardUtil.class) {
+            VtsDashboardUploadQueue queue = VtsDashboardUploadQueue.getInstance(spoolDir, target);
+            mUploadQueues.add(queue);
+            return queue;
+        }
+    }
+
+    private static String GetConfigVariable(String name, String defaultValue) {
+        try {
+            return mConfigReader.GetVendorConfigVariable(name);
+        } catch (NoSuchElementException e) {
+            return defaultValue;
+        }
+    }
+
     /**
      * Uploads the given message file path to the web DB using curl command.
      *
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Coordinates the processes and threads which share a directory on the host.
+ *
+ * <p>The preparation lock is an exclusive lock on "&lt;dir&gt;.lock". One owner prepares the
+ * directory at a time, and the others are blocked by the operating system until it is released,
+ * so they wake up as soon as the preparation completes.
+ *
+ * <p>The users of a prepared directory hold shared locks on "&lt;dir&gt;.users", which works as a
+ * reference count across processes. The directory is not in use if an exclusive lock can be
+ * acquired. The locks are released by the operating system when a process exits, so a crashed
+ * process does not leave a stale count.
+ *
+ * <p>{@link FileLock} is held by the whole JVM, so the threads in the same JVM are coordinated by
+ * a semaphore and a count in addition to the file locks.
+ */
+public class VtsDirectoryLock {
+    static final String PREPARATION_LOCK_SUFFIX = ".lock";
+    static final String USER_LOCK_SUFFIX = ".users";
+
+    /**
+     * The shared lock and the number of the users in this JVM.
+     */
+    private static class UserLock {
+        FileChannel mChannel;
+        FileLock mLock;
+        int mCount = 0;
+    }
+
+    // The preparation semaphores of the directories in this JVM.
+    private static final Map<String, Semaphore> sPreparationSemaphores = new HashMap<>();
+    // The user locks of the directories in this JVM.
+    private static final Map<String, UserLock> sUserLocks = new HashMap<>();
+
+    private final String mKey;
+    private final File mPreparationLockFile;
+    private final File mUserLockFile;
+    private FileChannel mPreparationChannel = null;
+    private FileLock mPreparationLock = null;
+    private boolean mIsUser = false;
+
+    /**
+     * @param dir the shared directory.
+     */
+    public VtsDirectoryLock(File dir) {
+        mKey = dir.getAbsolutePath();
+        mPreparationLockFile = new File(mKey + PREPARATION_LOCK_SUFFIX);
+        mUserLockFile = new File(mKey + USER_LOCK_SUFFIX);
+    }
+
+    /**
+     * Blocks until this object is the only one preparing the directory.
+     *
+     * @throws IOException if fails to lock the file.
+     * @throws InterruptedException if the current thread is interrupted while waiting for the
+     *                              other threads in this JVM.
+     */
+    public void lockPreparation() throws IOException, InterruptedException {
+        if (mPreparationLock != null) {
+            return;
+        }
+        Semaphore semaphore;
+        synchronized (sPreparationSemaphores) {
+            semaphore = sPreparationSemaphores.get(mKey);
+            if (semaphore == null) {
+                semaphore = new Semaphore(1);
+                sPreparationSemaphores.put(mKey, semaphore);
+            }
+        }
+        semaphore.acquire();
+        try {
+            mPreparationChannel = openChannel(mPreparationLockFile);
+            mPreparationLock = mPreparationChannel.lock();
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(mPreparationChannel);
+            mPreparationChannel = null;
+            semaphore.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the preparation lock if it is held.
+     */
+    public void unlockPreparation() {
+        if (mPreparationLock == null) {
+            return;
+        }
+        closeQuietly(mPreparationChannel);
+        mPreparationChannel = null;
+        mPreparationLock = null;
+        synchronized (sPreparationSemaphores) {
+            sPreparationSemaphores.get(mKey).release();
+        }
+    }
+
+    /**
+     * Registers this object as a user of the directory. Does nothing if it is registered.
+     *
+     * @throws IOException if fails to lock the file.
+     */
+    public void addUser() throws IOException {
+        if (mIsUser) {
+            return;
+        }
+        synchronized (sUserLocks) {
+            UserLock userLock = sUserLocks.get(mKey);
+            if (userLock == null) {
+                userLock = new UserLock();
+                userLock.mChannel = openChannel(mUserLockFile);
+                try {
+                    userLock.mLock = userLock.mChannel.lock(0, Long.MAX_VALUE, true);
+                } catch (IOException | RuntimeException e) {
+                    closeQuietly(userLock.mChannel);
+                    throw e;
+                }
+                sUserLocks.put(mKey, userLock);
+            }
+            userLock.mCount++;
+            mIsUser = true;
+        }
+    }
+
+    /**
+     * Unregisters this object as a user of the directory.
+     */
+    public void removeUser() {
+        if (!mIsUser) {
+            return;
+        }
+        synchronized (sUserLocks) {
+            mIsUser = false;
+            UserLock userLock = sUserLocks.get(mKey);
+            if (--userLock.mCount == 0) {
+                sUserLocks.remove(mKey);
+                closeQuietly(userLock.mChannel);
+            }
+        }
+    }
+
+    /**
+     * Checks whether the directory has no user in any process.
+     *
+     * @return true if no process or thread is registered as a user; false otherwise.
+     * @throws IOException if fails to open the lock file.
+     */
+    public boolean isUnused() throws IOException {
+        synchronized (sUserLocks) {
+            if (sUserLocks.containsKey(mKey)) {
+                return false;
+            }
+            try (FileChannel channel = openChannel(mUserLockFile)) {
+                FileLock lock = channel.tryLock();
+                if (lock == null) {
+                    return false;
+                }
+                lock.release();
+                return true;
+            }
+        }
+    }
+
+    private static FileChannel openChannel(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            // Closing the channel releases its lock.
+            channel.close();
+        } catch (IOException e) {
+            CLog.e("Failed to close the lock file: %s", e.toString());
+        }
+    }
+}
@@ -21,7 +21,12 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 
 public class VtsFileUtil extends FileUtil {
     /**
@@ -69,4 +74,31 @@ public class VtsFileUtil extends FileUtil {
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Recursively deletes a file tree without following symbolic links. Unlike {@link
+     * FileUtil#recursiveDelete(File)}, this never deletes the targets of the links, e.g., the
+     * system python libraries linked from a virtualenv.
+     *
+     * @param rootPath the path to delete.
+     * @throws IOException if fails to traverse or delete the files.
+     */
+    public static void recursiveDeleteNoFollowLinks(Path rootPath) throws IOException {
+        Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                    throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Schedules the host preparation steps of an invocation.
+ *
+ * <p>A preparer submits its host-only work, such as creating a virtualenv or downloading
+ * artifacts, as an asynchronous step and returns, so that the following preparers can work on the
+ * device meanwhile. A step starts after the steps it depends on complete, and the consumer of its
+ * result waits for it by name. The result of a step is handled by the waiting thread, so that
+ * the shared state of the invocation, such as the build info, is not modified in the background.
+ * Synchronous work, such as pushing files, can be recorded as a timed step. When the test waits
+ * for all steps, the report shows the time of each step and the critical path of the steps
+ * submitted since the previous wait.
+ */
+public class VtsHostPrepScheduler {
+    // The schedulers of the build infos, which are shared by the preparers of an invocation. The
+    // build infos are compared by identity because their equals() depends on mutable attributes.
+    private static final List<SchedulerEntry> sSchedulers = new ArrayList<>();
+
+    /**
+     * The work of a step.
+     */
+    public interface Step {
+        void run() throws Exception;
+    }
+
+    /**
+     * The work of a step which produces a result.
+     */
+    public interface ResultStep<T> {
+        T run() throws Exception;
+    }
+
+    /**
+     * The handler of the result of a step, which runs on the thread waiting for the step.
+     */
+    public interface ResultHandler<T> {
+        void handle(T result) throws Exception;
+    }
+
+    private static class SchedulerEntry {
+        final WeakReference<IBuildInfo> mBuildInfo;
+        final VtsHostPrepScheduler mScheduler;
+
+        SchedulerEntry(IBuildInfo buildInfo, VtsHostPrepScheduler scheduler) {
+            mBuildInfo = new WeakReference<>(buildInfo);
+            mScheduler = scheduler;
+        }
+    }
+
+    /**
+     * The timing of a step. All times are in milliseconds since the epoch.
+     */
+    private static class StepRecord {
+        final String mName;
+        final List<String> mDependencies;
+        final boolean mIsAsync;
+        final long mSubmitTime;
+        // The time when the dependencies complete.
+        long mReadyTime = 0;
+        long mStartTime = 0;
+        long mEndTime = 0;
+        Future<Object> mFuture = null;
+        // The handler of the result which has not run yet.
+        ResultHandler<Object> mHandler = null;
+
+        StepRecord(String name, Collection<String> dependencies, boolean isAsync) {
+            mName = name;
+            mDependencies = new ArrayList<>(dependencies);
+            mIsAsync = isAsync;
+            mSubmitTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * A synchronous step which ends when it is closed.
+     */
+    public class TimedStep implements AutoCloseable {
+        private final StepRecord mRecord;
+
+        private TimedStep(StepRecord record) {
+            mRecord = record;
+        }
+
+        @Override
+        public void close() {
+            synchronized (VtsHostPrepScheduler.this) {
+                mRecord.mEndTime = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "VtsHostPrepScheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // The latest step of each name.
+    private final Map<String, StepRecord> mSteps = new HashMap<>();
+    // The steps submitted since the last call to awaitAll().
+    private List<StepRecord> mNewSteps = new ArrayList<>();
+    private String mLastReport = null;
+
+    /**
+     * Gets the scheduler shared by the preparers and the tests of a build.
+     *
+     * @param buildInfo the build info of the invocation.
+     * @return the scheduler.
+     */
+    public static VtsHostPrepScheduler getInstance(IBuildInfo buildInfo) {
+        synchronized (sSchedulers) {
+            Iterator<SchedulerEntry> iterator = sSchedulers.iterator();
+            while (iterator.hasNext()) {
+                SchedulerEntry entry = iterator.next();
+                IBuildInfo key = entry.mBuildInfo.get();
+                if (key == null) {
+                    iterator.remove();
+                } else if (key == buildInfo) {
+                    return entry.mScheduler;
+                }
+            }
+            VtsHostPrepScheduler scheduler = new VtsHostPrepScheduler();
+            sSchedulers.add(new SchedulerEntry(buildInfo, scheduler));
+            return scheduler;
+        }
+    }
+
+    /**
+     * Runs a step in the background after its dependencies complete.
+     *
+     * @param name the name of the step.
+     * @param dependencies the names of the steps to wait for.
+     * @param step the work.
+     */
+    public void submit(String name, Collection<String> dependencies, Step step) {
+        submit(name, dependencies, () -> {
+            step.run();
+            return null;
+        }, null);
+    }
+
+    /**
+     * Runs a step in the background after its dependencies complete. If a step of the same name
+     * has not been awaited by {@link #awaitAll()}, the new step runs after it and fails if it
+     * fails.
+     *
+     * @param name the name of the step.
+     * @param dependencies the names of the steps to wait for.
+     * @param step the work.
+     * @param handler the handler of the result, which runs on the first thread waiting for the
+     *                step; may be null.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> void submit(String name, Collection<String> dependencies,
+            ResultStep<T> step, ResultHandler<T> handler) {
+        StepRecord record = new StepRecord(name, dependencies, true);
+        StepRecord previous = mSteps.get(name);
+        Future<Object> previousFuture =
+                previous != null && mNewSteps.contains(previous) ? previous.mFuture : null;
+        record.mHandler = (ResultHandler<Object>) handler;
+        mSteps.put(name, record);
+        mNewSteps.add(record);
+        record.mFuture = mExecutor.submit(() -> {
+            if (previousFuture != null) {
+                try {
+                    previousFuture.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+            for (String dependency : record.mDependencies) {
+                Future<Object> future;
+                synchronized (this) {
+                    StepRecord dependencyRecord = mSteps.get(dependency);
+                    future = dependencyRecord == null ? null : dependencyRecord.mFuture;
+                }
+                if (future != null) {
+                    future.get();
+                }
+            }
+            synchronized (this) {
+                record.mReadyTime = System.currentTimeMillis();
+                record.mStartTime = record.mReadyTime;
+            }
+            try {
+                return step.run();
+            } finally {
+                synchronized (this) {
+                    record.mEndTime = System.currentTimeMillis();
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts recording a synchronous step.
+     *
+     * @param name the name of the step.
+     * @return the step which is ended by {@link TimedStep#close()}.
+     */
+    public synchronized TimedStep startTimedStep(String name) {
+        StepRecord record = new StepRecord(name, Collections.emptyList(), false);
+        record.mReadyTime = record.mSubmitTime;
+        record.mStartTime = record.mSubmitTime;
+        mSteps.put(name, record);
+        mNewSteps.add(record);
+        return new TimedStep(record);
+    }
+
+    /**
+     * Waits for a step to complete. Returns immediately if the step is not submitted.
+     *
+     * @param name the name of the step.
+     * @throws ExecutionException if the step or its dependency throws an exception.
+     * @throws InterruptedException if the current thread is interrupted.
+     */
+    public void await(String name) throws ExecutionException, InterruptedException {
+        StepRecord record;
+        synchronized (this) {
+            record = mSteps.get(name);
+        }
+        if (record != null) {
+            await(record);
+        }
+    }
+
+    /**
+     * Waits for a step to complete and runs the handler of its result if it has not run.
+     */
+    private void await(StepRecord record) throws ExecutionException, InterruptedException {
+        if (record.mFuture == null) {
+            return;
+        }
+        Object result = record.mFuture.get();
+        // The other threads waiting for the step return after the handler completes.
+        synchronized (record) {
+            ResultHandler<Object> handler = record.mHandler;
+            record.mHandler = null;
+            if (handler != null) {
+                try {
+                    handler.handle(result);
+                } catch (Exception e) {
+                    throw new ExecutionException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the steps submitted since the last call to complete and logs their report.
+     *
+     * @throws ExecutionException if any step throws an exception.
+     * @throws InterruptedException if the current thread is interrupted.
+     */
+    public void awaitAll() throws ExecutionException, InterruptedException {
+        List<StepRecord> steps;
+        synchronized (this) {
+            steps = mNewSteps;
+            mNewSteps = new ArrayList<>();
+        }
+        ExecutionException exception = null;
+        for (StepRecord record : steps) {
+            try {
+                await(record);
+            } catch (ExecutionException e) {
+                CLog.e("Host preparation step %s failed: %s", record.mName, e.getCause());
+                if (exception == null) {
+                    exception = e;
+                }
+            }
+        }
+        if (!steps.isEmpty()) {
+            String report;
+            synchronized (this) {
+                report = createReport(steps);
+                mLastReport = report;
+            }
+            CLog.i(report);
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * Gets the report of the steps awaited by the last call to {@link #awaitAll()}.
+     *
+     * @return the report.
+     */
+    public synchronized String getReport() {
+        return mLastReport == null ? createReport(Collections.emptyList()) : mLastReport;
+    }
+
+    /**
+     * Creates the report of the time of each completed step and the critical path.
+     *
+     * <p>The predecessor of a step on the critical path is the step that completes last before
+     * the step becomes ready to run, i.e., either its last dependency or the preceding work of
+     * the invocation. The time between them is reported as untracked.
+     *
+     * @param steps the steps to report.
+     * @return the report.
+     */
+    private String createReport(List<StepRecord> steps) {
+        List<StepRecord> completed = new ArrayList<>();
+        for (StepRecord record : steps) {
+            if (record.mEndTime > 0) {
+                completed.add(record);
+            }
+        }
+        if (completed.isEmpty()) {
+            return "No host preparation step is completed.";
+        }
+        long origin = Long.MAX_VALUE;
+        StepRecord last = null;
+        for (StepRecord record : completed) {
+            origin = Math.min(origin, record.mSubmitTime);
+            if (last == null || record.mEndTime > last.mEndTime) {
+                last = record;
+            }
+        }
+
+        StringBuilder report = new StringBuilder("Host preparation steps:");
+        for (StepRecord record : completed) {
+            report.append(String.format("\n  %s: %s, start %d ms, wait %d ms, run %d ms",
+                    record.mName, record.mIsAsync ? "async" : "sync", record.mStartTime - origin,
+                    record.mReadyTime - record.mSubmitTime, record.mEndTime - record.mStartTime));
+            if (!record.mDependencies.isEmpty()) {
+                report.append(", after ").append(String.join(", ", record.mDependencies));
+            }
+        }
+
+        List<String> path = new ArrayList<>();
+        StepRecord record = last;
+        while (record != null) {
+            path.add(0,
+                    String.format("%s %d ms", record.mName, record.mEndTime - record.mStartTime));
+            StepRecord predecessor = null;
+            for (StepRecord candidate : completed) {
+                if (candidate != record && candidate.mEndTime <= record.mReadyTime
+                        && (predecessor == null || candidate.mEndTime > predecessor.mEndTime)) {
+                    predecessor = candidate;
+                }
+            }
+            long gap = record.mStartTime
+                    - (predecessor == null ? origin : predecessor.mEndTime);
+            if (gap > 0) {
+                path.add(0, String.format("untracked %d ms", gap));
+            }
+            record = predecessor;
+        }
+        report.append(String.format("\nCritical path %d ms:", last.mEndTime - origin));
+        for (String step : path) {
+            report.append("\n  ").append(step);
+        }
+        return report.toString();
+    }
+}
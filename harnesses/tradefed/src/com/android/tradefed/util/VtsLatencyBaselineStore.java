@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import com.android.tradefed.util.VtsProfilingAnalyzer.LatencyHistogram;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A local file-backed database of the API latency distributions of the builds.
+ *
+ * <p>The distributions of a build are stored in dir/key/build_id.hist, where the key identifies
+ * what is measured, e.g., the module and the device flavor. The runs of the same build are merged
+ * into one file. The baseline of a build is the merged distributions of the most recently updated
+ * other builds. The updates of a key are serialized by locking dir/key/.lock, so the database can
+ * be shared by the processes on the host.
+ */
+public class VtsLatencyBaselineStore {
+    static final String FILE_SUFFIX = ".hist";
+    static final String LOCK_FILE_NAME = ".lock";
+    static final int MAGIC = 0x56484953; // "VHIS"
+
+    private final File mDir;
+
+    /**
+     * @param dir the root directory of the database.
+     */
+    public VtsLatencyBaselineStore(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Adds the latency distributions of a run to a build.
+     *
+     * @param key the key of the measurement.
+     * @param buildId the build id.
+     * @param histograms the histograms keyed by API name.
+     * @throws IOException if fails to read or write the file.
+     */
+    public void add(String key, String buildId, Map<String, LatencyHistogram> histograms)
+            throws IOException {
+        synchronized (VtsLatencyBaselineStore.class) {
+            File keyDir = new File(mDir, sanitize(key));
+            FileUtil.mkdirsRWX(keyDir);
+            // The channel lock is held by the JVM, so the threads are still serialized by the
+            // synchronized block to avoid OverlappingFileLockException.
+            try (RandomAccessFile lockFile =
+                            new RandomAccessFile(new File(keyDir, LOCK_FILE_NAME), "rw");
+                    FileChannel channel = lockFile.getChannel();
+                    FileLock lock = channel.lock()) {
+                File file = new File(keyDir, sanitize(buildId) + FILE_SUFFIX);
+                Map<String, LatencyHistogram> merged = new TreeMap<>();
+                if (file.exists()) {
+                    merged.putAll(read(file));
+                }
+                for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+                    LatencyHistogram histogram = merged.get(entry.getKey());
+                    if (histogram == null) {
+                        histogram = new LatencyHistogram();
+                        merged.put(entry.getKey(), histogram);
+                    }
+                    histogram.merge(entry.getValue());
+                }
+                // Writes to a temporary file so that readers never see a partial file.
+                File tmpFile = FileUtil.createTempFile(file.getName(), ".tmp", keyDir);
+                try {
+                    try (DataOutputStream out = new DataOutputStream(
+                                 new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                        out.writeInt(MAGIC);
+                        out.writeInt(merged.size());
+                        for (Map.Entry<String, LatencyHistogram> entry : merged.entrySet()) {
+                            out.writeUTF(entry.getKey());
+                            entry.getValue().writeTo(out);
+                        }
+                    }
+                    Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    FileUtil.deleteFile(tmpFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the baseline latency distributions.
+     *
+     * @param key the key of the measurement.
+     * @param excludedBuildId the build id which is not a part of the baseline, e.g., the build
+     *                        under test.
+     * @param maxBuildCount the max number of the most recently updated builds to merge.
+     * @return the merged histograms keyed by API name; empty if there is no baseline.
+     * @throws IOException if fails to read the files.
+     */
+    public Map<String, LatencyHistogram> getBaseline(String key, String excludedBuildId,
+            int maxBuildCount) throws IOException {
+        File[] files;
+        synchronized (VtsLatencyBaselineStore.class) {
+            files = new File(mDir, sanitize(key))
+                            .listFiles((dir, name) -> name.endsWith(FILE_SUFFIX));
+        }
+        Map<String, LatencyHistogram> baseline = new HashMap<>();
+        if (files == null) {
+            return baseline;
+        }
+        String excludedName = sanitize(excludedBuildId) + FILE_SUFFIX;
+        List<File> builds = new ArrayList<>(Arrays.asList(files));
+        builds.removeIf(file -> file.getName().equals(excludedName));
+        builds.sort(Comparator.comparingLong(File::lastModified).reversed());
+        for (File file : builds.subList(0, Math.min(maxBuildCount, builds.size()))) {
+            for (Map.Entry<String, LatencyHistogram> entry : read(file).entrySet()) {
+                LatencyHistogram histogram = baseline.get(entry.getKey());
+                if (histogram == null) {
+                    baseline.put(entry.getKey(), entry.getValue());
+                } else {
+                    histogram.merge(entry.getValue());
+                }
+            }
+        }
+        return baseline;
+    }
+
+    private static Map<String, LatencyHistogram> read(File file) throws IOException {
+        Map<String, LatencyHistogram> histograms = new TreeMap<>();
+        try (DataInputStream in = new DataInputStream(
+                     new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Unknown latency baseline format: " + file);
+            }
+            int apiCount = in.readInt();
+            for (int i = 0; i < apiCount; i++) {
+                String api = in.readUTF();
+                histograms.put(api, LatencyHistogram.readFrom(in));
+            }
+        }
+        return histograms;
+    }
+
+    private static String sanitize(String name) {
+        return String.valueOf(name).replaceAll("[^\\w.@-]", "_");
+    }
+}
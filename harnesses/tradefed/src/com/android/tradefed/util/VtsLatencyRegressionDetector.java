@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import com.android.tradefed.util.VtsProfilingAnalyzer.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares the API latency distributions of a run with the baseline.
+ *
+ * <p>A percentile regresses if it increases by more than a relative threshold and the increase is
+ * statistically significant. The p50 is tested with the Mann-Whitney U test on the histogram
+ * buckets. The p99 is tested with the one-sided binomial test of the fraction of the values above
+ * the baseline p99.
+ */
+public class VtsLatencyRegressionDetector {
+    static final int MIN_SAMPLE_COUNT = 30;
+
+    /**
+     * A regression of a percentile of an API.
+     */
+    public static class Regression {
+        private final String mApi;
+        private final String mPercentile;
+        private final long mBaselineValue;
+        private final long mCurrentValue;
+        private final double mZScore;
+
+        Regression(String api, String percentile, long baselineValue, long currentValue,
+                double zScore) {
+            mApi = api;
+            mPercentile = percentile;
+            mBaselineValue = baselineValue;
+            mCurrentValue = currentValue;
+            mZScore = zScore;
+        }
+
+        public String getApi() {
+            return mApi;
+        }
+
+        /**
+         * @return "p50" or "p99".
+         */
+        public String getPercentile() {
+            return mPercentile;
+        }
+
+        public long getBaselineValue() {
+            return mBaselineValue;
+        }
+
+        public long getCurrentValue() {
+            return mCurrentValue;
+        }
+
+        public double getZScore() {
+            return mZScore;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s: %d -> %d (z=%.2f)", mApi, mPercentile, mBaselineValue,
+                    mCurrentValue, mZScore);
+        }
+    }
+
+    private final double mThreshold;
+    private final double mZScore;
+
+    /**
+     * @param threshold the min relative increase of a percentile, e.g., 0.05.
+     * @param zScore the min z-score of a significant increase, e.g., 2.326 for p < 0.01.
+     */
+    public VtsLatencyRegressionDetector(double threshold, double zScore) {
+        mThreshold = threshold;
+        mZScore = zScore;
+    }
+
+    /**
+     * Compares the histograms of the APIs in both of the current run and the baseline.
+     *
+     * @param baseline the baseline histograms keyed by API name.
+     * @param current the histograms of the current run keyed by API name.
+     * @return the regressions sorted by API name.
+     */
+    public List<Regression> detect(
+            Map<String, LatencyHistogram> baseline, Map<String, LatencyHistogram> current) {
+        List<Regression> regressions = new ArrayList<>();
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(current).entrySet()) {
+            LatencyHistogram baselineHistogram = baseline.get(entry.getKey());
+            LatencyHistogram currentHistogram = entry.getValue();
+            if (baselineHistogram == null || baselineHistogram.getCount() < MIN_SAMPLE_COUNT
+                    || currentHistogram.getCount() < MIN_SAMPLE_COUNT) {
+                continue;
+            }
+            Regression regression = detectMedian(entry.getKey(), baselineHistogram,
+                    currentHistogram);
+            if (regression != null) {
+                regressions.add(regression);
+            }
+            regression = detectTail(entry.getKey(), baselineHistogram, currentHistogram);
+            if (regression != null) {
+                regressions.add(regression);
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * Tests the p50 with the Mann-Whitney U statistic of the current values.
+     */
+    private Regression detectMedian(
+            String api, LatencyHistogram baseline, LatencyHistogram current) {
+        long baselineValue = baseline.getValueAtPercentile(50);
+        long currentValue = current.getValueAtPercentile(50);
+        if (!exceedsThreshold(baselineValue, currentValue)) {
+            return null;
+        }
+        double n1 = current.getCount();
+        double n2 = baseline.getCount();
+        // The number of the (current, baseline) pairs in which the current value is greater.
+        // The pairs in the same bucket count half.
+        double u = 0;
+        double baselineBelow = 0;
+        for (int i = 0; i < baseline.getBucketCount(); i++) {
+            long baselineCount = baseline.getCountInBucket(i);
+            long currentCount = current.getCountInBucket(i);
+            u += currentCount * (baselineBelow + baselineCount / 2.0);
+            baselineBelow += baselineCount;
+        }
+        double z = (u - n1 * n2 / 2) / Math.sqrt(n1 * n2 * (n1 + n2 + 1) / 12);
+        return z > mZScore ? new Regression(api, "p50", baselineValue, currentValue, z) : null;
+    }
+
+    /**
+     * Tests the p99 with the number of the current values above the baseline p99.
+     */
+    private Regression detectTail(
+            String api, LatencyHistogram baseline, LatencyHistogram current) {
+        long baselineValue = baseline.getValueAtPercentile(99);
+        long currentValue = current.getValueAtPercentile(99);
+        if (!exceedsThreshold(baselineValue, currentValue)) {
+            return null;
+        }
+        int p99Index = LatencyHistogram.getIndex(baselineValue);
+        long baselineAbove = 0;
+        long currentAbove = 0;
+        for (int i = p99Index + 1; i < baseline.getBucketCount(); i++) {
+            baselineAbove += baseline.getCountInBucket(i);
+            currentAbove += current.getCountInBucket(i);
+        }
+        double n = current.getCount();
+        // The baseline fraction is less than 1% if many values are in the p99 bucket.
+        double p0 = Math.max(baselineAbove, 1) / (double) baseline.getCount();
+        double z = (currentAbove - n * p0) / Math.sqrt(n * p0 * (1 - p0));
+        return z > mZScore ? new Regression(api, "p99", baselineValue, currentValue, z) : null;
+    }
+
+    private boolean exceedsThreshold(long baselineValue, long currentValue) {
+        return currentValue > baselineValue * (1 + mThreshold);
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import com.android.vts.proto.VtsComponentSpecificationMessage.FunctionSpecificationMessage;
+import com.android.vts.proto.VtsProfilingMessageClass.InstrumentationEventType;
+import com.android.vts.proto.VtsProfilingMessageClass.VtsProfilingRecord;
+import com.android.vts.proto.VtsReportMessage.ProfilingReportMessage;
+import com.android.vts.proto.VtsReportMessage.VtsProfilingRegressionMode;
+import com.android.vts.proto.VtsReportMessage.VtsProfilingType;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Computes the latency of the HAL APIs from the {@link VtsProfilingRecord}s in the trace files.
+ *
+ * <p>The records are read in one pass. Each exit event is paired with the latest unpaired
+ * entry event of the same API and the same side (server, client or passthrough), and the
+ * latency is recorded in a fixed-size {@link LatencyHistogram} of the API. Only the fields
+ * used for pairing are decoded, so the function arguments in the records are skipped.
+ */
+public class VtsProfilingAnalyzer {
+    // Labels of the values in the profiling reports.
+    static final String[] REPORT_LABELS = {
+            "min", "p50", "p90", "p99", "p999", "max", "mean", "count"};
+    static final double[] REPORT_PERCENTILES = {50, 90, 99, 99.9};
+    static final String HAL_MODE_OPTION = "hidl_hal_mode=";
+    // Max number of unpaired entry events per trace. The oldest ones are dropped.
+    static final int MAX_OPEN_EVENTS = 1024;
+
+    private final Map<String, LatencyHistogram> mHistograms = new TreeMap<>();
+    private final Map<String, String> mHalModes = new HashMap<>();
+    private long mStartTimestamp = Long.MAX_VALUE;
+    private long mEndTimestamp = Long.MIN_VALUE;
+    private long mUnpairedCount = 0;
+
+    /**
+     * A histogram with logarithmic buckets which are linearly divided into sub-buckets, so that
+     * the relative error of the recorded values is less than 1/64. The memory usage does not
+     * depend on the number of values.
+     */
+    public static class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 7;
+        private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+        private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+        private final long[] mCounts =
+                new long[SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF_COUNT];
+        private long mCount = 0;
+        private long mSum = 0;
+        private long mMin = Long.MAX_VALUE;
+        private long mMax = 0;
+
+        /**
+         * Records a non-negative value.
+         */
+        public void record(long value) {
+            mCounts[getIndex(value)]++;
+            mCount++;
+            mSum += value;
+            mMin = Math.min(mMin, value);
+            mMax = Math.max(mMax, value);
+        }
+
+        /**
+         * Adds the values recorded in another histogram.
+         */
+        public void merge(LatencyHistogram other) {
+            for (int i = 0; i < mCounts.length; i++) {
+                mCounts[i] += other.mCounts[i];
+            }
+            mCount += other.mCount;
+            mSum += other.mSum;
+            mMin = Math.min(mMin, other.mMin);
+            mMax = Math.max(mMax, other.mMax);
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMin() {
+            return mCount == 0 ? 0 : mMin;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public long getMean() {
+            return mCount == 0 ? 0 : mSum / mCount;
+        }
+
+        /**
+         * Returns the value at a percentile.
+         *
+         * @param percentile the percentile between 0 and 100.
+         * @return the largest value equivalent to the value at the percentile, or 0 if no value
+         *         is recorded.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+            long count = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                count += mCounts[i];
+                if (count >= rank) {
+                    return Math.max(Math.min(getHighestValue(i), mMax), mMin);
+                }
+            }
+            return mMax;
+        }
+
+        /**
+         * Writes the non-empty buckets.
+         */
+        public void writeTo(DataOutputStream out) throws IOException {
+            int bucketCount = 0;
+            for (long count : mCounts) {
+                if (count > 0) {
+                    bucketCount++;
+                }
+            }
+            out.writeLong(mCount);
+            out.writeLong(mSum);
+            out.writeLong(mMin);
+            out.writeLong(mMax);
+            out.writeInt(bucketCount);
+            for (int i = 0; i < mCounts.length; i++) {
+                if (mCounts[i] > 0) {
+                    out.writeInt(i);
+                    out.writeLong(mCounts[i]);
+                }
+            }
+        }
+
+        /**
+         * Reads a histogram written by {@link #writeTo}.
+         */
+        public static LatencyHistogram readFrom(DataInputStream in) throws IOException {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.mCount = in.readLong();
+            histogram.mSum = in.readLong();
+            histogram.mMin = in.readLong();
+            histogram.mMax = in.readLong();
+            int bucketCount = in.readInt();
+            for (int i = 0; i < bucketCount; i++) {
+                int index = in.readInt();
+                if (index < 0 || index >= histogram.mCounts.length) {
+                    throw new IOException("Invalid histogram bucket: " + index);
+                }
+                histogram.mCounts[index] = in.readLong();
+            }
+            return histogram;
+        }
+
+        /**
+         * @return the number of buckets.
+         */
+        int getBucketCount() {
+            return mCounts.length;
+        }
+
+        /**
+         * @return the number of values in a bucket.
+         */
+        long getCountInBucket(int index) {
+            return mCounts[index];
+        }
+
+        static int getIndex(long value) {
+            if (value < SUB_BUCKET_COUNT) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+            return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT
+                    + (int) (value >>> shift) - SUB_BUCKET_HALF_COUNT;
+        }
+
+        private static long getHighestValue(int index) {
+            if (index < SUB_BUCKET_COUNT) {
+                return index;
+            }
+            int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+            long top = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+            return (top << shift) + (1L << shift) - 1;
+        }
+    }
+
+    /**
+     * The fields of a {@link VtsProfilingRecord} used for pairing.
+     */
+    private static class Event {
+        String mApi;
+        int mType;
+        long mTimestamp;
+    }
+
+    /**
+     * Reads a trace file.
+     *
+     * @param traceFile the file containing length-delimited {@link VtsProfilingRecord}s.
+     * @throws IOException if fails to read the file or the file is malformed.
+     */
+    public void addTraceFile(File traceFile) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(traceFile))) {
+            addTrace(in);
+        }
+    }
+
+    /**
+     * Reads the records of a trace. The records are paired within the trace.
+     *
+     * @param trace the stream of length-delimited {@link VtsProfilingRecord}s.
+     * @throws IOException if fails to read the stream or the stream is malformed.
+     */
+    public void addTrace(InputStream trace) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(trace);
+        // The unpaired entry events with the latest one at the head.
+        Deque<Event> openEvents = new ArrayDeque<>();
+        while (!in.isAtEnd()) {
+            int limit = in.pushLimit(in.readRawVarint32());
+            Event event = readEvent(in);
+            in.popLimit(limit);
+            in.resetSizeCounter();
+            if (event != null) {
+                processEvent(event, openEvents);
+            }
+        }
+        mUnpairedCount += openEvents.size();
+    }
+
+    private void processEvent(Event event, Deque<Event> openEvents) {
+        switch (event.mType) {
+            case InstrumentationEventType.SERVER_API_ENTRY_VALUE:
+            case InstrumentationEventType.CLIENT_API_ENTRY_VALUE:
+            case InstrumentationEventType.PASSTHROUGH_ENTRY_VALUE:
+                if (openEvents.size() >= MAX_OPEN_EVENTS) {
+                    openEvents.removeLast();
+                    mUnpairedCount++;
+                }
+                openEvents.push(event);
+                return;
+            case InstrumentationEventType.SERVER_API_EXIT_VALUE:
+            case InstrumentationEventType.CLIENT_API_EXIT_VALUE:
+            case InstrumentationEventType.PASSTHROUGH_EXIT_VALUE:
+                break;
+            default:
+                // Callback events are not paired.
+                return;
+        }
+        for (Iterator<Event> it = openEvents.iterator(); it.hasNext();) {
+            Event entry = it.next();
+            if (entry.mType + 1 != event.mType || !entry.mApi.equals(event.mApi)) {
+                continue;
+            }
+            it.remove();
+            long latency = event.mTimestamp - entry.mTimestamp;
+            if (latency < 0) {
+                mUnpairedCount++;
+                return;
+            }
+            LatencyHistogram histogram = mHistograms.get(event.mApi);
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                mHistograms.put(event.mApi, histogram);
+                mHalModes.put(event.mApi,
+                        event.mType == InstrumentationEventType.PASSTHROUGH_EXIT_VALUE
+                                ? "passthrough"
+                                : "binder");
+            }
+            histogram.record(latency);
+            mStartTimestamp = Math.min(mStartTimestamp, entry.mTimestamp);
+            mEndTimestamp = Math.max(mEndTimestamp, event.mTimestamp);
+            return;
+        }
+        mUnpairedCount++;
+    }
+
+    /**
+     * Reads the fields used for pairing from a record and skips the others.
+     *
+     * @return the event, or null if the record has no event type.
+     */
+    private static Event readEvent(CodedInputStream in) throws IOException {
+        Event event = new Event();
+        event.mType = -1;
+        ByteString packageName = ByteString.EMPTY;
+        ByteString interfaceName = ByteString.EMPTY;
+        ByteString functionName = ByteString.EMPTY;
+        int versionMajor = -1;
+        int versionMinor = -1;
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (tag >>> 3) {
+                case VtsProfilingRecord.TIMESTAMP_FIELD_NUMBER:
+                    event.mTimestamp = in.readInt64();
+                    break;
+                case VtsProfilingRecord.EVENT_FIELD_NUMBER:
+                    event.mType = in.readEnum();
+                    break;
+                case VtsProfilingRecord.PACKAGE_FIELD_NUMBER:
+                    packageName = in.readBytes();
+                    break;
+                case VtsProfilingRecord.INTERFACE_FIELD_NUMBER:
+                    interfaceName = in.readBytes();
+                    break;
+                case VtsProfilingRecord.VERSION_MAJOR_FIELD_NUMBER:
+                    versionMajor = in.readInt32();
+                    break;
+                case VtsProfilingRecord.VERSION_MINOR_FIELD_NUMBER:
+                    versionMinor = in.readInt32();
+                    break;
+                case VtsProfilingRecord.FUNC_MSG_FIELD_NUMBER:
+                    int limit = in.pushLimit(in.readRawVarint32());
+                    for (int funcTag = in.readTag(); funcTag != 0; funcTag = in.readTag()) {
+                        if (funcTag >>> 3 == FunctionSpecificationMessage.NAME_FIELD_NUMBER) {
+                            functionName = in.readBytes();
+                        } else {
+                            in.skipField(funcTag);
+                        }
+                    }
+                    in.popLimit(limit);
+                    break;
+                default:
+                    in.skipField(tag);
+            }
+        }
+        if (event.mType < 0) {
+            return null;
+        }
+        event.mApi = packageName.toStringUtf8() + "@" + versionMajor + "." + versionMinor + "::"
+                + interfaceName.toStringUtf8() + "::" + functionName.toStringUtf8();
+        return event;
+    }
+
+    /**
+     * @return the latency histograms keyed by full API name, e.g.,
+     *         android.hardware.foo@1.0::IFoo::bar.
+     */
+    public Map<String, LatencyHistogram> getHistograms() {
+        return mHistograms;
+    }
+
+    /**
+     * @return the number of events which are not paired.
+     */
+    public long getUnpairedCount() {
+        return mUnpairedCount;
+    }
+
+    /**
+     * Creates a profiling report for each API. The values are the min, percentiles, max, mean
+     * latencies in nanoseconds and the number of calls.
+     *
+     * @return the reports sorted by API name.
+     */
+    public List<ProfilingReportMessage> getProfilingReports() {
+        List<ProfilingReportMessage> reports = new ArrayList<>();
+        for (Map.Entry<String, LatencyHistogram> entry : mHistograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            ProfilingReportMessage.Builder report = ProfilingReportMessage.newBuilder();
+            report.setName(ByteString.copyFromUtf8(entry.getKey()))
+                    .setType(VtsProfilingType.VTS_PROFILING_TYPE_LABELED_VECTOR)
+                    .setRegressionMode(VtsProfilingRegressionMode.VTS_REGRESSION_MODE_INCREASING)
+                    .setStartTimestamp(mStartTimestamp)
+                    .setEndTimestamp(mEndTimestamp)
+                    .setXAxisLabel(ByteString.copyFromUtf8("API processing latency statistics"))
+                    .setYAxisLabel(ByteString.copyFromUtf8("API processing latency (nano secs)"))
+                    .addOptions(ByteString.copyFromUtf8(
+                            HAL_MODE_OPTION + mHalModes.get(entry.getKey())));
+            for (String label : REPORT_LABELS) {
+                report.addLabel(ByteString.copyFromUtf8(label));
+            }
+            report.addValue(histogram.getMin());
+            for (double percentile : REPORT_PERCENTILES) {
+                report.addValue(histogram.getValueAtPercentile(percentile));
+            }
+            report.addValue(histogram.getMax());
+            report.addValue(histogram.getMean());
+            report.addValue(histogram.getCount());
+            reports.add(report.build());
+        }
+        return reports;
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An index of the python packages installed in a virtualenv.
+ *
+ * <p>The index reads the metadata in the dist-info and egg-info entries of site-packages, instead
+ * of running "pip list". It is reloaded when the modified time of a site-packages directory
+ * changes, i.e., when a package is installed or removed. Requirements are matched with PEP 440
+ * version specifiers.
+ */
+public class VtsPythonPackageIndex {
+    private static final Pattern REQUIREMENT_PATTERN = Pattern.compile(
+            "^\\s*([A-Za-z0-9](?:[A-Za-z0-9._-]*[A-Za-z0-9])?)\\s*(?:\\[[^\\]]*\\])?\\s*(.*)$");
+    private static final Pattern SPECIFIER_PATTERN =
+            Pattern.compile("^\\s*(~=|===|==|!=|<=|>=|<|>)\\s*(\\S+)\\s*$");
+
+    private final File mVenvDir;
+    // The site-packages directories and their modified time when the index is loaded.
+    private Map<File, Long> mSitePackagesDirs = null;
+    // The normalized package names and their versions.
+    private Map<String, String> mPackages = null;
+
+    /**
+     * @param venvDir the virtualenv directory.
+     */
+    public VtsPythonPackageIndex(File venvDir) {
+        mVenvDir = venvDir;
+    }
+
+    /**
+     * Gets the version of an installed package.
+     *
+     * @param name the package name.
+     * @return the version string; null if the package is not installed.
+     */
+    public synchronized String getVersion(String name) {
+        Map<File, Long> sitePackagesDirs = findSitePackagesDirs();
+        if (!sitePackagesDirs.equals(mSitePackagesDirs)) {
+            mSitePackagesDirs = sitePackagesDirs;
+            mPackages = loadPackages(sitePackagesDirs.keySet());
+        }
+        return mPackages.get(normalizeName(name));
+    }
+
+    /**
+     * Checks whether an installed package satisfies a requirement.
+     *
+     * <p>Requirements with environment markers or URLs are not evaluated, so that pip checks
+     * them.
+     *
+     * @param requirement such as "numpy", "pip>=9", "protobuf~=3.0,!=3.2.*"
+     * @return true if a matching version is installed; false otherwise.
+     */
+    public boolean isInstalled(String requirement) {
+        Matcher matcher = REQUIREMENT_PATTERN.matcher(requirement);
+        if (!matcher.matches()) {
+            return false;
+        }
+        String specifiers = matcher.group(2).trim();
+        if (specifiers.contains(";") || specifiers.contains("@")) {
+            return false;
+        }
+        if (specifiers.startsWith("(") && specifiers.endsWith(")")) {
+            specifiers = specifiers.substring(1, specifiers.length() - 1);
+        }
+        String installedVersion = getVersion(matcher.group(1));
+        if (installedVersion == null) {
+            return false;
+        }
+        if (specifiers.isEmpty()) {
+            return true;
+        }
+        Version version = Version.parse(installedVersion);
+        for (String specifier : specifiers.split(",")) {
+            Matcher specifierMatcher = SPECIFIER_PATTERN.matcher(specifier);
+            if (!specifierMatcher.matches()) {
+                CLog.e("Unsupported version specifier: %s", specifier);
+                return false;
+            }
+            String operator = specifierMatcher.group(1);
+            String specVersion = specifierMatcher.group(2);
+            if (operator.equals("===")) {
+                if (!installedVersion.equalsIgnoreCase(specVersion)) {
+                    return false;
+                }
+            } else if (version == null || !version.matches(operator, specVersion)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Normalizes a package name as PEP 503.
+     */
+    static String normalizeName(String name) {
+        return name.toLowerCase(Locale.US).replaceAll("[-_.]+", "-");
+    }
+
+    /**
+     * @return the site-packages directories under lib/python* and Lib, and their modified time.
+     */
+    private Map<File, Long> findSitePackagesDirs() {
+        Map<File, Long> dirs = new HashMap<>();
+        List<File> candidates = new ArrayList<>();
+        File[] libDirs = new File(mVenvDir, "lib").listFiles(
+                (dir, name) -> name.startsWith("python"));
+        if (libDirs != null) {
+            for (File libDir : libDirs) {
+                candidates.add(new File(libDir, "site-packages"));
+            }
+        }
+        candidates.add(new File(mVenvDir, "Lib" + File.separator + "site-packages"));
+        for (File candidate : candidates) {
+            if (candidate.isDirectory()) {
+                dirs.put(candidate, candidate.lastModified());
+            }
+        }
+        return dirs;
+    }
+
+    /**
+     * Reads the names and versions in the package metadata.
+     */
+    private static Map<String, String> loadPackages(Iterable<File> sitePackagesDirs) {
+        Map<String, String> packages = new HashMap<>();
+        for (File sitePackagesDir : sitePackagesDirs) {
+            File[] entries = sitePackagesDir.listFiles();
+            if (entries == null) {
+                continue;
+            }
+            for (File entry : entries) {
+                File metadata;
+                if (entry.getName().endsWith(".dist-info")) {
+                    metadata = new File(entry, "METADATA");
+                } else if (entry.getName().endsWith(".egg-info")) {
+                    metadata = entry.isDirectory() ? new File(entry, "PKG-INFO") : entry;
+                } else {
+                    continue;
+                }
+                try {
+                    readMetadata(metadata, packages);
+                } catch (IOException e) {
+                    CLog.e("Failed to read %s: %s", metadata, e.toString());
+                }
+            }
+        }
+        return packages;
+    }
+
+    /**
+     * Reads the name and version in the headers of a metadata file.
+     */
+    private static void readMetadata(File metadata, Map<String, String> packages)
+            throws IOException {
+        if (!metadata.isFile()) {
+            return;
+        }
+        String name = null;
+        String version = null;
+        try (BufferedReader reader =
+                        Files.newBufferedReader(metadata.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                if (line.startsWith("Name:")) {
+                    name = line.substring("Name:".length()).trim();
+                } else if (line.startsWith("Version:")) {
+                    version = line.substring("Version:".length()).trim();
+                }
+                if (name != null && version != null) {
+                    packages.put(normalizeName(name), version);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * A PEP 440 version.
+     */
+    public static class Version implements Comparable<Version> {
+        private static final Pattern VERSION_PATTERN = Pattern.compile("^\\s*v?"
+                        + "(?:(\\d+)!)?"
+                        + "(\\d+(?:\\.\\d+)*)"
+                        + "(?:[-_.]?(a|b|c|rc|alpha|beta|pre|preview)[-_.]?(\\d+)?)?"
+                        + "(?:-(\\d+)|[-_.]?(post|rev|r)[-_.]?(\\d+)?)?"
+                        + "(?:[-_.]?(dev)[-_.]?(\\d+)?)?"
+                        + "(?:\\+([a-z0-9]+(?:[-_.][a-z0-9]+)*))?\\s*$",
+                Pattern.CASE_INSENSITIVE);
+        private static final int NONE = -1;
+
+        private final long mEpoch;
+        private final long[] mRelease;
+        // 0 for alpha, 1 for beta, 2 for release candidate, or NONE.
+        private final int mPreType;
+        private final long mPre;
+        private final long mPost;
+        private final long mDev;
+        private final String[] mLocal;
+
+        private Version(long epoch, long[] release, int preType, long pre, long post, long dev,
+                String[] local) {
+            mEpoch = epoch;
+            mRelease = release;
+            mPreType = preType;
+            mPre = pre;
+            mPost = post;
+            mDev = dev;
+            mLocal = local;
+        }
+
+        /**
+         * Parses a version string.
+         *
+         * @return the version; null if the string is not a valid PEP 440 version.
+         */
+        public static Version parse(String version) {
+            Matcher matcher = VERSION_PATTERN.matcher(version);
+            if (!matcher.matches()) {
+                return null;
+            }
+            try {
+                String[] releaseTokens = matcher.group(2).split("\\.");
+                long[] release = new long[releaseTokens.length];
+                for (int i = 0; i < release.length; i++) {
+                    release[i] = Long.parseLong(releaseTokens[i]);
+                }
+                int preType = NONE;
+                if (matcher.group(3) != null) {
+                    String type = matcher.group(3).toLowerCase(Locale.US);
+                    preType = type.startsWith("a") ? 0 : type.startsWith("b") ? 1 : 2;
+                }
+                long post = NONE;
+                if (matcher.group(5) != null) {
+                    post = Long.parseLong(matcher.group(5));
+                } else if (matcher.group(6) != null) {
+                    post = parseNumber(matcher.group(7));
+                }
+                return new Version(parseNumber(matcher.group(1)), release, preType,
+                        parseNumber(matcher.group(4)), post,
+                        matcher.group(8) == null ? NONE : parseNumber(matcher.group(9)),
+                        matcher.group(10) == null
+                                ? null
+                                : matcher.group(10).toLowerCase(Locale.US).split("[-_.]"));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private static long parseNumber(String number) {
+            return number == null ? 0 : Long.parseLong(number);
+        }
+
+        public boolean isPreRelease() {
+            return mPreType != NONE || mDev != NONE;
+        }
+
+        public boolean isPostRelease() {
+            return mPost != NONE;
+        }
+
+        /**
+         * @return the version without the local label.
+         */
+        public Version getPublic() {
+            return new Version(mEpoch, mRelease, mPreType, mPre, mPost, mDev, null);
+        }
+
+        /**
+         * @return the epoch and release segments only.
+         */
+        public Version getBase() {
+            return new Version(mEpoch, mRelease, NONE, 0, NONE, NONE, null);
+        }
+
+        /**
+         * Checks whether this version matches a specifier other than "===".
+         *
+         * @param operator one of "~=", "==", "!=", "<=", ">=", "<", ">".
+         * @param specVersion the version in the specifier, which may end with ".*" for "==" and
+         *                    "!=".
+         * @return true if this version matches; false otherwise or the specifier is invalid.
+         */
+        public boolean matches(String operator, String specVersion) {
+            if (specVersion.endsWith(".*")) {
+                Version prefix = parse(specVersion.substring(0, specVersion.length() - 2));
+                if (prefix == null) {
+                    return false;
+                }
+                switch (operator) {
+                    case "==":
+                        return matchesPrefix(prefix);
+                    case "!=":
+                        return !matchesPrefix(prefix);
+                    default:
+                        return false;
+                }
+            }
+            Version spec = parse(specVersion);
+            if (spec == null) {
+                return false;
+            }
+            // Local labels are ignored unless the specifier has one.
+            Version version = spec.mLocal == null ? getPublic() : this;
+            switch (operator) {
+                case "==":
+                    return version.compareTo(spec) == 0;
+                case "!=":
+                    return version.compareTo(spec) != 0;
+                case "<=":
+                    return getPublic().compareTo(spec) <= 0;
+                case ">=":
+                    return getPublic().compareTo(spec) >= 0;
+                case "<":
+                    return compareTo(spec) < 0
+                            && (spec.isPreRelease() || !isPreRelease()
+                                    || getBase().compareTo(spec.getBase()) != 0);
+                case ">":
+                    return compareTo(spec) > 0
+                            && (spec.isPostRelease() || !isPostRelease()
+                                    || getBase().compareTo(spec.getBase()) != 0)
+                            && (mLocal == null || getBase().compareTo(spec.getBase()) != 0);
+                case "~=":
+                    if (spec.mRelease.length < 2) {
+                        return false;
+                    }
+                    long[] prefix = new long[spec.mRelease.length - 1];
+                    System.arraycopy(spec.mRelease, 0, prefix, 0, prefix.length);
+                    return getPublic().compareTo(spec) >= 0
+                            && matchesPrefix(
+                                       new Version(spec.mEpoch, prefix, NONE, 0, NONE, NONE, null));
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Checks whether this version matches a "==V.*" specifier.
+         */
+        private boolean matchesPrefix(Version prefix) {
+            if (mEpoch != prefix.mEpoch) {
+                return false;
+            }
+            for (int i = 0; i < prefix.mRelease.length; i++) {
+                long release = i < mRelease.length ? mRelease[i] : 0;
+                if (release != prefix.mRelease[i]) {
+                    return false;
+                }
+            }
+            if (prefix.mPreType != NONE && (mPreType != prefix.mPreType || mPre != prefix.mPre)) {
+                return false;
+            }
+            if (prefix.mPost != NONE && mPost != prefix.mPost) {
+                return false;
+            }
+            return prefix.mDev == NONE || mDev == prefix.mDev;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int compareTo(Version other) {
+            int result = Long.compare(mEpoch, other.mEpoch);
+            if (result != 0) {
+                return result;
+            }
+            int length = Math.max(mRelease.length, other.mRelease.length);
+            for (int i = 0; i < length; i++) {
+                result = Long.compare(i < mRelease.length ? mRelease[i] : 0,
+                        i < other.mRelease.length ? other.mRelease[i] : 0);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            result = comparePre(other);
+            if (result != 0) {
+                return result;
+            }
+            result = Long.compare(mPost, other.mPost);
+            if (result != 0) {
+                return result;
+            }
+            // A version without dev segment is greater.
+            result = Long.compare(mDev == NONE ? Long.MAX_VALUE : mDev,
+                    other.mDev == NONE ? Long.MAX_VALUE : other.mDev);
+            if (result != 0) {
+                return result;
+            }
+            return compareLocal(other);
+        }
+
+        /**
+         * Compares the pre-release segments. A dev release of a final version is less than its
+         * pre-releases, and a final version is greater than its pre-releases.
+         */
+        private int comparePre(Version other) {
+            if (mPreType == other.mPreType) {
+                return Long.compare(mPre, other.mPre);
+            }
+            return Integer.compare(getPreTypeOrder(), other.getPreTypeOrder());
+        }
+
+        private int getPreTypeOrder() {
+            if (mPreType != NONE) {
+                return mPreType;
+            }
+            return mPost == NONE && mDev != NONE ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+        }
+
+        /**
+         * Compares the local labels. Numeric segments are greater than alphanumeric ones.
+         */
+        private int compareLocal(Version other) {
+            if (mLocal == null || other.mLocal == null) {
+                return Boolean.compare(mLocal != null, other.mLocal != null);
+            }
+            int length = Math.min(mLocal.length, other.mLocal.length);
+            for (int i = 0; i < length; i++) {
+                boolean isNumber = mLocal[i].matches("\\d+");
+                boolean isOtherNumber = other.mLocal[i].matches("\\d+");
+                int result;
+                if (isNumber && isOtherNumber) {
+                    result = Long.compare(
+                            Long.parseLong(mLocal[i]), Long.parseLong(other.mLocal[i]));
+                } else if (isNumber || isOtherNumber) {
+                    result = Boolean.compare(isNumber, isOtherNumber);
+                } else {
+                    result = mLocal[i].compareTo(other.mLocal[i]);
+                }
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return Integer.compare(mLocal.length, other.mLocal.length);
+        }
+    }
+}
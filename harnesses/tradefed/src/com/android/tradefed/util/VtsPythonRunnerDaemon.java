@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-lived VTS Python runner process which runs test modules as jobs. The daemon imports the
+ * runner once and forks a child process for each job, so that the jobs do not pay for interpreter
+ * startup and module loading. See vts/runners/host/runner_daemon.py for the protocol.
+ * <p>
+ * The idle daemons are pooled by virtualenv and working directory, and are shut down by
+ * {@link #shutDown(String)} when the virtualenv is torn down. The daemons which are running jobs
+ * at that time are stopped when they are released.
+ */
+public class VtsPythonRunnerDaemon {
+    static final String DAEMON_MODULE = "vts.runners.host.runner_daemon";
+    static final String REQUEST_ARGS = "args";
+    static final String REQUEST_CANCEL = "cancel";
+    static final String REQUEST_JOB = "job";
+    static final String REQUEST_STDERR = "stderr";
+    static final String REQUEST_STDOUT = "stdout";
+    static final String REPLY_EXIT_CODE = "exit_code";
+    static final String REPLY_READY = "ready";
+
+    // The time to wait for the daemon to import the runner.
+    static final long START_TIMEOUT_MSECS = 1000 * 60;
+    // The time to wait for the daemon to exit after its stdin is closed.
+    private static final long STOP_TIMEOUT_MSECS = 1000 * 10;
+    // Put in the reply queue when the daemon closes its stdout.
+    private static final String END_OF_REPLIES = "";
+
+    // The idle daemons keyed by virtualenv and working directory.
+    private static final Map<String, Deque<VtsPythonRunnerDaemon>> sIdleDaemons =
+            new HashMap<>();
+    // The number of times each virtualenv is shut down, guarded by sIdleDaemons. The key is null
+    // for the system python.
+    private static final Map<String, Integer> sShutDownCounts = new HashMap<>();
+
+    private final String mKey;
+    private final String mVirtualenvPath;
+    // The shut down count of the virtualenv when the daemon starts.
+    private final int mShutDownCount;
+    private final Process mProcess;
+    private final Writer mStdinWriter;
+    private final BlockingQueue<String> mReplies = new LinkedBlockingQueue<>();
+    private long mLastJobId = 0;
+    private boolean mBroken = false;
+
+    /**
+     * This class waits for the reply of a job. It is run by {@link IRunUtil}.
+     */
+    private class JobRunnable implements IRunUtil.IRunnableResult {
+        private final long mJobId;
+        private Thread mExecutionThread = null;
+        private boolean mCancelled = false;
+        private int mExitCode = -1;
+
+        JobRunnable(long jobId) {
+            mJobId = jobId;
+        }
+
+        /**
+         * @return whether the job exits with 0.
+         * @throws IOException if the daemon terminates before the job finishes.
+         */
+        @Override
+        public boolean run() throws IOException {
+            synchronized (this) {
+                mExecutionThread = Thread.currentThread();
+                if (mCancelled) {
+                    return false;
+                }
+            }
+            try {
+                mExitCode = waitForJob(mJobId, 0);
+            } catch (InterruptedException e) {
+                CLog.e("Job %d is interrupted.", mJobId);
+                return false;
+            }
+            return mExitCode == 0;
+        }
+
+        @Override
+        public synchronized void cancel() {
+            mCancelled = true;
+            if (mExecutionThread != null) {
+                mExecutionThread.interrupt();
+            }
+        }
+
+        Thread getExecutionThread() {
+            synchronized (this) {
+                return mExecutionThread;
+            }
+        }
+    }
+
+    /**
+     * Starts a daemon and waits for it to be ready.
+     *
+     * @param runUtil the {@link IRunUtil} with the virtualenv and working directory.
+     * @param key the key of the pool.
+     * @param virtualenvPath the virtualenv path; null if the system python is used.
+     * @throws IOException if the daemon fails to start.
+     */
+    private VtsPythonRunnerDaemon(IRunUtil runUtil, String key, String virtualenvPath)
+            throws IOException {
+        mKey = key;
+        mVirtualenvPath = virtualenvPath;
+        synchronized (sIdleDaemons) {
+            mShutDownCount = sShutDownCounts.getOrDefault(virtualenvPath, 0);
+        }
+        mProcess = runUtil.runCmdInBackground("python", "-m", DAEMON_MODULE);
+        mStdinWriter = new OutputStreamWriter(mProcess.getOutputStream(), StandardCharsets.UTF_8);
+        Thread replyReader = new Thread(this::readReplies, "vts-runner-daemon-stdout");
+        replyReader.setDaemon(true);
+        replyReader.start();
+        Thread logReader = new Thread(this::readLogs, "vts-runner-daemon-stderr");
+        logReader.setDaemon(true);
+        logReader.start();
+
+        String reply = null;
+        try {
+            reply = mReplies.poll(START_TIMEOUT_MSECS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            CLog.e(e);
+        }
+        try {
+            if (reply == null || !new JSONObject(reply).optBoolean(REPLY_READY)) {
+                throw new IOException("Runner daemon is not ready: " + reply);
+            }
+        } catch (JSONException | IOException e) {
+            mProcess.destroyForcibly();
+            throw new IOException("Runner daemon fails to start.", e);
+        }
+    }
+
+    /**
+     * Reads replies from the daemon's stdout to the reply queue.
+     */
+    private void readReplies() {
+        try (BufferedReader reader = new BufferedReader(
+                     new InputStreamReader(mProcess.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    mReplies.add(line);
+                }
+            }
+        } catch (IOException e) {
+            CLog.e(e);
+        } finally {
+            mReplies.add(END_OF_REPLIES);
+        }
+    }
+
+    /**
+     * Logs the daemon's stderr. The jobs' output is written to files instead.
+     */
+    private void readLogs() {
+        try (BufferedReader reader = new BufferedReader(
+                     new InputStreamReader(mProcess.getErrorStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                CLog.i("runner daemon: %s", line);
+            }
+        } catch (IOException e) {
+            CLog.e(e);
+        }
+    }
+
+    /**
+     * Gets an idle daemon from the pool or starts a new one.
+     *
+     * @param runUtil the {@link IRunUtil} with the virtualenv and working directory.
+     * @param virtualenvPath the virtualenv path; null if the system python is used.
+     * @param workingDir the working directory of the runner.
+     * @return the daemon which must be returned by {@link #release(VtsPythonRunnerDaemon)}.
+     * @throws IOException if fails to start a daemon.
+     */
+    public static VtsPythonRunnerDaemon acquire(
+            IRunUtil runUtil, String virtualenvPath, File workingDir) throws IOException {
+        String key = virtualenvPath + File.pathSeparator + workingDir.getAbsolutePath();
+        synchronized (sIdleDaemons) {
+            Deque<VtsPythonRunnerDaemon> daemons = sIdleDaemons.get(key);
+            while (daemons != null && !daemons.isEmpty()) {
+                VtsPythonRunnerDaemon daemon = daemons.pop();
+                if (daemon.isUsable()) {
+                    return daemon;
+                }
+                daemon.stop();
+            }
+        }
+        CLog.i("Start runner daemon for %s", key);
+        return new VtsPythonRunnerDaemon(runUtil, key, virtualenvPath);
+    }
+
+    /**
+     * Returns a daemon to the pool. The daemon is stopped if it is broken or its virtualenv has
+     * been shut down since it started.
+     *
+     * @param daemon the daemon returned by {@link #acquire(IRunUtil, String, File)}.
+     */
+    public static void release(VtsPythonRunnerDaemon daemon) {
+        synchronized (sIdleDaemons) {
+            if (daemon.isUsable() && daemon.mShutDownCount
+                            == sShutDownCounts.getOrDefault(daemon.mVirtualenvPath, 0)) {
+                sIdleDaemons.computeIfAbsent(daemon.mKey, k -> new ArrayDeque<>()).push(daemon);
+                return;
+            }
+        }
+        daemon.stop();
+    }
+
+    /**
+     * Stops the idle daemons using a virtualenv. The daemons using the virtualenv which are
+     * running jobs are stopped when they are released.
+     *
+     * @param virtualenvPath the virtualenv path; null for the system python.
+     */
+    public static void shutDown(String virtualenvPath) {
+        synchronized (sIdleDaemons) {
+            sShutDownCounts.merge(virtualenvPath, 1, Integer::sum);
+            Iterator<Deque<VtsPythonRunnerDaemon>> it = sIdleDaemons.values().iterator();
+            while (it.hasNext()) {
+                Deque<VtsPythonRunnerDaemon> daemons = it.next();
+                if (!daemons.isEmpty()
+                        && Objects.equals(virtualenvPath, daemons.peek().mVirtualenvPath)) {
+                    for (VtsPythonRunnerDaemon daemon : daemons) {
+                        daemon.stop();
+                    }
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a test module and handles interrupt from TradeFed.
+     *
+     * @param args the arguments following "python" on the command line.
+     * @param stdoutFile the file to write the runner's stdout to.
+     * @param stderrFile the file to write the runner's stderr to.
+     * @param timeoutMsecs the time to wait for the job in milliseconds.
+     * @return {@link CommandStatus#SUCCESS} or {@link CommandStatus#FAILED} if the job finishes;
+     * {@link CommandStatus#TIMED_OUT} if it times out; {@link CommandStatus#EXCEPTION} if the
+     * daemon terminates unexpectedly.
+     * @throws IOException if fails to send the job to the daemon. The job is not started.
+     * @throws RunInterruptedException if TradeFed interrupts the test invocation.
+     */
+    public CommandStatus runJob(String[] args, File stdoutFile, File stderrFile, long timeoutMsecs)
+            throws IOException, RunInterruptedException {
+        long jobId = ++mLastJobId;
+        JSONObject request = new JSONObject();
+        try {
+            request.put(REQUEST_JOB, jobId);
+            request.put(REQUEST_ARGS, new JSONArray(Arrays.asList(args)));
+            request.put(REQUEST_STDOUT, stdoutFile.getAbsolutePath());
+            request.put(REQUEST_STDERR, stderrFile.getAbsolutePath());
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        try {
+            sendRequest(request);
+        } catch (IOException e) {
+            mBroken = true;
+            throw e;
+        }
+
+        JobRunnable runnable = new JobRunnable(jobId);
+        CommandStatus status;
+        // Use default RunUtil because it can receive the notification of "invocation stop".
+        try {
+            status = RunUtil.getDefault().runTimed(timeoutMsecs, runnable, true);
+        } catch (RunInterruptedException e) {
+            Thread.interrupted();
+            runnable.cancel();
+            joinThread(runnable.getExecutionThread());
+            cancelJob(jobId);
+            throw e;
+        }
+        if (CommandStatus.TIMED_OUT.equals(status)) {
+            joinThread(runnable.getExecutionThread());
+            cancelJob(jobId);
+        } else if (CommandStatus.EXCEPTION.equals(status)) {
+            mBroken = true;
+        }
+        return status;
+    }
+
+    /**
+     * Aborts a running job and waits for it to terminate. The daemon is stopped if the job does
+     * not terminate.
+     *
+     * @param jobId the job to abort.
+     */
+    private void cancelJob(long jobId) {
+        CLog.e("Cancel runner job %d and wait %d seconds.", jobId,
+                VtsPythonRunnerHelper.TEST_ABORT_TIMEOUT_MSECS / 1000);
+        try {
+            JSONObject request = new JSONObject();
+            request.put(REQUEST_CANCEL, jobId);
+            sendRequest(request);
+            if (waitForJob(jobId, VtsPythonRunnerHelper.TEST_ABORT_TIMEOUT_MSECS) != null) {
+                return;
+            }
+            CLog.e("Runner job %d does not terminate.", jobId);
+        } catch (IOException | JSONException | InterruptedException e) {
+            CLog.e(e);
+        }
+        mBroken = true;
+    }
+
+    /**
+     * Waits for the reply of a job.
+     *
+     * @param jobId the job to wait for.
+     * @param timeoutMsecs the time to wait in milliseconds; 0 for no timeout.
+     * @return the exit code of the job; null if timeout.
+     * @throws IOException if the daemon terminates.
+     * @throws InterruptedException if the thread is interrupted.
+     */
+    private Integer waitForJob(long jobId, long timeoutMsecs)
+            throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMsecs;
+        while (true) {
+            String reply;
+            if (timeoutMsecs > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                reply = mReplies.poll(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+                if (reply == null) {
+                    return null;
+                }
+            } else {
+                reply = mReplies.take();
+            }
+            if (END_OF_REPLIES.equals(reply)) {
+                // Let later waits see the end of the stream as well.
+                mReplies.add(END_OF_REPLIES);
+                throw new IOException("Runner daemon terminated.");
+            }
+            try {
+                JSONObject object = new JSONObject(reply);
+                if (object.optLong(REQUEST_JOB, -1) == jobId) {
+                    return object.getInt(REPLY_EXIT_CODE);
+                }
+            } catch (JSONException e) {
+                CLog.e("Cannot parse runner daemon reply: %s", reply);
+            }
+        }
+    }
+
+    private void sendRequest(JSONObject request) throws IOException {
+        mStdinWriter.write(request.toString() + "\n");
+        mStdinWriter.flush();
+    }
+
+    /**
+     * @return whether the daemon can run another job.
+     */
+    private boolean isUsable() {
+        return !mBroken && mProcess.isAlive();
+    }
+
+    /**
+     * Closes the daemon's stdin and kills it if it does not exit.
+     */
+    private void stop() {
+        CLog.i("Stop runner daemon for %s", mKey);
+        try {
+            mStdinWriter.close();
+            if (mProcess.waitFor(STOP_TIMEOUT_MSECS, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+            CLog.e("Runner daemon does not exit. Kill it.");
+        } catch (IOException | InterruptedException e) {
+            CLog.e(e);
+        }
+        mProcess.destroyForcibly();
+    }
+
+    private static void joinThread(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join(STOP_TIMEOUT_MSECS);
+        } catch (InterruptedException e) {
+            CLog.e(e);
+        }
+    }
+}
@@ -22,6 +22,7 @@ import com.android.tradefed.targetprep.VtsPythonVirtualenvPreparer;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * A helper class for executing VTS python scripts.
@@ -33,10 +34,20 @@ public class VtsPythonRunnerHelper {
     static final String PATH = "PATH";
     static final String PYTHONHOME = "PYTHONHOME";
     static final String VTS = "vts";
+    static final String RUNNER_STDOUT_FILE_NAME = "runner_stdout.txt";
+    static final String RUNNER_STDERR_FILE_NAME = "runner_stderr.txt";
 
     // Python virtual environment root path
     private File mVirtualenvPath;
     protected IRunUtil mRunUtil;
+    // The max number of characters of the runner's stdout and stderr to keep in memory.
+    private int mMaxOutputChars = 0;
+    // The directory to write the runner's full stdout and stderr to.
+    private File mOutputLogDir = null;
+    // The working directory of the runner.
+    private File mWorkingDir;
+    // Whether to run python commands in a VtsPythonRunnerDaemon.
+    private boolean mUseDaemon = false;
 
     public VtsPythonRunnerHelper(IBuildInfo buildInfo, File workingDir) {
         this(buildInfo.getBuildAttributes().get(VtsPythonVirtualenvPreparer.VIRTUAL_ENV),
@@ -52,6 +63,29 @@ public class VtsPythonRunnerHelper {
         mRunUtil = new RunUtil();
         activateVirtualenv(mRunUtil, getPythonVirtualEnv());
         mRunUtil.setWorkingDir(workingDir);
+        mWorkingDir = workingDir;
+    }
+
+    /**
+     * Keep only the last characters of the runner's stdout and stderr in {@link CommandResult},
+     * and write the full output to files.
+     *
+     * @param maxOutputChars the max number of characters to keep; 0 for unbounded.
+     * @param outputLogDir the directory to write the output files to; null for not writing.
+     */
+    public void setOutputRetention(int maxOutputChars, File outputLogDir) {
+        mMaxOutputChars = maxOutputChars;
+        mOutputLogDir = outputLogDir;
+    }
+
+    /**
+     * Run the python commands as jobs of a {@link VtsPythonRunnerDaemon} instead of new processes.
+     * The commands are run in new processes if the daemon is not available.
+     *
+     * @param useDaemon whether to use the daemon.
+     */
+    public void setUseDaemon(boolean useDaemon) {
+        mUseDaemon = useDaemon;
     }
 
     /**
@@ -61,7 +95,12 @@ public class VtsPythonRunnerHelper {
      * @throws IOException if fails to start Process.
      */
     protected ProcessHelper createProcessHelper(String[] cmd) throws IOException {
-        return new ProcessHelper(mRunUtil.runCmdInBackground(cmd));
+        if (mOutputLogDir == null) {
+            return new ProcessHelper(mRunUtil.runCmdInBackground(cmd), mMaxOutputChars, null, null);
+        }
+        return new ProcessHelper(mRunUtil.runCmdInBackground(cmd), mMaxOutputChars,
+                new File(mOutputLogDir, RUNNER_STDOUT_FILE_NAME),
+                new File(mOutputLogDir, RUNNER_STDERR_FILE_NAME));
     }
 
     /**
@@ -74,6 +113,15 @@ public class VtsPythonRunnerHelper {
      * interrupted by TradeFed.
      */
     public String runPythonRunner(String[] cmd, CommandResult commandResult, long timeout) {
+        if (mUseDaemon && !EnvUtil.isOnWindows() && cmd.length > 1 && "python".equals(cmd[0])) {
+            try {
+                return runPythonRunnerInDaemon(cmd, commandResult, timeout);
+            } catch (IOException e) {
+                CLog.e("Cannot run the command in runner daemon. Start a new process.");
+                CLog.e(e);
+            }
+        }
+
         ProcessHelper process;
         try {
             process = createProcessHelper(cmd);
@@ -117,6 +165,71 @@ public class VtsPythonRunnerHelper {
         return interruptMessage;
     }
 
+    /**
+     * Run VTS Python runner as a job of a {@link VtsPythonRunnerDaemon}.
+     *
+     * @param cmd the command to start VTS Python runner.
+     * @param commandResult the object containing the command result.
+     * @param timeout command timeout value.
+     * @return null if the command terminates or times out; a message string if the command is
+     * interrupted by TradeFed.
+     * @throws IOException if the job cannot be started. The command has not run.
+     */
+    private String runPythonRunnerInDaemon(String[] cmd, CommandResult commandResult, long timeout)
+            throws IOException {
+        File stdoutFile;
+        File stderrFile;
+        if (mOutputLogDir != null) {
+            stdoutFile = new File(mOutputLogDir, RUNNER_STDOUT_FILE_NAME);
+            stderrFile = new File(mOutputLogDir, RUNNER_STDERR_FILE_NAME);
+        } else {
+            stdoutFile = FileUtil.createTempFile("vts-runner-stdout", ".txt");
+            stderrFile = FileUtil.createTempFile("vts-runner-stderr", ".txt");
+        }
+
+        VtsPythonRunnerDaemon daemon =
+                VtsPythonRunnerDaemon.acquire(mRunUtil, getPythonVirtualEnv(), mWorkingDir);
+        String interruptMessage = null;
+        ProcessHelper.OutputFileFollower stdout = null;
+        ProcessHelper.OutputFileFollower stderr = null;
+        try {
+            // The job appends to the files, which are followed to log the output as it is written.
+            FileUtil.writeToFile("", stdoutFile);
+            FileUtil.writeToFile("", stderrFile);
+            stdout = new ProcessHelper.OutputFileFollower(
+                    stdoutFile, mMaxOutputChars, ProcessHelper.ReaderThread.LogType.STDOUT);
+            stderr = new ProcessHelper.OutputFileFollower(
+                    stderrFile, mMaxOutputChars, ProcessHelper.ReaderThread.LogType.STDERR);
+            CommandStatus commandStatus;
+            try {
+                commandStatus = daemon.runJob(
+                        Arrays.copyOfRange(cmd, 1, cmd.length), stdoutFile, stderrFile, timeout);
+            } catch (RunInterruptedException e) {
+                CLog.e("Python runner job is interrupted.");
+                commandStatus = CommandStatus.TIMED_OUT;
+                interruptMessage = (e.getMessage() != null ? e.getMessage() : "");
+            }
+            commandResult.setStatus(commandStatus);
+            stdout.finish();
+            stderr.finish();
+            commandResult.setStdout(stdout.getOutput());
+            commandResult.setStderr(stderr.getOutput());
+        } finally {
+            if (stdout != null) {
+                stdout.finish();
+            }
+            if (stderr != null) {
+                stderr.finish();
+            }
+            VtsPythonRunnerDaemon.release(daemon);
+            if (mOutputLogDir == null) {
+                FileUtil.deleteFile(stdoutFile);
+                FileUtil.deleteFile(stderrFile);
+            }
+        }
+        return interruptMessage;
+    }
+
     /**
      * Gets python bin directory path.
      *
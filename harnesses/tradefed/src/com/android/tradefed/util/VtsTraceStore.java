@@ -0,0 +1,574 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import com.android.vts.proto.VtsComponentSpecificationMessage.FunctionSpecificationMessage;
+import com.android.vts.proto.VtsProfilingMessageClass.VtsProfilingRecord;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A columnar, memory-mapped store of {@link VtsProfilingRecord}s which supports range scans by
+ * time and API without deserializing the records.
+ *
+ * <p>The records are stored in columns. The timestamps are delta-encoded in blocks of
+ * {@link #BLOCK_SIZE} records, and each block has an entry in a sparse index with its min and max
+ * timestamps. The package, version, interface and function of each record are encoded as an id
+ * in a dictionary of APIs. The function messages are kept as serialized bytes so that the
+ * records can be restored.
+ *
+ * <p>File layout (big-endian): a header of {@link #HEADER_LENGTH} bytes with the magic, version,
+ * record count, block size, API count and the offsets of the sections, followed by the sections:
+ * the API dictionary, the block index, the timestamps, the events, the API ids, the offsets of the
+ * function messages and the function messages.
+ */
+public class VtsTraceStore {
+    public static final String FILE_SUFFIX = ".vts.ctrace";
+    static final int MAGIC = 0x56435452; // "VCTR"
+    static final int VERSION = 1;
+    static final int BLOCK_SIZE = 1024;
+    static final int HEADER_LENGTH = 80;
+    // Event value of the records without event type.
+    static final int NO_EVENT = 0xff;
+
+    private static final int SECTION_DICTIONARY = 0;
+    private static final int SECTION_INDEX = 1;
+    private static final int SECTION_TIMESTAMPS = 2;
+    private static final int SECTION_EVENTS = 3;
+    private static final int SECTION_APIS = 4;
+    private static final int SECTION_PAYLOAD_OFFSETS = 5;
+    private static final int SECTION_PAYLOADS = 6;
+    private static final int SECTION_COUNT = 7;
+    // Size of an entry in the block index: byte offset, min timestamp and max timestamp.
+    private static final int INDEX_ENTRY_LENGTH = 24;
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mRecordCount;
+    private final int mBlockSize;
+    private final List<Api> mApis = new ArrayList<>();
+    private final int[] mSectionOffsets = new int[SECTION_COUNT];
+
+    /**
+     * The package, version, interface and function of a record.
+     */
+    public static class Api {
+        private final ByteString mPackage;
+        private final int mVersionMajor;
+        private final int mVersionMinor;
+        private final ByteString mInterface;
+        private final ByteString mFunction;
+
+        Api(ByteString packageName, int versionMajor, int versionMinor, ByteString interfaceName,
+                ByteString function) {
+            mPackage = packageName;
+            mVersionMajor = versionMajor;
+            mVersionMinor = versionMinor;
+            mInterface = interfaceName;
+            mFunction = function;
+        }
+
+        public String getPackage() {
+            return mPackage.toStringUtf8();
+        }
+
+        public int getVersionMajor() {
+            return mVersionMajor;
+        }
+
+        public int getVersionMinor() {
+            return mVersionMinor;
+        }
+
+        public String getInterface() {
+            return mInterface.toStringUtf8();
+        }
+
+        public String getFunction() {
+            return mFunction.toStringUtf8();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Api)) {
+                return false;
+            }
+            Api api = (Api) other;
+            return mPackage.equals(api.mPackage) && mVersionMajor == api.mVersionMajor
+                    && mVersionMinor == api.mVersionMinor && mInterface.equals(api.mInterface)
+                    && mFunction.equals(api.mFunction);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = mPackage.hashCode();
+            hash = hash * 31 + mVersionMajor;
+            hash = hash * 31 + mVersionMinor;
+            hash = hash * 31 + mInterface.hashCode();
+            return hash * 31 + mFunction.hashCode();
+        }
+
+        /**
+         * @return the full API name, e.g., android.hardware.foo@1.0::IFoo::bar.
+         */
+        @Override
+        public String toString() {
+            return String.format("%s@%d.%d::%s::%s", getPackage(), mVersionMajor, mVersionMinor,
+                    getInterface(), getFunction());
+        }
+    }
+
+    /**
+     * Receives the records found by {@link #scan}.
+     */
+    public interface RecordVisitor {
+        /**
+         * @param index the index of the record in the store.
+         * @param timestamp the timestamp of the record.
+         * @param event the event type number, or {@link #NO_EVENT}.
+         * @param apiId the id of the API of the record.
+         */
+        void visit(int index, long timestamp, int event, int apiId) throws IOException;
+    }
+
+    /**
+     * Opens a store.
+     *
+     * @param file the file created by {@link #convert}.
+     * @throws IOException if fails to read the file or the file is malformed.
+     */
+    public VtsTraceStore(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = mFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Trace store is too large: " + file);
+            }
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mBuffer.limit() < HEADER_LENGTH || mBuffer.getInt(0) != MAGIC
+                    || mBuffer.getInt(4) != VERSION) {
+                throw new IOException("Unknown trace store format: " + file);
+            }
+            mRecordCount = (int) mBuffer.getLong(8);
+            mBlockSize = mBuffer.getInt(16);
+            int apiCount = mBuffer.getInt(20);
+            for (int i = 0; i < SECTION_COUNT; i++) {
+                mSectionOffsets[i] = (int) mBuffer.getLong(24 + i * 8);
+            }
+            ByteBuffer dictionary = mBuffer.duplicate();
+            dictionary.position(mSectionOffsets[SECTION_DICTIONARY]);
+            for (int i = 0; i < apiCount; i++) {
+                ByteString packageName = readBytes(dictionary);
+                int versionMajor = dictionary.getInt();
+                int versionMinor = dictionary.getInt();
+                ByteString interfaceName = readBytes(dictionary);
+                mApis.add(new Api(packageName, versionMajor, versionMinor, interfaceName,
+                        readBytes(dictionary)));
+            }
+        } catch (IOException | RuntimeException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * @return the APIs, where the index of an API is its id.
+     */
+    public List<Api> getApis() {
+        return mApis;
+    }
+
+    /**
+     * Finds the APIs by interface and function name.
+     *
+     * @param interfaceName the interface name, or null to match any interface.
+     * @param function the function name, or null to match any function.
+     * @return the ids of the matched APIs.
+     */
+    public List<Integer> findApis(String interfaceName, String function) {
+        List<Integer> apiIds = new ArrayList<>();
+        for (int i = 0; i < mApis.size(); i++) {
+            Api api = mApis.get(i);
+            if ((interfaceName == null || interfaceName.equals(api.getInterface()))
+                    && (function == null || function.equals(api.getFunction()))) {
+                apiIds.add(i);
+            }
+        }
+        return apiIds;
+    }
+
+    /**
+     * Visits the records in a time range. The blocks outside the range are skipped by the index.
+     *
+     * @param startTimestamp the min timestamp, inclusive.
+     * @param endTimestamp the max timestamp, inclusive.
+     * @param apiIds the ids of the APIs to visit, or null to visit all APIs.
+     * @param visitor the visitor called in the order of the records.
+     * @throws IOException if the visitor throws it.
+     */
+    public void scan(long startTimestamp, long endTimestamp, Collection<Integer> apiIds,
+            RecordVisitor visitor) throws IOException {
+        boolean[] apiMask = null;
+        if (apiIds != null) {
+            apiMask = new boolean[mApis.size()];
+            for (int apiId : apiIds) {
+                apiMask[apiId] = true;
+            }
+        }
+        int blockCount = (mRecordCount + mBlockSize - 1) / mBlockSize;
+        for (int block = 0; block < blockCount; block++) {
+            int indexEntry = mSectionOffsets[SECTION_INDEX] + block * INDEX_ENTRY_LENGTH;
+            if (mBuffer.getLong(indexEntry + 8) > endTimestamp
+                    || mBuffer.getLong(indexEntry + 16) < startTimestamp) {
+                continue;
+            }
+            ByteBuffer timestamps = mBuffer.duplicate();
+            timestamps.position(
+                    mSectionOffsets[SECTION_TIMESTAMPS] + (int) mBuffer.getLong(indexEntry));
+            long timestamp = timestamps.getLong();
+            int end = Math.min(mRecordCount, (block + 1) * mBlockSize);
+            for (int index = block * mBlockSize; index < end; index++) {
+                if (index > block * mBlockSize) {
+                    long zigzag = readVarint(timestamps);
+                    timestamp += (zigzag >>> 1) ^ -(zigzag & 1);
+                }
+                if (timestamp < startTimestamp || timestamp > endTimestamp) {
+                    continue;
+                }
+                int apiId = getApiId(index);
+                if (apiMask == null || apiMask[apiId]) {
+                    visitor.visit(index, timestamp, getEvent(index), apiId);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the event type number of a record, or {@link #NO_EVENT}.
+     */
+    public int getEvent(int index) {
+        return mBuffer.get(mSectionOffsets[SECTION_EVENTS] + index) & 0xff;
+    }
+
+    /**
+     * @return the API id of a record.
+     */
+    public int getApiId(int index) {
+        return mBuffer.getInt(mSectionOffsets[SECTION_APIS] + index * 4);
+    }
+
+    /**
+     * Restores a record.
+     *
+     * @param index the index of the record.
+     * @param timestamp the timestamp of the record given by {@link #scan}.
+     * @return the serialized {@link VtsProfilingRecord}.
+     */
+    public byte[] getRecordBytes(int index, long timestamp) throws IOException {
+        Api api = mApis.get(getApiId(index));
+        int event = getEvent(index);
+        int payloadOffsets = mSectionOffsets[SECTION_PAYLOAD_OFFSETS] + index * 8;
+        int payloadStart = (int) mBuffer.getLong(payloadOffsets);
+        int payloadLength = (int) mBuffer.getLong(payloadOffsets + 8) - payloadStart;
+        ByteBuffer payload = mBuffer.duplicate();
+        payload.position(mSectionOffsets[SECTION_PAYLOADS] + payloadStart);
+        payload.limit(payload.position() + payloadLength);
+
+        int size = CodedOutputStream.computeInt64Size(
+                           VtsProfilingRecord.TIMESTAMP_FIELD_NUMBER, timestamp)
+                + CodedOutputStream.computeBytesSize(
+                          VtsProfilingRecord.PACKAGE_FIELD_NUMBER, api.mPackage)
+                + CodedOutputStream.computeBytesSize(
+                          VtsProfilingRecord.INTERFACE_FIELD_NUMBER, api.mInterface)
+                + CodedOutputStream.computeTagSize(VtsProfilingRecord.FUNC_MSG_FIELD_NUMBER)
+                + CodedOutputStream.computeUInt32SizeNoTag(payloadLength) + payloadLength
+                + CodedOutputStream.computeInt32Size(
+                          VtsProfilingRecord.VERSION_MAJOR_FIELD_NUMBER, api.mVersionMajor)
+                + CodedOutputStream.computeInt32Size(
+                          VtsProfilingRecord.VERSION_MINOR_FIELD_NUMBER, api.mVersionMinor);
+        if (event != NO_EVENT) {
+            size += CodedOutputStream.computeEnumSize(
+                    VtsProfilingRecord.EVENT_FIELD_NUMBER, event);
+        }
+        byte[] record = new byte[size];
+        CodedOutputStream out = CodedOutputStream.newInstance(record);
+        out.writeInt64(VtsProfilingRecord.TIMESTAMP_FIELD_NUMBER, timestamp);
+        if (event != NO_EVENT) {
+            out.writeEnum(VtsProfilingRecord.EVENT_FIELD_NUMBER, event);
+        }
+        out.writeBytes(VtsProfilingRecord.PACKAGE_FIELD_NUMBER, api.mPackage);
+        out.writeBytes(VtsProfilingRecord.INTERFACE_FIELD_NUMBER, api.mInterface);
+        out.writeTag(VtsProfilingRecord.FUNC_MSG_FIELD_NUMBER,
+                WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        out.writeUInt32NoTag(payloadLength);
+        out.writeRawBytes(payload);
+        out.writeInt32(VtsProfilingRecord.VERSION_MAJOR_FIELD_NUMBER, api.mVersionMajor);
+        out.writeInt32(VtsProfilingRecord.VERSION_MINOR_FIELD_NUMBER, api.mVersionMinor);
+        out.checkNoSpaceLeft();
+        return record;
+    }
+
+    /**
+     * Writes the records in a time range as length-delimited {@link VtsProfilingRecord}s, which
+     * is the format read by the trace processor and the replayer.
+     *
+     * @param startTimestamp the min timestamp, inclusive.
+     * @param endTimestamp the max timestamp, inclusive.
+     * @param apiIds the ids of the APIs to write, or null to write all APIs.
+     * @param output the output stream.
+     * @throws IOException if fails to write the stream.
+     */
+    public void exportDelimited(long startTimestamp, long endTimestamp,
+            Collection<Integer> apiIds, OutputStream output) throws IOException {
+        CodedOutputStream out = CodedOutputStream.newInstance(output);
+        scan(startTimestamp, endTimestamp, apiIds, (index, timestamp, event, apiId) -> {
+            byte[] record = getRecordBytes(index, timestamp);
+            out.writeUInt32NoTag(record.length);
+            out.writeRawBytes(record);
+        });
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    /**
+     * Converts a trace file to a store.
+     *
+     * @param traceFile the file containing length-delimited {@link VtsProfilingRecord}s.
+     * @param output the store file.
+     * @throws IOException if fails to read or write the files or the trace is malformed.
+     */
+    public static void convert(File traceFile, File output) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(traceFile))) {
+            convert(in, output);
+        }
+    }
+
+    /**
+     * Converts a trace to a store. The columns are written to temporary files and concatenated,
+     * so the memory usage does not depend on the number of records.
+     *
+     * @param trace the stream of length-delimited {@link VtsProfilingRecord}s.
+     * @param output the store file.
+     * @throws IOException if fails to read or write the files or the trace is malformed.
+     */
+    public static void convert(InputStream trace, File output) throws IOException {
+        File tmpDir = FileUtil.createTempDir("vts-trace-store");
+        try {
+            File[] sections = new File[SECTION_COUNT];
+            DataOutputStream[] outs = new DataOutputStream[SECTION_COUNT];
+            for (int i = 0; i < SECTION_COUNT; i++) {
+                sections[i] = new File(tmpDir, "section" + i);
+                outs[i] = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(sections[i])));
+            }
+            Map<Api, Integer> apiIds = new HashMap<>();
+            long recordCount = 0;
+            long payloadOffset = 0;
+            long blockMin = Long.MAX_VALUE;
+            long blockMax = Long.MIN_VALUE;
+            long previousTimestamp = 0;
+            try {
+                CodedInputStream in = CodedInputStream.newInstance(trace);
+                while (!in.isAtEnd()) {
+                    int limit = in.pushLimit(in.readRawVarint32());
+                    long timestamp = 0;
+                    int event = NO_EVENT;
+                    ByteString packageName = ByteString.EMPTY;
+                    ByteString interfaceName = ByteString.EMPTY;
+                    ByteString payload = ByteString.EMPTY;
+                    int versionMajor = -1;
+                    int versionMinor = -1;
+                    for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+                        switch (tag >>> 3) {
+                            case VtsProfilingRecord.TIMESTAMP_FIELD_NUMBER:
+                                timestamp = in.readInt64();
+                                break;
+                            case VtsProfilingRecord.EVENT_FIELD_NUMBER:
+                                event = in.readEnum() & 0xff;
+                                break;
+                            case VtsProfilingRecord.PACKAGE_FIELD_NUMBER:
+                                packageName = in.readBytes();
+                                break;
+                            case VtsProfilingRecord.INTERFACE_FIELD_NUMBER:
+                                interfaceName = in.readBytes();
+                                break;
+                            case VtsProfilingRecord.FUNC_MSG_FIELD_NUMBER:
+                                payload = in.readBytes();
+                                break;
+                            case VtsProfilingRecord.VERSION_MAJOR_FIELD_NUMBER:
+                                versionMajor = in.readInt32();
+                                break;
+                            case VtsProfilingRecord.VERSION_MINOR_FIELD_NUMBER:
+                                versionMinor = in.readInt32();
+                                break;
+                            default:
+                                in.skipField(tag);
+                        }
+                    }
+                    in.popLimit(limit);
+                    in.resetSizeCounter();
+
+                    Api api = new Api(packageName, versionMajor, versionMinor, interfaceName,
+                            getFunctionName(payload));
+                    Integer apiId = apiIds.get(api);
+                    if (apiId == null) {
+                        apiId = apiIds.size();
+                        apiIds.put(api, apiId);
+                        writeBytes(outs[SECTION_DICTIONARY], api.mPackage);
+                        outs[SECTION_DICTIONARY].writeInt(api.mVersionMajor);
+                        outs[SECTION_DICTIONARY].writeInt(api.mVersionMinor);
+                        writeBytes(outs[SECTION_DICTIONARY], api.mInterface);
+                        writeBytes(outs[SECTION_DICTIONARY], api.mFunction);
+                    }
+
+                    if (recordCount % BLOCK_SIZE == 0) {
+                        if (recordCount > 0) {
+                            outs[SECTION_INDEX].writeLong(blockMin);
+                            outs[SECTION_INDEX].writeLong(blockMax);
+                        }
+                        outs[SECTION_INDEX].writeLong(outs[SECTION_TIMESTAMPS].size());
+                        outs[SECTION_TIMESTAMPS].writeLong(timestamp);
+                        blockMin = Long.MAX_VALUE;
+                        blockMax = Long.MIN_VALUE;
+                    } else {
+                        long delta = timestamp - previousTimestamp;
+                        writeVarint(outs[SECTION_TIMESTAMPS], (delta << 1) ^ (delta >> 63));
+                    }
+                    previousTimestamp = timestamp;
+                    blockMin = Math.min(blockMin, timestamp);
+                    blockMax = Math.max(blockMax, timestamp);
+                    outs[SECTION_EVENTS].writeByte(event);
+                    outs[SECTION_APIS].writeInt(apiId);
+                    outs[SECTION_PAYLOAD_OFFSETS].writeLong(payloadOffset);
+                    payload.writeTo(outs[SECTION_PAYLOADS]);
+                    payloadOffset += payload.size();
+                    recordCount++;
+                }
+                if (recordCount > 0) {
+                    outs[SECTION_INDEX].writeLong(blockMin);
+                    outs[SECTION_INDEX].writeLong(blockMax);
+                }
+                outs[SECTION_PAYLOAD_OFFSETS].writeLong(payloadOffset);
+            } finally {
+                for (DataOutputStream out : outs) {
+                    out.close();
+                }
+            }
+            writeStore(output, sections, recordCount, apiIds.size());
+        } finally {
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
+    /**
+     * Concatenates the header and the sections.
+     */
+    private static void writeStore(File output, File[] sections, long recordCount, int apiCount)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(VERSION).putLong(recordCount).putInt(BLOCK_SIZE)
+                .putInt(apiCount);
+        long offset = HEADER_LENGTH;
+        for (File section : sections) {
+            header.putLong(offset);
+            offset += section.length();
+        }
+        header.flip();
+        try (FileChannel out = new FileOutputStream(output).getChannel()) {
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            for (File section : sections) {
+                try (FileChannel in = new FileInputStream(section).getChannel()) {
+                    long position = 0;
+                    while (position < in.size()) {
+                        position += in.transferTo(position, in.size() - position, out);
+                    }
+                }
+            }
+        }
+    }
+
+    private static ByteString getFunctionName(ByteString functionMessage) throws IOException {
+        CodedInputStream in = functionMessage.newCodedInput();
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            if (tag >>> 3 == FunctionSpecificationMessage.NAME_FIELD_NUMBER) {
+                return in.readBytes();
+            }
+            in.skipField(tag);
+        }
+        return ByteString.EMPTY;
+    }
+
+    private static void writeBytes(DataOutputStream out, ByteString bytes) throws IOException {
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    private static ByteString readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return ByteString.copyFrom(bytes);
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
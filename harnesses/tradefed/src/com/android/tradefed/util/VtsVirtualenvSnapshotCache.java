@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * A host-side cache of fully installed python virtualenvs.
+ *
+ * <p>A snapshot is a compressed archive of a virtualenv, keyed by a hash of the python version
+ * and the required packages. Restoring a snapshot extracts it next to the target directory and
+ * renames it into place, so that other processes never see a partial virtualenv. As virtualenvs
+ * are not relocatable, the absolute path of the original virtualenv in the scripts under bin/ is
+ * replaced with the new path.
+ */
+public class VtsVirtualenvSnapshotCache {
+    static final String ARCHIVE_SUFFIX = ".tar.gz";
+    // The file in the archive which contains the path of the original virtualenv.
+    static final String ORIGIN_FILE_NAME = ".vts-snapshot-origin";
+    // The prefix of the temporary files and directories in the cache and the virtualenv parent.
+    static final String TEMP_PREFIX = ".vts-snapshot-";
+    private static final long TAR_TIMEOUT_MSECS = 1000 * 60 * 10;
+    // Scripts larger than this are not checked for the original path.
+    private static final long MAX_SCRIPT_SIZE = 1024 * 1024;
+
+    private final File mCacheDir;
+    private final int mMaxSnapshotCount;
+    private final IRunUtil mRunUtil;
+
+    /**
+     * @param cacheDir the directory of the snapshot archives.
+     * @param maxSnapshotCount the max number of the snapshots; the least recently used ones are
+     *                         deleted.
+     * @param runUtil the run util to execute tar.
+     */
+    public VtsVirtualenvSnapshotCache(File cacheDir, int maxSnapshotCount, IRunUtil runUtil) {
+        mCacheDir = cacheDir;
+        mMaxSnapshotCount = maxSnapshotCount;
+        mRunUtil = runUtil;
+    }
+
+    /**
+     * Computes the key of a virtualenv.
+     *
+     * @param pythonVersion the python version.
+     * @param requirementsFile the pip requirements file; may be null.
+     * @param depModules the modules installed in order.
+     * @param noDepModules the modules which are not installed.
+     * @return the hexadecimal SHA-256 hash of the arguments.
+     * @throws IOException if fails to read the requirements file.
+     */
+    public static String computeKey(String pythonVersion, File requirementsFile,
+            Collection<String> depModules, Collection<String> noDepModules) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        update(digest, "python=" + pythonVersion);
+        if (requirementsFile != null) {
+            update(digest, "requirements=");
+            digest.update(Files.readAllBytes(requirementsFile.toPath()));
+        }
+        for (String module : depModules) {
+            update(digest, "dep=" + module);
+        }
+        for (String module : new TreeSet<>(noDepModules)) {
+            update(digest, "no-dep=" + module);
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    /**
+     * Restores a snapshot to a virtualenv directory.
+     *
+     * @param key the key of the snapshot.
+     * @param venvDir the virtualenv directory which does not exist or is empty.
+     * @return true if the snapshot is restored; false if there is no snapshot or it fails.
+     */
+    public boolean restore(String key, File venvDir) {
+        File archive = new File(mCacheDir, key + ARCHIVE_SUFFIX);
+        if (!archive.isFile()) {
+            CLog.i("Virtualenv snapshot cache miss: %s", key);
+            return false;
+        }
+        File extractDir = null;
+        try {
+            File parentDir = venvDir.getAbsoluteFile().getParentFile();
+            FileUtil.mkdirsRWX(parentDir);
+            extractDir = FileUtil.createTempDir(TEMP_PREFIX, parentDir);
+            CommandResult result = mRunUtil.runTimedCmd(TAR_TIMEOUT_MSECS, "tar", "-xzf",
+                    archive.getAbsolutePath(), "-C", extractDir.getAbsolutePath());
+            if (result.getStatus() != CommandStatus.SUCCESS) {
+                CLog.e("Failed to extract virtualenv snapshot %s: %s", archive,
+                        result.getStderr());
+                return false;
+            }
+            File originFile = new File(extractDir, ORIGIN_FILE_NAME);
+            String origin = FileUtil.readStringFromFile(originFile).trim();
+            FileUtil.deleteFile(originFile);
+            relocate(new File(extractDir, "bin"), origin, venvDir.getAbsolutePath());
+            // Replaces the empty directory if it exists.
+            Files.move(extractDir.toPath(), venvDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            extractDir = null;
+            archive.setLastModified(System.currentTimeMillis());
+            CLog.i("Restored virtualenv snapshot %s to %s", key, venvDir);
+            return true;
+        } catch (IOException e) {
+            CLog.e("Failed to restore virtualenv snapshot %s: %s", archive, e.toString());
+            return false;
+        } finally {
+            deleteQuietly(extractDir);
+        }
+    }
+
+    /**
+     * Stores a virtualenv as a snapshot. An existing snapshot of the same key is not replaced.
+     *
+     * @param key the key of the snapshot.
+     * @param venvDir the virtualenv directory with all packages installed.
+     */
+    public void store(String key, File venvDir) {
+        File archive = new File(mCacheDir, key + ARCHIVE_SUFFIX);
+        if (archive.isFile()) {
+            return;
+        }
+        File originFile = new File(venvDir, ORIGIN_FILE_NAME);
+        File tempArchive = null;
+        try {
+            FileUtil.mkdirsRWX(mCacheDir);
+            FileUtil.writeToFile(venvDir.getAbsolutePath(), originFile);
+            tempArchive = FileUtil.createTempFile(TEMP_PREFIX, ARCHIVE_SUFFIX, mCacheDir);
+            CommandResult result = mRunUtil.runTimedCmd(TAR_TIMEOUT_MSECS, "tar", "-czf",
+                    tempArchive.getAbsolutePath(), "-C", venvDir.getAbsolutePath(), ".");
+            if (result.getStatus() != CommandStatus.SUCCESS) {
+                CLog.e("Failed to archive virtualenv %s: %s", venvDir, result.getStderr());
+                return;
+            }
+            Files.move(tempArchive.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            CLog.i("Stored virtualenv snapshot %s (%d bytes)", key, archive.length());
+        } catch (IOException e) {
+            CLog.e("Failed to store virtualenv snapshot %s: %s", archive, e.toString());
+        } finally {
+            FileUtil.deleteFile(originFile);
+            FileUtil.deleteFile(tempArchive);
+        }
+        evict();
+    }
+
+    /**
+     * Replaces the original virtualenv path in the scripts, e.g., the shebang lines and the
+     * activate scripts.
+     */
+    private static void relocate(File binDir, String origin, String destination)
+            throws IOException {
+        if (origin.equals(destination)) {
+            return;
+        }
+        File[] files = binDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        byte[] originBytes = origin.getBytes(StandardCharsets.UTF_8);
+        for (File file : files) {
+            if (!Files.isRegularFile(file.toPath(), LinkOption.NOFOLLOW_LINKS)
+                    || file.length() > MAX_SCRIPT_SIZE) {
+                continue;
+            }
+            byte[] content = Files.readAllBytes(file.toPath());
+            if (indexOf(content, originBytes, 0) < 0) {
+                continue;
+            }
+            // Replaces the bytes, as the binaries in bin/ are not valid strings.
+            byte[] destinationBytes = destination.getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream relocated = new ByteArrayOutputStream();
+            int start = 0;
+            int index;
+            while ((index = indexOf(content, originBytes, start)) >= 0) {
+                relocated.write(content, start, index - start);
+                relocated.write(destinationBytes);
+                start = index + originBytes.length;
+            }
+            relocated.write(content, start, content.length - start);
+            Files.write(file.toPath(), relocated.toByteArray());
+        }
+    }
+
+    private static int indexOf(byte[] content, byte[] pattern, int start) {
+        for (int i = start; i + pattern.length <= content.length; i++) {
+            int j = 0;
+            while (j < pattern.length && content[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Deletes the least recently used snapshots until the count is within the limit.
+     */
+    private void evict() {
+        File[] archives = mCacheDir.listFiles((dir, name)
+                -> name.endsWith(ARCHIVE_SUFFIX) && !name.startsWith(TEMP_PREFIX));
+        if (archives == null || archives.length <= mMaxSnapshotCount) {
+            return;
+        }
+        List<File> snapshots = new ArrayList<>(Arrays.asList(archives));
+        snapshots.sort(Comparator.comparingLong(File::lastModified));
+        for (File snapshot : snapshots.subList(0, snapshots.size() - mMaxSnapshotCount)) {
+            CLog.i("Evicted virtualenv snapshot %s", snapshot);
+            FileUtil.deleteFile(snapshot);
+        }
+    }
+
+    private static void deleteQuietly(File dir) {
+        if (dir == null || !dir.exists()) {
+            return;
+        }
+        try {
+            VtsFileUtil.recursiveDeleteNoFollowLinks(dir.toPath());
+        } catch (IOException e) {
+            CLog.e("Failed to delete %s: %s", dir, e.toString());
+        }
+    }
+}
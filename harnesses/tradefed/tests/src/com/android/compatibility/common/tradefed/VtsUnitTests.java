@@ -15,6 +15,9 @@
  */
 package com.android.compatibility.common.tradefed;
 
+import com.android.compatibility.common.tradefed.targetprep.VtsFilePushCacheTest;
+import com.android.compatibility.common.tradefed.targetprep.VtsFilePushEngineTest;
+import com.android.compatibility.common.tradefed.targetprep.VtsPushGroupCacheTest;
 import com.android.compatibility.common.tradefed.util.VtsRetryFilterHelperTest;
 
 import org.junit.runner.RunWith;
@@ -28,6 +31,11 @@ import org.junit.runners.Suite.SuiteClasses;
 @RunWith(Suite.class)
 @SuiteClasses({
     // NOTE: please keep classes sorted lexicographically in each group
+    // targetprep
+    VtsFilePushCacheTest.class,
+    VtsFilePushEngineTest.class,
+    VtsPushGroupCacheTest.class,
+
     // testtype
 
     // util
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.common.tradefed.targetprep;
+
+import static org.junit.Assert.assertEquals;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.FileUtil;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link VtsFilePushCache}.
+ */
+@RunWith(JUnit4.class)
+public class VtsFilePushCacheTest {
+    private static final String BOOT_ID = "boot-id-1";
+    private static final String REMOTE_PATH_1 = "/data/local/tmp/file1";
+    private static final String REMOTE_PATH_2 = "/data/local/tmp/file2";
+    private File mTmpDir;
+    private File mFile1;
+    private File mFile2;
+    private VtsFilePushCache mCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mTmpDir = FileUtil.createTempDir("vts-push-cache-unit-tests");
+        mFile1 = new File(mTmpDir, "file1");
+        mFile2 = new File(mTmpDir, "file2");
+        FileUtil.writeToFile("content1", mFile1);
+        FileUtil.writeToFile("content2", mFile2);
+        mCache = new VtsFilePushCache();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mTmpDir);
+    }
+
+    /**
+     * Create a mock {@link ITestDevice} which returns the boot id and the md5sum output.
+     */
+    private ITestDevice createMockDevice(String bootId, String md5sumOutput)
+            throws DeviceNotAvailableException {
+        ITestDevice mockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mockDevice.getSerialNumber()).andStubReturn("serial");
+        EasyMock.expect(mockDevice.executeShellCommand("cat " + VtsFilePushCache.BOOT_ID_PATH))
+                .andReturn(bootId + "\n");
+        if (md5sumOutput != null) {
+            EasyMock.expect(mockDevice.executeShellCommand(
+                                    EasyMock.startsWith(VtsFilePushCache.MD5SUM_COMMAND)))
+                    .andReturn(md5sumOutput);
+        }
+        EasyMock.replay(mockDevice);
+        return mockDevice;
+    }
+
+    private Map<String, File> getFiles() {
+        Map<String, File> files = new HashMap<>();
+        files.put(REMOTE_PATH_1, mFile1);
+        files.put(REMOTE_PATH_2, mFile2);
+        return files;
+    }
+
+    /**
+     * Test that the files with matching checksums on device are skipped.
+     */
+    @Test
+    public void testFindChangedFiles() throws DeviceNotAvailableException {
+        String md5sumOutput = VtsFilePushCache.getLocalChecksum(mFile1) + "  " + REMOTE_PATH_1
+                + "\nmd5sum: " + REMOTE_PATH_2 + ": No such file or directory\n";
+        ITestDevice device = createMockDevice(BOOT_ID, md5sumOutput);
+        Set<String> changed = mCache.findChangedFiles(device, getFiles());
+        assertEquals(Collections.singleton(REMOTE_PATH_2), changed);
+        EasyMock.verify(device);
+    }
+
+    /**
+     * Test that the recorded files are still checked on device, so that the files deleted or
+     * overwritten after they are pushed are pushed again.
+     */
+    @Test
+    public void testRecordedFiles() throws DeviceNotAvailableException {
+        ITestDevice device = createMockDevice(BOOT_ID, "");
+        assertEquals(2, mCache.findChangedFiles(device, getFiles()).size());
+        EasyMock.verify(device);
+
+        mCache.recordPushedFiles(getFiles());
+        String md5sumOutput = VtsFilePushCache.getLocalChecksum(mFile1) + "  " + REMOTE_PATH_1
+                + "\n" + VtsFilePushCache.getLocalChecksum(mFile2) + "  " + REMOTE_PATH_2 + "\n";
+        device = createMockDevice(BOOT_ID, md5sumOutput);
+        assertEquals(0, mCache.findChangedFiles(device, getFiles()).size());
+        EasyMock.verify(device);
+
+        // file2 is deleted on the device.
+        md5sumOutput = VtsFilePushCache.getLocalChecksum(mFile1) + "  " + REMOTE_PATH_1 + "\n";
+        device = createMockDevice(BOOT_ID, md5sumOutput);
+        assertEquals(Collections.singleton(REMOTE_PATH_2),
+                mCache.findChangedFiles(device, getFiles()));
+        EasyMock.verify(device);
+
+        mCache.invalidate("/data/local/tmp");
+        device = createMockDevice(BOOT_ID, "");
+        assertEquals(2, mCache.findChangedFiles(device, getFiles()).size());
+        EasyMock.verify(device);
+
+        mCache.recordPushedFiles(getFiles());
+        device = createMockDevice("boot-id-2", "");
+        assertEquals(2, mCache.findChangedFiles(device, getFiles()).size());
+        EasyMock.verify(device);
+    }
+
+    /**
+     * Test parsing md5sum output.
+     */
+    @Test
+    public void testParseMd5sumOutput() {
+        Map<String, String> result = new HashMap<>();
+        VtsFilePushCache.parseMd5sumOutput("0123456789ABCDEF0123456789abcdef  /a b\n"
+                        + "md5sum: /c: No such file or directory\n",
+                result);
+        assertEquals(Collections.singletonMap("/a b", "0123456789abcdef0123456789abcdef"),
+                result);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.common.tradefed.targetprep;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.FileUtil;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link VtsFilePushEngine}.
+ */
+@RunWith(JUnit4.class)
+public class VtsFilePushEngineTest {
+    private File mTmpDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mTmpDir = FileUtil.createTempDir("vts-push-engine-unit-tests");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mTmpDir);
+    }
+
+    /**
+     * Test splitting long paths into the ustar prefix and name fields.
+     */
+    @Test
+    public void testGetTarEntryName() {
+        assertArrayEquals(new String[] {"", "data/local/tmp/a"},
+                VtsFilePushEngine.getTarEntryName("/data/local/tmp/a"));
+        String dir = "/data/" + String.join("/", Collections.nCopies(20, "dir"));
+        String name = String.join("", Collections.nCopies(97, "n"));
+        assertArrayEquals(new String[] {dir.substring(1), name},
+                VtsFilePushEngine.getTarEntryName(dir + "/" + name));
+        assertNull(VtsFilePushEngine.getTarEntryName(
+                "/" + String.join("", Collections.nCopies(101, "n"))));
+    }
+
+    /**
+     * Test that the nested paths are excluded from the root paths.
+     */
+    @Test
+    public void testGetRootPaths() {
+        assertEquals(Arrays.asList("/data/local/tmp/dir", "/data/local/tmp/dir2"),
+                VtsFilePushEngine.getRootPaths(Arrays.asList("/data/local/tmp/dir2",
+                        "/data/local/tmp/dir/file", "/data/local/tmp/dir")));
+    }
+
+    /**
+     * Test the layout of the tar file.
+     */
+    @Test
+    public void testWriteTarFile() throws Exception {
+        File file = new File(mTmpDir, "file");
+        FileUtil.writeToFile("content", file);
+        Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rwxr-x---"));
+        Map<String, File> files = new LinkedHashMap<>();
+        files.put("/data/local/tmp/dir", mTmpDir);
+        files.put("/data/local/tmp/dir/file", file);
+        File tarFile = new File(mTmpDir, "test.tar");
+        VtsFilePushEngine.writeTarFile(files, tarFile);
+
+        byte[] tar = Files.readAllBytes(tarFile.toPath());
+        // 2 headers, 1 data block, and 2 end blocks.
+        assertEquals(512 * 5, tar.length);
+        assertEquals("data/local/tmp/dir/", readString(tar, 0, 100));
+        assertEquals('5', tar[156]);
+        assertEquals("data/local/tmp/dir/file", readString(tar, 512, 100));
+        assertEquals('0', tar[512 + 156]);
+        assertEquals(0750, Integer.parseInt(readString(tar, 512 + 100, 8), 8));
+        assertEquals(7, Long.parseLong(readString(tar, 512 + 124, 12), 8));
+        assertEquals("content", readString(tar, 1024, 512));
+        byte[] zeros = new byte[1024];
+        assertArrayEquals(zeros, Arrays.copyOfRange(tar, 1536, 2560));
+    }
+
+    /**
+     * Test that the device falls back to individual pushes if it cannot extract tar files.
+     */
+    @Test
+    public void testTarFallback() throws Exception {
+        File file = new File(mTmpDir, "file");
+        FileUtil.writeToFile("content", file);
+        ITestDevice mockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mockDevice.pushFile(EasyMock.anyObject(File.class),
+                                EasyMock.startsWith(VtsFilePushEngine.REMOTE_TMP_DIR)))
+                .andReturn(true);
+        EasyMock.expect(mockDevice.executeShellCommand(EasyMock.startsWith("tar ")))
+                .andReturn("tar: not found");
+        EasyMock.expect(mockDevice.executeShellCommand(EasyMock.startsWith("rm ")))
+                .andReturn("");
+        EasyMock.expect(mockDevice.pushFile(file, "/data/local/tmp/file")).andReturn(true);
+        EasyMock.replay(mockDevice);
+
+        VtsFilePushEngine engine = new VtsFilePushEngine(mockDevice, 2, 1024);
+        VtsFilePushEngine.PushStats stats =
+                engine.push(Collections.singletonMap("/data/local/tmp/file", file));
+        assertEquals(1, stats.getFileCount());
+        assertEquals(7, stats.getByteCount());
+        EasyMock.verify(mockDevice);
+    }
+
+    /**
+     * Test that the extracted files are relabeled.
+     */
+    @Test
+    public void testTarPush() throws Exception {
+        File file = new File(mTmpDir, "file");
+        FileUtil.writeToFile("content", file);
+        ITestDevice mockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mockDevice.pushFile(EasyMock.anyObject(File.class),
+                                EasyMock.startsWith(VtsFilePushEngine.REMOTE_TMP_DIR)))
+                .andReturn(true);
+        EasyMock.expect(mockDevice.executeShellCommand(
+                                EasyMock.contains("&& restorecon -R /data/local/tmp/file &&")))
+                .andReturn(VtsFilePushEngine.TAR_EXTRACT_SUCCESS);
+        EasyMock.expect(mockDevice.executeShellCommand(EasyMock.startsWith("rm ")))
+                .andReturn("");
+        EasyMock.replay(mockDevice);
+
+        VtsFilePushEngine engine = new VtsFilePushEngine(mockDevice, 2, 1024);
+        engine.push(Collections.singletonMap("/data/local/tmp/file", file));
+        EasyMock.verify(mockDevice);
+    }
+
+    private static String readString(byte[] bytes, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && bytes[end] != 0) {
+            end++;
+        }
+        return new String(bytes, offset, end - offset, StandardCharsets.UTF_8).trim();
+    }
+}
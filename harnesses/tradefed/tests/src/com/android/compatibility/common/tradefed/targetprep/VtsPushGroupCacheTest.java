@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.common.tradefed.targetprep;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.android.tradefed.targetprep.TargetSetupError;
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for {@link VtsPushGroupCache}.
+ */
+@RunWith(JUnit4.class)
+public class VtsPushGroupCacheTest {
+    private File mTmpDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mTmpDir = FileUtil.createTempDir("vts-push-group-unit-tests");
+        new File(mTmpDir, "sub").mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mTmpDir);
+    }
+
+    /**
+     * Test that the included groups are flattened and cycles are ignored.
+     */
+    @Test
+    public void testIncludes() throws Exception {
+        FileUtil.writeToFile("b->/data/b\nsub/c.push\n", new File(mTmpDir, "a.push"));
+        FileUtil.writeToFile("\na->/data/a\nsub/c.push\n", new File(mTmpDir, "b.push"));
+        FileUtil.writeToFile("c->/data/c\na.push\nb->/data/b\n", new File(mTmpDir, "sub/c.push"));
+
+        List<String> specs = VtsPushGroupCache.getPushSpecs(mTmpDir, "a.push");
+        assertEquals(Arrays.asList("b->/data/b", "c->/data/c"), specs);
+        assertSame(specs, VtsPushGroupCache.getPushSpecs(mTmpDir, "a.push"));
+        assertEquals(Arrays.asList("a->/data/a", "b->/data/b", "c->/data/c"),
+                VtsPushGroupCache.getPushSpecs(mTmpDir, "b.push"));
+    }
+
+    /**
+     * Test that a group is reloaded when an included file is modified.
+     */
+    @Test
+    public void testReload() throws Exception {
+        File includedFile = new File(mTmpDir, "sub/included.push");
+        FileUtil.writeToFile("sub/included.push\n", new File(mTmpDir, "main.push"));
+        FileUtil.writeToFile("x->/data/x\n", includedFile);
+        assertEquals(Arrays.asList("x->/data/x"),
+                VtsPushGroupCache.getPushSpecs(mTmpDir, "main.push"));
+
+        FileUtil.writeToFile("x->/data/x\ny->/data/y\n", includedFile);
+        includedFile.setLastModified(includedFile.lastModified() + 2000);
+        assertEquals(Arrays.asList("x->/data/x", "y->/data/y"),
+                VtsPushGroupCache.getPushSpecs(mTmpDir, "main.push"));
+    }
+
+    /**
+     * Test that an unknown line fails the load.
+     */
+    @Test(expected = TargetSetupError.class)
+    public void testUnknownSpec() throws Exception {
+        FileUtil.writeToFile("unknown\n", new File(mTmpDir, "unknown.push"));
+        VtsPushGroupCache.getPushSpecs(mTmpDir, "unknown.push");
+    }
+}
@@ -27,11 +27,25 @@ import com.android.tradefed.targetprep.VtsTraceCollectPreparerTest;
 import com.android.tradefed.testtype.VtsFuzzTestResultParserTest;
 import com.android.tradefed.testtype.VtsFuzzTestTest;
 import com.android.tradefed.testtype.VtsMultiDeviceTestResultParserTest;
+import com.android.tradefed.testtype.VtsMultiDeviceTestShardAggregatorTest;
 import com.android.tradefed.testtype.VtsMultiDeviceTestTest;
 import com.android.tradefed.util.CmdUtilTest;
+import com.android.tradefed.util.GcovCoverageMergerTest;
 import com.android.tradefed.util.OutputUtilTest;
 import com.android.tradefed.util.ProcessHelperTest;
+import com.android.tradefed.util.VtsArtifactCacheTest;
+import com.android.tradefed.util.VtsCoverageAccumulatorTest;
+import com.android.tradefed.util.VtsDashboardUploadQueueTest;
+import com.android.tradefed.util.VtsDashboardUtilTest;
+import com.android.tradefed.util.VtsDirectoryLockTest;
+import com.android.tradefed.util.VtsHostPrepSchedulerTest;
+import com.android.tradefed.util.VtsLatencyRegressionDetectorTest;
+import com.android.tradefed.util.VtsProfilingAnalyzerTest;
+import com.android.tradefed.util.VtsPythonPackageIndexTest;
+import com.android.tradefed.util.VtsPythonRunnerDaemonTest;
 import com.android.tradefed.util.VtsPythonRunnerHelperTest;
+import com.android.tradefed.util.VtsTraceStoreTest;
+import com.android.tradefed.util.VtsVirtualenvSnapshotCacheTest;
 
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
@@ -66,12 +80,26 @@ import org.junit.runners.Suite.SuiteClasses;
         VtsFuzzTestResultParserTest.class,
         VtsFuzzTestTest.class,
         VtsMultiDeviceTestResultParserTest.class,
+        VtsMultiDeviceTestShardAggregatorTest.class,
         VtsMultiDeviceTestTest.class,
 
         // util
         CmdUtilTest.class,
+        GcovCoverageMergerTest.class,
         ProcessHelperTest.class,
+        VtsArtifactCacheTest.class,
+        VtsCoverageAccumulatorTest.class,
+        VtsDashboardUploadQueueTest.class,
+        VtsDashboardUtilTest.class,
+        VtsDirectoryLockTest.class,
+        VtsHostPrepSchedulerTest.class,
+        VtsLatencyRegressionDetectorTest.class,
+        VtsProfilingAnalyzerTest.class,
+        VtsPythonPackageIndexTest.class,
+        VtsPythonRunnerDaemonTest.class,
         VtsPythonRunnerHelperTest.class,
+        VtsTraceStoreTest.class,
+        VtsVirtualenvSnapshotCacheTest.class,
         OutputUtilTest.class,
 })
 public class VtsUnitTests {
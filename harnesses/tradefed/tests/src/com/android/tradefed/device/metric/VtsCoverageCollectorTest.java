@@ -16,13 +16,20 @@
 
 package com.android.tradefed.device.metric;
 
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.GcovCoverageMergerTest;
 import com.android.tradefed.util.VtsPythonRunnerHelper;
 
 import org.junit.Before;
@@ -34,6 +41,11 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -51,6 +63,8 @@ public class VtsCoverageCollectorTest {
     @Mock IInvocationContext mMockContext;
     @Mock IBuildInfo mBuildInfo;
     @Mock ITestDevice mDevice;
+    @Mock ITestDevice mDevice2;
+    @Mock DeviceMetricData mMetricData;
     @Mock VtsPythonRunnerHelper mMockRunner;
     @InjectMocks VtsCoverageCollector mCollector = new testCollector();
 
@@ -78,6 +92,8 @@ public class VtsCoverageCollectorTest {
 
     @Test
     public void testOnTestRunEndBasic() throws Exception {
+        OptionSetter setter = new OptionSetter(mCollector);
+        setter.setOptionValue("use-python-coverage-utils", "true");
         mBuildAttributes.put("coverage_report_path", "/tmp/test-coverage/");
         doReturn("1234").when(mDevice).getSerialNumber();
         doReturn(mBuildAttributes).when(mBuildInfo).getBuildAttributes();
@@ -97,6 +113,37 @@ public class VtsCoverageCollectorTest {
         verify(mMockRunner).runPythonRunner(Mockito.any(), Mockito.any(), Mockito.anyLong());
     }
 
+    @Test
+    public void testOnTestRunEndMultiDevice() throws Exception {
+        OptionSetter setter = new OptionSetter(mCollector);
+        setter.setOptionValue("use-python-coverage-utils", "true");
+        mBuildAttributes.put("coverage_report_path", "/tmp/test-coverage/");
+        doReturn("1234").when(mDevice).getSerialNumber();
+        doReturn("5678").when(mDevice2).getSerialNumber();
+        doReturn(mBuildAttributes).when(mBuildInfo).getBuildAttributes();
+        mDevices.add(mDevice2);
+
+        for (String serial : new String[] {"1234", "5678"}) {
+            String expectedCmdStr = "python -m vts.utils.python.coverage.coverage_utils "
+                    + "get_coverage --serial " + serial + " --gcov_rescource_path "
+                    + "/tmp/test-coverage --report_path /tmp/test-coverage/device1_testRun "
+                    + "--report_prefix device1_testRun_" + serial;
+            doReturn(null)
+                    .when(mMockRunner)
+                    .runPythonRunner(Mockito.eq(expectedCmdStr.split("\\s+")), Mockito.any(),
+                            Mockito.anyLong());
+        }
+
+        mCollector.onTestRunEnd(mMetricData, null);
+
+        verify(mMockRunner, times(2))
+                .runPythonRunner(Mockito.any(), Mockito.any(), Mockito.anyLong());
+        verify(mMetricData).addMetricForDevice(Mockito.eq(mDevice),
+                Mockito.eq(VtsCoverageCollector.COVERAGE_TIME_METRIC), Mockito.any());
+        verify(mMetricData).addMetricForDevice(Mockito.eq(mDevice2),
+                Mockito.eq(VtsCoverageCollector.COVERAGE_TIME_METRIC), Mockito.any());
+    }
+
     @Test
     public void testOnTestRunEndReportDirMissing() throws Exception {
         mBuildAttributes.remove("coverage_report_path");
@@ -106,4 +153,57 @@ public class VtsCoverageCollectorTest {
         // Ensure the properties was requested
         verify(mBuildInfo).getBuildAttributes();
     }
+
+    @Test
+    public void testProcessCoverage() throws Exception {
+        File tmpDir = FileUtil.createTempDir("vts-coverage-collector-unit-tests");
+        try {
+            OptionSetter setter = new OptionSetter(mCollector);
+            setter.setOptionValue(
+                    "coverage-index-dir", new File(tmpDir, "index").getAbsolutePath());
+            File gcovDir = new File(tmpDir, "gcov");
+            gcovDir.mkdir();
+            GcovCoverageMergerTest.createGcovZip(
+                    readResource("/util/sample.gcno"), new File(gcovDir, "gcov.zip"));
+            FileUtil.writeToFile("{\"repo-dict\": {\"platform/sample.c\": \"abc\"}}",
+                    new File(gcovDir, "BUILD_INFO"));
+            byte[] gcda = readResource("/util/sample.gcda");
+            doReturn("1234").when(mDevice).getSerialNumber();
+            doReturn("flavor").when(mDevice).getBuildFlavor();
+            doReturn("5678").when(mDevice).getBuildId();
+            doAnswer(invocation -> {
+                File localDir = (File) invocation.getArguments()[1];
+                File selfDir = new File(localDir, "self");
+                selfDir.mkdirs();
+                Files.write(new File(selfDir, "sample.gcda").toPath(), gcda);
+                return true;
+            }).when(mDevice).pullDir(Mockito.eq("/data/misc/trace/"), Mockito.any());
+
+            File reportDir = new File(tmpDir, "report");
+            mCollector.processCoverage(mDevice, gcovDir, reportDir, "module");
+            verify(mDevice).executeShellCommand("rm -rf /data/misc/trace/*");
+            String report = FileUtil.readStringFromFile(
+                    new File(reportDir, "coverage_report_module.txt"));
+            assertTrue(report.contains("line_coverage_vector: 502"));
+            assertTrue(report.contains("total_line_count: 18"));
+            assertTrue(report.contains("covered_line_count: 17"));
+            assertTrue(new File(tmpDir, "plan_coverage/flavor_5678.cov").isFile());
+            verify(mMockRunner, never())
+                    .runPythonRunner(Mockito.any(), Mockito.any(), Mockito.anyLong());
+        } finally {
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
+    private byte[] readResource(String name) throws IOException {
+        try (InputStream input = getClass().getResourceAsStream(name)) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int length;
+            while ((length = input.read(buffer)) > 0) {
+                output.write(buffer, 0, length);
+            }
+            return output.toByteArray();
+        }
+    }
 }
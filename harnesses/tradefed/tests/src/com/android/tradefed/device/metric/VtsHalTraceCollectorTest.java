@@ -16,9 +16,11 @@
 
 package com.android.tradefed.device.metric;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.result.ITestInvocationListener;
@@ -30,11 +32,18 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Unit tests for {@link VtsHalTraceCollector}.
@@ -56,6 +65,7 @@ public class VtsHalTraceCollectorTest {
     @Before
     public void setUp() throws Exception {
         mMockDevice = EasyMock.createNiceMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial1");
         mMockBuildInfo = EasyMock.createNiceMock(IBuildInfo.class);
         mMockListener = EasyMock.createNiceMock(ITestInvocationListener.class);
         mMockContext = EasyMock.createNiceMock(IInvocationContext.class);
@@ -111,4 +121,89 @@ public class VtsHalTraceCollectorTest {
             FileUtil.recursiveDelete(traceBaseDir);
         }
     }
+
+    @Test
+    public void testOnTestRunEndBatchPull() throws Exception {
+        File traceBaseDir = FileUtil.createTempDir("vts-trace");
+        File archive = FileUtil.createTempFile("vts-trace", ".tar.gz");
+        try {
+            try (OutputStream out = new FileOutputStream(archive)) {
+                out.write(createTraceArchive("test1.vts.trace", "trace1", "test2.vts.trace",
+                        "trace2"));
+            }
+            OptionSetter setter = new OptionSetter(mCollect);
+            setter.setOptionValue("batch-trace-pull", "true");
+            mBuildAttributes.put(TRACE_PATH, traceBaseDir.getAbsolutePath());
+            EasyMock.expect(mMockBuildInfo.getBuildAttributes()).andReturn(mBuildAttributes);
+            mDevices.add(mMockDevice);
+            mBuildInfos.add(mMockBuildInfo);
+            EasyMock.expect(mMockContext.getDevices()).andReturn(mDevices);
+            EasyMock.expect(mMockContext.getBuildInfos()).andReturn(mBuildInfos);
+            EasyMock.expect(mMockDevice.executeShellCommand(
+                                    EasyMock.startsWith("cd " + VTS_TMP_DIR + " && tar -czf")))
+                    .andReturn(VtsHalTraceCollector.TAR_CREATE_SUCCESS);
+            EasyMock.expect(mMockDevice.pullFile(VtsHalTraceCollector.TRACE_ARCHIVE_PATH))
+                    .andReturn(archive);
+
+            EasyMock.replay(mMockBuildInfo);
+            EasyMock.replay(mMockContext);
+            EasyMock.replay(mMockDevice);
+
+            mCollect.onTestRunEnd(null, null);
+            File traceDir = new File(traceBaseDir, "device1_testRun");
+            assertEquals("trace1",
+                    FileUtil.readStringFromFile(new File(traceDir, "test1.vts.trace")));
+            assertEquals("trace2",
+                    FileUtil.readStringFromFile(new File(traceDir, "test2.vts.trace")));
+
+            EasyMock.verify(mMockBuildInfo);
+            EasyMock.verify(mMockContext);
+            EasyMock.verify(mMockDevice);
+        } finally {
+            FileUtil.deleteFile(archive);
+            FileUtil.recursiveDelete(traceBaseDir);
+        }
+    }
+
+    @Test
+    public void testExtractTraceArchive() throws Exception {
+        File traceDir = FileUtil.createTempDir("vts-trace");
+        try {
+            byte[] archive = createTraceArchive("../test1.vts.trace", "trace1");
+            VtsHalTraceCollector.PullStats stats = VtsHalTraceCollector.extractTraceArchive(
+                    new ByteArrayInputStream(archive), traceDir);
+            assertEquals(1, stats.mFileCount);
+            assertEquals(6, stats.mByteCount);
+            assertEquals("trace1",
+                    FileUtil.readStringFromFile(new File(traceDir, "test1.vts.trace")));
+        } finally {
+            FileUtil.recursiveDelete(traceDir);
+        }
+    }
+
+    /**
+     * Creates a gzip-compressed tar archive.
+     *
+     * @param namesAndContents the file names followed by the contents.
+     */
+    private static byte[] createTraceArchive(String... namesAndContents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(bytes)) {
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                byte[] content = namesAndContents[i + 1].getBytes(StandardCharsets.UTF_8);
+                byte[] header = new byte[512];
+                byte[] name = namesAndContents[i].getBytes(StandardCharsets.UTF_8);
+                System.arraycopy(name, 0, header, 0, name.length);
+                byte[] size = String.format("%011o", content.length)
+                                      .getBytes(StandardCharsets.US_ASCII);
+                System.arraycopy(size, 0, header, 124, size.length);
+                header[156] = '0';
+                out.write(header);
+                out.write(content);
+                out.write(new byte[512 - content.length]);
+            }
+            out.write(new byte[1024]);
+        }
+        return bytes.toByteArray();
+    }
 }
@@ -22,6 +22,7 @@ import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -36,6 +37,7 @@ import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
+import com.android.tradefed.util.VtsArtifactCache;
 
 import org.junit.After;
 import org.junit.Before;
@@ -65,6 +67,7 @@ public final class VtsCoveragePreparerTest {
 
     private File mTestDir;
     private CompatibilityBuildHelper mMockHelper;
+    private VtsArtifactCache mArtifactCache = null;
 
     private class TestCoveragePreparer extends VtsCoveragePreparer {
         @Override
@@ -81,6 +84,11 @@ public final class VtsCoveragePreparerTest {
         String getArtifactFetcher(IBuildInfo buildInfo) {
             return "fetcher --bid %s --target %s %s %s";
         }
+
+        @Override
+        VtsArtifactCache createArtifactCache() {
+            return mArtifactCache;
+        }
     }
 
     @Mock private IBuildInfo mBuildInfo;
@@ -212,6 +220,41 @@ public final class VtsCoveragePreparerTest {
         assertFalse(buildInfoFile.exists());
     }
 
+    @Test
+    public void testOnSetUpArtifactCache() throws Exception {
+        File cacheDir = FileUtil.createTempDir("vts-coverage-preparer-cache");
+        try {
+            mArtifactCache = new VtsArtifactCache(cacheDir, 1024 * 1024);
+            doReturn("walleye_coverage-userdebug").when(mDevice).getBuildFlavor();
+            doReturn("1").when(mDevice).getProperty(GCOV_PROPERTY);
+            doAnswer(invocation -> {
+                // The last argument is the destination file or directory.
+                Object[] args = invocation.getArguments();
+                File destination = new File((String) args[args.length - 1]);
+                if (destination.isDirectory()) {
+                    destination = new File(destination, BUILD_INFO_ARTIFACT);
+                }
+                FileUtil.writeToFile("content", destination);
+                CommandResult commandResult = new CommandResult();
+                commandResult.setStatus(CommandStatus.SUCCESS);
+                return commandResult;
+            }).when(mRunUtil).runTimedCmd(anyLong(), any());
+
+            mPreparer.setUp(mDevice, mBuildInfo);
+            mPreparer.tearDown(mDevice, mBuildInfo, null);
+            mTestDir.mkdirs();
+            mPreparer.setUp(mDevice, mBuildInfo);
+            // The second setUp copies the artifacts from the cache.
+            verify(mRunUtil, times(2)).runTimedCmd(anyLong(), any());
+            assertEquals("content",
+                    FileUtil.readStringFromFile(new File(mTestDir, GCOV_FILE_NAME)));
+            assertEquals("content",
+                    FileUtil.readStringFromFile(new File(mTestDir, BUILD_INFO_ARTIFACT)));
+        } finally {
+            FileUtil.recursiveDelete(cacheDir);
+        }
+    }
+
     /**
      * Helper method to create a test file under mTestDir.
      *
@@ -244,9 +244,6 @@ public class VtsPythonVirtualenvPreparerTest {
         CommandResult result = new CommandResult(CommandStatus.TIMED_OUT);
         result.setStdout("output");
         result.setStderr("std err");
-        expect(mMockRunUtil.runTimedCmd(
-                       anyLong(), EasyMock.eq(mPreparer.getPipPath()), EasyMock.eq("list")))
-                .andReturn(result);
         expect(mMockRunUtil.runTimedCmd(anyLong(), EasyMock.eq(mPreparer.getPipPath()),
                        EasyMock.eq("install"), EasyMock.eq("enum")))
                 .andReturn(result);
@@ -266,10 +263,89 @@ public class VtsPythonVirtualenvPreparerTest {
         EasyMock.verify(mMockRunUtil);
     }
 
-    private void addDefaultModuleExpectations(IRunUtil mockRunUtil, CommandResult result) {
-        expect(mockRunUtil.runTimedCmd(
-                       anyLong(), EasyMock.eq(mPreparer.getPipPath()), EasyMock.eq("list")))
+    /**
+     * Test that the batch mode installs all missing modules with one command and no delay.
+     */
+    @Test
+    public void testInstallDeps_batch_success() throws Exception {
+        mPreparer.addDepModule("blahblah");
+        mPreparer.setBatchPipInstall(true);
+        CommandResult result = new CommandResult(CommandStatus.SUCCESS);
+        result.setStdout("output");
+        result.setStderr("std err");
+        expect(mMockRunUtil.runTimedCmd(anyLong(), EasyMock.eq(mPreparer.getPipPath()),
+                       EasyMock.eq("install"), EasyMock.eq("enum"), EasyMock.eq("blahblah")))
+                .andReturn(result);
+        EasyMock.replay(mMockRunUtil);
+        mPreparer.installDeps();
+        EasyMock.verify(mMockRunUtil);
+    }
+
+    /**
+     * Test that the batch mode installs the modules one by one if the batch command fails.
+     */
+    @Test
+    public void testInstallDeps_batch_failure() throws Exception {
+        mPreparer.addDepModule("blahblah");
+        mPreparer.setBatchPipInstall(true);
+        CommandResult result = new CommandResult(CommandStatus.SUCCESS);
+        result.setStdout("output");
+        result.setStderr("std err");
+        CommandResult failure = new CommandResult(CommandStatus.FAILED);
+        failure.setStdout("output");
+        failure.setStderr("std err");
+        expect(mMockRunUtil.runTimedCmd(anyLong(), EasyMock.eq(mPreparer.getPipPath()),
+                       EasyMock.eq("install"), EasyMock.eq("enum"), EasyMock.eq("blahblah")))
+                .andReturn(failure);
+        expect(mMockRunUtil.runTimedCmd(anyLong(), EasyMock.eq(mPreparer.getPipPath()),
+                       EasyMock.eq("install"), EasyMock.eq("enum")))
                 .andReturn(result);
+        expect(mMockRunUtil.runTimedCmd(anyLong(), EasyMock.eq(mPreparer.getPipPath()),
+                       EasyMock.eq("install"), EasyMock.eq("blahblah")))
+                .andReturn(result);
+        EasyMock.replay(mMockRunUtil);
+        mPreparer.installDeps();
+        EasyMock.verify(mMockRunUtil);
+    }
+
+    /**
+     * Test that the modules installed by the failed batch command are not installed again.
+     */
+    @Test
+    public void testInstallDeps_batch_partialFailure() throws Exception {
+        File venvDir = FileUtil.createTempDir("vts-virtualenv");
+        try {
+            mPreparer.mVenvDir = venvDir;
+            mPreparer.addDepModule("blahblah");
+            mPreparer.setBatchPipInstall(true);
+            CommandResult result = new CommandResult(CommandStatus.SUCCESS);
+            result.setStdout("output");
+            result.setStderr("std err");
+            CommandResult failure = new CommandResult(CommandStatus.FAILED);
+            failure.setStdout("output");
+            failure.setStderr("std err");
+            File metadata = new File(venvDir,
+                    "lib/python2.7/site-packages/blahblah-1.0.dist-info/METADATA");
+            expect(mMockRunUtil.runTimedCmd(anyLong(), EasyMock.eq(mPreparer.getPipPath()),
+                           EasyMock.eq("install"), EasyMock.eq("enum"),
+                           EasyMock.eq("blahblah")))
+                    .andAnswer(() -> {
+                        FileUtil.mkdirsRWX(metadata.getParentFile());
+                        FileUtil.writeToFile("Name: blahblah\nVersion: 1.0\n", metadata);
+                        return failure;
+                    });
+            expect(mMockRunUtil.runTimedCmd(anyLong(), EasyMock.eq(mPreparer.getPipPath()),
+                           EasyMock.eq("install"), EasyMock.eq("enum")))
+                    .andReturn(result);
+            EasyMock.replay(mMockRunUtil);
+            mPreparer.installDeps();
+            EasyMock.verify(mMockRunUtil);
+        } finally {
+            FileUtil.recursiveDelete(venvDir);
+        }
+    }
+
+    private void addDefaultModuleExpectations(IRunUtil mockRunUtil, CommandResult result) {
         expect(mockRunUtil.runTimedCmd(anyLong(), EasyMock.eq(mPreparer.getPipPath()),
                        EasyMock.eq("install"), EasyMock.eq("enum")))
                 .andReturn(result);
@@ -17,6 +17,7 @@ package com.android.tradefed.testtype;
 
 import com.android.tradefed.result.ITestLifeCycleReceiver;
 import com.android.tradefed.result.TestDescription;
+import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.StreamUtil;
 
 import org.easymock.EasyMock;
@@ -27,6 +28,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
@@ -255,4 +257,161 @@ public class VtsMultiDeviceTestResultParserTest {
                 new VtsMultiDeviceTestResultParser(mockRunListener, RUN_NAME);
         resultParser.processJsonFile(object);
     }
+
+    /*
+     * Test streaming a summary file containing passing and failing records.
+     */
+    @Test
+    public void testNormalSummaryStreaming() throws IOException, JSONException {
+        File summaryFile = createSummaryFile(SUMMARY_FILE_NORMAL);
+
+        ITestLifeCycleReceiver mockRunListener = EasyMock.createMock(ITestLifeCycleReceiver.class);
+        mockRunListener.testRunStarted(RUN_NAME, 2);
+        TestDescription test1 = new TestDescription(RUN_NAME, TEST_NAME_1);
+        mockRunListener.testStarted(test1, 1525425222367l);
+        mockRunListener.testEnded(test1, 1525425223793l, Collections.emptyMap());
+
+        TestDescription test2 = new TestDescription(RUN_NAME, TEST_NAME_2);
+        mockRunListener.testStarted(test2, 1525425749536l);
+        mockRunListener.testFailed(test2, FAILURE_MESSAGE);
+        mockRunListener.testEnded(test2, 1525425749537l, Collections.emptyMap());
+        mockRunListener.testRunEnded(1525425749537l - 1525425222367l, Collections.emptyMap());
+
+        EasyMock.replay(mockRunListener);
+        VtsMultiDeviceTestResultParser resultParser =
+                new VtsMultiDeviceTestResultParser(mockRunListener, RUN_NAME);
+        try {
+            JSONObject object = resultParser.processJsonFile(summaryFile);
+            Assert.assertFalse(object.has(VtsMultiDeviceTestResultParser.RESULTS));
+            Assert.assertTrue(object.has("TestModule"));
+        } finally {
+            FileUtil.deleteFile(summaryFile);
+        }
+        EasyMock.verify(mockRunListener);
+    }
+
+    /*
+     * Test streaming a summary file containing class error message.
+     */
+    @Test
+    public void testClassErrorSummaryStreaming() throws IOException, JSONException {
+        File summaryFile = createSummaryFile(SUMMARY_FILE_CLASS_ERRORS);
+
+        ITestLifeCycleReceiver mockRunListener = EasyMock.createMock(ITestLifeCycleReceiver.class);
+        mockRunListener.testRunStarted(RUN_NAME, 1);
+        TestDescription test1 = new TestDescription(RUN_NAME, TEST_NAME_1);
+        mockRunListener.testStarted(test1, 1525424790227l);
+        mockRunListener.testFailed(test1, FAILURE_MESSAGE);
+        mockRunListener.testEnded(test1, 1525424790227l, Collections.emptyMap());
+        mockRunListener.testRunFailed(CLASS_ERROR_MESSAGE);
+        mockRunListener.testRunEnded(EasyMock.anyLong(), EasyMock.eq(Collections.emptyMap()));
+
+        EasyMock.replay(mockRunListener);
+        VtsMultiDeviceTestResultParser resultParser =
+                new VtsMultiDeviceTestResultParser(mockRunListener, RUN_NAME);
+        try {
+            resultParser.processJsonFile(summaryFile);
+        } finally {
+            FileUtil.deleteFile(summaryFile);
+        }
+        EasyMock.verify(mockRunListener);
+    }
+
+    /*
+     * Test reporting live events and reconciling them with a summary file.
+     */
+    @Test
+    public void testLiveEvents() throws IOException, JSONException {
+        File summaryFile = createSummaryFile(SUMMARY_FILE_NORMAL);
+
+        ITestLifeCycleReceiver mockRunListener =
+                EasyMock.createStrictMock(ITestLifeCycleReceiver.class);
+        mockRunListener.testRunStarted(RUN_NAME, 0);
+        TestDescription test1 = new TestDescription(RUN_NAME, TEST_NAME_1);
+        mockRunListener.testStarted(test1, 1525425222367l);
+        mockRunListener.testEnded(test1, 1525425223793l, Collections.emptyMap());
+
+        // test2 is only in the summary.
+        TestDescription test2 = new TestDescription(RUN_NAME, TEST_NAME_2);
+        mockRunListener.testStarted(test2, 1525425749536l);
+        mockRunListener.testFailed(test2, FAILURE_MESSAGE);
+        mockRunListener.testEnded(test2, 1525425749537l, Collections.emptyMap());
+        mockRunListener.testRunEnded(1525425749537l - 1525425222367l, Collections.emptyMap());
+
+        EasyMock.replay(mockRunListener);
+        VtsMultiDeviceTestResultParser resultParser =
+                new VtsMultiDeviceTestResultParser(mockRunListener, RUN_NAME);
+        try {
+            Assert.assertFalse(resultParser.isLiveRunStarted());
+            resultParser.processLiveEvent(createEvent(
+                    VtsMultiDeviceTestResultParser.EVENT_TEST_STARTED, TEST_NAME_1, null));
+            Assert.assertTrue(resultParser.isLiveRunStarted());
+            resultParser.processLiveEvent(createEvent(
+                    VtsMultiDeviceTestResultParser.EVENT_TEST_ENDED, TEST_NAME_1, "PASS"));
+            resultParser.completeLiveRun(summaryFile);
+        } finally {
+            FileUtil.deleteFile(summaryFile);
+        }
+        EasyMock.verify(mockRunListener);
+    }
+
+    /*
+     * Test failing a started test case which is not in the summary.
+     */
+    @Test
+    public void testLiveEventsUnfinished() throws IOException, JSONException {
+        ITestLifeCycleReceiver mockRunListener =
+                EasyMock.createStrictMock(ITestLifeCycleReceiver.class);
+        mockRunListener.testRunStarted(RUN_NAME, 0);
+        TestDescription test1 = new TestDescription(RUN_NAME, TEST_NAME_1);
+        mockRunListener.testStarted(test1, 1525425222367l);
+        mockRunListener.testFailed(test1, VtsMultiDeviceTestResultParser.UNFINISHED);
+        mockRunListener.testEnded(
+                EasyMock.eq(test1), EasyMock.anyLong(), EasyMock.eq(Collections.emptyMap()));
+        mockRunListener.testRunEnded(0, Collections.emptyMap());
+
+        EasyMock.replay(mockRunListener);
+        VtsMultiDeviceTestResultParser resultParser =
+                new VtsMultiDeviceTestResultParser(mockRunListener, RUN_NAME);
+        resultParser.processLiveEvent(createEvent(
+                VtsMultiDeviceTestResultParser.EVENT_TEST_STARTED, TEST_NAME_1, null));
+        Assert.assertNull(resultParser.completeLiveRun(null));
+        EasyMock.verify(mockRunListener);
+    }
+
+    /**
+     * Creates a live event as the runner sends.
+     *
+     * @param type the type of the event.
+     * @param testName the name of the test case.
+     * @param result the result of the test case; null if the test case is running.
+     * @return the json object of the event.
+     * @throws JSONException if fails to create the object.
+     */
+    private JSONObject createEvent(String type, String testName, String result)
+            throws JSONException {
+        JSONObject event = new JSONObject();
+        event.put(VtsMultiDeviceTestResultParser.EVENT, type);
+        event.put(VtsMultiDeviceTestResultParser.TEST_CLASS, RUN_NAME);
+        event.put(VtsMultiDeviceTestResultParser.TEST_NAME, testName);
+        event.put(VtsMultiDeviceTestResultParser.BEGIN_TIME, 1525425222367l);
+        if (result != null) {
+            event.put(VtsMultiDeviceTestResultParser.END_TIME, 1525425223793l);
+            event.put(VtsMultiDeviceTestResultParser.RESULT, result);
+        }
+        return event;
+    }
+
+    /**
+     * Copies a summary resource to a temporary file.
+     *
+     * @param resource the name of the resource.
+     * @return the temporary file.
+     * @throws IOException if fails to read or write.
+     */
+    private File createSummaryFile(String resource) throws IOException {
+        File summaryFile = FileUtil.createTempFile("test_run_summary", ".json");
+        FileUtil.writeToFile(getResourceAsString(resource), summaryFile);
+        return summaryFile;
+    }
 }
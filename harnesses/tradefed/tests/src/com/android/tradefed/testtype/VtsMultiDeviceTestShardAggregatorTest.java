@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.ITestLifeCycleReceiver;
+import com.android.tradefed.result.TestDescription;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Collections;
+
+/**
+ * Unit tests for {@link VtsMultiDeviceTestShardAggregator}.
+ */
+@RunWith(JUnit4.class)
+public class VtsMultiDeviceTestShardAggregatorTest {
+    private static final String RUN_NAME = "SampleShardedTest";
+    private static final String FAILURE_MESSAGE = "unit test";
+
+    /**
+     * Test that the test cases of different shards are not interleaved and the run failures and
+     * elapsed times are merged.
+     */
+    @Test
+    public void testInterleavedShards() {
+        TestDescription test1 = new TestDescription(RUN_NAME, "test1");
+        TestDescription test2 = new TestDescription(RUN_NAME, "test2");
+
+        ITestInvocationListener mockListener =
+                EasyMock.createStrictMock(ITestInvocationListener.class);
+        mockListener.testRunStarted(RUN_NAME, 2);
+        mockListener.testStarted(test2, 3);
+        mockListener.testEnded(test2, 4, Collections.emptyMap());
+        mockListener.testStarted(test1, 1);
+        mockListener.testFailed(test1, FAILURE_MESSAGE);
+        mockListener.testEnded(test1, 5, Collections.emptyMap());
+        mockListener.testRunFailed("shard1: " + FAILURE_MESSAGE);
+        mockListener.testRunEnded(20, Collections.emptyMap());
+        EasyMock.replay(mockListener);
+
+        VtsMultiDeviceTestShardAggregator aggregator =
+                new VtsMultiDeviceTestShardAggregator(mockListener, RUN_NAME, 2);
+        ITestLifeCycleReceiver shard0 = aggregator.createShardReceiver("shard0");
+        ITestLifeCycleReceiver shard1 = aggregator.createShardReceiver("shard1");
+        aggregator.start();
+        shard0.testRunStarted(RUN_NAME, 0);
+        shard1.testRunStarted(RUN_NAME, 0);
+        shard0.testStarted(test1, 1);
+        shard1.testStarted(test2, 3);
+        shard0.testFailed(test1, FAILURE_MESSAGE);
+        shard1.testEnded(test2, 4, Collections.emptyMap());
+        shard0.testEnded(test1, 5, Collections.emptyMap());
+        shard0.testRunEnded(20, Collections.emptyMap());
+        shard1.testRunFailed(FAILURE_MESSAGE);
+        shard1.testRunEnded(10, Collections.emptyMap());
+        aggregator.end();
+        EasyMock.verify(mockListener);
+    }
+}
@@ -26,8 +26,11 @@ import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.log.ITestLogger;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.ITestLifeCycleReceiver;
+import com.android.tradefed.result.TestDescription;
 import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
 import com.android.tradefed.util.StreamUtil;
@@ -45,8 +48,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Unit tests for {@link VtsMultiDeviceTest}.
@@ -368,4 +375,71 @@ public class VtsMultiDeviceTestTest {
                 newTest.getVtsRunnerLogDir().exists());
         EasyMock.verify(mMockInvocationListener, mDevice);
     }
+
+    /**
+     * Test that the collected test cases are split among the devices in round-robin order, and
+     * that a shard failure is reported to the single test run and thrown after all shards end.
+     */
+    @Test
+    public void testRunSharded() throws Exception {
+        String runName = "SampleShardedTest";
+        String failureMessage = "shard failure";
+        ITestDevice device1 = EasyMock.createNiceMock(ITestDevice.class);
+        ITestDevice device2 = EasyMock.createNiceMock(ITestDevice.class);
+        EasyMock.replay(device1, device2);
+        IInvocationContext context = EasyMock.createNiceMock(IInvocationContext.class);
+        EasyMock.expect(context.getDevices()).andReturn(Arrays.asList(device1, device2)).anyTimes();
+        EasyMock.expect(context.getBuildInfos())
+                .andReturn(Arrays.asList(createMockBuildInfo()))
+                .anyTimes();
+        EasyMock.replay(context);
+
+        Map<String, Set<String>> shardFilters = new ConcurrentHashMap<>();
+        VtsMultiDeviceTest test = new VtsMultiDeviceTest() {
+            @Override
+            VtsMultiDeviceTest createShard(
+                    ITestDevice device, ITestLogger logger, String shardName) {
+                VtsMultiDeviceTest shard = new VtsMultiDeviceTest() {
+                    @Override
+                    void doRunTest(ITestLifeCycleReceiver receiver) {
+                        if (shardName.endsWith("_collection")) {
+                            for (int i = 1; i <= 5; i++) {
+                                receiver.testStarted(new TestDescription(runName, "test" + i));
+                            }
+                            return;
+                        }
+                        shardFilters.put(shardName, new TreeSet<>(getIncludeFilters()));
+                        if (shardName.endsWith("_shard1")) {
+                            throw new RuntimeException(failureMessage);
+                        }
+                    }
+                };
+                shard.setDevice(device);
+                return shard;
+            }
+        };
+        OptionSetter setter = new OptionSetter(test);
+        setter.setOptionValue("device-sharding", "true");
+        setter.setOptionValue("test-module-name", runName);
+        test.setInvocationContext(context);
+        test.setTestCasePath(TEST_CASE_PATH);
+
+        ITestInvocationListener listener = EasyMock.createStrictMock(ITestInvocationListener.class);
+        listener.testRunStarted(runName, 5);
+        listener.testRunFailed(runName + "_shard1: " + failureMessage);
+        listener.testRunEnded(
+                EasyMock.anyLong(), EasyMock.eq(Collections.<String, String>emptyMap()));
+        EasyMock.replay(listener);
+        try {
+            test.run(listener);
+            fail("RuntimeException is expected");
+        } catch (RuntimeException expected) {
+            assertEquals(failureMessage, expected.getMessage());
+        }
+        EasyMock.verify(listener);
+        assertEquals(new TreeSet<>(Arrays.asList("test1", "test3", "test5")),
+                shardFilters.get(runName + "_shard0"));
+        assertEquals(new TreeSet<>(Arrays.asList("test2", "test4")),
+                shardFilters.get(runName + "_shard1"));
+    }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A local HTTP server which stands in for the dashboard datastore API.
+ *
+ * <p>The server reads and discards the request bodies. The latency and the failure rate of the
+ * responses are configurable, so that the upload path can be tested and measured without a real
+ * backend.
+ */
+public class FakeDashboardServer implements AutoCloseable {
+    public static final String DATASTORE_PATH = "/api/datastore";
+    public static final String SUCCESS_RESPONSE = "{\"resultCode\": 0}";
+    static final int FAILURE_STATUS = 503;
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor;
+    private volatile long mLatencyMsecs = 0;
+    private volatile double mFailureRate = 0;
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mFailureCount = new AtomicLong();
+    private final AtomicLong mByteCount = new AtomicLong();
+
+    /**
+     * Starts the server on a free loopback port.
+     *
+     * @param threadCount the number of threads handling the requests.
+     * @throws IOException if fails to start the server.
+     */
+    public FakeDashboardServer(int threadCount) throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/", this::handle);
+        mExecutor = Executors.newFixedThreadPool(threadCount);
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+    }
+
+    /**
+     * @return the url used as the dashboard API host.
+     */
+    public String getUrl() {
+        return String.format("http://%s:%d", mServer.getAddress().getHostString(),
+                mServer.getAddress().getPort());
+    }
+
+    /**
+     * Sets the time to wait before each response.
+     */
+    public void setLatencyMsecs(long latencyMsecs) {
+        mLatencyMsecs = latencyMsecs;
+    }
+
+    /**
+     * Sets the probability that a request fails with {@link #FAILURE_STATUS}.
+     */
+    public void setFailureRate(double failureRate) {
+        mFailureRate = failureRate;
+    }
+
+    /**
+     * @return the number of the received requests, including the failed ones.
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return the number of the requests which are failed on purpose.
+     */
+    public long getFailureCount() {
+        return mFailureCount.get();
+    }
+
+    /**
+     * @return the number of the received bytes after content decoding.
+     */
+    public long getByteCount() {
+        return mByteCount.get();
+    }
+
+    @Override
+    public void close() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            // The API transport joins the host url and the path with an extra slash, which
+            // URI parses as an authority, so the path is taken from the raw request target.
+            String path = exchange.getRequestURI().toString().replaceAll("[?#].*", "");
+            path = path.replaceAll("/+", "/");
+            if (!path.equals(DATASTORE_PATH)) {
+                sendResponse(exchange, 404, "Not found: " + path);
+                return;
+            }
+            mRequestCount.incrementAndGet();
+            mByteCount.addAndGet(readBody(exchange));
+            if (mLatencyMsecs > 0) {
+                Thread.sleep(mLatencyMsecs);
+            }
+            if (ThreadLocalRandom.current().nextDouble() < mFailureRate) {
+                mFailureCount.incrementAndGet();
+                sendResponse(exchange, FAILURE_STATUS, "Injected failure");
+                return;
+            }
+            sendResponse(exchange, 200, SUCCESS_RESPONSE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static long readBody(HttpExchange exchange) throws IOException {
+        InputStream body = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            body = new GZIPInputStream(body);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        long length = 0;
+        int count;
+        while ((count = body.read(buffer)) > 0) {
+            length += count;
+        }
+        return length;
+    }
+
+    private static void sendResponse(HttpExchange exchange, int status, String response)
+            throws IOException {
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
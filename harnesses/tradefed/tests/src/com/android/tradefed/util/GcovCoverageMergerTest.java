@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.android.vts.proto.VtsReportMessage.CoverageReportMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Unit tests for {@link GcovIndex} and {@link GcovCoverageMerger}.
+ */
+@RunWith(JUnit4.class)
+public class GcovCoverageMergerTest {
+    private static final String GCNO_FILE = "/util/sample.gcno";
+    private static final String GCDA_FILE = "/util/sample.gcda";
+
+    // The line coverage vector generated by the python coverage_report from the sample files.
+    private static final long[] EXPECTED_VECTOR = {-1, -1, -1, -1, 2, -1, -1, -1, -1, -1, 2, 2,
+            2, -1, 2, -1, 2, 0, -1, 2, -1, -1, 2, 2, 502, 500, -1, -1, 2, -1, 2, -1, -1, -1, 2,
+            -1, -1, -1, -1, 2, 2, 2};
+
+    private File mTmpDir;
+    private GcovIndex mIndex;
+    private byte[] mGcda;
+
+    @Before
+    public void setUp() throws Exception {
+        mTmpDir = FileUtil.createTempDir("vts-gcov-unit-tests");
+        File gcovZip = new File(mTmpDir, "gcov.zip");
+        createGcovZip(readResource(GCNO_FILE), gcovZip);
+        mIndex = GcovIndex.load(gcovZip, new File(mTmpDir, "index"));
+        mGcda = readResource(GCDA_FILE);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mTmpDir);
+    }
+
+    /**
+     * Test that the line coverage vector is the same as the python implementation.
+     */
+    @Test
+    public void testLineCoverageVector() {
+        GcovCoverageMerger merger = new GcovCoverageMerger(mIndex, Collections.emptyList());
+        assertTrue(merger.addGcdaFile("/data/misc/trace/self/sample.gcda", mGcda));
+        Map<String, long[]> vectors = merger.getLineCoverageVectors();
+        assertEquals(Collections.singleton("sample.c"), vectors.keySet());
+        assertArrayEquals(EXPECTED_VECTOR, vectors.get("sample.c"));
+    }
+
+    /**
+     * Test that the counts of multiple gcda files are added.
+     */
+    @Test
+    public void testMergeGcdaFiles() {
+        GcovCoverageMerger merger = new GcovCoverageMerger(mIndex, Collections.emptyList());
+        merger.addGcdaFile("/data/misc/trace/1/sample.gcda", mGcda);
+        merger.addGcdaFile("/data/misc/trace/2/sample.gcda", mGcda);
+        long[] vector = merger.getLineCoverageVectors().get("sample.c");
+        assertEquals(1004, vector[24]);
+        assertEquals(0, vector[17]);
+        assertEquals(-1, vector[0]);
+    }
+
+    /**
+     * Test that the generated, excluded and corrupt files are skipped.
+     */
+    @Test
+    public void testSkippedFiles() {
+        GcovCoverageMerger merger = new GcovCoverageMerger(mIndex, Arrays.asList("sample"));
+        assertFalse(merger.addGcdaFile("/data/misc/trace/gen/sample.gcda", mGcda));
+        assertFalse(merger.addGcdaFile(
+                "/data/misc/trace/sample.gcda", Arrays.copyOf(mGcda, 8)));
+        assertTrue(merger.addGcdaFile("/data/misc/trace/sample.gcda", mGcda));
+        assertTrue(merger.getLineCoverageVectors().isEmpty());
+    }
+
+    /**
+     * Test the coverage report of a source file in a project.
+     */
+    @Test
+    public void testCoverageReports() {
+        GcovCoverageMerger merger = new GcovCoverageMerger(mIndex, Collections.emptyList());
+        merger.addGcdaFile("/data/misc/trace/self/sample.gcda", mGcda);
+        assertTrue(merger.getCoverageReports(
+                Collections.singletonMap("platform/external", "1")).isEmpty());
+
+        List<CoverageReportMessage> reports =
+                merger.getCoverageReports(Collections.singletonMap("platform/sample.c", "abc"));
+        assertEquals(1, reports.size());
+        CoverageReportMessage report = reports.get(0);
+        assertEquals("platform/sample.c", report.getProjectName().toStringUtf8());
+        assertEquals("abc", report.getRevision().toStringUtf8());
+        assertEquals(18, report.getTotalLineCount());
+        assertEquals(17, report.getCoveredLineCount());
+        assertEquals(EXPECTED_VECTOR.length, report.getLineCoverageVectorCount());
+    }
+
+    /**
+     * Test that the index of the same artifact is loaded once.
+     */
+    @Test
+    public void testLoadIndexOnce() throws Exception {
+        File gcovZip = new File(mTmpDir, "gcov.zip");
+        assertSame(mIndex, GcovIndex.load(gcovZip, new File(mTmpDir, "index")));
+        assertEquals(1, mIndex.getUnits(GcovIndex.openGcovFile(
+                mGcda, GcovIndex.GCDA_MAGIC).getInt(8)).size());
+        assertTrue(mIndex.getUnits(0).isEmpty());
+    }
+
+    /**
+     * Test that the least recently used index files and the stale temporary files are deleted.
+     */
+    @Test
+    public void testPruneIndexDir() throws Exception {
+        File indexDir = new File(mTmpDir, "prune");
+        indexDir.mkdir();
+        long now = System.currentTimeMillis();
+        int fileCount = GcovIndex.MAX_INDEX_FILES + 2;
+        for (int i = 0; i < fileCount; i++) {
+            File indexFile = new File(indexDir, i + GcovIndex.INDEX_FILE_EXTENSION);
+            FileUtil.writeToFile("", indexFile);
+            indexFile.setLastModified(now - i * 60 * 1000L);
+        }
+        File staleTempFile = new File(indexDir, "gcov-index-stale.tmp");
+        FileUtil.writeToFile("", staleTempFile);
+        staleTempFile.setLastModified(now - GcovIndex.TEMP_FILE_MAX_AGE_MSECS - 1000);
+        File tempFile = new File(indexDir, "gcov-index-building.tmp");
+        FileUtil.writeToFile("", tempFile);
+
+        GcovIndex.pruneIndexDir(indexDir);
+        for (int i = 0; i < fileCount; i++) {
+            assertEquals(i < GcovIndex.MAX_INDEX_FILES,
+                    new File(indexDir, i + GcovIndex.INDEX_FILE_EXTENSION).exists());
+        }
+        assertFalse(staleTempFile.exists());
+        assertTrue(tempFile.exists());
+    }
+
+    /**
+     * Creates a gcov.zip containing a .gcnodir archive of a gcno file.
+     */
+    public static void createGcovZip(byte[] gcno, File gcovZip) throws IOException {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        archive.write(GcovIndex.AR_GLOBAL_SIGNATURE.getBytes(StandardCharsets.US_ASCII));
+        archive.write(String.format("%-16s%-12s%-6s%-6s%-8s%-10d`\n", "sample.gcno/", "0", "0",
+                                    "0", "644", gcno.length)
+                              .getBytes(StandardCharsets.US_ASCII));
+        archive.write(gcno);
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(gcovZip))) {
+            zip.putNextEntry(new ZipEntry("system/lib/sample.gcnodir"));
+            zip.write(archive.toByteArray());
+            zip.closeEntry();
+        }
+    }
+
+    private byte[] readResource(String name) throws IOException {
+        try (InputStream input = getClass().getResourceAsStream(name)) {
+            return GcovIndex.readFully(input);
+        }
+    }
+}
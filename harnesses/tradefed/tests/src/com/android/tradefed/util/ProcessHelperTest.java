@@ -18,6 +18,7 @@ package com.android.tradefed.util;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -28,6 +29,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -44,13 +46,20 @@ public class ProcessHelperTest {
      */
     private Process createMockProcess(
             String stdout, String stderr, int exitValue, long executionTimeMsecs) {
-        // No need to close OutputStream and ByteArrayInputStream because doing so has no effect.
+        // No need to close ByteArrayInputStream because doing so has no effect.
+        return createMockProcess(new ByteArrayInputStream(stdout.getBytes()),
+                new ByteArrayInputStream(stderr.getBytes()), exitValue, executionTimeMsecs);
+    }
+
+    /**
+     * Return a mock process which outputs the content of the streams.
+     */
+    private Process createMockProcess(InputStream stdoutStream, InputStream stderrStream,
+            int exitValue, long executionTimeMsecs) {
         OutputStream stdinStream = new OutputStream() {
             @Override
             public void write(int b) throws IOException {}
         };
-        InputStream stdoutStream = new ByteArrayInputStream(stdout.getBytes());
-        InputStream stderrStream = new ByteArrayInputStream(stderr.getBytes());
         long endTime = System.currentTimeMillis() + executionTimeMsecs;
 
         return new Process() {
@@ -129,6 +138,32 @@ public class ProcessHelperTest {
         assertTrue(mProcessHelper.getStderr().equals("456\n"));
     }
 
+    /**
+     * Test that the output is complete if the process has terminated but the reader threads have
+     * not consumed the output.
+     */
+    @Test
+    public void testGetOutputAfterTermination() {
+        InputStream stdoutStream = new ByteArrayInputStream("123\n".getBytes()) {
+            @Override
+            public synchronized int read(byte[] buffer, int offset, int length) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return -1;
+                }
+                return super.read(buffer, offset, length);
+            }
+        };
+        mProcessHelper = new ProcessHelper(createMockProcess(
+                stdoutStream, new ByteArrayInputStream("456\n".getBytes()), 0, 0));
+        while (mProcessHelper.isRunning()) {
+            Thread.yield();
+        }
+        assertEquals("123\n", mProcessHelper.getStdout());
+        assertEquals("456\n", mProcessHelper.getStderr());
+    }
+
     /**
      * Test running a process that returns non-zero.
      */
@@ -185,4 +220,42 @@ public class ProcessHelperTest {
             timer.join(1000);
         }
     }
+
+    /**
+     * Test keeping the last characters of the output and writing the full output to files.
+     */
+    @Test
+    public void testBoundedOutput() throws IOException {
+        File stdoutFile = FileUtil.createTempFile("stdout", ".txt");
+        File stderrFile = FileUtil.createTempFile("stderr", ".txt");
+        try {
+            mProcessHelper = new ProcessHelper(
+                    createMockProcess("123\n456\n789", "abc\n", 0, 10), 5, stdoutFile,
+                    stderrFile);
+            CommandStatus status = mProcessHelper.waitForProcess(10000);
+            assertEquals(CommandStatus.SUCCESS, status);
+            assertEquals("6\n789", mProcessHelper.getStdout());
+            assertEquals("abc\n", mProcessHelper.getStderr());
+            assertEquals("123\n456\n789", FileUtil.readStringFromFile(stdoutFile));
+            assertEquals("abc\n", FileUtil.readStringFromFile(stderrFile));
+        } finally {
+            FileUtil.deleteFile(stdoutFile);
+            FileUtil.deleteFile(stderrFile);
+        }
+    }
+
+    /**
+     * Test finding the log level in a line of python log.
+     */
+    @Test
+    public void testFindLogLevel() {
+        char[] line = "a 05-04 12:00:00.123 WARN message\n".toCharArray();
+        assertEquals("WARN", ProcessHelper.ReaderThread.findLogLevel(line, 0, line.length));
+        line = " 05-04 12:00:00.123 ERROR message".toCharArray();
+        assertEquals("ERROR", ProcessHelper.ReaderThread.findLogLevel(line, 0, line.length));
+        line = "a 05-04 12:00:00.123 WARNING message".toCharArray();
+        assertNull(ProcessHelper.ReaderThread.findLogLevel(line, 0, line.length));
+        line = "a b c".toCharArray();
+        assertNull(ProcessHelper.ReaderThread.findLogLevel(line, 0, line.length));
+    }
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link VtsArtifactCache}.
+ */
+@RunWith(JUnit4.class)
+public class VtsArtifactCacheTest {
+    private File mTmpDir;
+    private File mCacheDir;
+    private AtomicInteger mFetchCount;
+
+    @Before
+    public void setUp() throws Exception {
+        mTmpDir = FileUtil.createTempDir("vts-artifact-cache-unit-tests");
+        mCacheDir = new File(mTmpDir, "cache");
+        mFetchCount = new AtomicInteger(0);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mTmpDir);
+    }
+
+    /**
+     * Test that an artifact is fetched once and then copied from the cache.
+     */
+    @Test
+    public void testCacheHit() throws Exception {
+        VtsArtifactCache cache = new VtsArtifactCache(mCacheDir, 1024);
+        File first = new File(mTmpDir, "first");
+        File second = new File(mTmpDir, "second");
+        cache.get("flavor", "1", "artifact.zip", first, this::fetch);
+        cache.get("flavor", "1", "artifact.zip", second, this::fetch);
+        assertEquals(1, mFetchCount.get());
+        assertEquals("1234567890", FileUtil.readStringFromFile(second));
+
+        cache.get("flavor", "2", "artifact.zip", second, this::fetch);
+        assertEquals(2, mFetchCount.get());
+    }
+
+    /**
+     * Test that the least recently used artifact is evicted.
+     */
+    @Test
+    public void testEviction() throws Exception {
+        VtsArtifactCache cache = new VtsArtifactCache(mCacheDir, 25);
+        File destination = new File(mTmpDir, "destination");
+        cache.get("flavor", "1", "artifact.zip", destination, this::fetch);
+        cache.get("flavor", "2", "artifact.zip", destination, this::fetch);
+        File oldEntry = new File(mCacheDir, "flavor/1/artifact.zip");
+        oldEntry.setLastModified(oldEntry.lastModified() - 10000);
+        File lockFile = new File(mCacheDir, VtsArtifactCache.LOCK_FILE_NAME);
+        lockFile.setLastModified(lockFile.lastModified() - 20000);
+        cache.get("flavor", "3", "artifact.zip", destination, this::fetch);
+        assertFalse(oldEntry.exists());
+        assertTrue(new File(mCacheDir, "flavor/2/artifact.zip").exists());
+        assertTrue(new File(mCacheDir, "flavor/3/artifact.zip").exists());
+        assertTrue(lockFile.exists());
+    }
+
+    /**
+     * Test that a failed fetch leaves nothing in the cache.
+     */
+    @Test
+    public void testFetchFailure() throws Exception {
+        VtsArtifactCache cache = new VtsArtifactCache(mCacheDir, 1024);
+        try {
+            cache.get("flavor", "1", "artifact.zip", new File(mTmpDir, "destination"),
+                    downloadDir -> {
+                        FileUtil.writeToFile("partial", new File(downloadDir, "artifact.zip"));
+                        throw new IOException("fetch failure");
+                    });
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertFalse(new File(mCacheDir, "flavor/1/artifact.zip").exists());
+        assertEquals(0, new File(mCacheDir, "flavor/1").list().length);
+    }
+
+    private File fetch(File downloadDir) throws IOException {
+        mFetchCount.incrementAndGet();
+        File file = new File(downloadDir, "downloaded");
+        FileUtil.writeToFile("1234567890", file);
+        return file;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+
+/**
+ * Unit tests for {@link VtsCoverageAccumulator}.
+ */
+@RunWith(JUnit4.class)
+public class VtsCoverageAccumulatorTest {
+    private File mTmpDir;
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mTmpDir = FileUtil.createTempDir("vts-coverage-accumulator-unit-tests");
+        mFile = new File(mTmpDir, "build" + VtsCoverageAccumulator.FILE_EXTENSION);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mTmpDir);
+    }
+
+    /**
+     * Test that the covered lines of multiple modules are merged.
+     */
+    @Test
+    public void testMerge() throws Exception {
+        VtsCoverageAccumulator accumulator = new VtsCoverageAccumulator(mFile);
+        accumulator.merge("project:a.c", new long[] {-1, 0, 3, 0});
+        accumulator.merge("project:b.c", new long[] {1, 0});
+        assertEquals(5, accumulator.getTotalLineCount());
+        assertEquals(2, accumulator.getCoveredLineCount());
+
+        accumulator.merge("project:a.c", new long[] {-1, 2, 1, 0});
+        assertArrayEquals(new long[] {3, 2}, accumulator.getLineCounts("project:a.c"));
+        assertEquals(5, accumulator.getTotalLineCount());
+        assertEquals(3, accumulator.getCoveredLineCount());
+        assertEquals(2, accumulator.getFileCount());
+        assertNull(accumulator.getLineCounts("project:c.c"));
+        accumulator.close();
+    }
+
+    /**
+     * Test that the bitmaps grow when a longer vector is merged.
+     */
+    @Test
+    public void testMergeLongerVector() throws Exception {
+        VtsCoverageAccumulator accumulator = new VtsCoverageAccumulator(mFile);
+        accumulator.merge("project:a.c", new long[] {1, 0});
+        long[] vector = new long[130];
+        vector[129] = 1;
+        accumulator.merge("project:a.c", vector);
+        assertArrayEquals(new long[] {130, 2}, accumulator.getLineCounts("project:a.c"));
+        assertEquals(130, accumulator.getTotalLineCount());
+        assertEquals(2, accumulator.getCoveredLineCount());
+        accumulator.close();
+    }
+
+    /**
+     * Test that the coverage is loaded from the file.
+     */
+    @Test
+    public void testReopen() throws Exception {
+        VtsCoverageAccumulator accumulator = new VtsCoverageAccumulator(mFile);
+        accumulator.merge("project:a.c", new long[] {1, 0});
+        accumulator.merge("project:a.c", new long[] {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1});
+        accumulator.merge("project:b.c", new long[] {0, 1});
+        accumulator.close();
+
+        accumulator = new VtsCoverageAccumulator(mFile);
+        assertArrayEquals(new long[] {65, 2}, accumulator.getLineCounts("project:a.c"));
+        assertEquals(67, accumulator.getTotalLineCount());
+        assertEquals(3, accumulator.getCoveredLineCount());
+        accumulator.merge("project:b.c", new long[] {1, 0});
+        assertEquals(4, accumulator.getCoveredLineCount());
+        accumulator.close();
+    }
+
+    /**
+     * Test that the totals include the lines merged through another instance, as in another
+     * process, into the existing records.
+     */
+    @Test
+    public void testMergeFromOtherInstance() throws Exception {
+        VtsCoverageAccumulator accumulator = new VtsCoverageAccumulator(mFile);
+        VtsCoverageAccumulator other = new VtsCoverageAccumulator(mFile);
+        accumulator.merge("project:a.c", new long[] {1, 0, -1});
+        other.merge("project:a.c", new long[] {0, 1, -1});
+        assertEquals(2, accumulator.getTotalLineCount());
+        assertEquals(2, accumulator.getCoveredLineCount());
+
+        // The lines covered by the other instance are not counted again.
+        accumulator.merge("project:a.c", new long[] {1, 1, -1});
+        other.merge("project:b.c", new long[] {1});
+        assertEquals(3, accumulator.getTotalLineCount());
+        assertEquals(3, accumulator.getCoveredLineCount());
+        assertEquals(3, other.getCoveredLineCount());
+        other.close();
+        accumulator.close();
+    }
+
+    /**
+     * Test that the accumulator of a build is shared.
+     */
+    @Test
+    public void testGetInstance() throws Exception {
+        VtsCoverageAccumulator accumulator =
+                VtsCoverageAccumulator.getInstance(mTmpDir, "flavor_1");
+        assertSame(accumulator, VtsCoverageAccumulator.getInstance(mTmpDir, "flavor_1"));
+        assertEquals(0, accumulator.getTotalLineCount());
+
+        VtsCoverageAccumulator.closeInstances(mTmpDir);
+        VtsCoverageAccumulator reopened = VtsCoverageAccumulator.getInstance(mTmpDir, "flavor_1");
+        assertNotSame(accumulator, reopened);
+        VtsCoverageAccumulator.closeInstances(mTmpDir);
+    }
+}
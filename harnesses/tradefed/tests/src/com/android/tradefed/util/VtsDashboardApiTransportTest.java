@@ -17,15 +17,20 @@ package com.android.tradefed.util;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
 
 import com.android.tradefed.build.IFolderBuildInfo;
+import com.android.vts.proto.VtsReportMessage.DashboardPostMessage;
+import com.android.vts.proto.VtsReportMessage.TestReportMessage;
 import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.LowLevelHttpRequest;
 import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.Json;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.testing.http.HttpTesting;
@@ -34,11 +39,18 @@ import com.google.api.client.testing.http.MockLowLevelHttpRequest;
 import com.google.api.client.testing.http.MockLowLevelHttpResponse;
 import com.google.api.client.util.Key;
 import com.google.common.base.Preconditions;
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 import org.easymock.EasyMock;
 import org.junit.After;
 import org.junit.Before;
@@ -150,6 +162,79 @@ public class VtsDashboardApiTransportTest {
         assertEquals(rsp, jsonContent);
     }
 
+    @Test
+    public void testPostMessage() throws Exception {
+        DashboardPostMessage message =
+                DashboardPostMessage.newBuilder()
+                        .setAccessToken("token")
+                        .addTestReport(TestReportMessage.newBuilder().setTest(
+                                ByteString.copyFromUtf8(SAMPLE)))
+                        .build();
+        for (boolean gzip : new boolean[] {false, true}) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            String[] contentEncoding = new String[1];
+            this.mockHttpTransport = new MockHttpTransport() {
+                @Override
+                public LowLevelHttpRequest buildRequest(String method, String url) {
+                    return new MockLowLevelHttpRequest() {
+                        @Override
+                        public LowLevelHttpResponse execute() throws IOException {
+                            contentEncoding[0] = getContentEncoding();
+                            getStreamingContent().writeTo(body);
+                            return new MockLowLevelHttpResponse().setContent("ok");
+                        }
+                    };
+                }
+            };
+            this.vtsDashboardApiTransport =
+                    new VtsDashboardApiTransport(this.mockHttpTransport, HttpTesting.SIMPLE_URL);
+
+            String rsp = this.vtsDashboardApiTransport.postMessage(
+                    "", "application/octet-stream", message, gzip);
+            assertEquals("ok", rsp);
+            InputStream in = new ByteArrayInputStream(body.toByteArray());
+            if (gzip) {
+                assertEquals("gzip", contentEncoding[0]);
+                in = new GZIPInputStream(in);
+            }
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                encoded.write(buffer, 0, length);
+            }
+            assertEquals(Base64.getEncoder().encodeToString(message.toByteArray()),
+                    new String(encoded.toByteArray(), StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void testPostFileToServer() throws Exception {
+        File temp = File.createTempFile("temp-post-file", ".tmp");
+        try (FakeDashboardServer server = new FakeDashboardServer(1)) {
+            FileUtil.writeToFile(SAMPLE, temp);
+            this.vtsDashboardApiTransport =
+                    new VtsDashboardApiTransport(new NetHttpTransport(), server.getUrl());
+            String rsp = this.vtsDashboardApiTransport.postFile(FakeDashboardServer.DATASTORE_PATH,
+                    "application/octet-stream", temp.getAbsolutePath());
+            assertEquals(FakeDashboardServer.SUCCESS_RESPONSE, rsp);
+            assertEquals(temp.length(), server.getByteCount());
+
+            server.setFailureRate(1);
+            try {
+                this.vtsDashboardApiTransport.postFile(FakeDashboardServer.DATASTORE_PATH,
+                        "application/octet-stream", temp.getAbsolutePath());
+                fail("Expected an exception for the injected failure.");
+            } catch (HttpResponseException e) {
+                assertEquals(FakeDashboardServer.FAILURE_STATUS, e.getStatusCode());
+            }
+            assertEquals(2, server.getRequestCount());
+            assertEquals(1, server.getFailureCount());
+        } finally {
+            FileUtil.deleteFile(temp);
+        }
+    }
+
     @Test
     public void testPostMultiFile() throws Exception {
         String jsonContent = "{\"resultCode\": 1234, \"resultMsg\": \"success!\"}";
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.VtsProfilingAnalyzer.LatencyHistogram;
+import com.android.vts.proto.VtsReportMessage.DashboardPostMessage;
+import com.android.vts.proto.VtsReportMessage.TestReportMessage;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.protobuf.ByteString;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmarks of the dashboard upload paths against {@link FakeDashboardServer}.
+ *
+ * <p>This class is not a part of the unit test suite. Each case uploads a fixed number of
+ * requests at several payload sizes and concurrency levels, and logs the throughput, the
+ * latency percentiles and the allocation rate of the uploading threads.
+ */
+@RunWith(JUnit4.class)
+public class VtsDashboardUploadBenchmark {
+    private static final int[] PAYLOAD_SIZES = {1024, 64 * 1024, 1024 * 1024};
+    private static final int[] CONCURRENCY_LEVELS = {1, 4, 16};
+    private static final int REQUEST_COUNT = 64;
+    private static final int WARMUP_REQUEST_COUNT = 8;
+    private static final int SERVER_THREAD_COUNT = 16;
+    private static final String FILE_TYPE = "application/octet-stream";
+
+    /**
+     * An upload request to measure.
+     */
+    private interface UploadOperation {
+        void upload() throws IOException;
+    }
+
+    /**
+     * The measurements of the requests sent by one thread.
+     */
+    private static class ThreadResult {
+        LatencyHistogram mLatencyMicros = new LatencyHistogram();
+        long mAllocatedBytes = 0;
+        int mErrorCount = 0;
+    }
+
+    private FakeDashboardServer mServer;
+    private VtsDashboardApiTransport mTransport;
+    private File mTmpDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new FakeDashboardServer(SERVER_THREAD_COUNT);
+        mTransport = new VtsDashboardApiTransport(new NetHttpTransport(), mServer.getUrl());
+        mTmpDir = FileUtil.createTempDir("vts-dashboard-benchmark");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+        FileUtil.recursiveDelete(mTmpDir);
+    }
+
+    /**
+     * Measures uploading a base64 message file.
+     */
+    @Test
+    public void benchmarkPostFile() throws Exception {
+        for (int payloadSize : PAYLOAD_SIZES) {
+            String path = createPayloadFile(payloadSize).getAbsolutePath();
+            runCases("postFile", payloadSize,
+                    () -> mTransport.postFile(FakeDashboardServer.DATASTORE_PATH, FILE_TYPE, path));
+        }
+    }
+
+    /**
+     * Measures uploading two files in a multipart request.
+     */
+    @Test
+    public void benchmarkPostMultiFiles() throws Exception {
+        for (int payloadSize : PAYLOAD_SIZES) {
+            Map<String, String> files = new HashMap<>();
+            files.put(FILE_TYPE, createPayloadFile(payloadSize / 2).getAbsolutePath());
+            files.put("application/json", createPayloadFile(payloadSize / 2).getAbsolutePath());
+            runCases("postMultiFiles", payloadSize,
+                    () -> mTransport.postMultiFiles(FakeDashboardServer.DATASTORE_PATH, files));
+        }
+    }
+
+    /**
+     * Measures streaming a message with and without gzip encoding.
+     */
+    @Test
+    public void benchmarkPostMessage() throws Exception {
+        for (int payloadSize : PAYLOAD_SIZES) {
+            DashboardPostMessage message = createMessage(payloadSize);
+            for (boolean gzip : new boolean[] {false, true}) {
+                runCases(gzip ? "postMessage(gzip)" : "postMessage", payloadSize,
+                        () -> mTransport.postMessage(
+                                FakeDashboardServer.DATASTORE_PATH, FILE_TYPE, message, gzip));
+            }
+        }
+    }
+
+    /**
+     * Measures draining the upload queue from a slow and unreliable server.
+     */
+    @Test
+    public void benchmarkUploadQueue() throws Exception {
+        mServer.setLatencyMsecs(20);
+        mServer.setFailureRate(0.1);
+        File spoolDir = new File(mTmpDir, "spool");
+        FileUtil.mkdirsRWX(spoolDir);
+        VtsDashboardUploadQueue queue = new VtsDashboardUploadQueue(spoolDir, message -> {
+            try {
+                mTransport.postMessage(
+                        FakeDashboardServer.DATASTORE_PATH, FILE_TYPE, message.build(), false);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }, 10);
+        try {
+            DashboardPostMessage message = createMessage(64 * 1024);
+            long startTime = System.nanoTime();
+            for (int i = 0; i < REQUEST_COUNT; i++) {
+                queue.add(message);
+            }
+            long addTimeMicros = (System.nanoTime() - startTime) / 1000;
+            assertTrue(queue.flush(1000 * 60));
+            long drainTimeMsecs = (System.nanoTime() - startTime) / 1000000;
+            CLog.i("uploadQueue: %d messages queued in %d us, drained in %d ms "
+                    + "with %d requests, %d injected failures",
+                    REQUEST_COUNT, addTimeMicros, drainTimeMsecs, mServer.getRequestCount(),
+                    mServer.getFailureCount());
+        } finally {
+            queue.close();
+        }
+    }
+
+    /**
+     * Runs an operation at each concurrency level and logs the measurements.
+     */
+    private void runCases(String name, int payloadSize, UploadOperation operation)
+            throws Exception {
+        for (int concurrency : CONCURRENCY_LEVELS) {
+            run(operation, 1, WARMUP_REQUEST_COUNT);
+            long startTime = System.nanoTime();
+            List<ThreadResult> results = run(operation, concurrency, REQUEST_COUNT);
+            double elapsedSecs = (System.nanoTime() - startTime) / 1e9;
+
+            LatencyHistogram latency = new LatencyHistogram();
+            long allocatedBytes = 0;
+            int errorCount = 0;
+            for (ThreadResult result : results) {
+                latency.merge(result.mLatencyMicros);
+                allocatedBytes += result.mAllocatedBytes;
+                errorCount += result.mErrorCount;
+            }
+            assertEquals(0, errorCount);
+            CLog.i("%-18s %8d B x%-2d %8.1f req/s %8.2f MB/s p50 %7d us p99 %7d us "
+                    + "max %7d us alloc %8.1f MB/s",
+                    name, payloadSize, concurrency, REQUEST_COUNT / elapsedSecs,
+                    (double) payloadSize * REQUEST_COUNT / elapsedSecs / (1 << 20),
+                    latency.getValueAtPercentile(50), latency.getValueAtPercentile(99),
+                    latency.getMax(), allocatedBytes / elapsedSecs / (1 << 20));
+        }
+    }
+
+    /**
+     * Sends requests from multiple threads.
+     *
+     * @param operation the request to send.
+     * @param concurrency the number of threads.
+     * @param requestCount the total number of requests.
+     * @return the measurements of each thread.
+     */
+    private static List<ThreadResult> run(UploadOperation operation, int concurrency,
+            int requestCount) throws Exception {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        AtomicInteger nextRequest = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        List<Future<ThreadResult>> futures = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            futures.add(executor.submit(() -> {
+                ThreadResult result = new ThreadResult();
+                long allocatedBytes = getAllocatedBytes(threadBean);
+                while (nextRequest.getAndIncrement() < requestCount) {
+                    long startTime = System.nanoTime();
+                    try {
+                        operation.upload();
+                    } catch (IOException e) {
+                        result.mErrorCount++;
+                    }
+                    result.mLatencyMicros.record((System.nanoTime() - startTime) / 1000);
+                }
+                result.mAllocatedBytes = getAllocatedBytes(threadBean) - allocatedBytes;
+                return result;
+            }));
+        }
+        executor.shutdown();
+        List<ThreadResult> results = new ArrayList<>();
+        for (Future<ThreadResult> future : futures) {
+            results.add(future.get());
+        }
+        return results;
+    }
+
+    /**
+     * @return the bytes allocated by the current thread, or 0 if it is not supported.
+     */
+    private static long getAllocatedBytes(ThreadMXBean threadBean) {
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadBean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private File createPayloadFile(int size) throws IOException {
+        File file = FileUtil.createTempFile("payload", ".msg", mTmpDir);
+        FileUtil.writeToFile(new String(createPayload(size), "US-ASCII"), file);
+        return file;
+    }
+
+    private static DashboardPostMessage createMessage(int size) {
+        // The base64 encoding is 4/3 of the message size.
+        return DashboardPostMessage.newBuilder()
+                .addTestReport(TestReportMessage.newBuilder().setTest(
+                        ByteString.copyFrom(createPayload(size * 3 / 4))))
+                .build();
+    }
+
+    /**
+     * Creates a payload of hexadecimal digits, which is about as compressible as a report.
+     */
+    private static byte[] createPayload(int size) {
+        Random random = new Random(size);
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) "0123456789abcdef".charAt(random.nextInt(16));
+        }
+        return payload;
+    }
+}
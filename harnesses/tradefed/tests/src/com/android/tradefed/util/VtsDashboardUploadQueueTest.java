@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.vts.proto.VtsReportMessage.DashboardPostMessage;
+import com.android.vts.proto.VtsReportMessage.TestReportMessage;
+import com.google.protobuf.ByteString;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link VtsDashboardUploadQueue}.
+ */
+@RunWith(JUnit4.class)
+public class VtsDashboardUploadQueueTest {
+    private static final long FLUSH_TIMEOUT_MSECS = 1000 * 10;
+
+    private File mSpoolDir;
+    private VtsDashboardUploadQueue mQueue;
+    private List<DashboardPostMessage> mUploadedMessages;
+
+    @Before
+    public void setUp() throws Exception {
+        mSpoolDir = FileUtil.createTempDir("vts-dashboard-unit-tests");
+        mUploadedMessages = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mQueue != null) {
+            mQueue.close();
+        }
+        FileUtil.recursiveDelete(mSpoolDir);
+    }
+
+    /**
+     * Test that the messages spooled by the previous process are uploaded in one request. They
+     * are not waited for by flush.
+     */
+    @Test
+    public void testUploadSpooledMessages() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            writeSpoolFile(String.format("%013d-%06d", i, 0), createMessage("test" + i));
+        }
+        mQueue = new VtsDashboardUploadQueue(mSpoolDir, message -> {
+            mUploadedMessages.add(message.build());
+            return true;
+        }, 10);
+        long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT_MSECS;
+        while (countSpoolFiles() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, mUploadedMessages.size());
+        DashboardPostMessage uploaded = mUploadedMessages.get(0);
+        assertEquals(3, uploaded.getTestReportCount());
+        assertEquals("test0", uploaded.getTestReport(0).getTest().toStringUtf8());
+        assertEquals("test2", uploaded.getTestReport(2).getTest().toStringUtf8());
+        assertEquals(0, countSpoolFiles());
+    }
+
+    /**
+     * Test that the failed uploads are retried and the access token is not stored.
+     */
+    @Test
+    public void testRetry() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        mQueue = new VtsDashboardUploadQueue(mSpoolDir, message -> {
+            if (attempts.incrementAndGet() < 3) {
+                return false;
+            }
+            mUploadedMessages.add(message.build());
+            return true;
+        }, 10);
+        mQueue.add(createMessage("test").toBuilder().setAccessToken("token").build());
+        assertTrue(mQueue.flush(FLUSH_TIMEOUT_MSECS));
+        assertEquals(3, attempts.get());
+        assertEquals(1, mUploadedMessages.size());
+        assertFalse(mUploadedMessages.get(0).hasAccessToken());
+        assertEquals(0, countSpoolFiles());
+    }
+
+    /**
+     * Test that the messages which are not uploaded before the timeout are kept.
+     */
+    @Test
+    public void testFlushTimeout() throws Exception {
+        mQueue = new VtsDashboardUploadQueue(mSpoolDir, message -> false, 10);
+        mQueue.add(createMessage("test"));
+        assertFalse(mQueue.flush(100));
+        assertEquals(1, countSpoolFiles());
+    }
+
+    /**
+     * Test that the files claimed by another uploader are skipped and flush waits only for the
+     * messages added to the queue.
+     */
+    @Test
+    public void testClaimedSpoolFile() throws Exception {
+        String claimedName = String.format("%013d-%06d", 0, 0);
+        writeSpoolFile(claimedName, createMessage("claimed"));
+        File claimedFile =
+                new File(mSpoolDir, claimedName + VtsDashboardUploadQueue.SPOOL_FILE_SUFFIX);
+        try (RandomAccessFile file = new RandomAccessFile(claimedFile, "rw");
+                FileLock lock = file.getChannel().lock()) {
+            mQueue = new VtsDashboardUploadQueue(mSpoolDir, message -> {
+                mUploadedMessages.add(message.build());
+                return true;
+            }, 10);
+            mQueue.add(createMessage("test"));
+            assertTrue(mQueue.flush(FLUSH_TIMEOUT_MSECS));
+            assertEquals(1, mUploadedMessages.size());
+            assertEquals(1, mUploadedMessages.get(0).getTestReportCount());
+            assertEquals("test",
+                    mUploadedMessages.get(0).getTestReport(0).getTest().toStringUtf8());
+            assertTrue(claimedFile.exists());
+        }
+    }
+
+    private static DashboardPostMessage createMessage(String testName) {
+        return DashboardPostMessage.newBuilder()
+                .addTestReport(
+                        TestReportMessage.newBuilder().setTest(ByteString.copyFromUtf8(testName)))
+                .build();
+    }
+
+    private void writeSpoolFile(String name, DashboardPostMessage message) throws IOException {
+        File file = new File(mSpoolDir, name + VtsDashboardUploadQueue.SPOOL_FILE_SUFFIX);
+        try (OutputStream out = new FileOutputStream(file)) {
+            message.writeTo(out);
+        }
+    }
+
+    private int countSpoolFiles() {
+        return mSpoolDir.list((dir, name)
+                                     -> name.endsWith(VtsDashboardUploadQueue.SPOOL_FILE_SUFFIX))
+                .length;
+    }
+}
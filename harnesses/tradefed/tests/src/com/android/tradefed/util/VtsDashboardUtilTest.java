@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.TokenResponse;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Unit tests for {@link VtsDashboardUtil}.
+ */
+@RunWith(JUnit4.class)
+public class VtsDashboardUtilTest {
+    /**
+     * A credential which returns a new token on each refresh.
+     */
+    private static class FakeCredential extends Credential {
+        private final long mExpiresInSeconds;
+        private int mRefreshCount = 0;
+
+        FakeCredential(long expiresInSeconds) {
+            super(BearerToken.authorizationHeaderAccessMethod());
+            mExpiresInSeconds = expiresInSeconds;
+        }
+
+        @Override
+        protected TokenResponse executeRefreshToken() {
+            mRefreshCount++;
+            return new TokenResponse()
+                    .setAccessToken("token" + mRefreshCount)
+                    .setExpiresInSeconds(mExpiresInSeconds);
+        }
+    }
+
+    /**
+     * Test that a valid token is reused.
+     */
+    @Test
+    public void testCachedToken() throws Exception {
+        FakeCredential credential = new FakeCredential(3600);
+        assertEquals("token1", VtsDashboardUtil.GetAccessToken(credential));
+        assertEquals("token1", VtsDashboardUtil.GetAccessToken(credential));
+        assertEquals(1, credential.mRefreshCount);
+    }
+
+    /**
+     * Test that a token is refreshed before it expires.
+     */
+    @Test
+    public void testRefreshBeforeExpiry() throws Exception {
+        FakeCredential credential =
+                new FakeCredential(VtsDashboardUtil.TOKEN_REFRESH_MARGIN_SECS - 1);
+        assertEquals("token1", VtsDashboardUtil.GetAccessToken(credential));
+        assertEquals("token2", VtsDashboardUtil.GetAccessToken(credential));
+        assertEquals(2, credential.mRefreshCount);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for {@link VtsDirectoryLock}.
+ */
+@RunWith(JUnit4.class)
+public class VtsDirectoryLockTest {
+    private File mTempDir;
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mTempDir = FileUtil.createTempDir("vts-directory-lock-unit-tests");
+        mDir = new File(mTempDir, "venv");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTempDir);
+    }
+
+    /**
+     * Test that a thread waiting for the preparation lock wakes up when it is released.
+     */
+    @Test
+    public void testLockPreparation() throws Exception {
+        VtsDirectoryLock lock = new VtsDirectoryLock(mDir);
+        lock.lockPreparation();
+        assertTrue(new File(mTempDir, "venv" + VtsDirectoryLock.PREPARATION_LOCK_SUFFIX).exists());
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        Thread waiter = new Thread(() -> {
+            VtsDirectoryLock otherLock = new VtsDirectoryLock(mDir);
+            try {
+                otherLock.lockPreparation();
+                order.add("waiter");
+                otherLock.unlockPreparation();
+            } catch (Exception e) {
+                order.add(e.toString());
+            }
+        });
+        waiter.start();
+        waiter.join(500);
+        order.add("owner");
+        lock.unlockPreparation();
+        waiter.join();
+        assertEquals(Arrays.asList("owner", "waiter"), order);
+    }
+
+    /**
+     * Test that the directory is in use until all users are removed.
+     */
+    @Test
+    public void testUsers() throws Exception {
+        VtsDirectoryLock lock = new VtsDirectoryLock(mDir);
+        VtsDirectoryLock otherLock = new VtsDirectoryLock(mDir);
+        assertTrue(lock.isUnused());
+
+        lock.addUser();
+        // Adding the same user twice does not increase the count.
+        lock.addUser();
+        otherLock.addUser();
+        assertFalse(lock.isUnused());
+        lock.removeUser();
+        assertFalse(lock.isUnused());
+        otherLock.removeUser();
+        assertTrue(lock.isUnused());
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.tradefed.build.BuildInfo;
+import com.android.tradefed.build.IBuildInfo;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Unit tests for {@link VtsHostPrepScheduler}.
+ */
+@RunWith(JUnit4.class)
+public class VtsHostPrepSchedulerTest {
+    /**
+     * Test that a step starts after its dependencies and runs alongside the synchronous steps.
+     */
+    @Test
+    public void testDependencies() throws Exception {
+        VtsHostPrepScheduler scheduler = new VtsHostPrepScheduler();
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch devicePrepared = new CountDownLatch(1);
+        scheduler.submit("venv", Collections.emptyList(), () -> {
+            // Waits for the synchronous step, which shows that the steps overlap.
+            devicePrepared.await();
+            order.add("venv");
+        });
+        scheduler.submit("deps", Arrays.asList("venv"), () -> order.add("deps"));
+        try (VtsHostPrepScheduler.TimedStep step = scheduler.startTimedStep("push")) {
+            order.add("push");
+        }
+        devicePrepared.countDown();
+        scheduler.await("deps");
+        assertEquals(Arrays.asList("push", "venv", "deps"), order);
+
+        scheduler.awaitAll();
+        String report = scheduler.getReport();
+        assertTrue(report, report.contains("deps: async"));
+        assertTrue(report, report.contains("push: sync"));
+        assertTrue(report, report.matches("(?s).*Critical path.*venv.*deps.*"));
+    }
+
+    /**
+     * Test that the exception of a step is thrown to the waiting threads and the dependent steps.
+     */
+    @Test
+    public void testFailure() throws Exception {
+        VtsHostPrepScheduler scheduler = new VtsHostPrepScheduler();
+        scheduler.submit("fetch", Collections.emptyList(), () -> {
+            throw new IOException("fetch failed");
+        });
+        scheduler.submit("unzip", Arrays.asList("fetch"), () -> fail("unzip should not run"));
+        try {
+            scheduler.await("unzip");
+            fail("await succeeded despite a failed dependency");
+        } catch (ExecutionException e) {
+            // expected
+        }
+        try {
+            scheduler.awaitAll();
+            fail("awaitAll succeeded despite a failed step");
+        } catch (ExecutionException e) {
+            assertEquals("fetch failed", e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Test that the schedulers are looked up by the identity of the build info, which is modified
+     * by the preparers.
+     */
+    @Test
+    public void testGetInstance() {
+        IBuildInfo buildInfo = new BuildInfo();
+        IBuildInfo equalBuildInfo = new BuildInfo();
+        VtsHostPrepScheduler scheduler = VtsHostPrepScheduler.getInstance(buildInfo);
+        buildInfo.addBuildAttribute("coverage_report_path", "/tmp");
+        assertSame(scheduler, VtsHostPrepScheduler.getInstance(buildInfo));
+        assertNotSame(scheduler, VtsHostPrepScheduler.getInstance(equalBuildInfo));
+    }
+
+    /**
+     * Test that the result of a step is handled once by the waiting thread.
+     */
+    @Test
+    public void testResultHandler() throws Exception {
+        VtsHostPrepScheduler scheduler = new VtsHostPrepScheduler();
+        List<String> results = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+        scheduler.submit("venv", Collections.emptyList(), () -> "/tmp/venv", result -> {
+            results.add(result);
+            threads.add(Thread.currentThread());
+        });
+        scheduler.submit("deps", Arrays.asList("venv"), () -> assertTrue(results.isEmpty()));
+        scheduler.await("deps");
+        assertTrue(results.isEmpty());
+        scheduler.await("venv");
+        scheduler.awaitAll();
+        assertEquals(Arrays.asList("/tmp/venv"), results);
+        assertEquals(Arrays.asList(Thread.currentThread()), threads);
+    }
+
+    /**
+     * Test that the report contains only the steps submitted since the last awaitAll.
+     */
+    @Test
+    public void testReportPerRound() throws Exception {
+        VtsHostPrepScheduler scheduler = new VtsHostPrepScheduler();
+        try (VtsHostPrepScheduler.TimedStep step = scheduler.startTimedStep("module1-push")) {
+        }
+        scheduler.awaitAll();
+        assertTrue(scheduler.getReport(), scheduler.getReport().contains("module1-push"));
+        try (VtsHostPrepScheduler.TimedStep step = scheduler.startTimedStep("module2-push")) {
+        }
+        scheduler.awaitAll();
+        String report = scheduler.getReport();
+        assertTrue(report, report.contains("module2-push"));
+        assertFalse(report, report.contains("module1-push"));
+    }
+
+    /**
+     * Test that a step which replaces a pending step of the same name runs after it and reports
+     * its failure.
+     */
+    @Test
+    public void testSubmitSameName() throws Exception {
+        VtsHostPrepScheduler scheduler = new VtsHostPrepScheduler();
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch firstFinishing = new CountDownLatch(1);
+        scheduler.submit("fetch", Collections.emptyList(), () -> {
+            firstStarted.countDown();
+            firstFinishing.await();
+            throw new IOException("first fetch failed");
+        });
+        scheduler.submit("fetch", Collections.emptyList(), () -> fail("second fetch ran"));
+        firstStarted.await();
+        firstFinishing.countDown();
+        try {
+            scheduler.await("fetch");
+            fail("await succeeded despite a failed step of the same name");
+        } catch (ExecutionException e) {
+            assertEquals("first fetch failed", e.getCause().getMessage());
+        }
+        try {
+            scheduler.awaitAll();
+            fail("awaitAll succeeded despite a failed step");
+        } catch (ExecutionException e) {
+            assertEquals("first fetch failed", e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Test that waiting for a step which is not submitted returns immediately.
+     */
+    @Test
+    public void testAwaitUnknownStep() throws Exception {
+        VtsHostPrepScheduler scheduler = new VtsHostPrepScheduler();
+        scheduler.await("venv");
+        scheduler.awaitAll();
+    }
+}
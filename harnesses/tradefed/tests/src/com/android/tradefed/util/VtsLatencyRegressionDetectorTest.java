@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.util.VtsLatencyRegressionDetector.Regression;
+import com.android.tradefed.util.VtsProfilingAnalyzer.LatencyHistogram;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Unit tests for {@link VtsLatencyBaselineStore} and {@link VtsLatencyRegressionDetector}.
+ */
+@RunWith(JUnit4.class)
+public class VtsLatencyRegressionDetectorTest {
+    private static final String API = "android.hardware.foo@1.0::IFoo::foo";
+    private static final String KEY = "VtsHalFooV1_0Target_userdebug";
+
+    private File mTmpDir;
+    private VtsLatencyRegressionDetector mDetector;
+
+    @Before
+    public void setUp() throws Exception {
+        mTmpDir = FileUtil.createTempDir("vts-latency-unit-tests");
+        mDetector = new VtsLatencyRegressionDetector(0.05, 2.326);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mTmpDir);
+    }
+
+    /**
+     * Test that the runs of a build are merged and the build under test is not in the baseline.
+     */
+    @Test
+    public void testBaselineStore() throws Exception {
+        VtsLatencyBaselineStore store = new VtsLatencyBaselineStore(mTmpDir);
+        store.add(KEY, "1000", Collections.singletonMap(API, createHistogram(1, 100, 100, 0)));
+        store.add(KEY, "1000", Collections.singletonMap(API, createHistogram(2, 100, 100, 0)));
+        store.add(KEY, "1001", Collections.singletonMap(API, createHistogram(3, 100, 100, 0)));
+
+        Map<String, LatencyHistogram> baseline = store.getBaseline(KEY, "1001", 5);
+        assertEquals(Collections.singleton(API), baseline.keySet());
+        assertEquals(200, baseline.get(API).getCount());
+        assertEquals(300, store.getBaseline(KEY, "1002", 5).get(API).getCount());
+        assertTrue(store.getBaseline("other", "1001", 5).isEmpty());
+    }
+
+    /**
+     * Test that the histogram is the same after it is written and read.
+     */
+    @Test
+    public void testBaselineStoreRoundTrip() throws Exception {
+        LatencyHistogram histogram = createHistogram(4, 1000, 5000, 0);
+        VtsLatencyBaselineStore store = new VtsLatencyBaselineStore(mTmpDir);
+        store.add(KEY, "1000", Collections.singletonMap(API, histogram));
+        LatencyHistogram stored = store.getBaseline(KEY, "1001", 1).get(API);
+        assertEquals(histogram.getCount(), stored.getCount());
+        assertEquals(histogram.getMin(), stored.getMin());
+        assertEquals(histogram.getMax(), stored.getMax());
+        assertEquals(histogram.getMean(), stored.getMean());
+        assertEquals(histogram.getValueAtPercentile(99), stored.getValueAtPercentile(99));
+    }
+
+    /**
+     * Test that a run from the same distribution is not a regression.
+     */
+    @Test
+    public void testNoRegression() {
+        List<Regression> regressions =
+                mDetector.detect(Collections.singletonMap(API, createHistogram(5, 2000, 1000, 0)),
+                        Collections.singletonMap(API, createHistogram(6, 500, 1000, 0)));
+        assertTrue(regressions.isEmpty());
+    }
+
+    /**
+     * Test that a shift of the distribution is a p50 and p99 regression.
+     */
+    @Test
+    public void testMedianRegression() {
+        List<Regression> regressions =
+                mDetector.detect(Collections.singletonMap(API, createHistogram(7, 2000, 1000, 0)),
+                        Collections.singletonMap(API, createHistogram(8, 500, 1500, 0)));
+        assertEquals(2, regressions.size());
+        assertEquals(API, regressions.get(0).getApi());
+        assertEquals("p50", regressions.get(0).getPercentile());
+        assertTrue(regressions.get(0).getCurrentValue() > regressions.get(0).getBaselineValue());
+        assertEquals("p99", regressions.get(1).getPercentile());
+    }
+
+    /**
+     * Test that an increase of the slow calls is a p99 regression only.
+     */
+    @Test
+    public void testTailRegression() {
+        List<Regression> regressions =
+                mDetector.detect(Collections.singletonMap(API, createHistogram(9, 5000, 1000, 0)),
+                        Collections.singletonMap(API, createHistogram(10, 2000, 1000, 0.05)));
+        assertEquals(1, regressions.size());
+        assertEquals("p99", regressions.get(0).getPercentile());
+    }
+
+    /**
+     * Test that the APIs with too few calls are skipped.
+     */
+    @Test
+    public void testMinSampleCount() {
+        List<Regression> regressions =
+                mDetector.detect(Collections.singletonMap(API, createHistogram(11, 2000, 1000, 0)),
+                        Collections.singletonMap(API, createHistogram(12, 10, 5000, 0)));
+        assertTrue(regressions.isEmpty());
+    }
+
+    /**
+     * Creates a histogram of normally distributed latency.
+     *
+     * @param seed the random seed.
+     * @param count the number of values.
+     * @param mean the mean of the values; the standard deviation is 10% of the mean.
+     * @param slowFraction the fraction of the values which are 10 times slower.
+     */
+    private static LatencyHistogram createHistogram(
+            long seed, int count, long mean, double slowFraction) {
+        Random random = new Random(seed);
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < count; i++) {
+            long value = Math.max(0, Math.round(mean + random.nextGaussian() * mean / 10));
+            if (random.nextDouble() < slowFraction) {
+                value *= 10;
+            }
+            histogram.record(value);
+        }
+        return histogram;
+    }
+}
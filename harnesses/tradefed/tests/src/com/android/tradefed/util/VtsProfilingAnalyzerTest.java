@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.util.VtsProfilingAnalyzer.LatencyHistogram;
+import com.android.vts.proto.VtsComponentSpecificationMessage.FunctionSpecificationMessage;
+import com.android.vts.proto.VtsComponentSpecificationMessage.VariableSpecificationMessage;
+import com.android.vts.proto.VtsProfilingMessageClass.InstrumentationEventType;
+import com.android.vts.proto.VtsProfilingMessageClass.VtsProfilingRecord;
+import com.android.vts.proto.VtsReportMessage.ProfilingReportMessage;
+import com.google.protobuf.ByteString;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link VtsProfilingAnalyzer}.
+ */
+@RunWith(JUnit4.class)
+public class VtsProfilingAnalyzerTest {
+    private static final String API_FOO = "android.hardware.foo@1.0::IFoo::foo";
+    private static final String API_BAR = "android.hardware.foo@1.0::IFoo::bar";
+
+    /**
+     * Test that the entry and exit events are paired by API and side.
+     */
+    @Test
+    public void testPairEvents() throws Exception {
+        ByteArrayOutputStream trace = new ByteArrayOutputStream();
+        writeRecord(trace, InstrumentationEventType.CLIENT_API_ENTRY, "foo", 100);
+        writeRecord(trace, InstrumentationEventType.SERVER_API_ENTRY, "foo", 110);
+        writeRecord(trace, InstrumentationEventType.SERVER_API_ENTRY, "bar", 120);
+        writeRecord(trace, InstrumentationEventType.SERVER_API_EXIT, "foo", 150);
+        writeRecord(trace, InstrumentationEventType.SERVER_API_EXIT, "bar", 170);
+        writeRecord(trace, InstrumentationEventType.SYNC_CALLBACK_ENTRY, "foo", 180);
+        writeRecord(trace, InstrumentationEventType.CLIENT_API_EXIT, "foo", 200);
+        writeRecord(trace, InstrumentationEventType.CLIENT_API_EXIT, "bar", 210);
+
+        VtsProfilingAnalyzer analyzer = new VtsProfilingAnalyzer();
+        analyzer.addTrace(new ByteArrayInputStream(trace.toByteArray()));
+        Map<String, LatencyHistogram> histograms = analyzer.getHistograms();
+        assertEquals(2, histograms.size());
+        assertEquals(2, histograms.get(API_FOO).getCount());
+        assertEquals(40, histograms.get(API_FOO).getMin());
+        assertEquals(100, histograms.get(API_FOO).getMax());
+        assertEquals(50, histograms.get(API_BAR).getMean());
+        assertEquals(1, analyzer.getUnpairedCount());
+    }
+
+    /**
+     * Test that the percentiles are within the precision of the histogram.
+     */
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(100000, histogram.getCount());
+        assertEquals(1000, histogram.getMin());
+        assertEquals(100000000, histogram.getMax());
+        assertEquals(100000000, histogram.getValueAtPercentile(100));
+        assertWithinPrecision(50000000, histogram.getValueAtPercentile(50));
+        assertWithinPrecision(99000000, histogram.getValueAtPercentile(99));
+        assertWithinPrecision(99900000, histogram.getValueAtPercentile(99.9));
+    }
+
+    /**
+     * Test the profiling report of an API.
+     */
+    @Test
+    public void testProfilingReports() throws Exception {
+        ByteArrayOutputStream trace = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++) {
+            writeRecord(trace, InstrumentationEventType.PASSTHROUGH_ENTRY, "foo", i * 100);
+            writeRecord(trace, InstrumentationEventType.PASSTHROUGH_EXIT, "foo", i * 100 + i);
+        }
+        VtsProfilingAnalyzer analyzer = new VtsProfilingAnalyzer();
+        analyzer.addTrace(new ByteArrayInputStream(trace.toByteArray()));
+
+        List<ProfilingReportMessage> reports = analyzer.getProfilingReports();
+        assertEquals(1, reports.size());
+        ProfilingReportMessage report = reports.get(0);
+        assertEquals(API_FOO, report.getName().toStringUtf8());
+        assertEquals("hidl_hal_mode=passthrough", report.getOptions(0).toStringUtf8());
+        assertEquals(VtsProfilingAnalyzer.REPORT_LABELS.length, report.getLabelCount());
+        assertEquals(report.getLabelCount(), report.getValueCount());
+        // min, p50, p90, p99, p999, max, mean, count
+        assertEquals(0, report.getValue(0));
+        assertEquals(4, report.getValue(1));
+        assertEquals(8, report.getValue(2));
+        assertEquals(9, report.getValue(5));
+        assertEquals(10, report.getValue(7));
+        assertEquals(0, report.getStartTimestamp());
+        assertEquals(909, report.getEndTimestamp());
+    }
+
+    private static void assertWithinPrecision(long expected, long actual) {
+        assertTrue(String.format("expected %d but was %d", expected, actual),
+                Math.abs(actual - expected) <= expected / 64);
+    }
+
+    private static void writeRecord(ByteArrayOutputStream trace, InstrumentationEventType event,
+            String function, long timestamp) throws IOException {
+        VtsProfilingRecord.newBuilder()
+                .setTimestamp(timestamp)
+                .setEvent(event)
+                .setPackage(ByteString.copyFromUtf8("android.hardware.foo"))
+                .setVersionMajor(1)
+                .setVersionMinor(0)
+                .setInterface(ByteString.copyFromUtf8("IFoo"))
+                .setFuncMsg(FunctionSpecificationMessage.newBuilder()
+                                    .setName(ByteString.copyFromUtf8(function))
+                                    .addArg(VariableSpecificationMessage.newBuilder().setName(
+                                            ByteString.copyFromUtf8("arg"))))
+                .build()
+                .writeDelimitedTo(trace);
+    }
+}
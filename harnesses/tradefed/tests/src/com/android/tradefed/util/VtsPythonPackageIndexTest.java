@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.util.VtsPythonPackageIndex.Version;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+
+/**
+ * Unit tests for {@link VtsPythonPackageIndex}.
+ */
+@RunWith(JUnit4.class)
+public class VtsPythonPackageIndexTest {
+    private File mVenvDir;
+    private File mSitePackagesDir;
+    private VtsPythonPackageIndex mIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        mVenvDir = FileUtil.createTempDir("vts-package-index-unit-tests");
+        mSitePackagesDir = new File(mVenvDir, "lib/python2.7/site-packages");
+        FileUtil.mkdirsRWX(mSitePackagesDir);
+        mIndex = new VtsPythonPackageIndex(mVenvDir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mVenvDir);
+    }
+
+    /**
+     * Test that the versions are read from dist-info and egg-info metadata.
+     */
+    @Test
+    public void testGetVersion() throws Exception {
+        addDistInfo("Twisted_Web", "1.0.post1");
+        File eggInfo = new File(mSitePackagesDir, "enum-0.4.6.egg-info");
+        FileUtil.writeToFile("Metadata-Version: 1.0\nName: enum\nVersion: 0.4.6\n", eggInfo);
+        assertEquals("1.0.post1", mIndex.getVersion("twisted.web"));
+        assertEquals("0.4.6", mIndex.getVersion("enum"));
+        assertNull(mIndex.getVersion("numpy"));
+    }
+
+    /**
+     * Test that the index is reloaded when a package is installed.
+     */
+    @Test
+    public void testReload() throws Exception {
+        assertFalse(mIndex.isInstalled("numpy"));
+        addDistInfo("numpy", "1.14.0");
+        // The file time resolution may be one second.
+        mSitePackagesDir.setLastModified(System.currentTimeMillis() + 1000);
+        assertTrue(mIndex.isInstalled("numpy"));
+    }
+
+    /**
+     * Test that the requirement strings are matched with the installed versions.
+     */
+    @Test
+    public void testIsInstalled() throws Exception {
+        addDistInfo("protobuf", "3.2.1");
+        assertTrue(mIndex.isInstalled("protobuf"));
+        assertTrue(mIndex.isInstalled("protobuf>=3"));
+        assertTrue(mIndex.isInstalled("protobuf[cpp] >=3.0, <4"));
+        assertTrue(mIndex.isInstalled("protobuf (==3.2.*)"));
+        assertTrue(mIndex.isInstalled("protobuf~=3.1"));
+        assertTrue(mIndex.isInstalled("protobuf===3.2.1"));
+        assertFalse(mIndex.isInstalled("protobuf!=3.2.*"));
+        assertFalse(mIndex.isInstalled("protobuf~=3.1.0"));
+        assertFalse(mIndex.isInstalled("protobuf>3.2.1"));
+        assertFalse(mIndex.isInstalled("protobuf; python_version < '3'"));
+        assertFalse(mIndex.isInstalled("protobuf=3.2.1"));
+    }
+
+    /**
+     * Test the PEP 440 version ordering.
+     */
+    @Test
+    public void testVersionOrder() {
+        String[] versions = {"1.0.dev456", "1.0a1", "1.0a2.dev456", "1.0a12.dev456", "1.0a12",
+                "1.0b1.dev456", "1.0b2", "1.0b2.post345.dev456", "1.0b2.post345", "1.0rc1.dev456",
+                "1.0rc1", "1.0", "1.0+abc.5", "1.0+abc.7", "1.0+5", "1.0.post456.dev34",
+                "1.0.post456", "1.1.dev1", "1!0.1"};
+        for (int i = 0; i + 1 < versions.length; i++) {
+            Version version = Version.parse(versions[i]);
+            Version next = Version.parse(versions[i + 1]);
+            assertTrue(versions[i] + " < " + versions[i + 1], version.compareTo(next) < 0);
+        }
+        assertEquals(0, Version.parse("1.0").compareTo(Version.parse("1.0.0")));
+        assertEquals(0, Version.parse("1.0c1").compareTo(Version.parse("1.0rc1")));
+        assertEquals(0, Version.parse("1.0-1").compareTo(Version.parse("1.0.post1")));
+        assertNull(Version.parse("1.0-foo"));
+    }
+
+    /**
+     * Test the exclusive comparisons with pre-, post- and local versions.
+     */
+    @Test
+    public void testVersionExclusiveMatch() {
+        assertFalse(Version.parse("2.0rc1").matches("<", "2.0"));
+        assertTrue(Version.parse("2.0rc1").matches("<", "2.0rc2"));
+        assertFalse(Version.parse("2.0.post1").matches(">", "2.0"));
+        assertTrue(Version.parse("2.0.post2").matches(">", "2.0.post1"));
+        assertFalse(Version.parse("2.0+local").matches(">", "2.0"));
+        assertTrue(Version.parse("2.0+local").matches("==", "2.0"));
+        assertFalse(Version.parse("2.0").matches("==", "2.0+local"));
+    }
+
+    private void addDistInfo(String name, String version) throws Exception {
+        File distInfo = new File(mSitePackagesDir, name + "-" + version + ".dist-info");
+        FileUtil.mkdirsRWX(distInfo);
+        FileUtil.writeToFile(
+                String.format("Metadata-Version: 2.0\nName: %s\nVersion: %s\n\nDescription", name,
+                        version),
+                new File(distInfo, "METADATA"));
+    }
+}
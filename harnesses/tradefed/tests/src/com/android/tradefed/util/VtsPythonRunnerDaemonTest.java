@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Unit tests for {@link VtsPythonRunnerDaemon}. The tests run a stub daemon which implements the
+ * protocol of vts/runners/host/runner_daemon.py. The first argument of a job selects its behavior:
+ * "exit &lt;code&gt;" replies immediately, "hang" replies when the job is cancelled, and "crash"
+ * terminates the daemon.
+ */
+@RunWith(JUnit4.class)
+public class VtsPythonRunnerDaemonTest {
+    private static final String STUB_DAEMON = "import json\n"
+            + "import sys\n"
+            + "def reply(obj):\n"
+            + "    sys.stdout.write(json.dumps(obj) + '\\n')\n"
+            + "    sys.stdout.flush()\n"
+            + "reply({'ready': True})\n"
+            + "running = None\n"
+            + "for line in iter(sys.stdin.readline, ''):\n"
+            + "    request = json.loads(line)\n"
+            + "    if 'job' in request:\n"
+            + "        args = request['args']\n"
+            + "        with open(request['stdout'], 'a') as f:\n"
+            + "            f.write(' '.join(args) + '\\n')\n"
+            + "        if args[0] == 'exit':\n"
+            + "            reply({'job': request['job'], 'exit_code': int(args[1])})\n"
+            + "        elif args[0] == 'crash':\n"
+            + "            sys.exit(1)\n"
+            + "        else:\n"
+            + "            running = request['job']\n"
+            + "    elif request.get('cancel') == running:\n"
+            + "        reply({'job': running, 'exit_code': -15})\n"
+            + "        running = None\n";
+    private static final long JOB_TIMEOUT_MSECS = 1000 * 10;
+
+    private File mTempDir;
+    private File mStubDaemon;
+    private File mStdoutFile;
+    private File mStderrFile;
+    private String mVirtualenvPath;
+    private IRunUtil mRunUtil;
+    // Whether the stub daemon can be started.
+    private boolean mDaemonAvailable = true;
+
+    @Before
+    public void setUp() throws Exception {
+        mTempDir = FileUtil.createTempDir("vts-runner-daemon-unit-tests");
+        mStubDaemon = new File(mTempDir, "stub_daemon.py");
+        FileUtil.writeToFile(STUB_DAEMON, mStubDaemon);
+        mStdoutFile = new File(mTempDir, "stdout.txt");
+        mStderrFile = new File(mTempDir, "stderr.txt");
+        mVirtualenvPath = new File(mTempDir, "virtualenv").getAbsolutePath();
+        mRunUtil = new RunUtil() {
+            @Override
+            public Process runCmdInBackground(String... command) throws IOException {
+                assertEquals(VtsPythonRunnerDaemon.DAEMON_MODULE, command[2]);
+                if (!mDaemonAvailable) {
+                    throw new IOException("daemon is not available");
+                }
+                return super.runCmdInBackground("python", mStubDaemon.getAbsolutePath());
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        VtsPythonRunnerDaemon.shutDown(mVirtualenvPath);
+        FileUtil.recursiveDelete(mTempDir);
+    }
+
+    /**
+     * Test that the exit codes are returned and an idle daemon is reused.
+     */
+    @Test
+    public void testRunJob() throws Exception {
+        VtsPythonRunnerDaemon daemon =
+                VtsPythonRunnerDaemon.acquire(mRunUtil, mVirtualenvPath, mTempDir);
+        assertEquals(CommandStatus.SUCCESS, daemon.runJob(new String[] {"exit", "0"},
+                mStdoutFile, mStderrFile, JOB_TIMEOUT_MSECS));
+        assertEquals(CommandStatus.FAILED, daemon.runJob(new String[] {"exit", "3"},
+                mStdoutFile, mStderrFile, JOB_TIMEOUT_MSECS));
+        assertEquals("exit 0\nexit 3\n", FileUtil.readStringFromFile(mStdoutFile));
+        VtsPythonRunnerDaemon.release(daemon);
+        assertSame(daemon, VtsPythonRunnerDaemon.acquire(mRunUtil, mVirtualenvPath, mTempDir));
+        VtsPythonRunnerDaemon.release(daemon);
+    }
+
+    /**
+     * Test that a job is cancelled on timeout and the daemon is still usable.
+     */
+    @Test
+    public void testRunJob_timeout() throws Exception {
+        VtsPythonRunnerDaemon daemon =
+                VtsPythonRunnerDaemon.acquire(mRunUtil, mVirtualenvPath, mTempDir);
+        assertEquals(CommandStatus.TIMED_OUT,
+                daemon.runJob(new String[] {"hang"}, mStdoutFile, mStderrFile, 100));
+        assertEquals(CommandStatus.SUCCESS, daemon.runJob(new String[] {"exit", "0"},
+                mStdoutFile, mStderrFile, JOB_TIMEOUT_MSECS));
+        VtsPythonRunnerDaemon.release(daemon);
+        assertSame(daemon, VtsPythonRunnerDaemon.acquire(mRunUtil, mVirtualenvPath, mTempDir));
+        VtsPythonRunnerDaemon.release(daemon);
+    }
+
+    /**
+     * Test that a daemon which terminates during a job is not reused.
+     */
+    @Test
+    public void testRunJob_daemonTerminated() throws Exception {
+        VtsPythonRunnerDaemon daemon =
+                VtsPythonRunnerDaemon.acquire(mRunUtil, mVirtualenvPath, mTempDir);
+        assertEquals(CommandStatus.EXCEPTION, daemon.runJob(new String[] {"crash"},
+                mStdoutFile, mStderrFile, JOB_TIMEOUT_MSECS));
+        VtsPythonRunnerDaemon.release(daemon);
+        VtsPythonRunnerDaemon newDaemon =
+                VtsPythonRunnerDaemon.acquire(mRunUtil, mVirtualenvPath, mTempDir);
+        assertNotSame(daemon, newDaemon);
+        VtsPythonRunnerDaemon.release(newDaemon);
+    }
+
+    /**
+     * Test that the idle daemons are stopped when the virtualenv is shut down.
+     */
+    @Test
+    public void testShutDown() throws Exception {
+        VtsPythonRunnerDaemon daemon =
+                VtsPythonRunnerDaemon.acquire(mRunUtil, mVirtualenvPath, mTempDir);
+        VtsPythonRunnerDaemon.release(daemon);
+        VtsPythonRunnerDaemon.shutDown(mVirtualenvPath);
+        VtsPythonRunnerDaemon newDaemon =
+                VtsPythonRunnerDaemon.acquire(mRunUtil, mVirtualenvPath, mTempDir);
+        assertNotSame(daemon, newDaemon);
+        VtsPythonRunnerDaemon.release(newDaemon);
+    }
+
+    /**
+     * Test that a daemon which is running a job when the virtualenv is shut down is stopped when
+     * it is released.
+     */
+    @Test
+    public void testShutDown_busyDaemon() throws Exception {
+        VtsPythonRunnerDaemon daemon =
+                VtsPythonRunnerDaemon.acquire(mRunUtil, mVirtualenvPath, mTempDir);
+        VtsPythonRunnerDaemon.shutDown(mVirtualenvPath);
+        VtsPythonRunnerDaemon.release(daemon);
+        VtsPythonRunnerDaemon newDaemon =
+                VtsPythonRunnerDaemon.acquire(mRunUtil, mVirtualenvPath, mTempDir);
+        assertNotSame(daemon, newDaemon);
+        VtsPythonRunnerDaemon.release(newDaemon);
+        assertSame(newDaemon, VtsPythonRunnerDaemon.acquire(mRunUtil, mVirtualenvPath, mTempDir));
+        VtsPythonRunnerDaemon.release(newDaemon);
+    }
+
+    /**
+     * Test that the daemons using the system python are shut down.
+     */
+    @Test
+    public void testShutDown_systemPython() throws Exception {
+        try {
+            VtsPythonRunnerDaemon daemon = VtsPythonRunnerDaemon.acquire(mRunUtil, null, mTempDir);
+            VtsPythonRunnerDaemon.release(daemon);
+            VtsPythonRunnerDaemon.shutDown(null);
+            VtsPythonRunnerDaemon newDaemon =
+                    VtsPythonRunnerDaemon.acquire(mRunUtil, null, mTempDir);
+            assertNotSame(daemon, newDaemon);
+            VtsPythonRunnerDaemon.release(newDaemon);
+        } finally {
+            VtsPythonRunnerDaemon.shutDown(null);
+        }
+    }
+
+    /**
+     * Test that {@link VtsPythonRunnerHelper} returns the output of a job.
+     */
+    @Test
+    public void testRunPythonRunner() throws Exception {
+        VtsPythonRunnerHelper helper = createHelper();
+        CommandResult commandResult = new CommandResult();
+        helper.runPythonRunner(new String[] {"python", "exit", "3"}, commandResult,
+                JOB_TIMEOUT_MSECS);
+        assertEquals(CommandStatus.FAILED, commandResult.getStatus());
+        assertEquals("exit 3\n", commandResult.getStdout());
+        assertEquals("", commandResult.getStderr());
+    }
+
+    /**
+     * Test that {@link VtsPythonRunnerHelper} starts a new process if the daemon is not
+     * available.
+     */
+    @Test
+    public void testRunPythonRunner_fallback() throws Exception {
+        mDaemonAvailable = false;
+        VtsPythonRunnerHelper helper = createHelper();
+        CommandResult commandResult = new CommandResult();
+        helper.runPythonRunner(new String[] {"python", "exit", "0"}, commandResult,
+                JOB_TIMEOUT_MSECS);
+        assertEquals(CommandStatus.SUCCESS, commandResult.getStatus());
+        assertTrue(commandResult.getStdout(), commandResult.getStdout().contains("process"));
+    }
+
+    private VtsPythonRunnerHelper createHelper() {
+        VtsPythonRunnerHelper helper =
+                new VtsPythonRunnerHelper(new File(mVirtualenvPath), mTempDir) {
+                    @Override
+                    protected ProcessHelper createProcessHelper(String[] cmd) throws IOException {
+                        return new ProcessHelper(new ProcessBuilder("echo", "process").start());
+                    }
+                };
+        helper.mRunUtil = mRunUtil;
+        helper.setUseDaemon(true);
+        return helper;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.android.vts.proto.VtsComponentSpecificationMessage.FunctionSpecificationMessage;
+import com.android.vts.proto.VtsComponentSpecificationMessage.VariableSpecificationMessage;
+import com.android.vts.proto.VtsProfilingMessageClass.InstrumentationEventType;
+import com.android.vts.proto.VtsProfilingMessageClass.VtsProfilingRecord;
+import com.google.protobuf.ByteString;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for {@link VtsTraceStore}.
+ */
+@RunWith(JUnit4.class)
+public class VtsTraceStoreTest {
+    private static final int RECORD_COUNT = VtsTraceStore.BLOCK_SIZE * 3 + 10;
+    private static final String[] FUNCTIONS = {"foo", "bar", "baz"};
+
+    private File mTmpDir;
+    private File mStoreFile;
+    private List<VtsProfilingRecord> mRecords;
+    private ByteArrayOutputStream mTrace;
+
+    @Before
+    public void setUp() throws Exception {
+        mTmpDir = FileUtil.createTempDir("vts-trace-store-unit-tests");
+        mStoreFile = new File(mTmpDir, "test" + VtsTraceStore.FILE_SUFFIX);
+        mRecords = new ArrayList<>();
+        mTrace = new ByteArrayOutputStream();
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            // The timestamps are not strictly increasing.
+            long timestamp = i * 10 + (i % 2 == 0 ? 0 : 15);
+            VtsProfilingRecord record =
+                    VtsProfilingRecord.newBuilder()
+                            .setTimestamp(timestamp)
+                            .setEvent(i % 2 == 0 ? InstrumentationEventType.SERVER_API_ENTRY
+                                                 : InstrumentationEventType.SERVER_API_EXIT)
+                            .setPackage(ByteString.copyFromUtf8("android.hardware.foo"))
+                            .setInterface(ByteString.copyFromUtf8("IFoo"))
+                            .setFuncMsg(FunctionSpecificationMessage.newBuilder()
+                                                .setName(ByteString.copyFromUtf8(
+                                                        FUNCTIONS[(i / 2) % FUNCTIONS.length]))
+                                                .addArg(VariableSpecificationMessage.newBuilder()
+                                                                .setName(ByteString.copyFromUtf8(
+                                                                        "arg" + i))))
+                            .setVersionMajor(1)
+                            .setVersionMinor(0)
+                            .build();
+            mRecords.add(record);
+            record.writeDelimitedTo(mTrace);
+        }
+        VtsTraceStore.convert(new ByteArrayInputStream(mTrace.toByteArray()), mStoreFile);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mTmpDir);
+    }
+
+    /**
+     * Test that the dictionary contains the distinct APIs.
+     */
+    @Test
+    public void testApis() throws Exception {
+        VtsTraceStore store = new VtsTraceStore(mStoreFile);
+        try {
+            assertEquals(RECORD_COUNT, store.getRecordCount());
+            assertEquals(FUNCTIONS.length, store.getApis().size());
+            assertEquals("android.hardware.foo@1.0::IFoo::foo", store.getApis().get(0).toString());
+            assertEquals(Arrays.asList(1), store.findApis("IFoo", "bar"));
+            assertEquals(Arrays.asList(0, 1, 2), store.findApis("IFoo", null));
+            assertEquals(0, store.findApis("IBar", null).size());
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Test scanning the records of an API in a time range across blocks.
+     */
+    @Test
+    public void testScan() throws Exception {
+        VtsTraceStore store = new VtsTraceStore(mStoreFile);
+        try {
+            long start = 10000;
+            long end = 20000;
+            List<Integer> apiIds = store.findApis("IFoo", "bar");
+            List<Integer> indexes = new ArrayList<>();
+            store.scan(start, end, apiIds, (index, timestamp, event, apiId) -> {
+                VtsProfilingRecord record = mRecords.get(index);
+                assertEquals(record.getTimestamp(), timestamp);
+                assertEquals(record.getEventValue(), event);
+                assertEquals("bar", store.getApis().get(apiId).getFunction());
+                indexes.add(index);
+            });
+
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < RECORD_COUNT; i++) {
+                VtsProfilingRecord record = mRecords.get(i);
+                if (record.getTimestamp() >= start && record.getTimestamp() <= end
+                        && record.getFuncMsg().getName().toStringUtf8().equals("bar")) {
+                    expected.add(i);
+                }
+            }
+            assertEquals(expected, indexes);
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Test that the exported trace is the same as the original trace.
+     */
+    @Test
+    public void testExportDelimited() throws Exception {
+        VtsTraceStore store = new VtsTraceStore(mStoreFile);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            store.exportDelimited(Long.MIN_VALUE, Long.MAX_VALUE, null, output);
+            assertArrayEquals(mTrace.toByteArray(), output.toByteArray());
+
+            ByteArrayOutputStream partialOutput = new ByteArrayOutputStream();
+            store.exportDelimited(25, 25, null, partialOutput);
+            assertEquals(mRecords.get(1), VtsProfilingRecord.parseDelimitedFrom(
+                    new ByteArrayInputStream(partialOutput.toByteArray())));
+        } finally {
+            store.close();
+        }
+    }
+}
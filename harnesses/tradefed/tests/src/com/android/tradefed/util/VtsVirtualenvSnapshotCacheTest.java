@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Unit tests for {@link VtsVirtualenvSnapshotCache}.
+ */
+@RunWith(JUnit4.class)
+public class VtsVirtualenvSnapshotCacheTest {
+    private static final String ACTIVATE_SCRIPT = "VIRTUAL_ENV=\"%s\"\nexport VIRTUAL_ENV\n";
+
+    private File mTmpDir;
+    private File mCacheDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mTmpDir = FileUtil.createTempDir("vts-snapshot-unit-tests");
+        mCacheDir = new File(mTmpDir, "cache");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTmpDir);
+    }
+
+    /**
+     * Test that the key depends on the order of the dep modules and the requirements content.
+     */
+    @Test
+    public void testComputeKey() throws Exception {
+        File requirements = new File(mTmpDir, "requirements.txt");
+        FileUtil.writeToFile("numpy\n", requirements);
+        String key = VtsVirtualenvSnapshotCache.computeKey(
+                "2", requirements, Arrays.asList("enum", "protobuf"), Collections.emptyList());
+        assertEquals(64, key.length());
+        assertEquals(key,
+                VtsVirtualenvSnapshotCache.computeKey("2", requirements,
+                        Arrays.asList("enum", "protobuf"), Collections.emptyList()));
+        assertNotEquals(key,
+                VtsVirtualenvSnapshotCache.computeKey("2", requirements,
+                        Arrays.asList("protobuf", "enum"), Collections.emptyList()));
+        assertNotEquals(key,
+                VtsVirtualenvSnapshotCache.computeKey("3", requirements,
+                        Arrays.asList("enum", "protobuf"), Collections.emptyList()));
+        FileUtil.writeToFile("numpy>=1.0\n", requirements);
+        assertNotEquals(key,
+                VtsVirtualenvSnapshotCache.computeKey("2", requirements,
+                        Arrays.asList("enum", "protobuf"), Collections.emptyList()));
+    }
+
+    /**
+     * Test that restoring a missing snapshot does not create the virtualenv.
+     */
+    @Test
+    public void testRestoreMiss() throws Exception {
+        VtsVirtualenvSnapshotCache cache =
+                new VtsVirtualenvSnapshotCache(mCacheDir, 4, new RunUtil());
+        File venvDir = new File(mTmpDir, "venv");
+        assertFalse(cache.restore("key", venvDir));
+        assertFalse(venvDir.exists());
+    }
+
+    /**
+     * Test that a snapshot is restored to another path and the scripts are relocated.
+     */
+    @Test
+    public void testStoreAndRestore() throws Exception {
+        VtsVirtualenvSnapshotCache cache =
+                new VtsVirtualenvSnapshotCache(mCacheDir, 4, new RunUtil());
+        File venvDir = createVirtualenv("venv");
+        cache.store("key", venvDir);
+        assertTrue(getArchive("key").isFile());
+        assertFalse(new File(venvDir, VtsVirtualenvSnapshotCache.ORIGIN_FILE_NAME).exists());
+
+        File restoredDir = new File(mTmpDir, "restored");
+        FileUtil.mkdirsRWX(restoredDir);
+        assertTrue(cache.restore("key", restoredDir));
+        assertEquals(String.format(ACTIVATE_SCRIPT, restoredDir.getAbsolutePath()),
+                FileUtil.readStringFromFile(new File(restoredDir, "bin/activate")));
+        assertTrue(new File(restoredDir, "complete").isFile());
+        assertFalse(new File(restoredDir, VtsVirtualenvSnapshotCache.ORIGIN_FILE_NAME).exists());
+        assertEquals(3, mTmpDir.list().length);
+    }
+
+    /**
+     * Test that the least recently used snapshots are deleted.
+     */
+    @Test
+    public void testEviction() throws Exception {
+        VtsVirtualenvSnapshotCache cache =
+                new VtsVirtualenvSnapshotCache(mCacheDir, 2, new RunUtil());
+        File venvDir = createVirtualenv("venv");
+        for (int i = 0; i < 3; i++) {
+            cache.store("key" + i, venvDir);
+            // The file time resolution may be one second.
+            getArchive("key" + i).setLastModified(System.currentTimeMillis() - 10000 * (3 - i));
+        }
+        assertFalse(getArchive("key0").exists());
+        assertTrue(getArchive("key1").exists());
+        assertTrue(getArchive("key2").exists());
+    }
+
+    private File getArchive(String key) {
+        return new File(mCacheDir, key + VtsVirtualenvSnapshotCache.ARCHIVE_SUFFIX);
+    }
+
+    private File createVirtualenv(String name) throws Exception {
+        File venvDir = new File(mTmpDir, name);
+        File binDir = new File(venvDir, "bin");
+        FileUtil.mkdirsRWX(binDir);
+        FileUtil.writeToFile(String.format(ACTIVATE_SCRIPT, venvDir.getAbsolutePath()),
+                new File(binDir, "activate"));
+        FileUtil.writeToFile("", new File(venvDir, "complete"));
+        return venvDir;
+    }
+}
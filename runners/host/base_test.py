@@ -45,6 +45,7 @@ from vts.utils.python.io import file_util
 from vts.utils.python.precondition import precondition_utils
 from vts.utils.python.profiling import profiling_utils
 from vts.utils.python.reporting import log_uploading_utils
+from vts.utils.python.reporting import test_event_utils
 from vts.utils.python.systrace import systrace_utils
 from vts.utils.python.web import feature_utils
 from vts.utils.python.web import web_utils
@@ -118,6 +119,8 @@ class BaseTestClass(object):
         start_vts_agents: whether to start vts agents when registering new
                           android devices.
         profiling: ProfilingFeature, object storing profiling feature util for test run
+        test_event_stream: TestEventStreamFeature, object streaming test events
+                           to the host
         _bug_report_on_failure: bool, whether to catch bug report at the end
                                 of failed test cases. Default is False
         _logcat_on_failure: bool, whether to dump logcat at the end
@@ -198,6 +201,8 @@ class BaseTestClass(object):
             self.user_params, web=self.web)
         self.log_uploading = log_uploading_utils.LogUploadingFeature(
             self.user_params, web=self.web)
+        self.test_event_stream = test_event_utils.TestEventStreamFeature(
+            self.user_params)
         self.collect_tests_only = self.getUserParam(
             keys.ConfigKeys.IKEY_COLLECT_TESTS_ONLY, default_value=False)
         self.run_as_vts_self_test = self.getUserParam(
@@ -971,6 +976,7 @@ class BaseTestClass(object):
             asserts.assertTrue(ret is not False,
                                "Setup test entry for %s failed." % test_name)
             self.filterOneTest(test_name)
+            self.test_event_stream.TestStarted(tr_record)
             if self.collect_tests_only:
                 asserts.explicitPass("Collect tests only.")
 
@@ -1081,6 +1087,7 @@ class BaseTestClass(object):
 
             if not is_silenced:
                 self.results.addRecord(tr_record)
+            self.test_event_stream.TestEnded(tr_record)
             self._testExit()
 
     def runGeneratedTests(self,
@@ -146,6 +146,9 @@ class ConfigKeys(object):
     IKEY_LOG_UPLOADING_URL_PREFIX = "log_uploading_url_prefix"
     IKEY_LOG_UPLOADING_GCS_BUCKET_NAME = "log_uploading_gcs_bucket_name"
 
+    # Keys for live test event streaming
+    IKEY_TEST_EVENT_STREAM_PORT = "test_event_stream_port"
+
     # Keys for general user config types
     IKEY_USER_CONFIG_STR = 'CONFIG_STR'
     IKEY_USER_CONFIG_INT = 'CONFIG_INT'
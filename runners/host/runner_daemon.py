@@ -0,0 +1,257 @@
+#
+# Copyright (C) 2018 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+"""A daemon which runs VTS test modules in a warm Python interpreter.
+
+The daemon imports the runner and its dependencies once, and then forks a
+child process for each test module. The child process has the modules already
+loaded and runs the test module as if it were started by
+"python -m <module> <config>". As each child exits after one test module, the
+test modules do not share any state.
+
+The daemon reads requests from stdin and writes replies to stdout. Each
+request and reply is a json object on its own line.
+
+Requests:
+    {"job": <id>, "args": [<python arguments>], "stdout": <path>,
+     "stderr": <path>}
+        Runs a test module. The arguments are the ones following "python" on
+        the command line, i.e., ["-m", <module>, <config>] or
+        [<script>, <config>].
+    {"cancel": <id>}
+        Aborts the running test module in the same way as closing the stdin of
+        the runner.
+
+Replies:
+    {"ready": true}
+        The daemon is ready to accept requests.
+    {"job": <id>, "exit_code": <code>}
+        The test module terminated.
+
+The daemon exits when its stdin is closed.
+"""
+
+from future import standard_library
+standard_library.install_aliases()
+
+import json
+import logging
+import os
+import queue
+import runpy
+import signal
+import sys
+import threading
+import time
+
+# Imported for preloading. The test modules import these modules.
+from vts.runners.host import base_test
+from vts.runners.host import keys
+from vts.runners.host import test_runner
+from vts.utils.python.controllers import android_device
+
+REQUEST_ARGS = "args"
+REQUEST_CANCEL = "cancel"
+REQUEST_JOB = "job"
+REQUEST_STDERR = "stderr"
+REQUEST_STDOUT = "stdout"
+REPLY_EXIT_CODE = "exit_code"
+REPLY_READY = "ready"
+
+# The interval in seconds of polling the child process.
+POLL_INTERVAL_SECS = 0.1
+# The time in seconds between aborting a child process and killing it.
+ABORT_TIMEOUT_SECS = base_test.TIMEOUT_SECS_TEARDOWN_CLASS + 10
+
+
+def _WriteReply(reply):
+    """Writes a reply to stdout.
+
+    Args:
+        reply: A dict, the reply.
+    """
+    sys.stdout.write(json.dumps(reply) + "\n")
+    sys.stdout.flush()
+
+
+def _ReadRequests(requests):
+    """Reads requests from stdin until it is closed.
+
+    Args:
+        requests: A Queue to put the parsed requests in. None is put in when
+                  stdin is closed.
+    """
+    while True:
+        line = sys.stdin.readline()
+        if not line:
+            break
+        line = line.strip()
+        if not line:
+            continue
+        try:
+            requests.put(json.loads(line))
+        except ValueError as e:
+            logging.error("Cannot parse request: %s", line)
+    requests.put(None)
+
+
+def _RunJobInChild(args, stdin_fd, stdout_path, stderr_path):
+    """Runs a test module in the forked child process. Never returns.
+
+    Args:
+        args: A list of strings, the arguments following "python".
+        stdin_fd: An integer, the file descriptor to use as stdin.
+        stdout_path: A string, the file to redirect stdout to.
+        stderr_path: A string, the file to redirect stderr to.
+    """
+    exit_code = 1
+    try:
+        os.dup2(stdin_fd, 0)
+        os.close(stdin_fd)
+        # Discard the daemon's buffered input.
+        sys.stdin = os.fdopen(0, "r")
+        with open(stdout_path, "ab") as stdout_file:
+            os.dup2(stdout_file.fileno(), 1)
+        with open(stderr_path, "ab") as stderr_file:
+            os.dup2(stderr_file.fileno(), 2)
+        signal.signal(signal.SIGINT, signal.default_int_handler)
+        signal.signal(signal.SIGTERM, signal.SIG_DFL)
+        # The runner customizes the root logger as in a new process.
+        root_logger = logging.getLogger()
+        for handler in list(root_logger.handlers):
+            root_logger.removeHandler(handler)
+        root_logger.setLevel(logging.WARNING)
+
+        if args[0] == "-m":
+            sys.argv = [args[1]] + args[2:]
+            runpy.run_module(args[1], run_name="__main__", alter_sys=True)
+        else:
+            sys.argv = list(args)
+            sys.path.insert(0, os.path.dirname(os.path.abspath(args[0])))
+            runpy.run_path(args[0], run_name="__main__")
+        exit_code = 0
+    except SystemExit as e:
+        if e.code is None:
+            exit_code = 0
+        elif isinstance(e.code, int):
+            exit_code = e.code
+        else:
+            logging.error(e.code)
+    except BaseException as e:
+        logging.exception(e)
+    finally:
+        try:
+            sys.stdout.flush()
+            sys.stderr.flush()
+        finally:
+            os._exit(exit_code)
+
+
+class RunnerDaemon(object):
+    """The daemon which runs one test module at a time.
+
+    Attributes:
+        _requests: A Queue of the requests from stdin.
+        _closed: A boolean, whether stdin has been closed.
+    """
+
+    def __init__(self):
+        self._requests = queue.Queue()
+        self._closed = False
+
+    def Run(self):
+        """Serves requests until stdin is closed."""
+        reader = threading.Thread(
+            target=_ReadRequests, args=(self._requests, ), name="readRequests")
+        reader.daemon = True
+        reader.start()
+        _WriteReply({REPLY_READY: True})
+
+        while not self._closed:
+            request = self._requests.get()
+            if request is None:
+                self._closed = True
+            elif REQUEST_JOB in request:
+                exit_code = self._RunJob(request)
+                _WriteReply({
+                    REQUEST_JOB: request[REQUEST_JOB],
+                    REPLY_EXIT_CODE: exit_code
+                })
+            elif REQUEST_CANCEL in request:
+                logging.warning("Job %s is not running.",
+                                request[REQUEST_CANCEL])
+
+    def _RunJob(self, request):
+        """Forks a child process to run a test module and waits for it.
+
+        Args:
+            request: A dict, the job request.
+
+        Returns:
+            An integer, the exit code of the child process. Negative if the
+            child process is terminated by a signal.
+        """
+        job_id = request[REQUEST_JOB]
+        stdin_read_fd, stdin_write_fd = os.pipe()
+        sys.stdout.flush()
+        sys.stderr.flush()
+        pid = os.fork()
+        if pid == 0:
+            os.close(stdin_write_fd)
+            _RunJobInChild(request[REQUEST_ARGS], stdin_read_fd,
+                           request[REQUEST_STDOUT], request[REQUEST_STDERR])
+        os.close(stdin_read_fd)
+
+        kill_time = None
+        while True:
+            waited_pid, status = os.waitpid(pid, os.WNOHANG)
+            if waited_pid == pid:
+                break
+            if kill_time is not None and time.time() > kill_time:
+                logging.error("Kill job %s.", job_id)
+                os.kill(pid, signal.SIGKILL)
+                kill_time = None
+            if self._closed:
+                request = None
+            else:
+                try:
+                    request = self._requests.get(timeout=POLL_INTERVAL_SECS)
+                except queue.Empty:
+                    continue
+            if request is None:
+                self._closed = True
+                time.sleep(POLL_INTERVAL_SECS)
+            elif request.get(REQUEST_CANCEL) != job_id:
+                logging.error("Ignore request while job %s is running: %s",
+                              job_id, request)
+                continue
+            if stdin_write_fd is not None:
+                # The runner's watchStdin thread stops the test when its
+                # stdin is closed.
+                logging.error("Abort job %s.", job_id)
+                os.close(stdin_write_fd)
+                stdin_write_fd = None
+                kill_time = time.time() + ABORT_TIMEOUT_SECS
+
+        if stdin_write_fd is not None:
+            os.close(stdin_write_fd)
+        if os.WIFSIGNALED(status):
+            return -os.WTERMSIG(status)
+        return os.WEXITSTATUS(status)
+
+
+if __name__ == "__main__":
+    logging.basicConfig(stream=sys.stderr, level=logging.INFO)
+    RunnerDaemon().Run()
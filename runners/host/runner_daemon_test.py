@@ -0,0 +1,171 @@
+#!/usr/bin/env python
+#
+# Copyright (C) 2018 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+import json
+import mock
+import os
+import shutil
+import sys
+import tempfile
+import unittest
+
+from vts.runners.host import runner_daemon
+
+# Waits for stdin to be closed, which is how the runner detects an abort.
+_WAIT_FOR_STDIN_SCRIPT = "import sys\nsys.stdin.read()\nsys.exit(5)\n"
+
+
+class RunnerDaemonTest(unittest.TestCase):
+    """Unit tests for runner_daemon.
+
+    Attributes:
+        _temp_dir: A string, the directory containing the scripts and output.
+        _stdout_path: A string, the file the jobs' stdout is redirected to.
+        _stderr_path: A string, the file the jobs' stderr is redirected to.
+        _daemon: The RunnerDaemon under test.
+    """
+
+    def setUp(self):
+        """Creates the temporary directory and the daemon."""
+        self._temp_dir = tempfile.mkdtemp()
+        self._stdout_path = os.path.join(self._temp_dir, "stdout.txt")
+        self._stderr_path = os.path.join(self._temp_dir, "stderr.txt")
+        self._daemon = runner_daemon.RunnerDaemon()
+
+    def tearDown(self):
+        """Deletes the temporary directory."""
+        shutil.rmtree(self._temp_dir)
+
+    def _WriteFile(self, name, content):
+        """Writes a file in the temporary directory.
+
+        Args:
+            name: A string, the file name.
+            content: A string, the file content.
+
+        Returns:
+            A string, the path to the file.
+        """
+        path = os.path.join(self._temp_dir, name)
+        with open(path, "w") as f:
+            f.write(content)
+        return path
+
+    def _ReadFile(self, path):
+        """Reads a file.
+
+        Args:
+            path: A string, the path to the file.
+
+        Returns:
+            A string, the file content.
+        """
+        with open(path, "r") as f:
+            return f.read()
+
+    def _CreateJob(self, args, job_id=1):
+        """Creates a job request.
+
+        Args:
+            args: A list of strings, the arguments following "python".
+            job_id: An integer, the job ID.
+
+        Returns:
+            A dict, the request.
+        """
+        return {
+            runner_daemon.REQUEST_JOB: job_id,
+            runner_daemon.REQUEST_ARGS: args,
+            runner_daemon.REQUEST_STDOUT: self._stdout_path,
+            runner_daemon.REQUEST_STDERR: self._stderr_path
+        }
+
+    def testRunJobScript(self):
+        """Tests that a script runs in a child process with its output."""
+        script = self._WriteFile(
+            "job_script.py", "import os\n"
+            "import sys\n"
+            "sys.stdout.write('%s %d\\n' % (sys.argv[1], os.getpid()))\n"
+            "sys.stderr.write('error\\n')\n"
+            "sys.exit(3)\n")
+        exit_code = self._daemon._RunJob(
+            self._CreateJob([script, "config.json"]))
+        self.assertEqual(3, exit_code)
+        config, pid = self._ReadFile(self._stdout_path).split()
+        self.assertEqual("config.json", config)
+        self.assertNotEqual(os.getpid(), int(pid))
+        self.assertEqual("error\n", self._ReadFile(self._stderr_path))
+
+    def testRunJobModule(self):
+        """Tests that a module runs as __main__ and exits with 0."""
+        self._WriteFile(
+            "job_module.py", "import sys\n"
+            "if __name__ == '__main__':\n"
+            "    sys.stdout.write(' '.join(sys.argv[1:]))\n")
+        with mock.patch.object(sys, "path", [self._temp_dir] + sys.path):
+            exit_code = self._daemon._RunJob(
+                self._CreateJob(["-m", "job_module", "config.json"]))
+        self.assertEqual(0, exit_code)
+        self.assertEqual("config.json", self._ReadFile(self._stdout_path))
+
+    def testRunJobException(self):
+        """Tests that an uncaught exception results in exit code 1."""
+        script = self._WriteFile("job_script.py", "raise ValueError()\n")
+        self.assertEqual(1, self._daemon._RunJob(self._CreateJob([script])))
+
+    def testRunJobCancel(self):
+        """Tests that cancelling a job closes the child process's stdin."""
+        script = self._WriteFile("job_script.py", _WAIT_FOR_STDIN_SCRIPT)
+        self._daemon._requests.put({runner_daemon.REQUEST_CANCEL: 2})
+        self._daemon._requests.put({runner_daemon.REQUEST_CANCEL: 1})
+        self.assertEqual(5, self._daemon._RunJob(self._CreateJob([script])))
+        self.assertFalse(self._daemon._closed)
+
+    def testRunJobStdinClosed(self):
+        """Tests that a job is aborted when the daemon stdin is closed."""
+        script = self._WriteFile("job_script.py", _WAIT_FOR_STDIN_SCRIPT)
+        self._daemon._requests.put(None)
+        self.assertEqual(5, self._daemon._RunJob(self._CreateJob([script])))
+        self.assertTrue(self._daemon._closed)
+
+    def testRun(self):
+        """Tests the replies to the requests from stdin."""
+        script = self._WriteFile("job_script.py", "import sys\nsys.exit(2)\n")
+        requests = [
+            json.dumps(self._CreateJob([script], job_id=7)) + "\n",
+            json.dumps({runner_daemon.REQUEST_CANCEL: 7}) + "\n",
+            ""
+        ]
+        stdin = mock.MagicMock()
+        stdin.readline.side_effect = requests
+        stdout = mock.MagicMock()
+        with mock.patch.object(sys, "stdin", stdin), \
+                mock.patch.object(sys, "stdout", stdout):
+            self._daemon.Run()
+        replies = [
+            json.loads(call[0][0]) for call in stdout.write.call_args_list
+        ]
+        self.assertEqual([{
+            runner_daemon.REPLY_READY: True
+        }, {
+            runner_daemon.REQUEST_JOB: 7,
+            runner_daemon.REPLY_EXIT_CODE: 2
+        }], replies)
+
+
+if __name__ == "__main__":
+    unittest.main()
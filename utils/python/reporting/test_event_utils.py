@@ -0,0 +1,115 @@
+#
+# Copyright (C) 2018 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+import json
+import logging
+import socket
+import threading
+
+from vts.runners.host import keys
+from vts.utils.python.web import feature_utils
+
+_EVENT = "Event"
+_EVENT_TEST_STARTED = "test_started"
+_EVENT_TEST_ENDED = "test_ended"
+_CONNECT_TIMEOUT_SECS = 10
+
+# The connection is shared by all test classes in the runner process because
+# the host accepts only one connection per runner.
+_connection_lock = threading.Lock()
+_connection = None
+_connection_failed = False
+
+
+def _SendEvent(port, event):
+    """Sends one event as a line of json to the host.
+
+    Connects to the host at the first call. Disables itself silently if the
+    host is unreachable, so that test execution is never affected.
+
+    Args:
+        port: int, the local port the host is listening on.
+        event: dict, the event to send.
+    """
+    global _connection
+    global _connection_failed
+    with _connection_lock:
+        if _connection_failed:
+            return
+        try:
+            if _connection is None:
+                _connection = socket.create_connection(
+                    ("localhost", int(port)), _CONNECT_TIMEOUT_SECS)
+            _connection.sendall(json.dumps(event) + "\n")
+        except (socket.error, ValueError) as e:
+            logging.warning("Failed to send test event to host: %s", e)
+            _connection_failed = True
+            if _connection is not None:
+                _connection.close()
+                _connection = None
+
+
+class TestEventStreamFeature(feature_utils.Feature):
+    """Feature object for streaming test events to the host as they happen.
+
+    Each event is a json object on its own line. The host uses the events to
+    report test progress before the runner exits, and the test run summary
+    file to reconcile the results afterwards.
+
+    Attributes:
+        enabled: boolean, True if event streaming is enabled, False otherwise.
+    """
+
+    _REQUIRED_PARAMS = [keys.ConfigKeys.IKEY_TEST_EVENT_STREAM_PORT]
+
+    def __init__(self, user_params):
+        """Initializes the test event stream feature.
+
+        Args:
+            user_params: A dictionary from parameter name (String) to parameter value.
+        """
+        self.ParseParameters(
+            required_param_names=self._REQUIRED_PARAMS,
+            user_params=user_params)
+        if self.enabled:
+            logging.debug("Test event streaming is enabled")
+
+    def TestStarted(self, record):
+        """Sends the event of a test case starting.
+
+        Args:
+            record: records.TestResultRecord, the test case's record.
+        """
+        if not self.enabled:
+            return
+        event = record.getDict()
+        event[_EVENT] = _EVENT_TEST_STARTED
+        _SendEvent(getattr(self, keys.ConfigKeys.IKEY_TEST_EVENT_STREAM_PORT),
+                   event)
+
+    def TestEnded(self, record):
+        """Sends the event of a test case ending.
+
+        The result of a silenced test case is None.
+
+        Args:
+            record: records.TestResultRecord, the test case's record.
+        """
+        if not self.enabled:
+            return
+        event = record.getDict()
+        event[_EVENT] = _EVENT_TEST_ENDED
+        _SendEvent(getattr(self, keys.ConfigKeys.IKEY_TEST_EVENT_STREAM_PORT),
+                   event)